@@ -2,60 +2,277 @@ package injectr.ipatch;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
-import injectr.ipatch.bytecode.ClassFile;
+import injectr.ipatch.cache.DiffCache;
 import injectr.ipatch.cli.Args;
+import injectr.ipatch.compress.Codecs;
 import injectr.ipatch.compress.CompressType;
+import injectr.ipatch.compress.ZstdDictionary;
 import injectr.ipatch.diff.DiffAlgorithm;
+import injectr.ipatch.jar.EntryDiff;
+import injectr.ipatch.jar.EntryFilter;
+import injectr.ipatch.jar.InPlaceJarPatcher;
+import injectr.ipatch.jar.JarDiffGenerator;
+import injectr.ipatch.jar.JarPatcher;
+import injectr.ipatch.patch.ChangeCodec;
+import injectr.ipatch.patch.HashType;
+import injectr.ipatch.patch.PatchComposer;
+import injectr.ipatch.patch.PatchFile;
+import injectr.ipatch.patch.PatchInspector;
+import injectr.ipatch.patch.PatchInverter;
+import injectr.ipatch.patch.PatchReader;
 import injectr.ipatch.util.BytesUtil;
 
-import java.io.FileInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class IPatch {
 
     public static final String VERSION = "1.0-SNAPSHOT";
 
     public final Logger LOGGER;
-    private final Path base, modifier, output;
-    private final boolean patchMode;
+    private final Path base;
+    private final List<Path> modifiers, outputs;
+    private final Mode mode;
+    private final boolean inPlace, reversible;
+    private final EntryFilter filter;
+    private final int top;
+    private final Path dictionary;
+    private final boolean sharedDictionary;
+    private final int dictionarySize;
+    private final Path cache;
+    private final long cacheSize;
     private final CompressType compressType;
     private final DiffAlgorithm diffAlgorithm;
 
-    public IPatch(boolean verbose, Path base, Path modifier, Path output, boolean patchMode, CompressType compressType, DiffAlgorithm diffAlgorithm) {
+    /**
+     * @param base The file to patch or generate patches from, or the first patch when composing.
+     * @param modifiers The patch file to apply, the new files to generate patches for or the patches to compose.
+     * @param output The output file, or the output directory when generating patches for several new files.
+     * @param inPlace Whether the base is patched in place, see {@link InPlaceJarPatcher}.
+     * @param reversible Whether generated patches record their reverse changes, see {@link PatchInverter}.
+     * @param filter The entries a patch is applied to, the others are left as they are in the base.
+     * @param top How many entries and packages are listed when inspecting a patch.
+     * @param dictionary The dictionary generated patches are compressed with or patches are read with, may be null.
+     * @param sharedDictionary Whether the dictionary is left out of generated patches.
+     * @param dictionarySize The maximum size of trained dictionaries.
+     * @param cache The file caching entry diffs when generating patches, may be null.
+     * @param cacheSize The maximum number of bytes of cached diffs, see {@link DiffCache}.
+     */
+    public IPatch(boolean verbose, Path base, List<Path> modifiers, Path output, Mode mode, boolean inPlace, boolean reversible, EntryFilter filter, int top, Path dictionary, boolean sharedDictionary, int dictionarySize, Path cache, long cacheSize, CompressType compressType, DiffAlgorithm diffAlgorithm) {
         LOGGER = new Logger(verbose);
         this.base = base;
-        this.modifier = modifier;
-        this.patchMode = patchMode;
+        this.modifiers = modifiers;
+        this.mode = mode;
+        this.inPlace = inPlace;
+        this.reversible = reversible;
+        this.filter = filter;
+        this.top = top;
+        this.dictionary = dictionary;
+        this.sharedDictionary = sharedDictionary;
+        this.dictionarySize = dictionarySize;
+        this.cache = cache;
+        this.cacheSize = cacheSize;
         this.compressType = compressType;
         this.diffAlgorithm = diffAlgorithm;
-        if (output == null) {
-            if (patchMode) {
-                this.output = modifier.resolveSibling(modifier.getFileName() + ".patch" + compressType.toString());
-            } else {
-                this.output = modifier;
-            }
+        this.outputs = new ArrayList<>();
+        if (mode != Mode.GENERATE) {
+            this.outputs.add(output == null ? base : output);
         } else {
-            this.output = output;
+            for (Path modifier : modifiers) {
+                String name = modifier.getFileName() + ".patch" + compressType.toString();
+                if (output == null)
+                    this.outputs.add(modifier.resolveSibling(name));
+                else
+                    this.outputs.add(modifiers.size() == 1 ? output : output.resolve(name));
+            }
         }
     }
 
     public void run() {
         LOGGER.info("IPatch v%s", VERSION);
         LOGGER.debug("Base: %s", base);
-        LOGGER.debug("Modifier: %s", modifier);
-        LOGGER.debug("Output: %s", output);
-        LOGGER.debug("Patching?: %s", patchMode);
+        LOGGER.debug("Modifiers: %s", modifiers);
+        LOGGER.debug("Outputs: %s", outputs);
+        LOGGER.debug("Mode: %s", mode);
+        LOGGER.debug("In Place?: %s", inPlace);
+        LOGGER.debug("Reversible?: %s", reversible);
+        LOGGER.debug("Filtered?: %s", filter != EntryFilter.ALL);
+        LOGGER.debug("Dictionary: %s", dictionary);
+        LOGGER.debug("Shared Dictionary?: %s", sharedDictionary);
+        LOGGER.debug("Cache: %s", cache);
         LOGGER.debug("Compression Type: %s", compressType);
         LOGGER.debug("Diff Algorithm: %s", diffAlgorithm);
 
+        switch (mode) {
+            case APPLY:
+                apply();
+                break;
+            case COMPOSE:
+                compose();
+                break;
+            case INVERT:
+                invert();
+                break;
+            case INSPECT:
+                inspect();
+                break;
+            case TRAIN:
+                train();
+                break;
+            default:
+                generate();
+        }
+    }
+
+    /**
+     * Applies the patch to the base, streaming the base jar entry by entry. Entries outside the filter are skipped
+     * without reading their changes.
+     */
+    private void apply() {
+        Path patch = modifiers.get(0), output = outputs.get(0);
+        try (PatchReader reader = new PatchReader(patch, dictionary()).filter(filter)) {
+            if (inPlace && !new InPlaceJarPatcher().apply(base, reader))
+                LOGGER.info("Compacted %s", base);
+            else if (!inPlace)
+                new JarPatcher().apply(base, reader, output);
+            LOGGER.info("Wrote %s (%d changed entries)", output, reader.getEntries().size());
+        } catch (IOException e) {
+            LOGGER.error("Unable to apply patch!", e);
+        }
+    }
+
+    /**
+     * Squashes the base patch and the patches following it into a single patch.
+     */
+    private void compose() {
+        List<Path> patches = new ArrayList<>();
+        patches.add(base);
+        patches.addAll(modifiers);
+        Path output = outputs.get(0);
         try {
-            ClassFile file = BytesUtil.readAndVerify(new FileInputStream("E:\\austi\\Development\\IntelliJ\\IPatch\\out\\production\\classes\\injectr\\ipatch\\bytecode\\AttributeInfo.class"));
+            if (output.getParent() != null)
+                Files.createDirectories(output.getParent());
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+                PatchComposer.compose(patches, dictionary(), out);
+            }
+            LOGGER.info("Wrote %s (%d patches composed)", output, patches.size());
+        } catch (IOException e) {
+            LOGGER.error("Unable to compose patches!", e);
+        }
+    }
+
+    /**
+     * Writes the patch undoing the base patch.
+     */
+    private void invert() {
+        Path output = outputs.get(0);
+        try (PatchReader reader = new PatchReader(base, dictionary())) {
+            if (output.getParent() != null)
+                Files.createDirectories(output.getParent());
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+                PatchInverter.invert(reader, out);
+            }
+            LOGGER.info("Wrote %s (%d changed entries)", output, reader.getEntries().size());
+        } catch (IOException e) {
+            LOGGER.error("Unable to invert patch!", e);
+        }
+    }
+
+    /**
+     * Prints what the base patch is made of.
+     */
+    private void inspect() {
+        try (PatchReader reader = new PatchReader(base)) {
+            PatchInspector.inspect(reader, top, System.out);
         } catch (IOException e) {
-            e.printStackTrace();
+            LOGGER.error("Unable to inspect patch!", e);
+        }
+    }
+
+    /**
+     * Trains a dictionary on the contents of the base jar's entries, or on the records of the base patch.
+     */
+    private void train() {
+        Path output = outputs.get(0);
+        try {
+            List<byte[]> samples = new ArrayList<>();
+            if (isPatch(base)) {
+                try (PatchReader reader = new PatchReader(base, dictionary())) {
+                    for (PatchFile.Entry entry : reader.getEntries()) {
+                        EntryDiff diff = reader.getHeader().isReversible() ? reader.readWithReverse(entry) : reader.read(entry);
+                        samples.add(ChangeCodec.encode(diff.getChanges()));
+                        if (diff.getReverse() != null)
+                            samples.add(ChangeCodec.encode(diff.getReverse()));
+                    }
+                }
+            } else {
+                try (ZipFile jar = new ZipFile(base.toFile())) {
+                    Enumeration<? extends ZipEntry> entries = jar.entries();
+                    while (entries.hasMoreElements()) {
+                        ZipEntry entry = entries.nextElement();
+                        if (entry.isDirectory())
+                            continue;
+                        try (InputStream in = jar.getInputStream(entry)) {
+                            samples.add(BytesUtil.readAll(in, entry.getSize()));
+                        }
+                    }
+                }
+            }
+            ZstdDictionary trained = ZstdDictionary.train(samples, dictionarySize);
+            if (output.getParent() != null)
+                Files.createDirectories(output.getParent());
+            Files.write(output, trained.getBytes());
+            LOGGER.info("Wrote %s (%d samples, dictionary %08x)", output, samples.size(), trained.getId());
+        } catch (IOException e) {
+            LOGGER.error("Unable to train dictionary!", e);
+        }
+    }
+
+    private static boolean isPatch(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return Files.size(file) >= 4 && in.readInt() == PatchFile.MAGIC;
+        }
+    }
+
+    private ZstdDictionary dictionary() throws IOException {
+        return dictionary == null ? null : ZstdDictionary.of(Files.readAllBytes(dictionary));
+    }
+
+    /**
+     * Generates a patch for every new file. The base is only read and indexed once, no matter how many new files there
+     * are. Entry diffs are looked up in the cache first, if there is one.
+     */
+    private void generate() {
+        try (DiffCache diffCache = cache == null ? null : new DiffCache(cache, cacheSize)) {
+            PatchFile.Header header = new PatchFile.Header(diffAlgorithm, HashType.CRC32, compressType, reversible,
+                    dictionary(), sharedDictionary);
+            List<List<EntryDiff>> diffs = new JarDiffGenerator(Runtime.getRuntime().availableProcessors(),
+                    JarDiffGenerator.DEFAULT_MEMORY_BUDGET, diffAlgorithm, diffCache, reversible).diff(base, modifiers);
+            if (diffCache != null)
+                LOGGER.info("Diff cache: %d hits, %d misses", diffCache.hits(), diffCache.misses());
+            for (int i = 0; i < modifiers.size(); i++) {
+                Path output = outputs.get(i);
+                if (output.getParent() != null)
+                    Files.createDirectories(output.getParent());
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+                    PatchFile.write(header, diffs.get(i), out);
+                }
+                LOGGER.info("Wrote %s (%d changed entries)", output, diffs.get(i).size());
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to generate patches!", e);
         }
-        System.out.println();
-        //TODO
     }
 
     public static void main(String[] argv) {
@@ -68,8 +285,36 @@ public class IPatch {
         try {
             commander.parse(argv);
 
-            if (args.newFile != null && args.patchFile != null)
-                throw new ParameterException("--new-file and --patch-file are mutually exclusive!");
+            int modes = (args.newFiles == null ? 0 : 1) + (args.patchFile == null ? 0 : 1) + (args.composeFiles == null ? 0 : 1)
+                    + (args.invert ? 1 : 0) + (args.inspect ? 1 : 0) + (args.train ? 1 : 0);
+            if (modes > 1)
+                throw new ParameterException("--new-file, --patch-file, --compose, --invert, --inspect and --train-dictionary are mutually exclusive!");
+            if (modes == 0)
+                throw new ParameterException("Either --new-file, --patch-file, --compose, --invert, --inspect or --train-dictionary is required!");
+            if (args.top < 1)
+                throw new ParameterException("--top must be positive!");
+            if ((args.composeFiles != null || args.invert || args.train) && args.outFile == null)
+                throw new ParameterException("--compose, --invert and --train-dictionary require --out!");
+            if (args.cache != null && args.newFiles == null)
+                throw new ParameterException("--cache requires --new-file!");
+            if (args.cacheSize < 1 || args.cacheSize > DiffCache.MAX_SIZE >> 20)
+                throw new ParameterException("--cache-size must be between 1 and " + (DiffCache.MAX_SIZE >> 20) + "!");
+            if (args.dictionarySize < 256)
+                throw new ParameterException("--dictionary-size must be at least 256!");
+            if (args.dictionary != null && args.compressType != CompressType.NONE)
+                throw new ParameterException("--dictionary can't be used with --compress!");
+            if (args.sharedDictionary && (args.dictionary == null || args.newFiles == null))
+                throw new ParameterException("--shared-dictionary requires --dictionary and --new-file!");
+            if (args.compressType != CompressType.NONE && args.newFiles == null)
+                throw new ParameterException("--compress requires --new-file!");
+            if (!Codecs.canCompress(args.compressType))
+                throw new ParameterException("Patches can't be compressed with " + args.compressType.name() + "!");
+            if (args.reversible && args.newFiles == null)
+                throw new ParameterException("--reversible requires --new-file!");
+            if (args.inPlace && (args.patchFile == null || args.outFile != null))
+                throw new ParameterException("--in-place requires --patch-file and can't be used with --out!");
+            if ((args.includes != null || args.excludes != null) && args.patchFile == null)
+                throw new ParameterException("--include and --exclude require --patch-file!");
         } catch (ParameterException e) {
             System.err.println(e.getMessage());
             commander.usage();
@@ -83,14 +328,36 @@ public class IPatch {
                 commander.usage();
             } else {
                 Path base = args.file.get(0);
+                Mode mode = args.newFiles != null ? Mode.GENERATE : args.patchFile != null ? Mode.APPLY
+                        : args.composeFiles != null ? Mode.COMPOSE : args.invert ? Mode.INVERT
+                        : args.inspect ? Mode.INSPECT : Mode.TRAIN;
                 new IPatch(args.verbose,
                         base,
-                        args.newFile == null ? args.patchFile : args.newFile,
+                        mode == Mode.GENERATE ? args.newFiles : mode == Mode.APPLY ? Collections.singletonList(args.patchFile)
+                                : mode == Mode.COMPOSE ? args.composeFiles : Collections.emptyList(),
                         args.outFile,
-                        args.newFile == null,
+                        mode,
+                        args.inPlace,
+                        args.reversible,
+                        EntryFilter.of(args.includes, args.excludes),
+                        args.top,
+                        args.dictionary,
+                        args.sharedDictionary,
+                        args.dictionarySize,
+                        args.cache,
+                        (long) args.cacheSize << 20,
                         args.compressType,
                         args.diffAlgorithm).run();
             }
         }
     }
+
+    public enum Mode {
+        GENERATE, //Generates patches from the base to each new file
+        APPLY, //Applies a patch to the base
+        COMPOSE, //Composes the base patch with the patches following it
+        INVERT, //Inverts the base patch
+        INSPECT, //Prints what the base patch is made of
+        TRAIN //Trains a dictionary on the base jar or patch
+    }
 }
@@ -215,17 +215,17 @@ public abstract class AttributeInfo {
                     info[i] = new RuntimeInvisibleParameterAnnotationsInfo(name_index, len, num_pannotations, pannotations);
                     break;
                 case RuntimeVisibleTypeAnnotations:
-                    byte num_tannotations = (byte) stream.readByte();
+                    int num_tannotations = stream.readUnsignedShort();
                     TypeAnnotationInfo[] tannotations = new TypeAnnotationInfo[num_tannotations];
-                    for (byte j = 0; j < num_tannotations; j++) {
+                    for (int j = 0; j < num_tannotations; j++) {
                         tannotations[j] = TypeAnnotationInfo.readTypeAnnotationInfo(stream);
                     }
                     info[i] = new RuntimeVisibleTypeAnnotationsInfo(name_index, len, num_tannotations, tannotations);
                     break;
                 case RuntimeInvisibleTypeAnnotations:
-                    num_tannotations = (byte) stream.readByte();
+                    num_tannotations = stream.readUnsignedShort();
                     tannotations = new TypeAnnotationInfo[num_tannotations];
-                    for (byte j = 0; j < num_tannotations; j++) {
+                    for (int j = 0; j < num_tannotations; j++) {
                         tannotations[j] = TypeAnnotationInfo.readTypeAnnotationInfo(stream);
                     }
                     info[i] = new RuntimeInvisibleTypeAnnotationsInfo(name_index, len, num_tannotations, tannotations);
@@ -256,6 +256,9 @@ public abstract class AttributeInfo {
                     info[i] = new MethodParametersInfo(name_index, len, param_count, params);
                     break;
                 case Module:
+                    int module_name_index = stream.readUnsignedShort();
+                    int module_flags = stream.readUnsignedShort();
+                    int module_version_index = stream.readUnsignedShort();
                     int requires_count = stream.readUnsignedShort();
                     ModuleInfo.Requires[] requires = new ModuleInfo.Requires[requires_count];
                     for (int j = 0; j < requires_count; j++) {
@@ -301,7 +304,7 @@ public abstract class AttributeInfo {
                         }
                         provides[j] = new ModuleInfo.Provides(pindex, pcount, provides_index);
                     }
-                    info[i] = new ModuleInfo(name_index, len, requires_count, requires, exports_count, exports, opens_count, opens, uses_count, uses, provides_count, provides);
+                    info[i] = new ModuleInfo(name_index, len, module_name_index, module_flags, module_version_index, requires_count, requires, exports_count, exports, opens_count, opens, uses_count, uses, provides_count, provides);
                     break;
                 case ModulePackages:
                     int package_count = stream.readUnsignedShort();
@@ -483,7 +486,7 @@ public abstract class AttributeInfo {
                     (byte) (attributes_count & 0xFF)}, buf, inserted);
 
             for (AttributeInfo attributeInfo : attributes) {
-                for (byte[] chunk : attributeInfo.getInfo()) {
+                for (byte[] chunk : attributeInfo.getBytes()) {
                     inserted += BytesUtil.insert(chunk, buf, inserted);
                 }
             }
@@ -495,7 +498,7 @@ public abstract class AttributeInfo {
         public long getInfoByteLength() {
             long nestedAttributesLength = 0L;
             for (AttributeInfo info : attributes)
-                nestedAttributesLength += info.getInfoByteLength();
+                nestedAttributesLength += info.getByteLength();
             return 12L
                     + code_length
                     + (((long) exception_table_length) * 8L) //4 unsigned shorts per table
@@ -2485,7 +2488,7 @@ public abstract class AttributeInfo {
 
                 @Override
                 public int getByteLength() {
-                    return table_length * 6;
+                    return 2 + (table_length * 6);
                 }
 
                 public static final class Table {
@@ -2629,7 +2632,7 @@ public abstract class AttributeInfo {
             }
 
             public int getByteLength() {
-                return path_length + (2 * path.length);
+                return 1 + (2 * path.length);
             }
 
             public byte getPathLength() {
@@ -2889,7 +2892,7 @@ public abstract class AttributeInfo {
 
         @Override
         public long getInfoByteLength() {
-            return 1L + (2L * (long) parameters_count);
+            return 1L + (4L * (long) parameters_count);
         }
 
         public byte getParametersCount() {
@@ -2946,6 +2949,9 @@ public abstract class AttributeInfo {
         public static final int ACC_SYNTHETIC = 0x1000;
         public static final int ACC_MANDATED = 0x8000;
 
+        private final int module_name_index; //Unsigned short
+        private final int module_flags; //Unsigned short
+        private final int module_version_index; //Unsigned short
         private final int requires_count; //Unsigned short
         private final Requires[] requires;
         private final int exports_count; //Unsigned short
@@ -2957,8 +2963,11 @@ public abstract class AttributeInfo {
         private final int provides_count; //Unsigned short
         private final Provides[] provides;
 
-        public ModuleInfo(int attribute_name_index, long attribute_length, int requires_count, Requires[] requires, int exports_count, Exports[] exports, int opens_count, Opens[] opens, int uses_count, int[] uses_index, int provides_count, Provides[] provides) {
+        public ModuleInfo(int attribute_name_index, long attribute_length, int module_name_index, int module_flags, int module_version_index, int requires_count, Requires[] requires, int exports_count, Exports[] exports, int opens_count, Opens[] opens, int uses_count, int[] uses_index, int provides_count, Provides[] provides) {
             super(attribute_name_index, attribute_length);
+            this.module_name_index = module_name_index;
+            this.module_flags = module_flags;
+            this.module_version_index = module_version_index;
             this.requires_count = requires_count;
             this.requires = requires;
             this.exports_count = exports_count;
@@ -2974,7 +2983,13 @@ public abstract class AttributeInfo {
         @Override
         public byte[][] getInfo() {
             byte[][] buf = BytesUtil.allocate(getInfoByteLength());
-            long offset = BytesUtil.insert(new byte[]{(byte) (requires_count >> 8),
+            long offset = BytesUtil.insert(new byte[]{(byte) (module_name_index >> 8),
+                    (byte) (module_name_index & 0xFF),
+                    (byte) (module_flags >> 8),
+                    (byte) (module_flags & 0xFF),
+                    (byte) (module_version_index >> 8),
+                    (byte) (module_version_index & 0xFF),
+                    (byte) (requires_count >> 8),
                     (byte) (requires_count & 0xFF)}, buf, 0);
             for (Requires req : requires)
                 offset += BytesUtil.insert(req.getBytes(), buf, offset);
@@ -3000,7 +3015,7 @@ public abstract class AttributeInfo {
 
         @Override
         public long getInfoByteLength() {
-            long len = 10 + (2 * uses_count);
+            long len = 16 + (2 * uses_count);
             for (Requires req : requires)
                 len += req.getByteLength();
             for (Exports exp : exports)
@@ -3012,6 +3027,18 @@ public abstract class AttributeInfo {
             return len;
         }
 
+        public int getModuleNameIndex() {
+            return module_name_index;
+        }
+
+        public int getModuleFlags() {
+            return module_flags;
+        }
+
+        public int getModuleVersionIndex() {
+            return module_version_index;
+        }
+
         public int getRequiresCount() {
             return requires_count;
         }
@@ -3222,9 +3249,9 @@ public abstract class AttributeInfo {
                 byte[] buf = new byte[getByteLength()];
                 buf[0] = (byte) (provides_index >> 8);
                 buf[1] = (byte) (provides_index & 0xFF);
-                buf[4] = (byte) (provides_with_count >> 8);
-                buf[5] = (byte) (provides_with_count & 0xFF);
-                int offset = 6;
+                buf[2] = (byte) (provides_with_count >> 8);
+                buf[3] = (byte) (provides_with_count & 0xFF);
+                int offset = 4;
                 for (int i : provides_with_index) {
                     buf[offset++] = (byte) (i >> 8);
                     buf[offset++] = (byte) (i & 0xFF);
@@ -3270,7 +3297,7 @@ public abstract class AttributeInfo {
             long offset = BytesUtil.insert(new byte[]{(byte) (package_count >> 8),
                     (byte) (package_count & 0xFF)}, buf, 0);
             for (int i : package_index)
-                BytesUtil.insert(new byte[]{(byte) (i >> 8),
+                offset += BytesUtil.insert(new byte[]{(byte) (i >> 8),
                         (byte) (i & 0xFF)}, buf, offset);
             return buf;
         }
@@ -113,7 +113,8 @@ public final class ClassFile {
         stream.write(shortToBytes(major_version));
         stream.write(shortToBytes(constant_pool_count));
         for (int i = 1; i < constant_pool.length; i++) //Ignore first because constant_pool is 1-indexed!
-            stream.write(constant_pool[i].toBytes());
+            if (constant_pool[i] != null) //Unusable slots following 8 byte constants are null
+                stream.write(constant_pool[i].toBytes());
         stream.write(shortToBytes(access_flags));
         stream.write(shortToBytes(this_class));
         stream.write(shortToBytes(super_class));
@@ -134,7 +135,7 @@ public final class ClassFile {
         }
         stream.write(shortToBytes(attributes_count));
         for (AttributeInfo i : attributes) {
-            byte[][] info = i.getInfo();
+            byte[][] info = i.getBytes();
             for (byte[] b : info)
                 stream.write(b);
         }
@@ -169,7 +170,7 @@ public final class ClassFile {
         }
         checksum.update(shortToBytes(attributes_count));
         for (AttributeInfo i : attributes) {
-            byte[][] info = i.getInfo();
+            byte[][] info = i.getBytes();
             for (byte[] b : info)
                 checksum.update(b);
         }
@@ -26,58 +26,52 @@ public abstract class ConstantPoolInfo {
     public static ConstantPoolInfo[] readClassPoolInfo(int constant_pool_count, DataInputStream stream) throws IOException {
         ConstantPoolInfo[] info = new ConstantPoolInfo[constant_pool_count]; //According to the spec you have to do this /shrug
         for (int i = 1; i < constant_pool_count; i++) { //1 indexing for some reason
-            byte tag = stream.readByte();
-            switch (tag) {
-                case CONSTANT_class:
-                    info[i] = new ClassInfo(tag, stream.readUnsignedShort());
-                    break;
-                case CONSTANT_Fieldref:
-                case CONSTANT_Methodref:
-                case CONSTANT_InterfaceMethodref:
-                    info[i] = new RefInfo(tag, stream.readUnsignedShort(), stream.readUnsignedShort());
-                    break;
-                case CONSTANT_String:
-                    info[i] = new StringInfo(tag, stream.readUnsignedShort());
-                    break;
-                case CONSTANT_Integer:
-                case CONSTANT_Float:
-                    info[i] = new IntegerFloatInfo(tag, stream.readInt());
-                    break;
-                case CONSTANT_Long:
-                case CONSTANT_Double:
-                    info[i] = new LongDoubleInfo(tag, stream.readInt(), stream.readInt());
-                    break;
-                case CONSTANT_NameAndType:
-                    info[i] = new NameAndTypeInfo(tag, stream.readUnsignedShort(), stream.readUnsignedShort());
-                    break;
-                case CONSTANT_Utf8:
-                    int length = stream.readUnsignedShort();
-                    byte[] data = new byte[length];
-                    stream.readFully(data, 0, length);
-                    info[i] = new Utf8Info(tag, length, data);
-                    break;
-                case CONSTANT_MethodHandle:
-                    info[i] = new MethodHandleInfo(tag, (byte) stream.readByte(), stream.readUnsignedShort());
-                    break;
-                case CONSTANT_MethodType:
-                    info[i] = new MethodTypeInfo(tag, stream.readUnsignedShort());
-                    break;
-                case CONSTANT_InvokeDynamic:
-                    info[i] = new InvokeDynamicInfo(tag, stream.readUnsignedShort(), stream.readUnsignedShort());
-                    break;
-                case CONSTANT_Module:
-                    info[i] = new ModuleInfo(tag, stream.readUnsignedShort());
-                    break;
-                case CONSTANT_Package:
-                    info[i] = new PackageInfo(tag, stream.readUnsignedShort());
-                    break;
-                default:
-                    throw new IOException("Read invalid constant pool info type " + (int) tag);
-            }
+            info[i] = readConstantPoolInfo(stream);
+            if (info[i].takesTwoEntries())
+                i++; //8 byte constants take up two entries in the table
         }
         return info;
     }
 
+    public static ConstantPoolInfo readConstantPoolInfo(DataInputStream stream) throws IOException {
+        byte tag = stream.readByte();
+        switch (tag) {
+            case CONSTANT_class:
+                return new ClassInfo(tag, stream.readUnsignedShort());
+            case CONSTANT_Fieldref:
+            case CONSTANT_Methodref:
+            case CONSTANT_InterfaceMethodref:
+                return new RefInfo(tag, stream.readUnsignedShort(), stream.readUnsignedShort());
+            case CONSTANT_String:
+                return new StringInfo(tag, stream.readUnsignedShort());
+            case CONSTANT_Integer:
+            case CONSTANT_Float:
+                return new IntegerFloatInfo(tag, stream.readInt());
+            case CONSTANT_Long:
+            case CONSTANT_Double:
+                return new LongDoubleInfo(tag, stream.readInt(), stream.readInt());
+            case CONSTANT_NameAndType:
+                return new NameAndTypeInfo(tag, stream.readUnsignedShort(), stream.readUnsignedShort());
+            case CONSTANT_Utf8:
+                int length = stream.readUnsignedShort();
+                byte[] data = new byte[length];
+                stream.readFully(data, 0, length);
+                return new Utf8Info(tag, length, data);
+            case CONSTANT_MethodHandle:
+                return new MethodHandleInfo(tag, (byte) stream.readByte(), stream.readUnsignedShort());
+            case CONSTANT_MethodType:
+                return new MethodTypeInfo(tag, stream.readUnsignedShort());
+            case CONSTANT_InvokeDynamic:
+                return new InvokeDynamicInfo(tag, stream.readUnsignedShort(), stream.readUnsignedShort());
+            case CONSTANT_Module:
+                return new ModuleInfo(tag, stream.readUnsignedShort());
+            case CONSTANT_Package:
+                return new PackageInfo(tag, stream.readUnsignedShort());
+            default:
+                throw new IOException("Read invalid constant pool info type " + (int) tag);
+        }
+    }
+
     private final byte tag; //Unsigned byte
 
     public ConstantPoolInfo(byte tag) {
@@ -93,6 +87,13 @@ public abstract class ConstantPoolInfo {
 
     public abstract byte[] getInfo();
 
+    /**
+     * Long and double constants take up two entries in the constant pool, the second of which is unusable.
+     */
+    public boolean takesTwoEntries() {
+        return tag == CONSTANT_Long || tag == CONSTANT_Double;
+    }
+
     public byte[] toBytes() {
         byte[] info = getInfo();
         byte[] dat = new byte[info.length + 1];
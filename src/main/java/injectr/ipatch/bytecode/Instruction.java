@@ -0,0 +1,128 @@
+package injectr.ipatch.bytecode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single instruction decoded from the code array of a {@link AttributeInfo.CodeInfo}. Branch offsets are resolved
+ * to absolute pcs, so instructions can be compared and re-encoded without depending on where they are located.
+ * See: https://docs.oracle.com/javase/specs/jvms/se9/html/jvms-6.html
+ */
+public final class Instruction {
+
+    /**
+     * Splits a code array into instructions.
+     *
+     * @throws IllegalArgumentException If the code array contains an invalid or truncated instruction.
+     */
+    public static Instruction[] decode(byte[] code) {
+        List<Instruction> instructions = new ArrayList<>();
+        int pc = 0;
+        while (pc < code.length) {
+            int length;
+            try {
+                length = Opcodes.instructionLength(code, pc);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Truncated instruction at " + pc + "!");
+            }
+            if (length <= 0 || pc + length > code.length)
+                throw new IllegalArgumentException("Truncated instruction at " + pc + "!");
+            instructions.add(new Instruction(code, pc, length));
+            pc += length;
+        }
+        return instructions.toArray(new Instruction[0]);
+    }
+
+    private final byte[] code; //The code array this instruction belongs to
+    private final int pc;
+    private final int length; //Opcode, padding and operands
+
+    private Instruction(byte[] code, int pc, int length) {
+        this.code = code;
+        this.pc = pc;
+        this.length = length;
+    }
+
+    public int getPc() {
+        return pc;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getOpcode() {
+        return code[pc] & 0xFF;
+    }
+
+    /**
+     * The raw bytes of the instruction, switch padding included.
+     */
+    public byte[] getBytes() {
+        byte[] bytes = new byte[length];
+        System.arraycopy(code, pc, bytes, 0, length);
+        return bytes;
+    }
+
+    public boolean isBranch() {
+        return Opcodes.isBranch(getOpcode());
+    }
+
+    /**
+     * Gets the absolute pcs this instruction may branch to. For switches, the default target comes first followed by
+     * the target of every case in order.
+     */
+    public int[] getTargets() {
+        int opcode = getOpcode();
+        switch (opcode) {
+            case Opcodes.GOTO_W:
+            case Opcodes.JSR_W:
+                return new int[]{pc + Opcodes.readInt(code, pc + 1)};
+            case Opcodes.TABLESWITCH:
+            case Opcodes.LOOKUPSWITCH: {
+                int base = switchBase();
+                int cases = getSwitchKeys().length;
+                int stride = opcode == Opcodes.TABLESWITCH ? 4 : 8;
+                int[] targets = new int[1 + cases];
+                targets[0] = pc + Opcodes.readInt(code, base);
+                for (int i = 0; i < cases; i++) //Offsets start after low/high, or after npairs and the first match
+                    targets[1 + i] = pc + Opcodes.readInt(code, base + 12 + (stride * i));
+                return targets;
+            }
+            default:
+                if (!Opcodes.isBranch(opcode))
+                    return new int[0];
+                return new int[]{pc + (short) (((code[pc + 1] & 0xFF) << 8) | (code[pc + 2] & 0xFF))};
+        }
+    }
+
+    /**
+     * Gets the values matched by the cases of a switch, in the same order as {@link #getTargets()}. Null if this isn't
+     * a switch.
+     */
+    public int[] getSwitchKeys() {
+        int base = switchBase();
+        switch (getOpcode()) {
+            case Opcodes.TABLESWITCH: {
+                int low = Opcodes.readInt(code, base + 4);
+                int high = Opcodes.readInt(code, base + 8);
+                int[] keys = new int[high - low + 1];
+                for (int i = 0; i < keys.length; i++)
+                    keys[i] = low + i;
+                return keys;
+            }
+            case Opcodes.LOOKUPSWITCH: {
+                int[] keys = new int[Opcodes.readInt(code, base + 4)];
+                for (int i = 0; i < keys.length; i++)
+                    keys[i] = Opcodes.readInt(code, base + 8 + (8 * i));
+                return keys;
+            }
+            default:
+                return null;
+        }
+    }
+
+    private int switchBase() { //Offset of the default target
+        return pc + 1 + Opcodes.switchPadding(pc);
+    }
+}
@@ -0,0 +1,168 @@
+package injectr.ipatch.bytecode;
+
+/**
+ * Instruction set information needed to walk the code array of a {@link AttributeInfo.CodeInfo}.
+ * See: https://docs.oracle.com/javase/specs/jvms/se9/html/jvms-6.html
+ */
+public final class Opcodes {
+
+    //Opcodes which need special handling, the rest only matter through their operand length
+    public static final int LDC = 0x12;
+    public static final int LDC_W = 0x13;
+    public static final int LDC2_W = 0x14;
+    public static final int IINC = 0x84;
+    public static final int IFEQ = 0x99;
+    public static final int GOTO = 0xa7;
+    public static final int JSR = 0xa8;
+    public static final int TABLESWITCH = 0xaa;
+    public static final int LOOKUPSWITCH = 0xab;
+    public static final int GETSTATIC = 0xb2;
+    public static final int INVOKEINTERFACE = 0xb9;
+    public static final int INVOKEDYNAMIC = 0xba;
+    public static final int NEW = 0xbb;
+    public static final int ANEWARRAY = 0xbd;
+    public static final int CHECKCAST = 0xc0;
+    public static final int INSTANCEOF = 0xc1;
+    public static final int WIDE = 0xc4;
+    public static final int MULTIANEWARRAY = 0xc5;
+    public static final int IFNULL = 0xc6;
+    public static final int IFNONNULL = 0xc7;
+    public static final int GOTO_W = 0xc8;
+    public static final int JSR_W = 0xc9;
+
+    private static final int VARIABLE = -1;
+    private static final int INVALID = -2;
+
+    private static final int[] OPERAND_LENGTHS = new int[256];
+
+    static {
+        for (int i = 0; i < OPERAND_LENGTHS.length; i++)
+            OPERAND_LENGTHS[i] = INVALID;
+        for (int i = 0x00; i <= 0x0f; i++) //nop - dconst_1
+            OPERAND_LENGTHS[i] = 0;
+        OPERAND_LENGTHS[0x10] = 1; //bipush
+        OPERAND_LENGTHS[0x11] = 2; //sipush
+        OPERAND_LENGTHS[LDC] = 1;
+        OPERAND_LENGTHS[LDC_W] = 2;
+        OPERAND_LENGTHS[LDC2_W] = 2;
+        for (int i = 0x15; i <= 0x19; i++) //iload - aload
+            OPERAND_LENGTHS[i] = 1;
+        for (int i = 0x1a; i <= 0x35; i++) //iload_0 - saload
+            OPERAND_LENGTHS[i] = 0;
+        for (int i = 0x36; i <= 0x3a; i++) //istore - astore
+            OPERAND_LENGTHS[i] = 1;
+        for (int i = 0x3b; i <= 0x83; i++) //istore_0 - lxor
+            OPERAND_LENGTHS[i] = 0;
+        OPERAND_LENGTHS[IINC] = 2;
+        for (int i = 0x85; i <= 0x98; i++) //i2l - dcmpg
+            OPERAND_LENGTHS[i] = 0;
+        for (int i = IFEQ; i <= JSR; i++) //ifeq - jsr
+            OPERAND_LENGTHS[i] = 2;
+        OPERAND_LENGTHS[0xa9] = 1; //ret
+        OPERAND_LENGTHS[TABLESWITCH] = VARIABLE;
+        OPERAND_LENGTHS[LOOKUPSWITCH] = VARIABLE;
+        for (int i = 0xac; i <= 0xb1; i++) //ireturn - return
+            OPERAND_LENGTHS[i] = 0;
+        for (int i = GETSTATIC; i <= 0xb8; i++) //getstatic - invokestatic
+            OPERAND_LENGTHS[i] = 2;
+        OPERAND_LENGTHS[INVOKEINTERFACE] = 4;
+        OPERAND_LENGTHS[INVOKEDYNAMIC] = 4;
+        OPERAND_LENGTHS[NEW] = 2;
+        OPERAND_LENGTHS[0xbc] = 1; //newarray
+        OPERAND_LENGTHS[ANEWARRAY] = 2;
+        OPERAND_LENGTHS[0xbe] = 0; //arraylength
+        OPERAND_LENGTHS[0xbf] = 0; //athrow
+        OPERAND_LENGTHS[CHECKCAST] = 2;
+        OPERAND_LENGTHS[INSTANCEOF] = 2;
+        OPERAND_LENGTHS[0xc2] = 0; //monitorenter
+        OPERAND_LENGTHS[0xc3] = 0; //monitorexit
+        OPERAND_LENGTHS[WIDE] = VARIABLE;
+        OPERAND_LENGTHS[MULTIANEWARRAY] = 3;
+        OPERAND_LENGTHS[IFNULL] = 2;
+        OPERAND_LENGTHS[IFNONNULL] = 2;
+        OPERAND_LENGTHS[GOTO_W] = 4;
+        OPERAND_LENGTHS[JSR_W] = 4;
+        OPERAND_LENGTHS[0xca] = 0; //breakpoint
+        OPERAND_LENGTHS[0xfe] = 0; //impdep1
+        OPERAND_LENGTHS[0xff] = 0; //impdep2
+    }
+
+    private Opcodes() {}
+
+    /**
+     * Gets the total length (opcode included) of the instruction starting at the specified pc.
+     */
+    public static int instructionLength(byte[] code, int pc) {
+        int opcode = code[pc] & 0xFF;
+        int operands = OPERAND_LENGTHS[opcode];
+        if (operands >= 0)
+            return 1 + operands;
+        if (operands == INVALID)
+            throw new IllegalArgumentException(String.format("Invalid opcode 0x%02x at %d!", opcode, pc));
+
+        switch (opcode) {
+            case WIDE:
+                return (code[pc + 1] & 0xFF) == IINC ? 6 : 4;
+            case TABLESWITCH: {
+                int base = pc + 1 + switchPadding(pc);
+                int low = readInt(code, base + 4);
+                int high = readInt(code, base + 8);
+                if (high < low || (long) high - low >= code.length)
+                    throw new IllegalArgumentException("Invalid tableswitch at " + pc + "!");
+                return (base - pc) + 12 + (4 * (high - low + 1));
+            }
+            default: { //LOOKUPSWITCH
+                int base = pc + 1 + switchPadding(pc);
+                int pairs = readInt(code, base + 4);
+                if (pairs < 0 || pairs >= code.length)
+                    throw new IllegalArgumentException("Invalid lookupswitch at " + pc + "!");
+                return (base - pc) + 8 + (8 * pairs);
+            }
+        }
+    }
+
+    /**
+     * Gets the operand length of an opcode whose operands have a fixed length, or -1 for {@link #WIDE} and switches.
+     */
+    public static int operandLength(int opcode) {
+        int operands = OPERAND_LENGTHS[opcode];
+        if (operands == INVALID)
+            throw new IllegalArgumentException(String.format("Invalid opcode 0x%02x!", opcode));
+        return operands;
+    }
+
+    /**
+     * Switch operands are aligned to 4 bytes relative to the start of the code array.
+     */
+    public static int switchPadding(int pc) {
+        return (4 - ((pc + 1) % 4)) % 4;
+    }
+
+    /**
+     * Checks whether the first operand of the opcode is a constant pool index. Only {@link #LDC} uses a u1 index, all
+     * others are u2.
+     */
+    public static boolean hasConstantPoolOperand(int opcode) {
+        return (opcode >= LDC && opcode <= LDC2_W)
+                || (opcode >= GETSTATIC && opcode <= NEW)
+                || opcode == ANEWARRAY
+                || opcode == CHECKCAST
+                || opcode == INSTANCEOF
+                || opcode == MULTIANEWARRAY;
+    }
+
+    /**
+     * Checks whether the instruction contains pc relative branch offsets.
+     */
+    public static boolean isBranch(int opcode) {
+        return (opcode >= IFEQ && opcode <= JSR)
+                || opcode == TABLESWITCH
+                || opcode == LOOKUPSWITCH
+                || (opcode >= IFNULL && opcode <= JSR_W);
+    }
+
+    static int readInt(byte[] code, int offset) {
+        return ((code[offset] & 0xFF) << 24) | ((code[offset + 1] & 0xFF) << 16)
+                | ((code[offset + 2] & 0xFF) << 8) | (code[offset + 3] & 0xFF);
+    }
+}
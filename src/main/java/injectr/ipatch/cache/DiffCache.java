@@ -0,0 +1,312 @@
+package injectr.ipatch.cache;
+
+import injectr.ipatch.diff.DiffAlgorithm;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of diff results, keyed by the hashes of both inputs and the algorithm which diffed them.
+ *
+ * Records are appended to a single memory-mapped file, which is locked while the cache is open. Every record carries
+ * the tick of its last use, updated in place on each hit, so the least recently used order survives restarts. Once the
+ * live records exceed the size limit the least recently used ones are marked dead, and the file is compacted in place
+ * when dead records take up more space than live ones.
+ *
+ * File format: u4 magic, u2 version, u4 end of the last record, then records of u1 live flag, u8 last use,
+ * u1 algorithm, 32 byte SHA-256 of the base, 32 byte SHA-256 of the modified content, u4 CRC-32 of the data,
+ * u4 data length and the data.
+ */
+public class DiffCache implements Closeable {
+
+    private static final int MAGIC = 0x49504443; //"IPDC"
+    private static final int VERSION = 2; //Bump whenever the format of cached diffs changes
+    private static final int HEADER_LENGTH = 10;
+    private static final int HASH_LENGTH = 32;
+    private static final int RECORD_HEADER_LENGTH = 1 + 8 + 1 + 2 * HASH_LENGTH + 4 + 4;
+    private static final int LAST_USE = 1, ALGORITHM = 9, BASE_HASH = 10, MODIFIED_HASH = BASE_HASH + HASH_LENGTH,
+            CRC = MODIFIED_HASH + HASH_LENGTH, LENGTH = CRC + 4; //Record field offsets
+    public static final long MAX_SIZE = Integer.MAX_VALUE / 2; //Dead records may take as much space as live ones
+
+    private final FileChannel channel;
+    private final long maxSize;
+    private final LinkedHashMap<Key, Integer> index = new LinkedHashMap<>(16, 0.75F, true); //Record offsets, LRU first
+    private MappedByteBuffer buffer;
+    private int end; //Offset after the last record
+    private long liveSize; //Total length of the live records
+    private long tick;
+    private long hits, misses;
+
+    /**
+     * Opens a cache, creating it if the file doesn't exist yet. Files which aren't a cache of the current version are
+     * cleared.
+     *
+     * @param maxSize The maximum number of bytes held by cached records.
+     */
+    public DiffCache(Path file, long maxSize) throws IOException {
+        if (maxSize < 1 || maxSize > MAX_SIZE)
+            throw new IllegalArgumentException("Cache size must be between 1 and " + MAX_SIZE + " bytes!");
+        this.maxSize = maxSize;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            channel.lock(); //Released when the channel is closed
+            load();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(Math.max(size, HEADER_LENGTH), Integer.MAX_VALUE));
+        if (size < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION
+                || buffer.getInt(6) < HEADER_LENGTH || buffer.getInt(6) > buffer.capacity()) {
+            buffer.putInt(0, MAGIC);
+            buffer.putShort(4, (short) VERSION);
+            setEnd(HEADER_LENGTH);
+            return;
+        }
+
+        List<Integer> records = new ArrayList<>();
+        int limit = buffer.getInt(6);
+        int offset = HEADER_LENGTH;
+        while (offset <= limit - RECORD_HEADER_LENGTH) {
+            int length = buffer.getInt(offset + LENGTH);
+            if (length < 0 || length > limit - offset - RECORD_HEADER_LENGTH)
+                break; //Torn write, drop the rest
+            if (buffer.get(offset) != 0)
+                records.add(offset);
+            tick = Math.max(tick, buffer.getLong(offset + LAST_USE));
+            offset += RECORD_HEADER_LENGTH + length;
+        }
+        setEnd(offset);
+
+        records.sort(Comparator.comparingLong(record -> buffer.getLong(record + LAST_USE)));
+        for (int record : records) {
+            Key key = readKey(record);
+            if (key == null) { //Written by a version with more algorithms
+                buffer.put(record, (byte) 0);
+                continue;
+            }
+            Integer duplicate = index.put(key, record);
+            if (duplicate != null) //Only the most recently used copy is kept
+                buffer.put(duplicate, (byte) 0);
+            else
+                liveSize += recordLength(record);
+        }
+        evict(0);
+    }
+
+    /**
+     * @return The cached data or null if there is none.
+     */
+    public synchronized byte[] get(Key key) {
+        Integer record = index.get(key);
+        if (record == null) {
+            misses++;
+            return null;
+        }
+        byte[] data = new byte[buffer.getInt(record + LENGTH)];
+        read(record + RECORD_HEADER_LENGTH, data);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != buffer.getInt(record + CRC)) { //Corrupted on disk
+            remove(key);
+            misses++;
+            return null;
+        }
+        buffer.putLong(record + LAST_USE, ++tick);
+        hits++;
+        return data;
+    }
+
+    /**
+     * Caches data, evicting the least recently used records to make room. Data larger than the whole cache isn't cached.
+     */
+    public synchronized void put(Key key, byte[] data) throws IOException {
+        int length = RECORD_HEADER_LENGTH + data.length;
+        if (index.containsKey(key) || length > maxSize)
+            return;
+        evict(length);
+        if ((long) end - HEADER_LENGTH - liveSize > liveSize + length)
+            compact();
+        ensureCapacity((long) end + length);
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        buffer.put(end, (byte) 1);
+        buffer.putLong(end + LAST_USE, ++tick);
+        buffer.put(end + ALGORITHM, (byte) key.algorithm.ordinal());
+        write(end + BASE_HASH, key.baseHash);
+        write(end + MODIFIED_HASH, key.modifiedHash);
+        buffer.putInt(end + CRC, (int) crc.getValue());
+        buffer.putInt(end + LENGTH, data.length);
+        write(end + RECORD_HEADER_LENGTH, data);
+        index.put(key, end);
+        liveSize += length;
+        setEnd(end + length); //Only published once the record is complete
+    }
+
+    /**
+     * The number of bytes held by cached records.
+     */
+    public synchronized long size() {
+        return liveSize;
+    }
+
+    /**
+     * The number of lookups which found cached data since the cache was opened.
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * The number of lookups which found nothing since the cache was opened.
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * Evicts least recently used records until the given number of bytes fits.
+     */
+    private void evict(int needed) {
+        Iterator<Map.Entry<Key, Integer>> records = index.entrySet().iterator();
+        while (liveSize + needed > maxSize && records.hasNext()) {
+            int record = records.next().getValue();
+            buffer.put(record, (byte) 0);
+            liveSize -= recordLength(record);
+            records.remove();
+        }
+    }
+
+    private void remove(Key key) {
+        int record = index.remove(key);
+        buffer.put(record, (byte) 0);
+        liveSize -= recordLength(record);
+    }
+
+    /**
+     * Moves the live records to the start of the file, keeping their order. The cache is emptied first, so a crash
+     * while compacting only loses cached data.
+     */
+    private void compact() {
+        setEnd(HEADER_LENGTH);
+        buffer.force();
+        List<Map.Entry<Key, Integer>> records = new ArrayList<>(index.entrySet());
+        records.sort(Comparator.comparingInt(Map.Entry::getValue));
+        int offset = HEADER_LENGTH;
+        for (Map.Entry<Key, Integer> record : records) {
+            byte[] bytes = new byte[recordLength(record.getValue())];
+            read(record.getValue(), bytes);
+            write(offset, bytes);
+            record.setValue(offset); //Doesn't change the access order
+            offset += bytes.length;
+        }
+        setEnd(offset);
+    }
+
+    private void ensureCapacity(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE)
+            throw new IOException("Cache file is too large!");
+        if (capacity > buffer.capacity())
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.min(Math.max(capacity, 2L * buffer.capacity()), Integer.MAX_VALUE));
+    }
+
+    private void setEnd(int end) {
+        this.end = end;
+        buffer.putInt(6, end);
+    }
+
+    private int recordLength(int record) {
+        return RECORD_HEADER_LENGTH + buffer.getInt(record + LENGTH);
+    }
+
+    private Key readKey(int record) {
+        int algorithm = buffer.get(record + ALGORITHM) & 0xFF;
+        if (algorithm >= DiffAlgorithm.values().length)
+            return null;
+        byte[] baseHash = new byte[HASH_LENGTH], modifiedHash = new byte[HASH_LENGTH];
+        read(record + BASE_HASH, baseHash);
+        read(record + MODIFIED_HASH, modifiedHash);
+        return new Key(baseHash, modifiedHash, DiffAlgorithm.values()[algorithm]);
+    }
+
+    private void read(int offset, byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+    }
+
+    private void write(int offset, byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.put(bytes);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Identifies a diff by the content it was generated from.
+     */
+    public static final class Key {
+
+        private final byte[] baseHash, modifiedHash;
+        private final DiffAlgorithm algorithm;
+
+        /**
+         * @param baseHash The {@link #hash(byte[])} of the base content.
+         * @param modifiedHash The {@link #hash(byte[])} of the modified content.
+         */
+        public Key(byte[] baseHash, byte[] modifiedHash, DiffAlgorithm algorithm) {
+            if (baseHash.length != HASH_LENGTH || modifiedHash.length != HASH_LENGTH)
+                throw new IllegalArgumentException("Invalid hash length!");
+            this.baseHash = baseHash;
+            this.modifiedHash = modifiedHash;
+            this.algorithm = algorithm;
+        }
+
+        public static Key of(byte[] base, byte[] modified, DiffAlgorithm algorithm) {
+            return new Key(hash(base), hash(modified), algorithm);
+        }
+
+        public static byte[] hash(byte[] content) {
+            return DigestUtils.sha256(content);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return algorithm == key.algorithm && Arrays.equals(baseHash, key.baseHash)
+                    && Arrays.equals(modifiedHash, key.modifiedHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(baseHash) + Arrays.hashCode(modifiedHash)) + algorithm.hashCode();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package injectr.ipatch.cli;
 
 import com.beust.jcommander.Parameter;
 import injectr.ipatch.compress.CompressType;
+import injectr.ipatch.compress.ZstdDictionary;
 import injectr.ipatch.diff.DiffAlgorithm;
 
 import java.nio.file.Path;
@@ -18,18 +19,73 @@ public class Args {
             description = "The patch file to use in order to patch the passed file. This is mutually exclusive with --new-file!")
     public Path patchFile;
 
-    @Parameter(converter = PathStringConverter.class, validateValueWith = PathValidator.class, arity = 1,
+    @Parameter(converter = PathStringConverter.class, validateValueWith = PathListValidator.class, arity = 1,
             names = {"-n", "--new-file"},
-            description = "The new file to generate the patch file to convert the old file from. This is mutually exclusive with --patch-file!")
-    public Path newFile;
+            description = "The new file to generate the patch file to convert the old file from. Can be repeated to generate a patch for each new file in one run. This is mutually exclusive with --patch-file!")
+    public List<Path> newFiles;
+
+    @Parameter(converter = PathStringConverter.class, validateValueWith = PathListValidator.class, arity = 1,
+            names = {"-m", "--compose"},
+            description = "A patch to compose with the patch passed as the file, applying to its result. Can be repeated to squash a chain of patches into one. Requires --out and is mutually exclusive with --new-file and --patch-file!")
+    public List<Path> composeFiles;
+
+    @Parameter(names = {"-R", "--invert"},
+            description = "Inverts the reversible patch passed as the file, writing a patch which undoes it. Requires --out and is mutually exclusive with --new-file, --patch-file and --compose!")
+    public boolean invert = false;
+
+    @Parameter(names = {"-s", "--inspect"},
+            description = "Prints what the patch passed as the file is made of, from its table of contents only. This is mutually exclusive with --new-file, --patch-file, --compose and --invert!")
+    public boolean inspect = false;
+
+    @Parameter(names = {"-T", "--train-dictionary"},
+            description = "Trains a dictionary for --dictionary from the file passed, the contents of a jar's entries or the records of a patch. Requires --out and is mutually exclusive with --new-file, --patch-file, --compose, --invert and --inspect!")
+    public boolean train = false;
+
+    @Parameter(names = "--dictionary-size", description = "The maximum size in bytes of dictionaries trained with --train-dictionary.")
+    public int dictionarySize = ZstdDictionary.DEFAULT_SIZE;
+
+    @Parameter(names = {"-t", "--top"}, description = "How many entries and packages --inspect lists.")
+    public int top = 10;
 
     @Parameter(converter = PathStringConverter.class, arity = 1, names = {"-o", "--out"},
-            description = "The output file path.")
+            description = "The output file path. When generating patches for several new files, this is the directory the patches are written to.")
     public Path outFile;
 
-    @Parameter(names = {"-c", "--compress"}, description = "Sets the compression of the output file.")
+    @Parameter(names = {"-i", "--in-place"},
+            description = "Patches the file in place by appending changed entries to it, rather than rewriting it. Only valid with --patch-file and without --out.")
+    public boolean inPlace = false;
+
+    @Parameter(names = {"-I", "--include"},
+            description = "Only applies the patch to entries matching the glob, such as com/acme/core/** or com/acme/core/. Can be repeated. Only valid with --patch-file.")
+    public List<String> includes;
+
+    @Parameter(names = {"-X", "--exclude"},
+            description = "Leaves entries matching the glob as they are in the base when applying the patch. Can be repeated. Only valid with --patch-file.")
+    public List<String> excludes;
+
+    @Parameter(names = {"-r", "--reversible"},
+            description = "Records the content removed by generated patches, so they can be inverted with --invert to roll back.")
+    public boolean reversible = false;
+
+    @Parameter(names = {"-c", "--compress"}, description = "Sets the compression of generated patches. Patches are decompressed on the fly when read.")
     public CompressType compressType = CompressType.NONE;
 
+    @Parameter(converter = PathStringConverter.class, validateValueWith = PathValidator.class, arity = 1,
+            names = {"-D", "--dictionary"},
+            description = "Compresses each record of generated patches on its own with the dictionary, so small records compress well and stay independently readable. Also provides the dictionary to read patches generated with --shared-dictionary. Can't be used with --compress.")
+    public Path dictionary;
+
+    @Parameter(names = {"-S", "--shared-dictionary"},
+            description = "Leaves the dictionary out of generated patches, it then has to be passed with --dictionary to read them.")
+    public boolean sharedDictionary = false;
+
+    @Parameter(converter = PathStringConverter.class, arity = 1, names = "--cache",
+            description = "A file caching the diffs of changed entries, created if it doesn't exist. Entries whose base and new content were already diffed with the same algorithm aren't diffed again, so reruns only diff what changed. Only valid with --new-file.")
+    public Path cache;
+
+    @Parameter(names = "--cache-size", description = "The maximum size of the --cache file's cached diffs in megabytes, least recently used diffs are evicted past it.")
+    public int cacheSize = 256;
+
     @Parameter(names = {"-d", "--diff-type"}, description = "The algorithm for diff generation.")
     public DiffAlgorithm diffAlgorithm = DiffAlgorithm.DYNAMIC;
 
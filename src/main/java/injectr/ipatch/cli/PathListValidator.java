@@ -0,0 +1,18 @@
+package injectr.ipatch.cli;
+
+import com.beust.jcommander.IValueValidator;
+import com.beust.jcommander.ParameterException;
+
+import java.nio.file.Path;
+import java.util.List;
+
+public class PathListValidator implements IValueValidator<List<Path>> {
+
+    private final PathValidator validator = new PathValidator();
+
+    @Override
+    public void validate(String name, List<Path> value) throws ParameterException {
+        for (Path path : value)
+            validator.validate(name, path);
+    }
+}
@@ -0,0 +1,124 @@
+package injectr.ipatch.compress;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.brotli.BrotliCompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.lzma.LZMACompressorInputStream;
+import org.apache.commons.compress.compressors.lzma.LZMACompressorOutputStream;
+import org.apache.commons.compress.compressors.snappy.FramedSnappyCompressorInputStream;
+import org.apache.commons.compress.compressors.snappy.FramedSnappyCompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.compress.compressors.z.ZCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The {@link Compressor} and {@link Decompressor} of every {@link CompressType}. Codecs stream, so they take the same
+ * memory no matter how much data goes through them. Codecs can be replaced or added with
+ * {@link #register(CompressType, Compressor, Decompressor)}.
+ *
+ * Not every type has both: there is no Brotli encoder or Z compressor available, and TAR and PACK200 have neither
+ * since TAR needs entry sizes up front and PACK200 only packs jars. ZIP stores the data as a single deflated entry.
+ */
+public final class Codecs {
+
+    private static final Map<CompressType, Compressor> COMPRESSORS = Collections.synchronizedMap(new EnumMap<>(CompressType.class));
+    private static final Map<CompressType, Decompressor> DECOMPRESSORS = Collections.synchronizedMap(new EnumMap<>(CompressType.class));
+
+    static {
+        register(CompressType.NONE, out -> out, in -> in);
+        register(CompressType.ZIP, Codecs::zip, in -> {
+            ZipArchiveInputStream zip = new ZipArchiveInputStream(in);
+            if (zip.getNextZipEntry() == null)
+                throw new IOException("Empty zip stream!");
+            return zip;
+        });
+        register(CompressType.BROTLI, null, BrotliCompressorInputStream::new);
+        register(CompressType.BZIP2, BZip2CompressorOutputStream::new, in -> new BZip2CompressorInputStream(in, true));
+        register(CompressType.GZIP, GzipCompressorOutputStream::new, in -> new GzipCompressorInputStream(in, true));
+        register(CompressType.XZ, XZCompressorOutputStream::new, in -> new XZCompressorInputStream(in, true));
+        register(CompressType.Z, null, ZCompressorInputStream::new);
+        register(CompressType.LZMA, LZMACompressorOutputStream::new, LZMACompressorInputStream::new);
+        register(CompressType.SNAPPY, FramedSnappyCompressorOutputStream::new, FramedSnappyCompressorInputStream::new);
+        register(CompressType.LZ4, FramedLZ4CompressorOutputStream::new, in -> new FramedLZ4CompressorInputStream(in, true));
+        register(CompressType.ZSTANDARD, ZstdCompressorOutputStream::new, ZstdCompressorInputStream::new);
+    }
+
+    private Codecs() {}
+
+    /**
+     * @param compressor Null if the type can't be compressed.
+     * @param decompressor Null if the type can't be decompressed.
+     */
+    public static void register(CompressType type, Compressor compressor, Decompressor decompressor) {
+        if (compressor == null)
+            COMPRESSORS.remove(type);
+        else
+            COMPRESSORS.put(type, compressor);
+        if (decompressor == null)
+            DECOMPRESSORS.remove(type);
+        else
+            DECOMPRESSORS.put(type, decompressor);
+    }
+
+    public static boolean canCompress(CompressType type) {
+        return COMPRESSORS.containsKey(type);
+    }
+
+    public static boolean canDecompress(CompressType type) {
+        return DECOMPRESSORS.containsKey(type);
+    }
+
+    /**
+     * @throws IOException If the type can't be compressed.
+     */
+    public static Compressor compressor(CompressType type) throws IOException {
+        Compressor compressor = COMPRESSORS.get(type);
+        if (compressor == null)
+            throw new IOException("Unsupported compression " + type.name() + "!");
+        return compressor;
+    }
+
+    /**
+     * @throws IOException If the type can't be decompressed.
+     */
+    public static Decompressor decompressor(CompressType type) throws IOException {
+        Decompressor decompressor = DECOMPRESSORS.get(type);
+        if (decompressor == null)
+            throw new IOException("Unsupported decompression " + type.name() + "!");
+        return decompressor;
+    }
+
+    private static OutputStream zip(OutputStream out) throws IOException {
+        ZipArchiveOutputStream zip = new ZipArchiveOutputStream(out);
+        zip.putArchiveEntry(new ZipArchiveEntry("patch"));
+        return new FilterOutputStream(zip) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                zip.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                zip.closeArchiveEntry();
+                zip.close();
+            }
+        };
+    }
+}
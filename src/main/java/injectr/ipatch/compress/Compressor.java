@@ -0,0 +1,17 @@
+package injectr.ipatch.compress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses a stream on the fly.
+ */
+@FunctionalInterface
+public interface Compressor {
+
+    /**
+     * @return A stream compressing everything written to it into {@code out}. Closing it finishes the compressed data
+     * and closes {@code out}.
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+}
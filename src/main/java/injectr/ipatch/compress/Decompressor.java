@@ -0,0 +1,16 @@
+package injectr.ipatch.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses a stream on the fly.
+ */
+@FunctionalInterface
+public interface Decompressor {
+
+    /**
+     * @return A stream reading the data compressed in {@code in}. Closing it closes {@code in}.
+     */
+    InputStream decompress(InputStream in) throws IOException;
+}
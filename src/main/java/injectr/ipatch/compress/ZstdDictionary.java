@@ -0,0 +1,101 @@
+package injectr.ipatch.compress;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A zstd dictionary, for compressing many small pieces of data independently of each other. General purpose
+ * compressors do poorly on data of a few hundred bytes since there is nothing earlier in the data to refer to, with a
+ * dictionary trained on similar data they can refer to the dictionary instead.
+ *
+ * Dictionaries are identified by the id zstd writes in their header, or 0 for raw content dictionaries.
+ */
+public final class ZstdDictionary {
+
+    public static final int DEFAULT_SIZE = 112640; //The zstd default
+    public static final int LEVEL = 19;
+    private static final int MAGIC = 0xEC30A437;
+
+    private final byte[] bytes;
+    private final int id;
+    private volatile ZstdDictCompress compressor; //Created on first use, both can be used from several threads
+    private volatile ZstdDictDecompress decompressor;
+
+    private ZstdDictionary(byte[] bytes) {
+        this.bytes = bytes;
+        ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.id = bytes.length >= 8 && header.getInt(0) == MAGIC ? header.getInt(4) : 0;
+    }
+
+    public static ZstdDictionary of(byte[] bytes) {
+        return new ZstdDictionary(bytes.clone());
+    }
+
+    /**
+     * @param samples Data like the data the dictionary will be used for, such as class files or patch records.
+     * @param size The maximum size of the dictionary in bytes.
+     * @throws IOException If there are too few samples to train a dictionary.
+     */
+    public static ZstdDictionary train(Iterable<byte[]> samples, int size) throws IOException {
+        ZstdDictTrainer trainer = new ZstdDictTrainer(Math.max(size * 100, 1 << 20), size);
+        int count = 0;
+        for (byte[] sample : samples) {
+            if (sample.length == 0)
+                continue;
+            if (!trainer.addSample(sample))
+                break; //The sample buffer is full
+            count++;
+        }
+        if (count == 0)
+            throw new IOException("No samples to train a dictionary with!");
+        try {
+            return new ZstdDictionary(trainer.trainSamples());
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to train a dictionary from " + count + " samples!", e);
+        }
+    }
+
+    /**
+     * The dictionary as stored in patches and shared dictionary files.
+     */
+    public byte[] getBytes() {
+        return bytes.clone();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Compresses data into a single zstd frame, which records the size of the data.
+     */
+    public byte[] compress(byte[] data) {
+        if (compressor == null)
+            compressor = new ZstdDictCompress(bytes, LEVEL);
+        return Zstd.compress(data, compressor);
+    }
+
+    /**
+     * Decompresses a frame written by {@link #compress(byte[])}, between the buffer's position and limit.
+     */
+    public byte[] decompress(ByteBuffer frame) throws IOException {
+        byte[] compressed = new byte[frame.remaining()];
+        frame.duplicate().get(compressed);
+        long length = Zstd.decompressedSize(compressed);
+        if (length < 0 || length > Integer.MAX_VALUE - 8)
+            throw new IOException("Invalid compressed record!");
+        if (decompressor == null)
+            decompressor = new ZstdDictDecompress(bytes);
+        try {
+            return Zstd.decompress(compressed, decompressor, (int) length);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid compressed record!", e);
+        }
+    }
+}
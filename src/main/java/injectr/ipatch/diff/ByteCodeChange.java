@@ -1,8 +1,70 @@
 package injectr.ipatch.diff;
 
+/**
+ * A structural change to a class file. Rather than describing byte ranges, each change targets a single part of the
+ * class (a member, a class attribute, the interfaces, etc) and only carries the serialized bytes of that part.
+ *
+ * Members are identified by their name and descriptor ({@code name:descriptor}) and class attributes by their name,
+ * so changes do not depend on the constant pool indices of the base class.
+ */
 public class ByteCodeChange implements Change {
+
+    private final ChangeType type;
+    private final Target target;
+    private final String key; //Null for targets which aren't keyed
+    private final int index; //Position in the modified class
+    private final byte[] newContent; //Null when removing
+
+    public ByteCodeChange(ChangeType type, Target target, String key, int index, byte[] newContent) {
+        this.type = type;
+        this.target = target;
+        this.key = key;
+        this.index = index;
+        this.newContent = newContent;
+    }
+
     @Override
     public ChangeType type() {
-        return null;
+        return type;
+    }
+
+    public Target getTarget() {
+        return target;
+    }
+
+    /**
+     * The member ({@code name:descriptor}) or attribute name this change targets. {@link Target#CODE} changes are keyed
+     * like methods.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * For members and attributes, this is the index of the target in the modified class. Unused for other targets.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * The raw bytes of the target as they appear in the modified class file. See {@link Target} for the format of
+     * non member targets.
+     */
+    public byte[] getNewContent() {
+        return newContent;
+    }
+
+    public enum Target {
+        VERSION, //u2 minor_version, u2 major_version
+        CONSTANT_POOL, //Encoded ConstantPoolDelta, base members are translated through its index map
+        ACCESS_FLAGS, //u2 access_flags
+        THIS_CLASS, //u2 this_class
+        SUPER_CLASS, //u2 super_class
+        INTERFACES, //u2 interfaces_count, u2[] interfaces
+        FIELD, //field_info
+        METHOD, //method_info
+        CODE, //Encoded CodeDelta, applied to the method with the same key in the base class
+        ATTRIBUTE //attribute_info
     }
 }
@@ -0,0 +1,190 @@
+package injectr.ipatch.diff;
+
+import injectr.ipatch.util.VarInt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges runs of nearby changes when one larger change is cheaper than several small ones. Changes separated by a few
+ * unchanged units are joined into a single change which restates the units in between, trading content size for
+ * per-change overhead. Whether a merge pays off is decided by a {@link CostModel}.
+ *
+ * Changes must be sorted by position and must not overlap, as produced by {@link EditScript}.
+ */
+public final class ChangeCoalescer {
+
+    /**
+     * What a change costs in a record written by {@link injectr.ipatch.patch.ChangeCodec}: a tag byte, its offset from
+     * the previous change and its range length, a byte each for nearby changes, then its content and the varint length
+     * before it.
+     */
+    public static final CostModel DEFAULT_COST_MODEL = (type, length) -> 3 + VarInt.length(length + 1L) + length;
+
+    private final CostModel costModel;
+
+    public ChangeCoalescer() {
+        this(DEFAULT_COST_MODEL);
+    }
+
+    public ChangeCoalescer(CostModel costModel) {
+        this.costModel = costModel;
+    }
+
+    /**
+     * Coalesces byte changes, restating base bytes between merged changes.
+     */
+    public List<ByteChange> coalesceBytes(byte[] base, List<ByteChange> changes) {
+        List<ByteChange> coalesced = new ArrayList<>(changes.size());
+        int runStart = 0; //First change of the current run
+        int runLength = 0; //Content length of the run merged into one change
+        for (int i = 0; i < changes.size(); i++) {
+            ByteChange change = changes.get(i);
+            if (i > runStart) {
+                ByteChange previous = changes.get(i - 1);
+                int gap = change.getStartIndex() - previous.getEndIndex() - 1;
+                if (gap < 0)
+                    throw new IllegalArgumentException("Changes must be sorted and must not overlap!");
+                int start = changes.get(runStart).getStartIndex();
+                int mergedLength = runLength + gap + length(change);
+                if (pays(type(start, previous.getEndIndex(), runLength == 0), runLength, change.type(), length(change),
+                        type(start, change.getEndIndex(), mergedLength == 0), mergedLength)) {
+                    runLength = mergedLength;
+                    continue;
+                }
+                coalesced.add(mergeBytes(base, changes.subList(runStart, i), runLength));
+                runStart = i;
+            }
+            runLength = length(change);
+        }
+        if (!changes.isEmpty())
+            coalesced.add(mergeBytes(base, changes.subList(runStart, changes.size()), runLength));
+        return coalesced;
+    }
+
+    /**
+     * Coalesces line changes as produced by {@link DiffGenerator#stringDiff(java.io.BufferedReader)}, restating base
+     * lines between merged changes.
+     */
+    public List<StringChange> coalesceStrings(List<String> baseLines, List<StringChange> changes) {
+        List<StringChange> coalesced = new ArrayList<>(changes.size());
+        int runStart = 0;
+        int runLines = 0, runLength = 0; //Line count and joined content length of the run merged into one change
+        for (int i = 0; i < changes.size(); i++) {
+            StringChange change = changes.get(i);
+            int lines = lineCount(change);
+            int length = lines == 0 ? 0 : change.getNewContent().length();
+            if (i > runStart) {
+                StringChange previous = changes.get(i - 1);
+                int gapStart = previous.getEndLine() + 1;
+                if (change.getStartLine() < gapStart)
+                    throw new IllegalArgumentException("Changes must be sorted and must not overlap!");
+                int gapLines = change.getStartLine() - gapStart;
+                int mergedLines = runLines + gapLines + lines;
+                int mergedLength = runLength + length;
+                for (int line = gapStart; line < change.getStartLine(); line++)
+                    mergedLength += baseLines.get(line).length();
+                int parts = (runLines == 0 ? 0 : 1) + gapLines + (lines == 0 ? 0 : 1); //Joined with \n
+                mergedLength += Math.max(parts - 1, 0);
+
+                int start = changes.get(runStart).getStartLine();
+                if (pays(type(start, previous.getEndLine(), runLines == 0), runLength, change.type(), length,
+                        type(start, change.getEndLine(), mergedLines == 0), mergedLength)) {
+                    runLines = mergedLines;
+                    runLength = mergedLength;
+                    continue;
+                }
+                coalesced.add(mergeStrings(baseLines, changes.subList(runStart, i)));
+                runStart = i;
+            }
+            runLines = lines;
+            runLength = length;
+        }
+        if (!changes.isEmpty())
+            coalesced.add(mergeStrings(baseLines, changes.subList(runStart, changes.size())));
+        return coalesced;
+    }
+
+    /**
+     * Checks whether merging a change into the current run costs no more than keeping them apart.
+     */
+    private boolean pays(ChangeType runType, int runLength, ChangeType type, int length, ChangeType mergedType, int mergedLength) {
+        return costModel.cost(mergedType, mergedLength) <= costModel.cost(runType, runLength) + costModel.cost(type, length);
+    }
+
+    private static ChangeType type(int start, int end, boolean empty) {
+        if (end < start)
+            return ChangeType.ADD;
+        return empty ? ChangeType.REMOVE : ChangeType.REPLACE;
+    }
+
+    private static int length(ByteChange change) {
+        return change.getNewContent() == null ? 0 : change.getNewContent().length;
+    }
+
+    private static ByteChange mergeBytes(byte[] base, List<ByteChange> run, int length) {
+        if (run.size() == 1)
+            return run.get(0);
+        byte[] content = new byte[length];
+        int position = 0;
+        for (int i = 0; i < run.size(); i++) {
+            ByteChange change = run.get(i);
+            if (i > 0) {
+                int gapStart = run.get(i - 1).getEndIndex() + 1;
+                System.arraycopy(base, gapStart, content, position, change.getStartIndex() - gapStart);
+                position += change.getStartIndex() - gapStart;
+            }
+            if (change.getNewContent() != null)
+                System.arraycopy(change.getNewContent(), 0, content, position, length(change));
+            position += length(change);
+        }
+        int start = run.get(0).getStartIndex(), end = run.get(run.size() - 1).getEndIndex();
+        return new ByteChange(type(start, end, length == 0), start, end, content);
+    }
+
+    private static StringChange mergeStrings(List<String> baseLines, List<StringChange> run) {
+        if (run.size() == 1)
+            return run.get(0);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < run.size(); i++) {
+            StringChange change = run.get(i);
+            if (i > 0)
+                lines.addAll(baseLines.subList(run.get(i - 1).getEndLine() + 1, change.getStartLine()));
+            if (change.type() != ChangeType.REMOVE)
+                lines.add(change.getNewContent()); //Already joined with \n
+        }
+        int start = run.get(0).getStartLine(), end = run.get(run.size() - 1).getEndLine();
+        return new StringChange(type(start, end, lines.isEmpty()), start, end, String.join("\n", lines));
+    }
+
+    /**
+     * The number of lines in the content of a line change. Removals have none, anything else has at least one.
+     */
+    private static int lineCount(StringChange change) {
+        if (change.type() == ChangeType.REMOVE)
+            return 0;
+        String content = change.getNewContent();
+        int lines = 1;
+        for (int i = 0; i < content.length(); i++)
+            if (content.charAt(i) == '\n')
+                lines++;
+        return lines;
+    }
+
+    public interface CostModel {
+
+        /**
+         * The cost of storing and applying a single change.
+         *
+         * @param length The length of the change's content, in bytes for byte changes and characters for line changes.
+         */
+        long cost(ChangeType type, int length);
+
+        /**
+         * A fixed cost per change plus a cost per unit of content.
+         */
+        static CostModel linear(long changeCost, long unitCost) {
+            return (type, length) -> changeCost + (unitCost * length);
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package injectr.ipatch.diff;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Composes the changes taking some content from A to B with the changes taking it from B to C, into changes taking it
+ * directly from A to C. Neither A nor B is needed.
+ *
+ * Byte and line changes are composed exactly: the first changes describe B as runs copied from A and runs of new
+ * content, the second changes are replayed over those runs and whatever still comes from A in the result determines
+ * the composed changes. Class changes are overlaid member by member, which only works while the second changes keep
+ * the constant pool of B, see {@link #composeClass(List, List)}. Changes which can't be merged are kept as consecutive
+ * stages separated by a {@link StageBoundary}.
+ */
+public final class ChangeComposer {
+
+    private static final Units<byte[]> BYTES = new Units<byte[]>() {
+        @Override
+        public int length(byte[] content) {
+            return content.length;
+        }
+
+        @Override
+        public byte[] join(List<Piece<byte[]>> pieces) {
+            int length = 0;
+            for (Piece<byte[]> piece : pieces)
+                length += piece.length();
+            byte[] joined = new byte[length];
+            int position = 0;
+            for (Piece<byte[]> piece : pieces) {
+                System.arraycopy(piece.content, piece.from, joined, position, piece.length());
+                position += piece.length();
+            }
+            return joined;
+        }
+    };
+
+    private static final Units<String[]> LINES = new Units<String[]>() {
+        @Override
+        public int length(String[] content) {
+            return content.length;
+        }
+
+        @Override
+        public String[] join(List<Piece<String[]>> pieces) {
+            List<String> lines = new ArrayList<>();
+            for (Piece<String[]> piece : pieces)
+                lines.addAll(Arrays.asList(piece.content).subList(piece.from, piece.to));
+            return lines.toArray(new String[0]);
+        }
+    };
+
+    private ChangeComposer() {}
+
+    /**
+     * Composes two change lists of an entry, either of which may already consist of several stages.
+     *
+     * @return The composed changes, with a {@link StageBoundary} between changes which couldn't be merged.
+     */
+    public static List<Change> compose(List<? extends Change> first, List<? extends Change> second) throws IOException {
+        List<List<? extends Change>> firstStages = stages(first), secondStages = stages(second);
+        List<List<? extends Change>> stages = new ArrayList<>(firstStages.subList(0, firstStages.size() - 1));
+        List<? extends Change> last = firstStages.get(firstStages.size() - 1), next = secondStages.get(0);
+        List<? extends Change> merged = composeStage(last, next);
+        if (merged != null) {
+            stages.add(merged);
+        } else {
+            stages.add(last);
+            stages.add(next);
+        }
+        stages.addAll(secondStages.subList(1, secondStages.size()));
+
+        List<Change> composed = new ArrayList<>();
+        for (List<? extends Change> stage : stages) {
+            if (stage.isEmpty())
+                continue;
+            if (!composed.isEmpty())
+                composed.add(StageBoundary.INSTANCE);
+            composed.addAll(stage);
+        }
+        return composed;
+    }
+
+    /**
+     * @return The merged changes or null if the stages can't be merged.
+     */
+    private static List<? extends Change> composeStage(List<? extends Change> first, List<? extends Change> second) throws IOException {
+        if (first.isEmpty())
+            return second;
+        if (second.isEmpty())
+            return first;
+        Class<?> kind = first.get(0).getClass();
+        for (List<? extends Change> changes : Arrays.asList(first, second))
+            for (Change change : changes)
+                if (change.getClass() != kind)
+                    return null;
+        if (kind == ByteChange.class)
+            return composeBytes(cast(first), cast(second));
+        if (kind == StringChange.class)
+            return composeStrings(cast(first), cast(second));
+        if (kind == ByteCodeChange.class)
+            return composeClass(cast(first), cast(second));
+        return null;
+    }
+
+    /**
+     * Composes byte changes. Both lists must be sorted by position and must not overlap.
+     */
+    public static List<ByteChange> composeBytes(List<ByteChange> first, List<ByteChange> second) {
+        List<ByteChange> composed = new ArrayList<>();
+        for (Edit<byte[]> edit : compose(BYTES, bytesToEdits(first), bytesToEdits(second))) {
+            int length = edit.content.length;
+            composed.add(new ByteChange(type(edit.start, edit.end, length), edit.start, edit.end - 1, edit.content));
+        }
+        return composed;
+    }
+
+    /**
+     * Composes line changes, whose content is their lines joined with {@code \n}. Both lists must be sorted by
+     * position and must not overlap.
+     */
+    public static List<StringChange> composeStrings(List<StringChange> first, List<StringChange> second) {
+        List<StringChange> composed = new ArrayList<>();
+        for (Edit<String[]> edit : compose(LINES, stringsToEdits(first), stringsToEdits(second))) {
+            int lines = edit.content.length;
+            composed.add(new StringChange(type(edit.start, edit.end, lines), edit.start, edit.end - 1,
+                    String.join("\n", edit.content)));
+        }
+        return composed;
+    }
+
+    /**
+     * Overlays class changes. The constant pool, class level targets and members changed by the second changes
+     * replace those of the first, members only changed by the first changes are kept.
+     *
+     * Member contents refer to the constant pool of the class they were taken from and {@link
+     * ByteCodeChange.Target#CODE} deltas to the member they are applied to, neither of which can be translated
+     * without B. So the changes can't be overlaid when the second changes change the constant pool or the code of a
+     * member changed by the first changes, or when they insert or remove members around a member added by the first
+     * changes whose position in C is unknown.
+     *
+     * @return The overlaid changes, or null if the changes can't be overlaid.
+     * @throws IOException If the second changes don't apply to the result of the first changes.
+     */
+    public static List<ByteCodeChange> composeClass(List<ByteCodeChange> first, List<ByteCodeChange> second) throws IOException {
+        for (ByteCodeChange change : second)
+            if (change.getTarget() == ByteCodeChange.Target.CONSTANT_POOL)
+                return null;
+
+        List<ByteCodeChange> composed = new ArrayList<>();
+        for (ByteCodeChange.Target target : ByteCodeChange.Target.values()) {
+            if (member(target) != null)
+                continue;
+            ByteCodeChange change = last(second, target);
+            if (change == null)
+                change = last(first, target);
+            if (change != null)
+                composed.add(change);
+        }
+
+        List<ByteCodeChange> removals = new ArrayList<>(), replacements = new ArrayList<>(), additions = new ArrayList<>();
+        for (ByteCodeChange.Target target : Arrays.asList(ByteCodeChange.Target.FIELD, ByteCodeChange.Target.METHOD,
+                ByteCodeChange.Target.ATTRIBUTE)) {
+            Map<String, Member> firstMembers = members(first, target), secondMembers = members(second, target);
+            boolean reordered = false; //Whether C's member positions differ from B's
+            for (Member member : secondMembers.values())
+                reordered |= member.removal != null || member.addition() != null;
+
+            Map<String, Member> keys = new LinkedHashMap<>(firstMembers);
+            for (Map.Entry<String, Member> entry : secondMembers.entrySet())
+                keys.putIfAbsent(entry.getKey(), entry.getValue());
+            for (String key : keys.keySet()) {
+                Member before = firstMembers.get(key), after = secondMembers.get(key);
+                if (after == null) {
+                    if (reordered && before.addition() != null)
+                        return null;
+                    before.addTo(removals, replacements, additions);
+                } else if (before == null) {
+                    after.addTo(removals, replacements, additions);
+                } else if (!overlay(target, key, before, after, reordered, removals, replacements, additions)) {
+                    return null;
+                }
+            }
+        }
+        composed.addAll(removals);
+        composed.addAll(replacements);
+        composed.addAll(additions);
+        return composed;
+    }
+
+    /**
+     * Overlays the changes of a member changed by both lists.
+     *
+     * @return False if the changes can't be overlaid.
+     */
+    private static boolean overlay(ByteCodeChange.Target target, String key, Member before, Member after,
+                                   boolean reordered, List<ByteCodeChange> removals, List<ByteCodeChange> replacements,
+                                   List<ByteCodeChange> additions) throws IOException {
+        boolean inBase = before.removal != null || before.addition() == null; //Whether A has the member
+        boolean inIntermediate = before.change != null; //Whether B has the member
+        if (after.removal != null || after.addition() != null) { //Removed from B and/or added to C
+            if (inIntermediate == (after.removal == null))
+                throw new IOException(String.format("%s %s %s!", target, key, inIntermediate ? "already exists" : "does not exist"));
+            if (inBase)
+                removals.add(before.removal != null ? before.removal : after.removal);
+            if (after.change != null)
+                additions.add(after.change);
+            return true;
+        }
+
+        if (!inIntermediate)
+            throw new IOException(String.format("%s %s does not exist!", target, key));
+        if (after.change.getTarget() == ByteCodeChange.Target.CODE) //Relative to B's member, which isn't known
+            return false;
+        if (before.addition() == null) {
+            replacements.add(after.change);
+            return true;
+        }
+        if (reordered) //Added at its position in B
+            return false;
+        if (before.removal != null)
+            removals.add(before.removal);
+        additions.add(new ByteCodeChange(ChangeType.ADD, after.change.getTarget(), key, before.change.getIndex(),
+                after.change.getNewContent()));
+        return true;
+    }
+
+    /**
+     * Replays the second edits over B, described as pieces of A and of the first edits' content, then turns what
+     * still comes from A into edits.
+     */
+    private static <C> List<Edit<C>> compose(Units<C> units, List<Edit<C>> first, List<Edit<C>> second) {
+        List<Piece<C>> intermediate = new ArrayList<>(); //B as pieces
+        int position = 0;
+        for (Edit<C> edit : first) {
+            if (edit.start < position)
+                throw new IllegalArgumentException("Changes must be sorted and must not overlap!");
+            if (edit.start > position)
+                intermediate.add(new Piece<>(null, position, edit.start));
+            if (units.length(edit.content) > 0)
+                intermediate.add(new Piece<>(edit.content, 0, units.length(edit.content)));
+            position = edit.end;
+        }
+        intermediate.add(new Piece<>(null, position, Integer.MAX_VALUE)); //The rest of A, whatever its length
+
+        List<Piece<C>> result = new ArrayList<>(); //C as pieces
+        Cursor<C> cursor = new Cursor<>(intermediate);
+        position = 0;
+        for (Edit<C> edit : second) {
+            if (edit.start < position)
+                throw new IllegalArgumentException("Changes must be sorted and must not overlap!");
+            cursor.advance(edit.start - position, result);
+            cursor.advance(edit.end - edit.start, null);
+            if (units.length(edit.content) > 0)
+                result.add(new Piece<>(edit.content, 0, units.length(edit.content)));
+            position = edit.end;
+        }
+        cursor.rest(result);
+
+        List<Edit<C>> composed = new ArrayList<>();
+        List<Piece<C>> content = new ArrayList<>(); //New content since the last piece of A
+        position = 0;
+        for (Piece<C> piece : result) {
+            if (piece.content != null) {
+                content.add(piece);
+                continue;
+            }
+            if (piece.from > position || !content.isEmpty()) {
+                composed.add(new Edit<>(position, piece.from, units.join(content)));
+                content.clear();
+            }
+            position = piece.to;
+        }
+        return composed;
+    }
+
+    private static List<Edit<byte[]>> bytesToEdits(List<ByteChange> changes) {
+        List<Edit<byte[]>> edits = new ArrayList<>(changes.size());
+        for (ByteChange change : changes)
+            edits.add(new Edit<>(change.getStartIndex(), change.getEndIndex() + 1,
+                    change.getNewContent() == null ? new byte[0] : change.getNewContent()));
+        return edits;
+    }
+
+    private static List<Edit<String[]>> stringsToEdits(List<StringChange> changes) {
+        List<Edit<String[]>> edits = new ArrayList<>(changes.size());
+        for (StringChange change : changes)
+            edits.add(new Edit<>(change.getStartLine(), change.getEndLine() + 1, change.type() == ChangeType.REMOVE
+                    ? new String[0] : change.getNewContent().split("\n", -1)));
+        return edits;
+    }
+
+    private static ChangeType type(int start, int end, int length) {
+        if (start == end)
+            return ChangeType.ADD;
+        return length == 0 ? ChangeType.REMOVE : ChangeType.REPLACE;
+    }
+
+    private static List<List<? extends Change>> stages(List<? extends Change> changes) {
+        List<List<? extends Change>> stages = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= changes.size(); i++) {
+            if (i == changes.size() || changes.get(i) instanceof StageBoundary) {
+                stages.add(changes.subList(start, i));
+                start = i + 1;
+            }
+        }
+        return stages;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Change> List<T> cast(List<? extends Change> changes) {
+        return (List<T>) changes;
+    }
+
+    /**
+     * The member target a change belongs to, or null for class level targets. Code deltas belong to methods.
+     */
+    private static ByteCodeChange.Target member(ByteCodeChange.Target target) {
+        switch (target) {
+            case FIELD:
+            case METHOD:
+            case ATTRIBUTE:
+                return target;
+            case CODE:
+                return ByteCodeChange.Target.METHOD;
+            default:
+                return null;
+        }
+    }
+
+    private static ByteCodeChange last(List<ByteCodeChange> changes, ByteCodeChange.Target target) {
+        ByteCodeChange last = null;
+        for (ByteCodeChange change : changes)
+            if (change.getTarget() == target)
+                last = change;
+        return last;
+    }
+
+    private static Map<String, Member> members(List<ByteCodeChange> changes, ByteCodeChange.Target target) throws IOException {
+        Map<String, Member> members = new LinkedHashMap<>();
+        for (ByteCodeChange change : changes) {
+            if (member(change.getTarget()) != target)
+                continue;
+            Member member = members.computeIfAbsent(change.getKey(), key -> new Member());
+            if (change.type() == ChangeType.REMOVE ? member.removal != null : member.change != null)
+                throw new IOException(String.format("%s %s is changed twice!", target, change.getKey()));
+            if (change.type() == ChangeType.REMOVE)
+                member.removal = change;
+            else
+                member.change = change;
+        }
+        for (Map.Entry<String, Member> member : members.entrySet())
+            if (member.getValue().removal != null && member.getValue().change != null && member.getValue().addition() == null)
+                throw new IOException(String.format("%s %s is removed and replaced!", target, member.getKey()));
+        return members;
+    }
+
+    /**
+     * The changes of a single member: a removal from the base, a replacement or an addition, or a removal followed by
+     * an addition when the member was moved.
+     */
+    private static final class Member {
+
+        private ByteCodeChange removal, change;
+
+        private ByteCodeChange addition() {
+            return change != null && change.type() == ChangeType.ADD ? change : null;
+        }
+
+        private void addTo(List<ByteCodeChange> removals, List<ByteCodeChange> replacements, List<ByteCodeChange> additions) {
+            if (removal != null)
+                removals.add(removal);
+            if (change != null)
+                (change.type() == ChangeType.ADD ? additions : replacements).add(change);
+        }
+    }
+
+    /**
+     * Replaces {@code [start, end)} of the base with the content.
+     */
+    private static final class Edit<C> {
+
+        private final int start, end;
+        private final C content;
+
+        private Edit(int start, int end, C content) {
+            this.start = start;
+            this.end = end;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Units {@code [from, to)} of some content, or of the base when the content is null.
+     */
+    private static final class Piece<C> {
+
+        private final C content;
+        private final int from, to;
+
+        private Piece(C content, int from, int to) {
+            this.content = content;
+            this.from = from;
+            this.to = to;
+        }
+
+        private int length() {
+            return to - from;
+        }
+    }
+
+    /**
+     * Walks a sequence of pieces unit by unit.
+     */
+    private static final class Cursor<C> {
+
+        private final List<Piece<C>> pieces;
+        private int index, offset; //Current piece and the units of it already passed
+
+        private Cursor(List<Piece<C>> pieces) {
+            this.pieces = pieces;
+        }
+
+        /**
+         * Moves past some units, adding them to the output unless it is null.
+         */
+        private void advance(int units, List<Piece<C>> output) {
+            while (units > 0) {
+                Piece<C> piece = pieces.get(index); //The last piece never ends
+                int taken = Math.min(units, piece.length() - offset);
+                if (output != null)
+                    output.add(new Piece<>(piece.content, piece.from + offset, piece.from + offset + taken));
+                units -= taken;
+                offset += taken;
+                if (offset == piece.length()) {
+                    index++;
+                    offset = 0;
+                }
+            }
+        }
+
+        private void rest(List<Piece<C>> output) {
+            for (; index < pieces.size(); index++, offset = 0) {
+                Piece<C> piece = pieces.get(index);
+                output.add(new Piece<>(piece.content, piece.from + offset, piece.to));
+            }
+        }
+    }
+
+    private interface Units<C> {
+
+        int length(C content);
+
+        C join(List<Piece<C>> pieces);
+    }
+}
@@ -0,0 +1,54 @@
+package injectr.ipatch.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Inverts changes given the base they apply to: each change becomes one replacing its new content, at its position in
+ * the modified content, with the base units it removed. Runs in time linear in the size of the changes.
+ */
+public final class ChangeInverter {
+
+    private ChangeInverter() {}
+
+    /**
+     * @param changes Sorted and not overlapping.
+     */
+    public static List<ByteChange> invertBytes(byte[] base, List<ByteChange> changes) {
+        List<ByteChange> inverted = new ArrayList<>(changes.size());
+        int shift = 0; //Modified position - base position, after the previous change
+        for (ByteChange change : changes) {
+            int length = change.getNewContent() == null ? 0 : change.getNewContent().length;
+            int removed = change.getEndIndex() - change.getStartIndex() + 1;
+            int start = change.getStartIndex() + shift;
+            inverted.add(new ByteChange(type(length, removed), start, start + length - 1,
+                    Arrays.copyOfRange(base, change.getStartIndex(), change.getEndIndex() + 1)));
+            shift += length - removed;
+        }
+        return inverted;
+    }
+
+    /**
+     * @param changes Sorted and not overlapping, with their lines joined with {@code \n}.
+     */
+    public static List<StringChange> invertStrings(List<String> baseLines, List<StringChange> changes) {
+        List<StringChange> inverted = new ArrayList<>(changes.size());
+        int shift = 0;
+        for (StringChange change : changes) {
+            int lines = change.type() == ChangeType.REMOVE ? 0 : change.getNewContent().split("\n", -1).length;
+            int removed = change.getEndLine() - change.getStartLine() + 1;
+            int start = change.getStartLine() + shift;
+            inverted.add(new StringChange(type(lines, removed), start, start + lines - 1,
+                    String.join("\n", baseLines.subList(change.getStartLine(), change.getEndLine() + 1))));
+            shift += lines - removed;
+        }
+        return inverted;
+    }
+
+    private static ChangeType type(int added, int removed) {
+        if (added == 0)
+            return ChangeType.ADD;
+        return removed == 0 ? ChangeType.REMOVE : ChangeType.REPLACE;
+    }
+}
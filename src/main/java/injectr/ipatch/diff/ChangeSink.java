@@ -0,0 +1,23 @@
+package injectr.ipatch.diff;
+
+import java.io.IOException;
+
+/**
+ * Receives changes as a diff finds them, in ascending position order. Changes reference the new content by its
+ * position in the modified input rather than carrying a copy of it, so consumers such as patch writers can encode
+ * changes straight from the input.
+ *
+ * Positions are in whatever unit the diff works with (lines, bytes, tokens) and ranges are inclusive like in
+ * {@link StringChange} and {@link ByteChange}. For {@link ChangeType#ADD} the base range is empty
+ * ({@code baseEnd == baseStart - 1}) and the content is inserted before {@code baseStart}. For
+ * {@link ChangeType#REMOVE} the new range is empty.
+ */
+public interface ChangeSink {
+
+    void change(ChangeType type, int baseStart, int baseEnd, int newStart, int newEnd) throws IOException;
+
+    /**
+     * Called once after the last change.
+     */
+    default void end() throws IOException {}
+}
@@ -4,5 +4,6 @@ public enum DiffAlgorithm { //See: https://github.com/RovoMe/JDiff, https://gith
     HISTOGRAM,
     MYERS,
     REPLACE,
-    DYNAMIC
+    DYNAMIC,
+    PATIENCE //Appended, ordinals are persisted by the diff cache
 }
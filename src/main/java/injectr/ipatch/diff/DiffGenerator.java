@@ -1,9 +1,18 @@
 package injectr.ipatch.diff;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.util.List;
 
 public interface DiffGenerator {
 
     List<StringChange> stringDiff(BufferedReader reader);
+
+    /**
+     * Pushes the changes turning the base tokens into the modified tokens to a sink. Unlike
+     * {@link #stringDiff(BufferedReader)} nothing is materialized, changes reference the new content by token index.
+     *
+     * @param base Interned tokens, equal tokens must have equal values.
+     */
+    void diff(int[] base, int[] modified, ChangeSink sink) throws IOException;
 }
@@ -0,0 +1,30 @@
+package injectr.ipatch.diff;
+
+import injectr.ipatch.diff.myers.MyersDiff;
+import injectr.ipatch.diff.patience.PatienceDiff;
+
+import java.util.List;
+
+/**
+ * {@link DiffAlgorithm#DYNAMIC}, picks an algorithm for each pair of sequences. When most tokens are unique in both
+ * sequences (as with most config, XML and source files) {@link PatienceDiff} has plenty of anchors and runs in near
+ * linear time, otherwise {@link MyersDiff} is used. Its search is capped, so mostly rewritten inputs such as generated
+ * or minified files don't take quadratic time.
+ */
+public class DynamicDiffGenerator extends TokenDiffGenerator {
+
+    public DynamicDiffGenerator() {
+        super();
+    }
+
+    public DynamicDiffGenerator(List<String> baseLines) {
+        super(baseLines);
+    }
+
+    @Override
+    protected int[] match(int[] base, int[] modified) {
+        if (2 * PatienceDiff.uniqueCount(base, modified) >= Math.min(base.length, modified.length))
+            return PatienceDiff.match(base, modified);
+        return MyersDiff.match(base, modified);
+    }
+}
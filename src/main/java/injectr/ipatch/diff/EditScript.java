@@ -0,0 +1,44 @@
+package injectr.ipatch.diff;
+
+import java.io.IOException;
+
+/**
+ * Turns the output of a sequence matching algorithm into changes.
+ */
+public final class EditScript {
+
+    private EditScript() {}
+
+    /**
+     * Pushes the changes described by a matching to a sink, merging adjacent removals and insertions into replacements.
+     *
+     * @param matches For each base token, the index of the modified token it matches or -1. Matched indices must be
+     *                strictly increasing.
+     * @param modifiedLength The number of modified tokens.
+     */
+    public static void emit(int[] matches, int modifiedLength, ChangeSink sink) throws IOException {
+        int i = 0, j = 0;
+        while (i < matches.length || j < modifiedLength) {
+            int baseStart = i, newStart = j;
+            while (i < matches.length && matches[i] == -1)
+                i++;
+            int next = i < matches.length ? matches[i] : modifiedLength; //Where the next match (or the end) is
+            if (next < j)
+                throw new IllegalArgumentException("Matches must be strictly increasing!");
+            j = next;
+
+            if (i > baseStart && j > newStart)
+                sink.change(ChangeType.REPLACE, baseStart, i - 1, newStart, j - 1);
+            else if (i > baseStart)
+                sink.change(ChangeType.REMOVE, baseStart, i - 1, newStart, newStart - 1);
+            else if (j > newStart)
+                sink.change(ChangeType.ADD, baseStart, baseStart - 1, newStart, j - 1);
+
+            while (i < matches.length && matches[i] == j) { //Skip the common run
+                i++;
+                j++;
+            }
+        }
+        sink.end();
+    }
+}
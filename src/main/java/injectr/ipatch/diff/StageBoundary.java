@@ -0,0 +1,17 @@
+package injectr.ipatch.diff;
+
+/**
+ * Separates the changes of consecutive patches which were composed into one entry but couldn't be merged, see
+ * {@link ChangeComposer}. The changes after a boundary apply to the result of the changes before it.
+ */
+public final class StageBoundary implements Change {
+
+    public static final StageBoundary INSTANCE = new StageBoundary();
+
+    private StageBoundary() {}
+
+    @Override
+    public ChangeType type() {
+        return ChangeType.REPLACE;
+    }
+}
@@ -0,0 +1,77 @@
+package injectr.ipatch.diff;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base for generators which diff sequences of interned tokens. Text is diffed line by line against the base lines the
+ * generator was created with, every line becoming a token.
+ */
+public abstract class TokenDiffGenerator implements DiffGenerator {
+
+    private final List<String> baseLines;
+
+    /**
+     * Creates a generator which is only used to diff tokens.
+     */
+    protected TokenDiffGenerator() {
+        this(Collections.emptyList());
+    }
+
+    protected TokenDiffGenerator(List<String> baseLines) {
+        this.baseLines = baseLines;
+    }
+
+    /**
+     * Matches the base tokens with the modified tokens.
+     *
+     * @return For each base token, the index of the modified token it matches or -1 if it was removed. Matched
+     * indices must be strictly increasing.
+     */
+    protected abstract int[] match(int[] base, int[] modified);
+
+    @Override
+    public void diff(int[] base, int[] modified, ChangeSink sink) throws IOException {
+        EditScript.emit(match(base, modified), modified.length, sink);
+    }
+
+    /**
+     * Diffs the lines read from the reader against the base lines. The content of a change is its lines joined with
+     * {@code \n}.
+     */
+    @Override
+    public List<StringChange> stringDiff(BufferedReader reader) {
+        List<String> modifiedLines = new ArrayList<>();
+        List<StringChange> changes = new ArrayList<>();
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine())
+                modifiedLines.add(line);
+
+            Map<String, Integer> tokens = new HashMap<>();
+            int[] base = tokenize(baseLines, tokens);
+            int[] modified = tokenize(modifiedLines, tokens);
+            diff(base, modified, (type, baseStart, baseEnd, newStart, newEnd) -> changes.add(new StringChange(type,
+                    baseStart, baseEnd, String.join("\n", modifiedLines.subList(newStart, newEnd + 1)))));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return changes;
+    }
+
+    private static int[] tokenize(List<String> lines, Map<String, Integer> tokens) {
+        int[] ids = new int[lines.size()];
+        for (int i = 0; i < ids.length; i++) {
+            Integer id = tokens.get(lines.get(i));
+            if (id == null)
+                tokens.put(lines.get(i), id = tokens.size());
+            ids[i] = id;
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,274 @@
+package injectr.ipatch.diff.bytecode;
+
+import injectr.ipatch.bytecode.AttributeInfo;
+import injectr.ipatch.bytecode.ClassFile;
+import injectr.ipatch.bytecode.ConstantPoolInfo;
+import injectr.ipatch.bytecode.FieldInfo;
+import injectr.ipatch.bytecode.MethodInfo;
+import injectr.ipatch.diff.ByteCodeChange;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.util.BytesUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static injectr.ipatch.util.BytesUtil.shortToBytes;
+
+/**
+ * Generates member level diffs between two versions of a class. Members which are byte for byte identical produce no
+ * changes, so the size of the diff scales with the size of the modified members rather than the size of the class.
+ *
+ * The constant pools are matched by value (see {@link ConstantPoolDelta}) and base members are compared after
+ * translating their indices into the modified pool, so recompiling a class which renumbers its constants does not
+ * cause unchanged members to be included in the diff.
+ *
+ * @see ClassPatcher
+ */
+public class ClassDiffGenerator {
+
+    public List<ByteCodeChange> diff(ClassFile base, ClassFile modified) {
+        return diff(new ClassIndex(base), modified);
+    }
+
+    /**
+     * Diffs against a base class which was indexed beforehand, so that one base can be diffed against many classes.
+     */
+    public List<ByteCodeChange> diff(ClassIndex index, ClassFile modified) {
+        ClassFile base = index.getClassFile();
+        List<ByteCodeChange> changes = new ArrayList<>();
+
+        if (base.getMinorVersion() != modified.getMinorVersion() || base.getMajorVersion() != modified.getMajorVersion())
+            changes.add(new ByteCodeChange(ChangeType.REPLACE, ByteCodeChange.Target.VERSION, null, 0,
+                    concat(shortToBytes(modified.getMinorVersion()), shortToBytes(modified.getMajorVersion()))));
+
+        ConstantPoolDelta delta = ConstantPoolDelta.diff(index.pool, modified.getConstantPool());
+        ConstantPoolRemapper remapper = null; //Null when indices don't need translating
+        if (!delta.isIdentity()) {
+            changes.add(new ByteCodeChange(ChangeType.REPLACE, ByteCodeChange.Target.CONSTANT_POOL, null, 0,
+                    delta.toBytes()));
+            remapper = new ConstantPoolRemapper(base.getConstantPool(), delta.getIndexMap());
+        }
+
+        if (base.getAccessFlags() != modified.getAccessFlags())
+            changes.add(new ByteCodeChange(ChangeType.REPLACE, ByteCodeChange.Target.ACCESS_FLAGS, null, 0,
+                    shortToBytes(modified.getAccessFlags())));
+        if (remap(remapper, base.getThisClass()) != modified.getThisClass())
+            changes.add(new ByteCodeChange(ChangeType.REPLACE, ByteCodeChange.Target.THIS_CLASS, null, 0,
+                    shortToBytes(modified.getThisClass())));
+        if (remap(remapper, base.getSuperClass()) != modified.getSuperClass())
+            changes.add(new ByteCodeChange(ChangeType.REPLACE, ByteCodeChange.Target.SUPER_CLASS, null, 0,
+                    shortToBytes(modified.getSuperClass())));
+        if (!Arrays.equals(remapInterfaces(remapper, base.getInterfaces()), modified.getInterfaces()))
+            changes.add(new ByteCodeChange(ChangeType.REPLACE, ByteCodeChange.Target.INTERFACES, null, 0,
+                    interfacesToBytes(modified.getInterfaces())));
+
+        ConstantPoolInfo[] pool = modified.getConstantPool();
+        diffMembers(ByteCodeChange.Target.FIELD, pool,
+                index.fieldKeys, remapMembers(remapper, index.fieldBytes),
+                fieldKeys(modified), fieldBytes(modified), changes);
+        diffMembers(ByteCodeChange.Target.METHOD, pool,
+                index.methodKeys, remapMembers(remapper, index.methodBytes),
+                methodKeys(modified), methodBytes(modified), changes);
+        diffMembers(ByteCodeChange.Target.ATTRIBUTE, pool,
+                index.attributeKeys, remapAttributes(remapper, index.attributeBytes),
+                attributeKeys(modified.getConstantPool(), modified.getAttributes()), attributeBytes(modified.getAttributes()),
+                changes);
+
+        return changes;
+    }
+
+    static int remap(ConstantPoolRemapper remapper, int index) {
+        if (remapper == null || index == 0) //super_class is 0 for java/lang/Object
+            return index;
+        return remapper.remap(index);
+    }
+
+    static int[] remapInterfaces(ConstantPoolRemapper remapper, int[] interfaces) {
+        int[] remapped = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++)
+            remapped[i] = remap(remapper, interfaces[i]);
+        return remapped;
+    }
+
+    /**
+     * Translates members into the modified pool. Members which can't be translated become null, so they never
+     * compare equal to a modified member.
+     */
+    private static byte[][] remapMembers(ConstantPoolRemapper remapper, byte[][] members) {
+        if (remapper == null)
+            return members;
+        byte[][] remapped = new byte[members.length][];
+        for (int i = 0; i < members.length; i++)
+            remapped[i] = remapper.remapMember(members[i]);
+        return remapped;
+    }
+
+    private static byte[][] remapAttributes(ConstantPoolRemapper remapper, byte[][] attributes) {
+        if (remapper == null)
+            return attributes;
+        byte[][] remapped = new byte[attributes.length][];
+        for (int i = 0; i < attributes.length; i++)
+            remapped[i] = remapper.remapAttribute(attributes[i]);
+        return remapped;
+    }
+
+    /**
+     * Matches members by key, then emits removals, in place replacements and insertions. Members which are kept but
+     * whose relative order changed are re-added so that the patched class preserves the modified member order.
+     * Replaced methods are described by a {@link CodeDelta} when only their code changed.
+     */
+    private void diffMembers(ByteCodeChange.Target target, ConstantPoolInfo[] pool, String[] baseKeys, byte[][] baseBytes,
+                             String[] modifiedKeys, byte[][] modifiedBytes, List<ByteCodeChange> changes) {
+        Map<String, Integer> baseIndices = new HashMap<>();
+        for (int i = 0; i < baseKeys.length; i++)
+            baseIndices.put(baseKeys[i], i);
+
+        int[] matches = new int[modifiedKeys.length]; //Base index for each modified member, or -1
+        boolean[] retained = new boolean[baseKeys.length];
+        for (int i = 0; i < modifiedKeys.length; i++) {
+            Integer match = baseIndices.get(modifiedKeys[i]);
+            matches[i] = match == null ? -1 : match;
+            if (match != null)
+                retained[match] = true;
+        }
+
+        boolean[] inOrder = longestIncreasingSubsequence(matches);
+
+        List<ByteCodeChange> replacements = new ArrayList<>();
+        List<ByteCodeChange> additions = new ArrayList<>();
+        for (int i = 0; i < modifiedKeys.length; i++) {
+            if (matches[i] == -1) {
+                additions.add(new ByteCodeChange(ChangeType.ADD, target, modifiedKeys[i], i, modifiedBytes[i]));
+            } else if (!inOrder[i]) {
+                retained[matches[i]] = false;
+                additions.add(new ByteCodeChange(ChangeType.ADD, target, modifiedKeys[i], i, modifiedBytes[i]));
+            } else if (!Arrays.equals(baseBytes[matches[i]], modifiedBytes[i])) {
+                byte[] delta = target == ByteCodeChange.Target.METHOD && baseBytes[matches[i]] != null
+                        ? CodeDelta.diff(pool, baseBytes[matches[i]], modifiedBytes[i]) : null;
+                if (delta != null)
+                    replacements.add(new ByteCodeChange(ChangeType.REPLACE, ByteCodeChange.Target.CODE, modifiedKeys[i], i, delta));
+                else
+                    replacements.add(new ByteCodeChange(ChangeType.REPLACE, target, modifiedKeys[i], i, modifiedBytes[i]));
+            }
+        }
+
+        for (int i = 0; i < baseKeys.length; i++)
+            if (!retained[i])
+                changes.add(new ByteCodeChange(ChangeType.REMOVE, target, baseKeys[i], -1, null));
+        changes.addAll(replacements);
+        changes.addAll(additions);
+    }
+
+    /**
+     * Marks the entries making up the longest strictly increasing subsequence of the non-negative values.
+     */
+    private static boolean[] longestIncreasingSubsequence(int[] values) {
+        int[] tails = new int[values.length]; //Index of the smallest tail for each subsequence length
+        int[] previous = new int[values.length];
+        int length = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] < 0)
+                continue;
+            int lo = 0, hi = length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[tails[mid]] < values[i])
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            previous[i] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = i;
+            if (lo == length)
+                length++;
+        }
+
+        boolean[] marked = new boolean[values.length];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i])
+            marked[i] = true;
+        return marked;
+    }
+
+    static byte[] interfacesToBytes(int[] interfaces) {
+        byte[] bytes = new byte[2 + (2 * interfaces.length)];
+        bytes[0] = (byte) (interfaces.length >> 8);
+        bytes[1] = (byte) (interfaces.length & 0xFF);
+        for (int i = 0; i < interfaces.length; i++) {
+            bytes[2 + (2 * i)] = (byte) (interfaces[i] >> 8);
+            bytes[3 + (2 * i)] = (byte) (interfaces[i] & 0xFF);
+        }
+        return bytes;
+    }
+
+    static String utf8(ConstantPoolInfo[] pool, int index) {
+        return ((ConstantPoolInfo.Utf8Info) pool[index]).getString();
+    }
+
+    static String memberKey(ConstantPoolInfo[] pool, int name_index, int descriptor_index) {
+        return utf8(pool, name_index) + ":" + utf8(pool, descriptor_index);
+    }
+
+    static String[] fieldKeys(ClassFile clazz) {
+        FieldInfo[] fields = clazz.getFields();
+        String[] keys = new String[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            keys[i] = memberKey(clazz.getConstantPool(), fields[i].getNameIndex(), fields[i].getDescriptorIndex());
+        return keys;
+    }
+
+    static String[] methodKeys(ClassFile clazz) {
+        MethodInfo[] methods = clazz.getMethods();
+        String[] keys = new String[methods.length];
+        for (int i = 0; i < methods.length; i++)
+            keys[i] = memberKey(clazz.getConstantPool(), methods[i].getNameIndex(), methods[i].getDescriptorIndex());
+        return keys;
+    }
+
+    /**
+     * Attributes are keyed by name. Repeated attributes (only possible with non standard attributes) are
+     * disambiguated by their occurrence, i.e. {@code name#1}.
+     */
+    static String[] attributeKeys(ConstantPoolInfo[] pool, AttributeInfo[] attributes) {
+        Map<String, Integer> occurrences = new HashMap<>();
+        String[] keys = new String[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            String name = utf8(pool, attributes[i].getAttributeNameIndex());
+            int occurrence = occurrences.merge(name, 1, Integer::sum) - 1;
+            keys[i] = occurrence == 0 ? name : name + "#" + occurrence;
+        }
+        return keys;
+    }
+
+    static byte[][] fieldBytes(ClassFile clazz) {
+        FieldInfo[] fields = clazz.getFields();
+        byte[][] bytes = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++)
+            bytes[i] = BytesUtil.flatten(fields[i].getInfo());
+        return bytes;
+    }
+
+    static byte[][] methodBytes(ClassFile clazz) {
+        MethodInfo[] methods = clazz.getMethods();
+        byte[][] bytes = new byte[methods.length][];
+        for (int i = 0; i < methods.length; i++)
+            bytes[i] = BytesUtil.flatten(methods[i].getInfo());
+        return bytes;
+    }
+
+    static byte[][] attributeBytes(AttributeInfo[] attributes) {
+        byte[][] bytes = new byte[attributes.length][];
+        for (int i = 0; i < attributes.length; i++)
+            bytes[i] = BytesUtil.flatten(attributes[i].getBytes());
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] bytes = new byte[a.length + b.length];
+        System.arraycopy(a, 0, bytes, 0, a.length);
+        System.arraycopy(b, 0, bytes, a.length, b.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,30 @@
+package injectr.ipatch.diff.bytecode;
+
+import injectr.ipatch.bytecode.ClassFile;
+
+/**
+ * A base class prepared for diffing. The constant pool value keys and the keys and bytes of every member are computed
+ * once, so diffing the same base against several modified classes only does the per-class work.
+ */
+public final class ClassIndex {
+
+    private final ClassFile clazz;
+    final ConstantPoolDelta.Index pool;
+    final String[] fieldKeys, methodKeys, attributeKeys;
+    final byte[][] fieldBytes, methodBytes, attributeBytes;
+
+    public ClassIndex(ClassFile clazz) {
+        this.clazz = clazz;
+        this.pool = new ConstantPoolDelta.Index(clazz.getConstantPool());
+        this.fieldKeys = ClassDiffGenerator.fieldKeys(clazz);
+        this.fieldBytes = ClassDiffGenerator.fieldBytes(clazz);
+        this.methodKeys = ClassDiffGenerator.methodKeys(clazz);
+        this.methodBytes = ClassDiffGenerator.methodBytes(clazz);
+        this.attributeKeys = ClassDiffGenerator.attributeKeys(clazz.getConstantPool(), clazz.getAttributes());
+        this.attributeBytes = ClassDiffGenerator.attributeBytes(clazz.getAttributes());
+    }
+
+    public ClassFile getClassFile() {
+        return clazz;
+    }
+}
@@ -0,0 +1,210 @@
+package injectr.ipatch.diff.bytecode;
+
+import injectr.ipatch.bytecode.AttributeInfo;
+import injectr.ipatch.bytecode.ClassFile;
+import injectr.ipatch.bytecode.ConstantPoolInfo;
+import injectr.ipatch.bytecode.FieldInfo;
+import injectr.ipatch.bytecode.MethodInfo;
+import injectr.ipatch.diff.ByteCodeChange;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.util.BytesUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Applies changes generated by {@link ClassDiffGenerator}. Untouched members are carried over from the base class
+ * without being re-parsed, unless the constant pool changed in which case their indices are translated first.
+ */
+public class ClassPatcher {
+
+    public ClassFile apply(ClassFile base, List<ByteCodeChange> changes) throws IOException {
+        int minor_version = base.getMinorVersion();
+        int major_version = base.getMajorVersion();
+        ConstantPoolInfo[] constant_pool = base.getConstantPool();
+        int access_flags = base.getAccessFlags();
+        int this_class = base.getThisClass();
+        int super_class = base.getSuperClass();
+        int[] interfaces = base.getInterfaces();
+        ConstantPoolRemapper remapper = null; //Null when indices don't need translating
+
+        for (ByteCodeChange change : changes) { //Class level changes must be applied first since members depend on the pool
+            DataInputStream data;
+            switch (change.getTarget()) {
+                case VERSION:
+                    data = stream(change.getNewContent());
+                    minor_version = data.readUnsignedShort();
+                    major_version = data.readUnsignedShort();
+                    break;
+                case CONSTANT_POOL:
+                    int[] indexMap = new int[base.getConstantPool().length];
+                    constant_pool = ConstantPoolDelta.apply(base.getConstantPool(), change.getNewContent(), indexMap);
+                    remapper = new ConstantPoolRemapper(base.getConstantPool(), indexMap);
+                    break;
+                case ACCESS_FLAGS:
+                    access_flags = stream(change.getNewContent()).readUnsignedShort();
+                    break;
+                case THIS_CLASS:
+                    this_class = stream(change.getNewContent()).readUnsignedShort();
+                    break;
+                case SUPER_CLASS:
+                    super_class = stream(change.getNewContent()).readUnsignedShort();
+                    break;
+                case INTERFACES:
+                    data = stream(change.getNewContent());
+                    interfaces = new int[data.readUnsignedShort()];
+                    for (int i = 0; i < interfaces.length; i++)
+                        interfaces[i] = data.readUnsignedShort();
+                    break;
+            }
+        }
+
+        if (remapper != null) {
+            if (!changed(changes, ByteCodeChange.Target.THIS_CLASS))
+                this_class = remapIndex(remapper, this_class);
+            if (!changed(changes, ByteCodeChange.Target.SUPER_CLASS))
+                super_class = remapIndex(remapper, super_class);
+            if (!changed(changes, ByteCodeChange.Target.INTERFACES)) {
+                interfaces = ClassDiffGenerator.remapInterfaces(remapper, interfaces);
+                for (int i : interfaces)
+                    if (i == -1)
+                        throw new IOException("Interfaces cannot be remapped!");
+            }
+        }
+
+        final ConstantPoolInfo[] pool = constant_pool;
+        final ConstantPoolRemapper memberRemapper = remapper;
+        changes = resolveCode(base, changes, pool, remapper);
+        FieldInfo[] fields = patchMembers(ByteCodeChange.Target.FIELD, base.getFields(),
+                ClassDiffGenerator.fieldKeys(base), changes,
+                bytes -> FieldInfo.readFieldInfo(1, pool, stream(bytes))[0],
+                field -> memberRemapper.remapMember(BytesUtil.flatten(field.getInfo())),
+                remapper != null).toArray(new FieldInfo[0]);
+        MethodInfo[] methods = patchMembers(ByteCodeChange.Target.METHOD, base.getMethods(),
+                ClassDiffGenerator.methodKeys(base), changes,
+                bytes -> MethodInfo.readMethodInfo(1, pool, stream(bytes))[0],
+                method -> memberRemapper.remapMember(BytesUtil.flatten(method.getInfo())),
+                remapper != null).toArray(new MethodInfo[0]);
+        AttributeInfo[] attributes = patchMembers(ByteCodeChange.Target.ATTRIBUTE, base.getAttributes(),
+                ClassDiffGenerator.attributeKeys(base.getConstantPool(), base.getAttributes()), changes,
+                bytes -> AttributeInfo.readAttributeInfo(1, pool, stream(bytes))[0],
+                attribute -> memberRemapper.remapAttribute(BytesUtil.flatten(attribute.getBytes())),
+                remapper != null).toArray(new AttributeInfo[0]);
+
+        return new ClassFile(minor_version, major_version, constant_pool.length, constant_pool,
+                access_flags, this_class, super_class, interfaces.length, interfaces, fields.length, fields,
+                methods.length, methods, attributes.length, attributes);
+    }
+
+    /**
+     * Turns {@link ByteCodeChange.Target#CODE} changes into method replacements by applying them to the base method.
+     */
+    private static List<ByteCodeChange> resolveCode(ClassFile base, List<ByteCodeChange> changes,
+                                                    ConstantPoolInfo[] pool, ConstantPoolRemapper remapper) throws IOException {
+        List<String> keys = Arrays.asList(ClassDiffGenerator.methodKeys(base));
+        List<ByteCodeChange> resolved = new ArrayList<>(changes.size());
+        for (ByteCodeChange change : changes) {
+            if (change.getTarget() != ByteCodeChange.Target.CODE) {
+                resolved.add(change);
+                continue;
+            }
+
+            int index = keys.indexOf(change.getKey());
+            if (index == -1)
+                throw new IOException(String.format("%s %s does not exist in the base class!", change.getTarget(), change.getKey()));
+            byte[] method = BytesUtil.flatten(base.getMethods()[index].getInfo());
+            if (remapper != null && (method = remapper.remapMember(method)) == null) //Deltas are relative to the new pool
+                throw new IOException(String.format("%s %s cannot be remapped!", change.getTarget(), change.getKey()));
+            resolved.add(new ByteCodeChange(ChangeType.REPLACE, ByteCodeChange.Target.METHOD, change.getKey(),
+                    change.getIndex(), CodeDelta.apply(pool, method, change.getNewContent())));
+        }
+        return resolved;
+    }
+
+    private static boolean changed(List<ByteCodeChange> changes, ByteCodeChange.Target target) {
+        for (ByteCodeChange change : changes)
+            if (change.getTarget() == target)
+                return true;
+        return false;
+    }
+
+    private static int remapIndex(ConstantPoolRemapper remapper, int index) throws IOException {
+        int remapped = ClassDiffGenerator.remap(remapper, index);
+        if (remapped == -1)
+            throw new IOException("Constant pool index " + index + " cannot be remapped!");
+        return remapped;
+    }
+
+    private static <T> List<T> patchMembers(ByteCodeChange.Target target, T[] base, String[] baseKeys,
+                                            List<ByteCodeChange> changes, MemberReader<T> reader,
+                                            MemberRemapper<T> remapper, boolean remap) throws IOException {
+        List<String> keys = new ArrayList<>(Arrays.asList(baseKeys));
+        List<T> members = new ArrayList<>(Arrays.asList(base));
+        List<Boolean> replaced = new ArrayList<>(Collections.nCopies(base.length, false));
+        List<ByteCodeChange> additions = new ArrayList<>();
+
+        for (ByteCodeChange change : changes) {
+            if (change.getTarget() != target)
+                continue;
+
+            if (change.type() == ChangeType.ADD) {
+                additions.add(change);
+                continue;
+            }
+
+            int index = keys.indexOf(change.getKey());
+            if (index == -1)
+                throw new IOException(String.format("%s %s does not exist in the base class!", target, change.getKey()));
+
+            if (change.type() == ChangeType.REMOVE) {
+                keys.remove(index);
+                members.remove(index);
+                replaced.remove(index);
+            } else {
+                members.set(index, reader.read(change.getNewContent()));
+                replaced.set(index, true);
+            }
+        }
+
+        if (remap) { //Carried over members still point into the base pool
+            for (int i = 0; i < members.size(); i++) {
+                if (!replaced.get(i)) {
+                    byte[] remapped = remapper.remap(members.get(i));
+                    if (remapped == null)
+                        throw new IOException(String.format("%s %s cannot be remapped!", target, keys.get(i)));
+                    members.set(i, reader.read(remapped));
+                }
+            }
+        }
+
+        additions.sort(Comparator.comparingInt(ByteCodeChange::getIndex));
+        for (ByteCodeChange change : additions) {
+            if (change.getIndex() > members.size())
+                throw new IOException(String.format("%s %s cannot be inserted at %d!", target, change.getKey(), change.getIndex()));
+            keys.add(change.getIndex(), change.getKey());
+            members.add(change.getIndex(), reader.read(change.getNewContent()));
+        }
+
+        return members;
+    }
+
+    private static DataInputStream stream(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private interface MemberReader<T> {
+
+        T read(byte[] bytes) throws IOException;
+    }
+
+    private interface MemberRemapper<T> {
+
+        byte[] remap(T member);
+    }
+}
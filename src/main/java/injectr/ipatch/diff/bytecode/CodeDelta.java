@@ -0,0 +1,779 @@
+package injectr.ipatch.diff.bytecode;
+
+import injectr.ipatch.bytecode.AttributeInfo;
+import injectr.ipatch.bytecode.ConstantPoolInfo;
+import injectr.ipatch.bytecode.Instruction;
+import injectr.ipatch.bytecode.Opcodes;
+import injectr.ipatch.diff.myers.MyersDiff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes the Code attribute of a modified method as an instruction level edit script over the Code attribute of
+ * the base method, so inserting a single call produces a tiny delta instead of a copy of the whole method.
+ *
+ * Branch offsets are not part of the diff, instructions are compared by opcode and non branch operands and branches
+ * are matched by the instructions they target. When applying, copied instructions are re-encoded at their new pc and
+ * the exception table, LineNumberTable, LocalVariable(Type)Table and StackMapTable are translated to the new pcs.
+ *
+ * Encoded as:
+ * <ul>
+ *     <li>u2 max_stack, u2 max_locals</li>
+ *     <li>u2 op_count followed by the edit script, covering every base instruction in order:
+ *     {@code COPY} (u1 0, u2 count), {@code SKIP} (u1 1, u2 count) or {@code INSERT} (u1 2, u2 count, instructions).
+ *     Inserted instructions are encoded as their opcode, their non branch operands (for switches the low/high or
+ *     npairs and match values) and a u2 instruction index for each target.</li>
+ *     <li>The exception table, either u1 0 to translate the base table or u1 1, u2 length and the raw entries.</li>
+ *     <li>u2 attributes_count followed by each attribute, either u1 0 and the u2 index of the base attribute to
+ *     translate or u1 1 and the raw attribute_info.</li>
+ * </ul>
+ */
+public final class CodeDelta {
+
+    private static final int COPY = 0;
+    private static final int SKIP = 1;
+    private static final int INSERT = 2;
+
+    private static final int TRANSLATED = 0;
+    private static final int LITERAL = 1;
+
+    private CodeDelta() {}
+
+    /**
+     * Diffs the Code attributes of two versions of a method, both referring to the same constant pool.
+     *
+     * @return The encoded delta, or null if the methods differ outside of their Code attribute or the delta wouldn't
+     * be smaller than the modified method.
+     */
+    public static byte[] diff(ConstantPoolInfo[] pool, byte[] baseMethod, byte[] modifiedMethod) {
+        try {
+            Method base = Method.read(pool, baseMethod);
+            Method modified = Method.read(pool, modifiedMethod);
+            if (!base.sameOutsideCode(modified))
+                return null;
+            Code baseCode = Code.read(base.attributes[base.code]);
+            Code modifiedCode = Code.read(modified.attributes[modified.code]);
+
+            Instruction[] baseInstructions = decode(baseCode.code);
+            Instruction[] modifiedInstructions = decode(modifiedCode.code);
+            int[][] baseTargets = targets(baseInstructions, baseCode.code.length);
+            int[][] modifiedTargets = targets(modifiedInstructions, modifiedCode.code.length);
+
+            Map<ByteBuffer, Integer> tokens = new HashMap<>();
+            int[] matches = MyersDiff.match(tokenize(baseInstructions, tokens), tokenize(modifiedInstructions, tokens));
+
+            //Matched branches must also target matched instructions. Unmatching a branch may invalidate branches
+            //targeting it, so repeat until nothing changes
+            boolean changed;
+            do {
+                changed = false;
+                for (int i = 0; i < matches.length; i++) {
+                    if (matches[i] != -1 && !sameTargets(baseTargets[i], modifiedTargets[matches[i]], matches)) {
+                        matches[i] = -1;
+                        changed = true;
+                    }
+                }
+            } while (changed);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(modifiedCode.maxStack);
+            out.writeShort(modifiedCode.maxLocals);
+            if (!writeEditScript(out, matches, modifiedInstructions, modifiedTargets))
+                return null;
+
+            int[] pcMap = new int[baseCode.code.length + 1];
+            Arrays.fill(pcMap, -1);
+            for (int i = 0; i < matches.length; i++)
+                if (matches[i] != -1)
+                    pcMap[baseInstructions[i].getPc()] = modifiedInstructions[matches[i]].getPc();
+            pcMap[baseCode.code.length] = modifiedCode.code.length;
+
+            if (Arrays.equals(translateOrNull(baseCode.exceptionTable, pcMap), modifiedCode.exceptionTable)) {
+                out.writeByte(TRANSLATED);
+            } else {
+                out.writeByte(LITERAL);
+                out.writeShort(modifiedCode.exceptionTable.length / 8);
+                out.write(modifiedCode.exceptionTable);
+            }
+
+            String[] baseKeys = attributeKeys(pool, baseCode.attributes);
+            String[] modifiedKeys = attributeKeys(pool, modifiedCode.attributes);
+            out.writeShort(modifiedCode.attributes.length);
+            for (int i = 0; i < modifiedCode.attributes.length; i++) {
+                int source = Arrays.asList(baseKeys).indexOf(modifiedKeys[i]);
+                if (source != -1 && Arrays.equals(translateOrNull(pool, baseCode.attributes[source], pcMap), modifiedCode.attributes[i])) {
+                    out.writeByte(TRANSLATED);
+                    out.writeShort(source);
+                } else {
+                    out.writeByte(LITERAL);
+                    out.write(modifiedCode.attributes[i]);
+                }
+            }
+
+            byte[] delta = bytes.toByteArray();
+            //Applying must reproduce the modified method exactly, this also rejects non canonical encodings
+            if (delta.length >= modifiedMethod.length || !Arrays.equals(apply(pool, baseMethod, delta), modifiedMethod))
+                return null;
+            return delta;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Rebuilds a method by applying a delta to the Code attribute of the base method.
+     */
+    public static byte[] apply(ConstantPoolInfo[] pool, byte[] baseMethod, byte[] delta) throws IOException {
+        Method method = Method.read(pool, baseMethod);
+        Code base = Code.read(method.attributes[method.code]);
+        Instruction[] baseInstructions = decode(base.code);
+        int[][] baseTargets = targets(baseInstructions, base.code.length);
+
+        DataInputStream data = stream(delta);
+        int maxStack = data.readUnsignedShort();
+        int maxLocals = data.readUnsignedShort();
+
+        List<byte[]> tokens = new ArrayList<>();
+        List<int[]> targets = new ArrayList<>();
+        List<Integer> sources = new ArrayList<>(); //Base index each new instruction was copied from, -1 if inserted
+        int[] newIndices = new int[baseInstructions.length];
+        Arrays.fill(newIndices, -1);
+
+        int index = 0;
+        int ops = data.readUnsignedShort();
+        for (int op = 0; op < ops; op++) {
+            int type = data.readUnsignedByte();
+            int count = data.readUnsignedShort();
+            if (type == INSERT) {
+                for (int i = 0; i < count; i++) {
+                    sources.add(-1);
+                    tokens.add(readInstruction(data, targets));
+                }
+            } else if (type == COPY || type == SKIP) {
+                if (index + count > baseInstructions.length)
+                    throw new IOException("Edit script exceeds the base code!");
+                for (int i = 0; i < count && type == COPY; i++) {
+                    newIndices[index + i] = tokens.size();
+                    sources.add(index + i);
+                    tokens.add(token(baseInstructions[index + i]));
+                    targets.add(null);
+                }
+                index += count;
+            } else {
+                throw new IOException("Invalid edit script op " + type);
+            }
+        }
+        if (index != baseInstructions.length)
+            throw new IOException("Edit script doesn't cover the base code!");
+
+        for (int i = 0; i < tokens.size(); i++) { //Copied branches follow the instructions they targeted
+            int source = sources.get(i);
+            if (source != -1) {
+                int[] baseTarget = baseTargets[source];
+                int[] target = new int[baseTarget.length];
+                for (int j = 0; j < target.length; j++)
+                    if ((target[j] = newIndices[baseTarget[j]]) == -1)
+                        throw new IOException("Branch target of instruction " + source + " was removed!");
+                targets.set(i, target);
+            }
+            for (int target : targets.get(i))
+                if (target >= tokens.size())
+                    throw new IOException("Branch target " + target + " out of bounds!");
+        }
+
+        int[] pcs = new int[tokens.size() + 1];
+        for (int i = 0; i < tokens.size(); i++)
+            pcs[i + 1] = pcs[i] + encodedLength(tokens.get(i), targets.get(i), pcs[i]);
+        if (pcs[tokens.size()] > 0xFFFF)
+            throw new IOException("Code array too large!");
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(code);
+        for (int i = 0; i < tokens.size(); i++)
+            encode(out, tokens.get(i), targets.get(i), pcs, i);
+
+        int[] pcMap = new int[base.code.length + 1];
+        Arrays.fill(pcMap, -1);
+        for (int i = 0; i < baseInstructions.length; i++)
+            if (newIndices[i] != -1)
+                pcMap[baseInstructions[i].getPc()] = pcs[newIndices[i]];
+        pcMap[base.code.length] = pcs[tokens.size()];
+
+        byte[] exceptionTable;
+        int exceptionTableType = data.readUnsignedByte();
+        if (exceptionTableType == TRANSLATED) {
+            exceptionTable = translate(base.exceptionTable, pcMap);
+        } else if (exceptionTableType == LITERAL) {
+            exceptionTable = new byte[8 * data.readUnsignedShort()];
+            data.readFully(exceptionTable);
+        } else {
+            throw new IOException("Invalid exception table type " + exceptionTableType);
+        }
+
+        byte[][] attributes = new byte[data.readUnsignedShort()][];
+        for (int i = 0; i < attributes.length; i++) {
+            int type = data.readUnsignedByte();
+            if (type == TRANSLATED) {
+                int source = data.readUnsignedShort();
+                if (source >= base.attributes.length)
+                    throw new IOException("Code attribute " + source + " does not exist in the base method!");
+                attributes[i] = translate(pool, base.attributes[source], pcMap);
+            } else if (type == LITERAL) {
+                attributes[i] = readAttribute(data);
+            } else {
+                throw new IOException("Invalid code attribute type " + type);
+            }
+        }
+        if (data.available() != 0)
+            throw new IOException("Trailing bytes after the code delta!");
+
+        method.attributes[method.code] = new Code(base.nameIndex, maxStack, maxLocals, code.toByteArray(),
+                exceptionTable, attributes).toBytes();
+        return method.toBytes();
+    }
+
+    private static boolean sameTargets(int[] baseTargets, int[] modifiedTargets, int[] matches) {
+        for (int i = 0; i < baseTargets.length; i++)
+            if (matches[baseTargets[i]] != modifiedTargets[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Writes the edit script turning the base instructions into the modified instructions.
+     *
+     * @return False if the script has too many ops to be encoded.
+     */
+    private static boolean writeEditScript(DataOutputStream out, int[] matches, Instruction[] modified,
+                                           int[][] modifiedTargets) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream ops = new DataOutputStream(bytes);
+        int count = 0;
+        int i = 0, j = 0;
+        while (i < matches.length || j < modified.length) {
+            int start;
+            if (i < matches.length && matches[i] == -1) {
+                for (start = i; i < matches.length && matches[i] == -1; i++);
+                ops.writeByte(SKIP);
+                ops.writeShort(i - start);
+            } else if (j < modified.length && (i == matches.length || j < matches[i])) {
+                for (start = j; j < modified.length && (i == matches.length || j < matches[i]); j++);
+                ops.writeByte(INSERT);
+                ops.writeShort(j - start);
+                for (int k = start; k < j; k++) {
+                    ops.write(token(modified[k]));
+                    for (int target : modifiedTargets[k])
+                        ops.writeShort(target);
+                }
+            } else {
+                for (start = i; i < matches.length && matches[i] == j; i++, j++);
+                ops.writeByte(COPY);
+                ops.writeShort(i - start);
+            }
+            count++;
+        }
+        if (count > 0xFFFF)
+            return false;
+        out.writeShort(count);
+        out.write(bytes.toByteArray());
+        return true;
+    }
+
+    private static Instruction[] decode(byte[] code) throws IOException {
+        if (code.length > 0xFFFF)
+            throw new IOException("Code array too large!");
+        try {
+            return Instruction.decode(code);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Resolves the branch targets of every instruction to instruction indices.
+     */
+    private static int[][] targets(Instruction[] instructions, int codeLength) throws IOException {
+        int[] indices = new int[codeLength];
+        Arrays.fill(indices, -1);
+        for (int i = 0; i < instructions.length; i++)
+            indices[instructions[i].getPc()] = i;
+
+        int[][] targets = new int[instructions.length][];
+        for (int i = 0; i < instructions.length; i++) {
+            int[] pcs = instructions[i].getTargets();
+            targets[i] = new int[pcs.length];
+            for (int j = 0; j < pcs.length; j++) {
+                if (pcs[j] < 0 || pcs[j] >= codeLength || indices[pcs[j]] == -1)
+                    throw new IOException("Branch at " + instructions[i].getPc() + " doesn't target an instruction!");
+                targets[i][j] = indices[pcs[j]];
+            }
+        }
+        return targets;
+    }
+
+    private static int[] tokenize(Instruction[] instructions, Map<ByteBuffer, Integer> tokens) {
+        int[] ids = new int[instructions.length];
+        for (int i = 0; i < instructions.length; i++) {
+            ByteBuffer token = ByteBuffer.wrap(token(instructions[i]));
+            Integer id = tokens.get(token);
+            if (id == null)
+                tokens.put(token, id = tokens.size());
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Gets an instruction without its branch offsets and switch padding.
+     */
+    private static byte[] token(Instruction instruction) {
+        if (!instruction.isBranch())
+            return instruction.getBytes();
+
+        int opcode = instruction.getOpcode();
+        int[] keys = instruction.getSwitchKeys();
+        if (opcode == Opcodes.TABLESWITCH) //Keys are low..high
+            return ByteBuffer.allocate(9).put((byte) opcode).putInt(keys[0]).putInt(keys[keys.length - 1]).array();
+        if (opcode == Opcodes.LOOKUPSWITCH) {
+            ByteBuffer token = ByteBuffer.allocate(5 + (4 * keys.length)).put((byte) opcode).putInt(keys.length);
+            for (int key : keys)
+                token.putInt(key);
+            return token.array();
+        }
+        return new byte[]{(byte) opcode};
+    }
+
+    /**
+     * Reads an inserted instruction, adding its targets to the list and returning its token.
+     */
+    private static byte[] readInstruction(DataInputStream data, List<int[]> targets) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream token = new DataOutputStream(bytes);
+        int opcode = data.readUnsignedByte();
+        token.writeByte(opcode);
+
+        int targetCount;
+        if (opcode == Opcodes.TABLESWITCH) {
+            int low = data.readInt();
+            int high = data.readInt();
+            if (high < low || (long) high - low >= 0xFFFF)
+                throw new IOException("Invalid tableswitch!");
+            token.writeInt(low);
+            token.writeInt(high);
+            targetCount = 1 + (high - low + 1);
+        } else if (opcode == Opcodes.LOOKUPSWITCH) {
+            int pairs = data.readInt();
+            if (pairs < 0 || pairs >= 0xFFFF)
+                throw new IOException("Invalid lookupswitch!");
+            token.writeInt(pairs);
+            for (int i = 0; i < pairs; i++)
+                token.writeInt(data.readInt());
+            targetCount = 1 + pairs;
+        } else if (Opcodes.isBranch(opcode)) {
+            targetCount = 1;
+        } else {
+            int operands;
+            try {
+                operands = Opcodes.operandLength(opcode);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+            if (opcode == Opcodes.WIDE) {
+                int modified = data.readUnsignedByte();
+                token.writeByte(modified);
+                operands = modified == Opcodes.IINC ? 4 : 2;
+            }
+            byte[] operandBytes = new byte[operands];
+            data.readFully(operandBytes);
+            token.write(operandBytes);
+            targetCount = 0;
+        }
+
+        int[] target = new int[targetCount];
+        for (int i = 0; i < targetCount; i++)
+            target[i] = data.readUnsignedShort();
+        targets.add(target);
+        return bytes.toByteArray();
+    }
+
+    private static int encodedLength(byte[] token, int[] targets, int pc) {
+        switch (token[0] & 0xFF) {
+            case Opcodes.TABLESWITCH:
+                return 1 + Opcodes.switchPadding(pc) + 12 + (4 * (targets.length - 1));
+            case Opcodes.LOOKUPSWITCH:
+                return 1 + Opcodes.switchPadding(pc) + 8 + (8 * (targets.length - 1));
+            case Opcodes.GOTO_W:
+            case Opcodes.JSR_W:
+                return 5;
+            default:
+                return targets.length == 0 ? token.length : 3;
+        }
+    }
+
+    private static void encode(DataOutputStream out, byte[] token, int[] targets, int[] pcs, int index) throws IOException {
+        int opcode = token[0] & 0xFF;
+        int pc = pcs[index];
+        if (targets.length == 0) {
+            out.write(token);
+            return;
+        }
+
+        out.writeByte(opcode);
+        switch (opcode) {
+            case Opcodes.TABLESWITCH:
+            case Opcodes.LOOKUPSWITCH:
+                for (int i = 0; i < Opcodes.switchPadding(pc); i++)
+                    out.writeByte(0);
+                out.writeInt(pcs[targets[0]] - pc);
+                if (opcode == Opcodes.TABLESWITCH) {
+                    out.write(token, 1, 8); //low, high
+                    for (int i = 1; i < targets.length; i++)
+                        out.writeInt(pcs[targets[i]] - pc);
+                } else {
+                    out.write(token, 1, 4); //npairs
+                    for (int i = 1; i < targets.length; i++) {
+                        out.write(token, 1 + (4 * i), 4); //match
+                        out.writeInt(pcs[targets[i]] - pc);
+                    }
+                }
+                break;
+            case Opcodes.GOTO_W:
+            case Opcodes.JSR_W:
+                out.writeInt(pcs[targets[0]] - pc);
+                break;
+            default:
+                int offset = pcs[targets[0]] - pc;
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                    throw new IOException("Branch offset " + offset + " at " + pc + " out of range!");
+                out.writeShort(offset);
+        }
+    }
+
+    private static int translatePc(int[] pcMap, int pc) throws IOException {
+        if (pc < 0 || pc >= pcMap.length || pcMap[pc] == -1)
+            throw new IOException("pc " + pc + " was removed!");
+        return pcMap[pc];
+    }
+
+    private static byte[] translateOrNull(byte[] exceptionTable, int[] pcMap) {
+        try {
+            return translate(exceptionTable, pcMap);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] translateOrNull(ConstantPoolInfo[] pool, byte[] attribute, int[] pcMap) {
+        try {
+            return translate(pool, attribute, pcMap);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Translates the start_pc, end_pc and handler_pc of every exception table entry.
+     */
+    private static byte[] translate(byte[] exceptionTable, int[] pcMap) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(exceptionTable);
+        ByteBuffer out = ByteBuffer.allocate(exceptionTable.length);
+        while (in.hasRemaining()) {
+            for (int i = 0; i < 3; i++)
+                out.putShort((short) translatePc(pcMap, in.getShort() & 0xFFFF));
+            out.putShort(in.getShort()); //catch_type
+        }
+        return out.array();
+    }
+
+    /**
+     * Translates the pcs contained in an attribute of a Code attribute. Attributes without known pcs are copied as is.
+     */
+    private static byte[] translate(ConstantPoolInfo[] pool, byte[] attribute, int[] pcMap) throws IOException {
+        String name = attributeName(pool, attribute);
+        if (name == null)
+            return attribute;
+        switch (name) {
+            case AttributeInfo.LineNumberTable: {
+                ByteBuffer bytes = ByteBuffer.wrap(attribute.clone());
+                int count = bytes.getShort(6) & 0xFFFF;
+                if (attribute.length != 8 + (4 * count))
+                    throw new IOException("Malformed LineNumberTable!");
+                for (int i = 0; i < count; i++) {
+                    int offset = 8 + (4 * i);
+                    bytes.putShort(offset, (short) translatePc(pcMap, bytes.getShort(offset) & 0xFFFF));
+                }
+                return bytes.array();
+            }
+            case AttributeInfo.LocalVariableTable:
+            case AttributeInfo.LocalVariableTypeTable: {
+                ByteBuffer bytes = ByteBuffer.wrap(attribute.clone());
+                int count = bytes.getShort(6) & 0xFFFF;
+                if (attribute.length != 8 + (10 * count))
+                    throw new IOException("Malformed " + name + "!");
+                for (int i = 0; i < count; i++) {
+                    int offset = 8 + (10 * i);
+                    int start = bytes.getShort(offset) & 0xFFFF;
+                    int end = start + (bytes.getShort(offset + 2) & 0xFFFF);
+                    int newStart = translatePc(pcMap, start);
+                    bytes.putShort(offset, (short) newStart);
+                    bytes.putShort(offset + 2, (short) (translatePc(pcMap, end) - newStart));
+                }
+                return bytes.array();
+            }
+            case AttributeInfo.StackMapTable:
+                return translateStackMapTable(attribute, pcMap);
+            default:
+                return attribute;
+        }
+    }
+
+    /**
+     * Translates the frame offsets and uninitialized types of a StackMapTable. Since offsets are delta encoded, frames
+     * are re-encoded using the compact frame types whenever the new delta allows it.
+     */
+    private static byte[] translateStackMapTable(byte[] attribute, int[] pcMap) throws IOException {
+        DataInputStream in = stream(attribute);
+        int name_index = in.readUnsignedShort();
+        in.readInt(); //attribute_length
+        int entries = in.readUnsignedShort();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(entries);
+        int previous = -1, newPrevious = -1;
+        for (int i = 0; i < entries; i++) {
+            int frame_type = in.readUnsignedByte();
+            int offset_delta;
+            if (frame_type <= 63)
+                offset_delta = frame_type;
+            else if (frame_type <= 127)
+                offset_delta = frame_type - 64;
+            else if (frame_type >= 247)
+                offset_delta = in.readUnsignedShort();
+            else
+                throw new IOException("Invalid frame type " + frame_type);
+
+            int offset = previous + offset_delta + 1;
+            int newOffset = translatePc(pcMap, offset);
+            int newDelta = newOffset - newPrevious - 1;
+            if (newDelta < 0 || newDelta > 0xFFFF)
+                throw new IOException("Frame at " + offset + " cannot be translated!");
+            previous = offset;
+            newPrevious = newOffset;
+
+            if (frame_type <= 63 || frame_type == 251) { //same_frame(_extended)
+                if (newDelta <= 63) {
+                    out.writeByte(newDelta);
+                } else {
+                    out.writeByte(251);
+                    out.writeShort(newDelta);
+                }
+            } else if (frame_type <= 127 || frame_type == 247) { //same_locals_1_stack_item_frame(_extended)
+                if (newDelta <= 63) {
+                    out.writeByte(64 + newDelta);
+                } else {
+                    out.writeByte(247);
+                    out.writeShort(newDelta);
+                }
+                translateVerificationType(in, out, pcMap);
+            } else {
+                out.writeByte(frame_type);
+                out.writeShort(newDelta);
+                if (frame_type >= 252 && frame_type <= 254) { //append_frame
+                    for (int j = 0; j < frame_type - 251; j++)
+                        translateVerificationType(in, out, pcMap);
+                } else if (frame_type == 255) { //full_frame
+                    for (int k = 0; k < 2; k++) { //locals and stack share a layout
+                        int count = in.readUnsignedShort();
+                        out.writeShort(count);
+                        for (int j = 0; j < count; j++)
+                            translateVerificationType(in, out, pcMap);
+                    }
+                }
+            }
+        }
+        if (in.available() != 0)
+            throw new IOException("Malformed StackMapTable!");
+
+        ByteArrayOutputStream translated = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(translated);
+        header.writeShort(name_index);
+        header.writeInt(bytes.size());
+        bytes.writeTo(translated);
+        return translated.toByteArray();
+    }
+
+    private static void translateVerificationType(DataInputStream in, DataOutputStream out, int[] pcMap) throws IOException {
+        int tag = in.readUnsignedByte();
+        out.writeByte(tag);
+        if (tag == AttributeInfo.StackMapTableInfo.StackMapFrame.VerificationTypeInfo.ITEM_Object)
+            out.writeShort(in.readUnsignedShort()); //cpool_index
+        else if (tag == AttributeInfo.StackMapTableInfo.StackMapFrame.VerificationTypeInfo.ITEM_Uninitialized)
+            out.writeShort(translatePc(pcMap, in.readUnsignedShort())); //Offset of the new instruction
+        else if (tag > AttributeInfo.StackMapTableInfo.StackMapFrame.VerificationTypeInfo.ITEM_Uninitialized)
+            throw new IOException("Invalid verification type " + tag);
+    }
+
+    /**
+     * Attributes are keyed by name and occurrence, so repeated attributes are paired up in order.
+     */
+    private static String[] attributeKeys(ConstantPoolInfo[] pool, byte[][] attributes) {
+        Map<String, Integer> occurrences = new HashMap<>();
+        String[] keys = new String[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            String name = attributeName(pool, attributes[i]);
+            int occurrence = occurrences.merge(String.valueOf(name), 1, Integer::sum) - 1;
+            keys[i] = name + "#" + occurrence;
+        }
+        return keys;
+    }
+
+    private static String attributeName(ConstantPoolInfo[] pool, byte[] attribute) {
+        int index = ((attribute[0] & 0xFF) << 8) | (attribute[1] & 0xFF);
+        if (index <= 0 || index >= pool.length || !(pool[index] instanceof ConstantPoolInfo.Utf8Info))
+            return null;
+        return ((ConstantPoolInfo.Utf8Info) pool[index]).getString();
+    }
+
+    private static byte[] readAttribute(DataInputStream data) throws IOException {
+        int name_index = data.readUnsignedShort();
+        int length = data.readInt();
+        if (length < 0 || length > data.available())
+            throw new IOException("Attribute length exceeds its container!");
+        byte[] attribute = new byte[6 + length];
+        ByteBuffer.wrap(attribute).putShort((short) name_index).putInt(length);
+        data.readFully(attribute, 6, length);
+        return attribute;
+    }
+
+    private static DataInputStream stream(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * A raw method_info whose attributes are kept as raw attribute_info structures.
+     */
+    private static final class Method {
+
+        private final byte[] header; //access_flags, name_index, descriptor_index, attributes_count
+        private final byte[][] attributes;
+        private final int code; //Index of the Code attribute
+
+        private Method(byte[] header, byte[][] attributes, int code) {
+            this.header = header;
+            this.attributes = attributes;
+            this.code = code;
+        }
+
+        private static Method read(ConstantPoolInfo[] pool, byte[] bytes) throws IOException {
+            DataInputStream data = stream(bytes);
+            byte[] header = new byte[8];
+            data.readFully(header);
+            byte[][] attributes = new byte[((header[6] & 0xFF) << 8) | (header[7] & 0xFF)][];
+            int code = -1;
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = readAttribute(data);
+                if (AttributeInfo.Code.equals(attributeName(pool, attributes[i]))) {
+                    if (code != -1)
+                        throw new IOException("Method has multiple Code attributes!");
+                    code = i;
+                }
+            }
+            if (code == -1)
+                throw new IOException("Method has no Code attribute!");
+            if (data.available() != 0)
+                throw new IOException("Trailing bytes after method_info!");
+            return new Method(header, attributes, code);
+        }
+
+        private boolean sameOutsideCode(Method other) {
+            if (!Arrays.equals(header, other.header) || code != other.code)
+                return false;
+            for (int i = 0; i < attributes.length; i++)
+                if (i != code && !Arrays.equals(attributes[i], other.attributes[i]))
+                    return false;
+            return true;
+        }
+
+        private byte[] toBytes() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.write(header, 0, header.length);
+            for (byte[] attribute : attributes)
+                bytes.write(attribute, 0, attribute.length);
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * A raw Code attribute, https://docs.oracle.com/javase/specs/jvms/se9/html/jvms-4.html#jvms-4.7.3
+     */
+    private static final class Code {
+
+        private final int nameIndex;
+        private final int maxStack;
+        private final int maxLocals;
+        private final byte[] code;
+        private final byte[] exceptionTable; //Raw 8 byte entries
+        private final byte[][] attributes;
+
+        private Code(int nameIndex, int maxStack, int maxLocals, byte[] code, byte[] exceptionTable, byte[][] attributes) {
+            this.nameIndex = nameIndex;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+            this.code = code;
+            this.exceptionTable = exceptionTable;
+            this.attributes = attributes;
+        }
+
+        private static Code read(byte[] attribute) throws IOException {
+            DataInputStream data = stream(attribute);
+            int nameIndex = data.readUnsignedShort();
+            data.readInt(); //attribute_length
+            int maxStack = data.readUnsignedShort();
+            int maxLocals = data.readUnsignedShort();
+            int codeLength = data.readInt();
+            if (codeLength < 0 || codeLength > data.available())
+                throw new IOException("Code length exceeds the attribute!");
+            byte[] code = new byte[codeLength];
+            data.readFully(code);
+            byte[] exceptionTable = new byte[8 * data.readUnsignedShort()];
+            data.readFully(exceptionTable);
+            byte[][] attributes = new byte[data.readUnsignedShort()][];
+            for (int i = 0; i < attributes.length; i++)
+                attributes[i] = readAttribute(data);
+            if (data.available() != 0)
+                throw new IOException("Trailing bytes after the Code attribute!");
+            return new Code(nameIndex, maxStack, maxLocals, code, exceptionTable, attributes);
+        }
+
+        private byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int length = 12 + code.length + exceptionTable.length;
+            for (byte[] attribute : attributes)
+                length += attribute.length;
+            out.writeShort(nameIndex);
+            out.writeInt(length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(exceptionTable.length / 8);
+            out.write(exceptionTable);
+            out.writeShort(attributes.length);
+            for (byte[] attribute : attributes)
+                out.write(attribute);
+            return bytes.toByteArray();
+        }
+    }
+}
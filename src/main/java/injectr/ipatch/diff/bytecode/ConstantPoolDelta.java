@@ -0,0 +1,281 @@
+package injectr.ipatch.diff.bytecode;
+
+import injectr.ipatch.bytecode.ConstantPoolInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes a modified constant pool in terms of a base pool. Entries are matched by value rather than by index, so a
+ * pool which was merely renumbered by a recompile is expressed as a handful of copy segments. Matching also yields an
+ * index map from the base pool to the modified pool which is used to translate the indices of unchanged members.
+ *
+ * Encoded as u2 constant_pool_count followed by segments covering every modified pool slot in order:
+ * <ul>
+ *     <li>{@code COPY}: u1 0, u2 length, u2 base_start. Copies base entries, remapping their references.</li>
+ *     <li>{@code LITERAL}: u1 1, u2 length, followed by the raw entries.</li>
+ * </ul>
+ */
+public final class ConstantPoolDelta {
+
+    private static final int COPY = 0;
+    private static final int LITERAL = 1;
+
+    private final ConstantPoolInfo[] base;
+    private final ConstantPoolInfo[] modified;
+    private final int[] sources; //Base index each modified entry is copied from, 0 for literals
+    private final int[] indexMap; //Base index -> modified index, 0 when not carried over
+
+    private ConstantPoolDelta(ConstantPoolInfo[] base, ConstantPoolInfo[] modified, int[] sources, int[] indexMap) {
+        this.base = base;
+        this.modified = modified;
+        this.sources = sources;
+        this.indexMap = indexMap;
+    }
+
+    public static ConstantPoolDelta diff(ConstantPoolInfo[] base, ConstantPoolInfo[] modified) {
+        return diff(new Index(base), modified);
+    }
+
+    /**
+     * Diffs against a base pool which was indexed beforehand, so that one base can be diffed against many pools.
+     */
+    public static ConstantPoolDelta diff(Index index, ConstantPoolInfo[] modified) {
+        ConstantPoolInfo[] base = index.pool;
+        String[] baseKeys = index.keys;
+        Map<String, Integer> baseIndices = index.indices;
+        String[] modifiedKeys = valueKeys(modified);
+
+        int[] sources = new int[modified.length];
+        for (int i = 1; i < modified.length; i++) {
+            if (modifiedKeys[i] != null && i < base.length && modifiedKeys[i].equals(baseKeys[i])) {
+                sources[i] = i; //Keep duplicated values in place when the slot didn't move
+                continue;
+            }
+            Integer source = modifiedKeys[i] == null ? null : baseIndices.get(modifiedKeys[i]);
+            sources[i] = source == null ? 0 : source;
+        }
+
+        //Copies are only valid if remapping the base entry yields the exact modified entry. Demoting a copy to a
+        //literal can change the index map, so repeat until nothing changes
+        int[] indexMap;
+        boolean changed;
+        do {
+            indexMap = indexMap(base.length, sources);
+            ConstantPoolRemapper remapper = new ConstantPoolRemapper(base, indexMap);
+            changed = false;
+            for (int i = 1; i < modified.length; i++) {
+                if (sources[i] != 0 && !Arrays.equals(remapper.remapEntry(base[sources[i]]), modified[i].toBytes())) {
+                    sources[i] = 0;
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        return new ConstantPoolDelta(base, modified, sources, indexMap);
+    }
+
+    /**
+     * Rebuilds the modified pool from the base pool and an encoded delta.
+     *
+     * @param indexMap Receives the mapping from base indices to modified indices, must be the size of the base pool.
+     */
+    public static ConstantPoolInfo[] apply(ConstantPoolInfo[] base, byte[] delta, int[] indexMap) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(delta));
+        ConstantPoolInfo[] pool = new ConstantPoolInfo[data.readUnsignedShort()];
+        int[] sources = new int[pool.length];
+
+        int index = 1;
+        while (index < pool.length) {
+            int type = data.readUnsignedByte();
+            int length = data.readUnsignedShort();
+            if (index + length > pool.length)
+                throw new IOException("Constant pool segment exceeds the pool size!");
+
+            if (type == COPY) {
+                int start = data.readUnsignedShort();
+                if (start < 1 || start + length > base.length)
+                    throw new IOException("Invalid constant pool copy segment!");
+                for (int i = 0; i < length; i++)
+                    if (base[start + i] != null)
+                        sources[index + i] = start + i;
+            } else if (type == LITERAL) {
+                int end = index + length;
+                for (int i = index; i < end; i++) {
+                    pool[i] = ConstantPoolInfo.readConstantPoolInfo(data);
+                    if (pool[i].takesTwoEntries())
+                        i++;
+                }
+            } else {
+                throw new IOException("Invalid constant pool segment type " + type);
+            }
+            index += length;
+        }
+
+        int[] map = indexMap(base.length, sources);
+        System.arraycopy(map, 0, indexMap, 0, map.length);
+        ConstantPoolRemapper remapper = new ConstantPoolRemapper(base, map);
+        for (int i = 1; i < pool.length; i++) {
+            if (sources[i] != 0) {
+                byte[] entry = remapper.remapEntry(base[sources[i]]);
+                if (entry == null)
+                    throw new IOException("Constant pool entry " + sources[i] + " cannot be remapped!");
+                pool[i] = ConstantPoolInfo.readConstantPoolInfo(new DataInputStream(new ByteArrayInputStream(entry)));
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Checks whether the modified pool is identical to the base pool, in which case no delta needs to be stored and
+     * member indices don't need translating.
+     */
+    public boolean isIdentity() {
+        if (base.length != modified.length)
+            return false;
+        for (int i = 1; i < modified.length; i++)
+            if (modified[i] != null && sources[i] != i)
+                return false;
+        return true;
+    }
+
+    public int[] getIndexMap() {
+        return indexMap;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(modified.length >> 8);
+        stream.write(modified.length & 0xFF);
+
+        int index = 1;
+        while (index < modified.length) {
+            int end = index + 1;
+            if (sources[index] != 0) {
+                while (end < modified.length && (modified[end] == null || sources[end] == sources[index] + (end - index)))
+                    end++;
+                writeSegmentHeader(stream, COPY, end - index);
+                stream.write(sources[index] >> 8);
+                stream.write(sources[index] & 0xFF);
+            } else {
+                while (end < modified.length && (modified[end] == null || sources[end] == 0))
+                    end++;
+                writeSegmentHeader(stream, LITERAL, end - index);
+                for (int i = index; i < end; i++) {
+                    if (modified[i] != null) {
+                        byte[] entry = modified[i].toBytes();
+                        stream.write(entry, 0, entry.length);
+                    }
+                }
+            }
+            index = end;
+        }
+        return stream.toByteArray();
+    }
+
+    private static void writeSegmentHeader(ByteArrayOutputStream stream, int type, int length) {
+        stream.write(type);
+        stream.write(length >> 8);
+        stream.write(length & 0xFF);
+    }
+
+    /**
+     * The value keys of a base pool and the index of each value.
+     */
+    public static final class Index {
+
+        private final ConstantPoolInfo[] pool;
+        private final String[] keys;
+        private final Map<String, Integer> indices = new HashMap<>();
+
+        public Index(ConstantPoolInfo[] pool) {
+            this.pool = pool;
+            this.keys = valueKeys(pool);
+            for (int i = pool.length - 1; i > 0; i--) //Prefer the first occurrence of duplicated values
+                if (keys[i] != null)
+                    indices.put(keys[i], i);
+        }
+    }
+
+    private static int[] indexMap(int baseLength, int[] sources) {
+        int[] map = new int[baseLength];
+        for (int i = 1; i < sources.length; i++)
+            if (sources[i] != 0 && map[sources[i]] == 0)
+                map[sources[i]] = i;
+        return map;
+    }
+
+    /**
+     * Computes a key for every entry which describes its value, resolving references to other entries.
+     */
+    private static String[] valueKeys(ConstantPoolInfo[] pool) {
+        String[] keys = new String[pool.length];
+        for (int i = 1; i < pool.length; i++)
+            valueKey(pool, i, keys, 0);
+        return keys;
+    }
+
+    private static String valueKey(ConstantPoolInfo[] pool, int index, String[] keys, int depth) {
+        if (index <= 0 || index >= pool.length || pool[index] == null || depth > 8) //Malformed references never match
+            return null;
+        if (keys[index] != null)
+            return keys[index];
+
+        ConstantPoolInfo entry = pool[index];
+        String key;
+        if (entry instanceof ConstantPoolInfo.Utf8Info) {
+            byte[] bytes = ((ConstantPoolInfo.Utf8Info) entry).getBytes();
+            key = bytes.length + ":" + new String(bytes, StandardCharsets.ISO_8859_1); //Length prefixed, never ambiguous
+        } else if (entry instanceof ConstantPoolInfo.IntegerFloatInfo) {
+            key = Integer.toString(((ConstantPoolInfo.IntegerFloatInfo) entry).getBytes());
+        } else if (entry instanceof ConstantPoolInfo.LongDoubleInfo) {
+            key = Long.toString(((ConstantPoolInfo.LongDoubleInfo) entry).getConcatenatedBytes());
+        } else if (entry instanceof ConstantPoolInfo.ClassInfo) {
+            key = reference(pool, ((ConstantPoolInfo.ClassInfo) entry).getNameIndex(), keys, depth);
+        } else if (entry instanceof ConstantPoolInfo.StringInfo) {
+            key = reference(pool, ((ConstantPoolInfo.StringInfo) entry).getStringIndex(), keys, depth);
+        } else if (entry instanceof ConstantPoolInfo.MethodTypeInfo) {
+            key = reference(pool, ((ConstantPoolInfo.MethodTypeInfo) entry).getDescriptorIndex(), keys, depth);
+        } else if (entry instanceof ConstantPoolInfo.ModuleInfo) {
+            key = reference(pool, ((ConstantPoolInfo.ModuleInfo) entry).getNameIndex(), keys, depth);
+        } else if (entry instanceof ConstantPoolInfo.PackageInfo) {
+            key = reference(pool, ((ConstantPoolInfo.PackageInfo) entry).getNameIndex(), keys, depth);
+        } else if (entry instanceof ConstantPoolInfo.RefInfo) {
+            ConstantPoolInfo.RefInfo ref = (ConstantPoolInfo.RefInfo) entry;
+            key = join(reference(pool, ref.getClassIndex(), keys, depth),
+                    reference(pool, ref.getNameAndTypeIndex(), keys, depth));
+        } else if (entry instanceof ConstantPoolInfo.NameAndTypeInfo) {
+            ConstantPoolInfo.NameAndTypeInfo nat = (ConstantPoolInfo.NameAndTypeInfo) entry;
+            key = join(reference(pool, nat.getNameIndex(), keys, depth),
+                    reference(pool, nat.getDescriptorIndex(), keys, depth));
+        } else if (entry instanceof ConstantPoolInfo.MethodHandleInfo) {
+            ConstantPoolInfo.MethodHandleInfo handle = (ConstantPoolInfo.MethodHandleInfo) entry;
+            key = join(Byte.toString(handle.getReferenceKind()), reference(pool, handle.getReferenceIndex(), keys, depth));
+        } else if (entry instanceof ConstantPoolInfo.InvokeDynamicInfo) {
+            ConstantPoolInfo.InvokeDynamicInfo indy = (ConstantPoolInfo.InvokeDynamicInfo) entry;
+            key = join(Integer.toString(indy.getBootstrapMethodAttrIndex()),
+                    reference(pool, indy.getNameAndTypeIndex(), keys, depth));
+        } else {
+            key = null;
+        }
+
+        if (key == null)
+            return null;
+        keys[index] = entry.getTag() + "(" + key + ")";
+        return keys[index];
+    }
+
+    private static String join(String a, String b) {
+        return a == null || b == null ? null : a + "," + b;
+    }
+
+    private static String reference(ConstantPoolInfo[] pool, int index, String[] keys, int depth) {
+        return valueKey(pool, index, keys, depth + 1);
+    }
+}
@@ -0,0 +1,477 @@
+package injectr.ipatch.diff.bytecode;
+
+import injectr.ipatch.bytecode.AttributeInfo;
+import injectr.ipatch.bytecode.ConstantPoolInfo;
+import injectr.ipatch.bytecode.Instruction;
+import injectr.ipatch.bytecode.Opcodes;
+
+/**
+ * Rewrites the constant pool indices contained in raw class file structures. Since indices are fixed width, the
+ * remapped structure always has the same length as the original.
+ *
+ * Structures which cannot be remapped (unknown attributes, indices missing from the map or an {@code ldc} whose new
+ * index no longer fits in a byte) yield {@code null}.
+ */
+public final class ConstantPoolRemapper {
+
+    private final ConstantPoolInfo[] pool; //The pool the structures being remapped refer to
+    private final int[] map; //Old index -> new index, 0 if unmapped
+
+    public ConstantPoolRemapper(ConstantPoolInfo[] pool, int[] map) {
+        this.pool = pool;
+        this.map = map;
+    }
+
+    /**
+     * Gets the new index of a constant, or -1 if it isn't mapped.
+     */
+    public int remap(int index) {
+        if (index <= 0 || index >= map.length || map[index] == 0)
+            return -1;
+        return map[index];
+    }
+
+    /**
+     * Remaps a raw field_info or method_info structure.
+     */
+    public byte[] remapMember(byte[] member) {
+        Cursor cursor = new Cursor(member);
+        try {
+            cursor.skip(2); //access_flags
+            cursor.index(); //name_index
+            cursor.index(); //descriptor_index
+            attributes(cursor);
+            return cursor.done();
+        } catch (UnmappableException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remaps a raw attribute_info structure, header included.
+     */
+    public byte[] remapAttribute(byte[] attribute) {
+        Cursor cursor = new Cursor(attribute);
+        try {
+            attribute(cursor);
+            return cursor.done();
+        } catch (UnmappableException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remaps a constant pool entry, returning the bytes of the entry with its references pointing into the new pool.
+     */
+    public byte[] remapEntry(ConstantPoolInfo entry) {
+        Cursor cursor = new Cursor(entry.toBytes());
+        try {
+            cursor.skip(1); //tag
+            switch (entry.getTag()) {
+                case ConstantPoolInfo.CONSTANT_class:
+                case ConstantPoolInfo.CONSTANT_String:
+                case ConstantPoolInfo.CONSTANT_MethodType:
+                case ConstantPoolInfo.CONSTANT_Module:
+                case ConstantPoolInfo.CONSTANT_Package:
+                    cursor.index();
+                    break;
+                case ConstantPoolInfo.CONSTANT_Fieldref:
+                case ConstantPoolInfo.CONSTANT_Methodref:
+                case ConstantPoolInfo.CONSTANT_InterfaceMethodref:
+                case ConstantPoolInfo.CONSTANT_NameAndType:
+                    cursor.index();
+                    cursor.index();
+                    break;
+                case ConstantPoolInfo.CONSTANT_MethodHandle:
+                    cursor.skip(1); //reference_kind
+                    cursor.index();
+                    break;
+                case ConstantPoolInfo.CONSTANT_InvokeDynamic:
+                    cursor.skip(2); //bootstrap_method_attr_index isn't a pool index
+                    cursor.index();
+                    break;
+                default: //Literals don't reference other entries
+                    cursor.pos = cursor.bytes.length;
+                    break;
+            }
+            return cursor.done();
+        } catch (UnmappableException e) {
+            return null;
+        }
+    }
+
+    private void attributes(Cursor cursor) throws UnmappableException {
+        int count = cursor.u2();
+        for (int i = 0; i < count; i++)
+            attribute(cursor);
+    }
+
+    private void attribute(Cursor cursor) throws UnmappableException {
+        int name_index = cursor.u2();
+        if (name_index <= 0 || name_index >= pool.length || !(pool[name_index] instanceof ConstantPoolInfo.Utf8Info))
+            throw new UnmappableException();
+        cursor.rewrite(cursor.pos - 2, name_index);
+        int length = cursor.u4();
+        int end = cursor.pos + length;
+
+        switch (((ConstantPoolInfo.Utf8Info) pool[name_index]).getString()) {
+            case AttributeInfo.ConstantValue:
+            case AttributeInfo.Signature:
+            case AttributeInfo.SourceFile:
+            case AttributeInfo.ModuleMainClass:
+                cursor.index();
+                break;
+            case AttributeInfo.Code:
+                cursor.skip(4); //max_stack, max_locals
+                int code_length = cursor.u4();
+                code(cursor, cursor.pos, code_length);
+                int exception_table_length = cursor.u2();
+                for (int i = 0; i < exception_table_length; i++) {
+                    cursor.skip(6); //start_pc, end_pc, handler_pc
+                    cursor.optionalIndex(); //catch_type
+                }
+                attributes(cursor);
+                break;
+            case AttributeInfo.StackMapTable:
+                stackMapTable(cursor);
+                break;
+            case AttributeInfo.Exceptions:
+            case AttributeInfo.ModulePackages:
+                int count = cursor.u2();
+                for (int i = 0; i < count; i++)
+                    cursor.index();
+                break;
+            case AttributeInfo.InnerClasses:
+                count = cursor.u2();
+                for (int i = 0; i < count; i++) {
+                    cursor.index(); //inner_class_info_index
+                    cursor.optionalIndex(); //outer_class_info_index
+                    cursor.optionalIndex(); //inner_name_index
+                    cursor.skip(2); //inner_class_access_flags
+                }
+                break;
+            case AttributeInfo.EnclosingMethod:
+                cursor.index();
+                cursor.optionalIndex();
+                break;
+            case AttributeInfo.Synthetic:
+            case AttributeInfo.Deprecated:
+            case AttributeInfo.SourceDebugExtension:
+            case AttributeInfo.LineNumberTable:
+                cursor.skip(length);
+                break;
+            case AttributeInfo.LocalVariableTable:
+            case AttributeInfo.LocalVariableTypeTable:
+                count = cursor.u2();
+                for (int i = 0; i < count; i++) {
+                    cursor.skip(4); //start_pc, length
+                    cursor.index(); //name_index
+                    cursor.index(); //descriptor_index or signature_index
+                    cursor.skip(2); //index
+                }
+                break;
+            case AttributeInfo.RuntimeVisibleAnnotations:
+            case AttributeInfo.RuntimeInvisibleAnnotations:
+                count = cursor.u2();
+                for (int i = 0; i < count; i++)
+                    annotation(cursor);
+                break;
+            case AttributeInfo.RuntimeVisibleParameterAnnotations:
+            case AttributeInfo.RuntimeInvisibleParameterAnnotations:
+                int parameters = cursor.u1();
+                for (int i = 0; i < parameters; i++) {
+                    count = cursor.u2();
+                    for (int j = 0; j < count; j++)
+                        annotation(cursor);
+                }
+                break;
+            case AttributeInfo.RuntimeVisibleTypeAnnotations:
+            case AttributeInfo.RuntimeInvisibleTypeAnnotations:
+                count = cursor.u2();
+                for (int i = 0; i < count; i++)
+                    typeAnnotation(cursor);
+                break;
+            case AttributeInfo.AnnotationDefault:
+                elementValue(cursor);
+                break;
+            case AttributeInfo.BootstrapMethods:
+                count = cursor.u2();
+                for (int i = 0; i < count; i++) {
+                    cursor.index(); //bootstrap_method_ref
+                    int arguments = cursor.u2();
+                    for (int j = 0; j < arguments; j++)
+                        cursor.index();
+                }
+                break;
+            case AttributeInfo.MethodParameters:
+                parameters = cursor.u1();
+                for (int i = 0; i < parameters; i++) {
+                    cursor.optionalIndex(); //name_index
+                    cursor.skip(2); //access_flags
+                }
+                break;
+            case AttributeInfo.Module:
+                module(cursor);
+                break;
+            default: //Unknown attributes may contain indices we don't know about
+                throw new UnmappableException();
+        }
+
+        if (cursor.pos != end)
+            throw new UnmappableException();
+    }
+
+    private void code(Cursor cursor, int start, int length) throws UnmappableException {
+        if (length < 0 || start + length > cursor.bytes.length)
+            throw new UnmappableException();
+        byte[] code = new byte[length];
+        System.arraycopy(cursor.bytes, start, code, 0, length);
+        Instruction[] instructions;
+        try {
+            instructions = Instruction.decode(code);
+        } catch (IllegalArgumentException e) {
+            throw new UnmappableException();
+        }
+        for (Instruction instruction : instructions) {
+            int pc = instruction.getPc();
+            int opcode = instruction.getOpcode();
+            if (opcode == Opcodes.LDC) {
+                int index = remap(code[pc + 1] & 0xFF);
+                if (index == -1 || index > 0xFF)
+                    throw new UnmappableException();
+                cursor.out[start + pc + 1] = (byte) index;
+            } else if (Opcodes.hasConstantPoolOperand(opcode)) {
+                cursor.pos = start + pc + 1;
+                cursor.index();
+            }
+        }
+        cursor.pos = start + length;
+    }
+
+    private void stackMapTable(Cursor cursor) throws UnmappableException {
+        int entries = cursor.u2();
+        for (int i = 0; i < entries; i++) {
+            int frame_type = cursor.u1();
+            if (frame_type <= 63) {
+                //same_frame
+            } else if (frame_type <= 127) {
+                verificationType(cursor);
+            } else if (frame_type == 247) {
+                cursor.skip(2);
+                verificationType(cursor);
+            } else if (frame_type >= 248 && frame_type <= 251) {
+                cursor.skip(2);
+            } else if (frame_type >= 252 && frame_type <= 254) {
+                cursor.skip(2);
+                for (int j = 0; j < frame_type - 251; j++)
+                    verificationType(cursor);
+            } else if (frame_type == 255) {
+                cursor.skip(2);
+                int locals = cursor.u2();
+                for (int j = 0; j < locals; j++)
+                    verificationType(cursor);
+                int stack = cursor.u2();
+                for (int j = 0; j < stack; j++)
+                    verificationType(cursor);
+            } else {
+                throw new UnmappableException();
+            }
+        }
+    }
+
+    private void verificationType(Cursor cursor) throws UnmappableException {
+        int tag = cursor.u1();
+        if (tag == AttributeInfo.StackMapTableInfo.StackMapFrame.VerificationTypeInfo.ITEM_Object)
+            cursor.index();
+        else if (tag == AttributeInfo.StackMapTableInfo.StackMapFrame.VerificationTypeInfo.ITEM_Uninitialized)
+            cursor.skip(2); //offset
+    }
+
+    private void annotation(Cursor cursor) throws UnmappableException {
+        cursor.index(); //type_index
+        int pairs = cursor.u2();
+        for (int i = 0; i < pairs; i++) {
+            cursor.index(); //element_name_index
+            elementValue(cursor);
+        }
+    }
+
+    private void elementValue(Cursor cursor) throws UnmappableException {
+        char tag = (char) cursor.u1();
+        switch (tag) {
+            case 'B':
+            case 'C':
+            case 'D':
+            case 'F':
+            case 'I':
+            case 'J':
+            case 'S':
+            case 'Z':
+            case 's':
+            case 'c':
+                cursor.index();
+                break;
+            case 'e':
+                cursor.index(); //type_name_index
+                cursor.index(); //const_name_index
+                break;
+            case '@':
+                annotation(cursor);
+                break;
+            case '[':
+                int values = cursor.u2();
+                for (int i = 0; i < values; i++)
+                    elementValue(cursor);
+                break;
+            default:
+                throw new UnmappableException();
+        }
+    }
+
+    private void typeAnnotation(Cursor cursor) throws UnmappableException {
+        int target_type = cursor.u1();
+        switch (target_type) {
+            case 0x00:
+            case 0x01:
+            case 0x16:
+                cursor.skip(1);
+                break;
+            case 0x10:
+            case 0x17:
+            case 0x42:
+            case 0x43:
+            case 0x44:
+            case 0x45:
+            case 0x46:
+            case 0x11:
+            case 0x12:
+                cursor.skip(2);
+                break;
+            case 0x13:
+            case 0x14:
+            case 0x15:
+                break;
+            case 0x40:
+            case 0x41:
+                cursor.skip(6 * cursor.u2());
+                break;
+            case 0x47:
+            case 0x48:
+            case 0x49:
+            case 0x4A:
+            case 0x4B:
+                cursor.skip(3);
+                break;
+            default:
+                throw new UnmappableException();
+        }
+        cursor.skip(2 * cursor.u1()); //type_path
+        annotation(cursor);
+    }
+
+    private void module(Cursor cursor) throws UnmappableException {
+        cursor.index(); //module_name_index
+        cursor.skip(2); //module_flags
+        cursor.optionalIndex(); //module_version_index
+        int requires = cursor.u2();
+        for (int i = 0; i < requires; i++) {
+            cursor.index();
+            cursor.skip(2);
+            cursor.optionalIndex();
+        }
+        for (int k = 0; k < 2; k++) { //exports and opens share a layout
+            int count = cursor.u2();
+            for (int i = 0; i < count; i++) {
+                cursor.index();
+                cursor.skip(2);
+                int to = cursor.u2();
+                for (int j = 0; j < to; j++)
+                    cursor.index();
+            }
+        }
+        int uses = cursor.u2();
+        for (int i = 0; i < uses; i++)
+            cursor.index();
+        int provides = cursor.u2();
+        for (int i = 0; i < provides; i++) {
+            cursor.index();
+            int with = cursor.u2();
+            for (int j = 0; j < with; j++)
+                cursor.index();
+        }
+    }
+
+    private final class Cursor {
+
+        private final byte[] bytes;
+        private final byte[] out;
+        private int pos = 0;
+
+        private Cursor(byte[] bytes) {
+            this.bytes = bytes;
+            this.out = bytes.clone();
+        }
+
+        private int u1() throws UnmappableException {
+            if (pos + 1 > bytes.length)
+                throw new UnmappableException();
+            return bytes[pos++] & 0xFF;
+        }
+
+        private int u2() throws UnmappableException {
+            if (pos + 2 > bytes.length)
+                throw new UnmappableException();
+            int value = ((bytes[pos] & 0xFF) << 8) | (bytes[pos + 1] & 0xFF);
+            pos += 2;
+            return value;
+        }
+
+        private int u4() throws UnmappableException {
+            if (pos + 4 > bytes.length)
+                throw new UnmappableException();
+            int value = ((bytes[pos] & 0xFF) << 24) | ((bytes[pos + 1] & 0xFF) << 16)
+                    | ((bytes[pos + 2] & 0xFF) << 8) | (bytes[pos + 3] & 0xFF);
+            pos += 4;
+            return value;
+        }
+
+        private void skip(int length) throws UnmappableException {
+            if (length < 0 || pos + length > bytes.length)
+                throw new UnmappableException();
+            pos += length;
+        }
+
+        private void index() throws UnmappableException {
+            rewrite(pos, u2());
+        }
+
+        private void optionalIndex() throws UnmappableException { //0 means absent
+            int index = u2();
+            if (index != 0)
+                rewrite(pos - 2, index);
+        }
+
+        private void rewrite(int offset, int index) throws UnmappableException {
+            int mapped = remap(index);
+            if (mapped == -1)
+                throw new UnmappableException();
+            out[offset] = (byte) (mapped >> 8);
+            out[offset + 1] = (byte) (mapped & 0xFF);
+        }
+
+        private byte[] done() throws UnmappableException {
+            if (pos != bytes.length)
+                throw new UnmappableException();
+            return out;
+        }
+    }
+
+    private static final class UnmappableException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private UnmappableException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -1,4 +1,21 @@
 package injectr.ipatch.diff.hist;
 
-public class HistogramDiffGenerator {
+import injectr.ipatch.diff.jgit.JGitDiffGenerator;
+import org.eclipse.jgit.diff.HistogramDiff;
+
+import java.util.List;
+
+/**
+ * {@link injectr.ipatch.diff.DiffAlgorithm#HISTOGRAM}, backed by JGit's {@link HistogramDiff}. Like patience diff it
+ * anchors on rare tokens, but also handles ranges where no token is unique.
+ */
+public class HistogramDiffGenerator extends JGitDiffGenerator {
+
+    public HistogramDiffGenerator() {
+        super(new HistogramDiff());
+    }
+
+    public HistogramDiffGenerator(List<String> baseLines) {
+        super(new HistogramDiff(), baseLines);
+    }
 }
@@ -0,0 +1,189 @@
+package injectr.ipatch.diff.jgit;
+
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.ChangeCoalescer;
+import injectr.ipatch.diff.ChangeType;
+import org.eclipse.jgit.internal.storage.pack.DeltaIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Diffs binary content with JGit's pack delta encoder, which finds copies of base blocks anywhere in the modified
+ * content through a rolling hash index of the base.
+ *
+ * A git delta is a sequence of copy and insert instructions. The longest chain of copies moving forward through the
+ * base is kept as unchanged ranges, everything else (inserts and the remaining copies) becomes the content of
+ * positional {@link ByteChange}s, so the result applies like any other byte diff.
+ */
+public class BinaryDeltaGenerator {
+
+    private final ChangeCoalescer.CostModel costModel;
+
+    public BinaryDeltaGenerator() {
+        this(ChangeCoalescer.DEFAULT_COST_MODEL);
+    }
+
+    public BinaryDeltaGenerator(ChangeCoalescer.CostModel costModel) {
+        this.costModel = costModel;
+    }
+
+    /**
+     * @return The changes turning {@code base} into {@code modified} or null if they wouldn't be cheaper than replacing
+     * the content as a whole.
+     */
+    public List<ByteChange> diff(byte[] base, byte[] modified) {
+        if (base.length == 0 || modified.length == 0)
+            return null;
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        try {
+            if (!new DeltaIndex(base).encode(delta, modified, modified.length))
+                return null; //Larger than the content itself
+        } catch (IOException e) {
+            throw new IllegalStateException(e); //Never thrown by an in memory stream
+        }
+        List<ByteChange> changes = toChanges(base, delta.toByteArray());
+        long cost = 0;
+        for (ByteChange change : changes)
+            cost += costModel.cost(change.type(), change.getNewContent().length);
+        return cost < costModel.cost(ChangeType.REPLACE, modified.length) ? changes : null;
+    }
+
+    /**
+     * Converts a git delta to byte changes against its base.
+     */
+    static List<ByteChange> toChanges(byte[] base, byte[] delta) {
+        int[] position = {0};
+        if (readVarint(delta, position) != base.length)
+            throw new IllegalArgumentException("Delta doesn't match its base!");
+        readVarint(delta, position); //Result size
+
+        //Instructions as {base offset, size} for copies and {-1 - delta offset, size} for inserts
+        List<int[]> instructions = new ArrayList<>();
+        int p = position[0];
+        while (p < delta.length) {
+            int cmd = delta[p++] & 0xFF;
+            if ((cmd & 0x80) != 0) { //Copy from the base
+                int offset = 0, size = 0;
+                for (int i = 0; i < 4; i++)
+                    if ((cmd & (1 << i)) != 0)
+                        offset |= (delta[p++] & 0xFF) << (8 * i);
+                for (int i = 0; i < 3; i++)
+                    if ((cmd & (0x10 << i)) != 0)
+                        size |= (delta[p++] & 0xFF) << (8 * i);
+                instructions.add(new int[]{offset, size == 0 ? 0x10000 : size});
+            } else if (cmd != 0) { //Insert the next cmd bytes
+                instructions.add(new int[]{-1 - p, cmd});
+                p += cmd;
+            } else {
+                throw new IllegalArgumentException("Invalid delta instruction!");
+            }
+        }
+
+        boolean[] kept = keptCopies(instructions);
+        List<ByteChange> changes = new ArrayList<>();
+        ByteArrayOutputStream pending = new ByteArrayOutputStream(); //Content replacing base bytes since basePosition
+        int basePosition = 0; //Base bytes before this are either kept or replaced
+        for (int i = 0; i < instructions.size(); i++) {
+            int[] instruction = instructions.get(i);
+            if (kept[i]) {
+                flush(changes, basePosition, instruction[0], pending);
+                basePosition = instruction[0] + instruction[1];
+            } else if (instruction[0] >= 0) {
+                pending.write(base, instruction[0], instruction[1]);
+            } else {
+                pending.write(delta, -1 - instruction[0], instruction[1]);
+            }
+        }
+        flush(changes, basePosition, base.length, pending);
+        return changes;
+    }
+
+    /**
+     * Picks the copies which are kept in place: the chain of copies moving forward through the base which copies the
+     * most bytes. Copies are free to jump around the base, any copy outside the chain is restated as content.
+     */
+    private static boolean[] keptCopies(List<int[]> instructions) {
+        //Weighted longest increasing subsequence, a copy can follow any earlier copy ending at or before its offset
+        int[] ends = new int[instructions.size()];
+        int count = 0;
+        for (int[] instruction : instructions)
+            if (instruction[0] >= 0)
+                ends[count++] = instruction[0] + instruction[1];
+        ends = Arrays.copyOf(ends, count);
+        Arrays.sort(ends);
+
+        long[] tree = new long[count + 1]; //Fenwick tree of the best chain weight by (ranked) end
+        int[] treeCopy = new int[count + 1]; //Last copy of that chain
+        Arrays.fill(treeCopy, -1);
+        long[] weights = new long[instructions.size()];
+        int[] previous = new int[instructions.size()];
+        int best = -1;
+        for (int i = 0; i < instructions.size(); i++) {
+            int[] instruction = instructions.get(i);
+            if (instruction[0] < 0)
+                continue;
+            long weight = 0;
+            previous[i] = -1;
+            for (int r = upperBound(ends, instruction[0]); r > 0; r -= r & -r) { //Chains ending at or before the offset
+                if (tree[r] > weight) {
+                    weight = tree[r];
+                    previous[i] = treeCopy[r];
+                }
+            }
+            weights[i] = weight + instruction[1];
+            for (int r = upperBound(ends, instruction[0] + instruction[1]); r <= count; r += r & -r) {
+                if (weights[i] > tree[r]) {
+                    tree[r] = weights[i];
+                    treeCopy[r] = i;
+                }
+            }
+            if (best == -1 || weights[i] > weights[best])
+                best = i;
+        }
+
+        boolean[] kept = new boolean[instructions.size()];
+        for (int i = best; i != -1; i = previous[i])
+            kept[i] = true;
+        return kept;
+    }
+
+    /**
+     * @return The number of values which are less than or equal to {@code value}.
+     */
+    private static int upperBound(int[] sorted, int value) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] <= value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Adds a change replacing {@code [start, end)} of the base with the pending content, if anything changed.
+     */
+    private static void flush(List<ByteChange> changes, int start, int end, ByteArrayOutputStream pending) {
+        if (start == end && pending.size() == 0)
+            return;
+        ChangeType type = start == end ? ChangeType.ADD : pending.size() == 0 ? ChangeType.REMOVE : ChangeType.REPLACE;
+        changes.add(new ByteChange(type, start, end - 1, pending.toByteArray()));
+        pending.reset();
+    }
+
+    private static int readVarint(byte[] bytes, int[] position) {
+        int value = 0, shift = 0, b;
+        do {
+            b = bytes[position[0]++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
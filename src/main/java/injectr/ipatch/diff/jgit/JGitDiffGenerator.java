@@ -0,0 +1,76 @@
+package injectr.ipatch.diff.jgit;
+
+import injectr.ipatch.diff.TokenDiffGenerator;
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.EditList;
+import org.eclipse.jgit.diff.Sequence;
+import org.eclipse.jgit.diff.SequenceComparator;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Diffs tokens with one of JGit's diff algorithms. Tokens are handed to JGit as a sequence which compares and hashes
+ * by value, so it works on the same interned tokens as the other generators.
+ */
+public class JGitDiffGenerator extends TokenDiffGenerator {
+
+    private final DiffAlgorithm algorithm;
+
+    public JGitDiffGenerator(DiffAlgorithm algorithm) {
+        super();
+        this.algorithm = algorithm;
+    }
+
+    public JGitDiffGenerator(DiffAlgorithm algorithm, List<String> baseLines) {
+        super(baseLines);
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    protected int[] match(int[] base, int[] modified) {
+        EditList edits = algorithm.diff(TokenComparator.INSTANCE, new Tokens(base), new Tokens(modified));
+        int[] matches = new int[base.length];
+        Arrays.fill(matches, -1);
+        int a = 0, b = 0;
+        for (Edit edit : edits) { //Everything between edits is common
+            while (a < edit.getBeginA())
+                matches[a++] = b++;
+            a = edit.getEndA();
+            b = edit.getEndB();
+        }
+        while (a < base.length)
+            matches[a++] = b++;
+        return matches;
+    }
+
+    private static final class Tokens extends Sequence {
+
+        private final int[] tokens;
+
+        private Tokens(int[] tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public int size() {
+            return tokens.length;
+        }
+    }
+
+    private static final class TokenComparator extends SequenceComparator<Tokens> {
+
+        private static final TokenComparator INSTANCE = new TokenComparator();
+
+        @Override
+        public boolean equals(Tokens a, int ai, Tokens b, int bi) {
+            return a.tokens[ai] == b.tokens[bi];
+        }
+
+        @Override
+        public int hash(Tokens sequence, int index) {
+            return sequence.tokens[index];
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package injectr.ipatch.diff.myers;
+
+import java.util.Arrays;
+
+/**
+ * Myers' O(ND) difference algorithm, using the linear space divide and conquer variant.
+ * See: http://www.xmailserver.org/diff2.pdf
+ *
+ * Sequences are compared as interned tokens, so callers map whatever they are comparing (instructions, lines, etc)
+ * to ints first.
+ *
+ * The search for the middle snake is capped, as in GNU diff: once it has taken {@link #cost(int, int)} edits without
+ * the paths meeting, the ranges are split at the furthest reaching point instead. Dissimilar sequences are then
+ * matched in about O((N+M) sqrt(N+M)) time rather than O((N+M)^2), at the price of a longer edit script than the
+ * shortest one, which is what a mostly rewritten input turns into anyway.
+ */
+public final class MyersDiff {
+
+    private static final int MIN_COST = 256;
+
+    private MyersDiff() {}
+
+    /**
+     * Computes a longest common subsequence of the two token sequences, or a common subsequence close to it when they
+     * differ too much to search for the longest one.
+     *
+     * @return For each token of {@code a}, the index of the token of {@code b} it is matched with or -1 if it was
+     * removed. Matched indices are strictly increasing.
+     */
+    public static int[] match(int[] a, int[] b) {
+        int[] matches = new int[a.length];
+        Arrays.fill(matches, -1);
+        match(a, 0, a.length, b, 0, b.length, matches);
+        return matches;
+    }
+
+    /**
+     * Computes a common subsequence of two ranges, like {@link #match(int[], int[])}, for algorithms which fall back to
+     * Myers on parts of the sequences.
+     *
+     * @param matches Receives the index of the token of {@code b} each matched token of {@code a} is matched with.
+     *                Entries of unmatched tokens are left untouched.
+     */
+    public static void match(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, int[] matches) {
+        int offset = 2 * ((aEnd - aStart) + (bEnd - bStart) + 2); //Backward diagonals are centered on the length difference
+        int[] forward = new int[2 * offset + 1];
+        int[] backward = new int[2 * offset + 1];
+        compare(a, aStart, aEnd, b, bStart, bEnd, matches, forward, backward, offset,
+                cost(aEnd - aStart, bEnd - bStart));
+    }
+
+    /**
+     * The number of edits the middle snake is searched for before the ranges are split without it, about the square
+     * root of the total length.
+     */
+    static int cost(int aLength, int bLength) {
+        return Math.max(MIN_COST, (int) Math.sqrt((double) aLength + bLength));
+    }
+
+    private static void compare(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, int[] matches,
+                                int[] forward, int[] backward, int offset, int cost) {
+        while (true) { //Recurses into the first half and loops on the second, capped splits can be very uneven
+            while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) //Common prefix
+                matches[aStart++] = bStart++;
+            while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) //Common suffix
+                matches[--aEnd] = --bEnd;
+            if (aStart == aEnd || bStart == bEnd) //Only insertions or removals are left
+                return;
+
+            //Once the prefix and suffix are stripped at least two edits remain, so both halves are smaller than the whole
+            int[] snake = middleSnake(a, aStart, aEnd, b, bStart, bEnd, forward, backward, offset, cost);
+            for (int x = snake[0], y = snake[1]; x < snake[2]; x++, y++)
+                matches[x] = y;
+            compare(a, aStart, snake[0], b, bStart, snake[1], matches, forward, backward, offset, cost);
+            aStart = snake[2];
+            bStart = snake[3];
+        }
+    }
+
+    /**
+     * Finds the snake in the middle of a shortest edit script, returned as {x, y, u, v} in absolute indices. If more
+     * than {@code cost} edits are needed, returns an empty snake at the furthest point either search reached instead.
+     */
+    private static int[] middleSnake(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd,
+                                     int[] forward, int[] backward, int offset, int cost) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        forward[offset + 1] = 0;
+        backward[offset + delta - 1] = n;
+
+        for (int d = 0; d <= (n + m + 1) / 2; d++) {
+            for (int k = -d; k <= d; k += 2) { //Furthest reaching x on each diagonal k = x - y from the start
+                int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])
+                        ? forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x, startY = y;
+                while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                if (odd && k >= delta - (d - 1) && k <= delta + (d - 1) && x >= backward[offset + k])
+                    return new int[]{aStart + startX, bStart + startY, aStart + x, bStart + y};
+            }
+
+            for (int k = -d; k <= d; k += 2) { //Furthest reaching x on each diagonal from the end
+                int diagonal = k + delta;
+                int x = k == d || (k != -d && backward[offset + diagonal - 1] < backward[offset + diagonal + 1])
+                        ? backward[offset + diagonal - 1] : backward[offset + diagonal + 1] - 1;
+                int y = x - diagonal;
+                int endX = x, endY = y;
+                while (x > 0 && y > 0 && a[aStart + x - 1] == b[bStart + y - 1]) {
+                    x--;
+                    y--;
+                }
+                backward[offset + diagonal] = x;
+                if (!odd && diagonal >= -d && diagonal <= d && x <= forward[offset + diagonal])
+                    return new int[]{aStart + x, bStart + y, aStart + endX, bStart + endY};
+            }
+
+            if (d >= cost)
+                return split(n, m, delta, d, forward, backward, offset, aStart, bStart);
+        }
+        throw new IllegalStateException("No middle snake found!"); //Unreachable, the paths always overlap
+    }
+
+    /**
+     * Picks the point furthest from its end reached by either search after {@code d} edits, other than the start and
+     * the end themselves, so both halves are smaller than the whole.
+     */
+    private static int[] split(int n, int m, int delta, int d, int[] forward, int[] backward, int offset,
+                               int aStart, int bStart) {
+        int bestX = -1, bestY = -1, best = -1;
+        for (int k = -d; k <= d; k += 2) {
+            int x = forward[offset + k], y = x - k;
+            if (x >= 0 && x <= n && y >= 0 && y <= m && x + y < n + m && x + y > best) {
+                best = x + y;
+                bestX = x;
+                bestY = y;
+            }
+            x = backward[offset + k + delta];
+            y = x - k - delta;
+            if (x >= 0 && x <= n && y >= 0 && y <= m && x + y > 0 && n - x + m - y > best) {
+                best = n - x + m - y;
+                bestX = x;
+                bestY = y;
+            }
+        }
+        return new int[]{aStart + bestX, bStart + bestY, aStart + bestX, bStart + bestY};
+    }
+}
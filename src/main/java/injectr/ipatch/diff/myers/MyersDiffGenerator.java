@@ -0,0 +1,24 @@
+package injectr.ipatch.diff.myers;
+
+import injectr.ipatch.diff.TokenDiffGenerator;
+
+import java.util.List;
+
+/**
+ * {@link injectr.ipatch.diff.DiffAlgorithm#MYERS}, see {@link MyersDiff}.
+ */
+public class MyersDiffGenerator extends TokenDiffGenerator {
+
+    public MyersDiffGenerator() {
+        super();
+    }
+
+    public MyersDiffGenerator(List<String> baseLines) {
+        super(baseLines);
+    }
+
+    @Override
+    protected int[] match(int[] base, int[] modified) {
+        return MyersDiff.match(base, modified);
+    }
+}
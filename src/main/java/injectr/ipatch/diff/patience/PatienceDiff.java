@@ -0,0 +1,177 @@
+package injectr.ipatch.diff.patience;
+
+import injectr.ipatch.diff.myers.MyersDiff;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Patience diff. Tokens which occur exactly once in both sequences are used as anchors: the longest increasing run of
+ * them is matched, and the ranges between anchors are diffed the same way. Ranges without unique tokens fall back to
+ * {@link MyersDiff}.
+ * See: https://bramcohen.livejournal.com/73318.html
+ *
+ * Matching only on unique tokens keeps blank lines, braces and other common lines from aligning unrelated blocks, so
+ * moved and reordered blocks come out as whole removals and insertions.
+ */
+public final class PatienceDiff {
+
+    private PatienceDiff() {}
+
+    /**
+     * @return For each token of {@code a}, the index of the token of {@code b} it is matched with or -1 if it was
+     * removed. Matched indices are strictly increasing.
+     */
+    public static int[] match(int[] a, int[] b) {
+        int[] matches = new int[a.length];
+        Arrays.fill(matches, -1);
+        int[][] dense = densify(a, b);
+        new Matcher(dense[0], dense[1], dense[2][0], matches).run();
+        return matches;
+    }
+
+    /**
+     * Counts the tokens which occur exactly once in both sequences, i.e. the anchors available at the top level.
+     */
+    public static int uniqueCount(int[] a, int[] b) {
+        int[][] dense = densify(a, b);
+        int[] countA = new int[dense[2][0]], countB = new int[dense[2][0]];
+        for (int token : dense[0])
+            countA[token]++;
+        for (int token : dense[1])
+            countB[token]++;
+        int unique = 0;
+        for (int i = 0; i < countA.length; i++)
+            if (countA[i] == 1 && countB[i] == 1)
+                unique++;
+        return unique;
+    }
+
+    /**
+     * Renumbers tokens to {@code [0, count)} so that per token state fits in arrays.
+     *
+     * @return The renumbered sequences followed by {count}.
+     */
+    private static int[][] densify(int[] a, int[] b) {
+        int max = -1;
+        boolean dense = true;
+        for (int[] sequence : new int[][]{a, b}) {
+            for (int token : sequence) {
+                max = Math.max(max, token);
+                dense &= token >= 0;
+            }
+        }
+        if (dense && max < 2 * (a.length + b.length) + 16)
+            return new int[][]{a, b, {max + 1}};
+
+        Map<Integer, Integer> ids = new HashMap<>();
+        int[][] renumbered = {new int[a.length], new int[b.length]};
+        int[][] sequences = {a, b};
+        for (int s = 0; s < 2; s++)
+            for (int i = 0; i < sequences[s].length; i++)
+                renumbered[s][i] = ids.computeIfAbsent(sequences[s][i], token -> ids.size());
+        return new int[][]{renumbered[0], renumbered[1], {ids.size()}};
+    }
+
+    private static final class Matcher {
+
+        private final int[] a, b, matches;
+        private final int[] countA, countB, positionB; //Per token, only non zero for the range being anchored
+        private final Deque<int[]> ranges = new ArrayDeque<>(); //Explicit stack, nesting can be as deep as the input
+
+        private Matcher(int[] a, int[] b, int tokens, int[] matches) {
+            this.a = a;
+            this.b = b;
+            this.matches = matches;
+            this.countA = new int[tokens];
+            this.countB = new int[tokens];
+            this.positionB = new int[tokens];
+        }
+
+        private void run() {
+            ranges.push(new int[]{0, a.length, 0, b.length});
+            while (!ranges.isEmpty()) {
+                int[] range = ranges.pop();
+                diff(range[0], range[1], range[2], range[3]);
+            }
+        }
+
+        private void diff(int aStart, int aEnd, int bStart, int bEnd) {
+            while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) //Common prefix
+                matches[aStart++] = bStart++;
+            while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) //Common suffix
+                matches[--aEnd] = --bEnd;
+            if (aStart == aEnd || bStart == bEnd)
+                return;
+
+            int[] anchors = anchors(aStart, aEnd, bStart, bEnd);
+            if (anchors.length == 0) {
+                MyersDiff.match(a, aStart, aEnd, b, bStart, bEnd, matches);
+                return;
+            }
+
+            int previousA = aStart, previousB = bStart;
+            for (int anchor : anchors) {
+                int anchorB = positionB[a[anchor]];
+                matches[anchor] = anchorB;
+                ranges.push(new int[]{previousA, anchor, previousB, anchorB});
+                previousA = anchor + 1;
+                previousB = anchorB + 1;
+            }
+            ranges.push(new int[]{previousA, aEnd, previousB, bEnd});
+        }
+
+        /**
+         * Finds the tokens which are unique in both ranges, then keeps the longest run of them which is in the same
+         * order in both.
+         *
+         * @return The positions in {@code a} of the anchors, in order.
+         */
+        private int[] anchors(int aStart, int aEnd, int bStart, int bEnd) {
+            for (int i = aStart; i < aEnd; i++)
+                countA[a[i]]++;
+            for (int i = bStart; i < bEnd; i++) {
+                countB[b[i]]++;
+                positionB[b[i]] = i;
+            }
+
+            //Patience sorting over the b positions of the unique tokens, in a order
+            int[] previous = new int[aEnd - aStart];
+            int[] piles = new int[Math.min(aEnd - aStart, bEnd - bStart)]; //Top of each pile, as a position in a
+            int pileCount = 0;
+            for (int i = aStart; i < aEnd; i++) {
+                int token = a[i];
+                if (countA[token] != 1 || countB[token] != 1)
+                    continue;
+                int position = positionB[token];
+                int lo = 0, hi = pileCount;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (positionB[a[piles[mid]]] < position)
+                        lo = mid + 1;
+                    else
+                        hi = mid;
+                }
+                previous[i - aStart] = lo > 0 ? piles[lo - 1] : -1;
+                piles[lo] = i;
+                if (lo == pileCount)
+                    pileCount++;
+            }
+
+            for (int i = aStart; i < aEnd; i++)
+                countA[a[i]] = 0;
+            for (int i = bStart; i < bEnd; i++)
+                countB[b[i]] = 0;
+
+            int[] anchors = new int[pileCount];
+            for (int i = pileCount - 1, anchor = pileCount > 0 ? piles[pileCount - 1] : -1; i >= 0; i--) {
+                anchors[i] = anchor;
+                anchor = previous[anchor - aStart];
+            }
+            return anchors;
+        }
+    }
+}
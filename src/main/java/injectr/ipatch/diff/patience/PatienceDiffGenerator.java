@@ -0,0 +1,24 @@
+package injectr.ipatch.diff.patience;
+
+import injectr.ipatch.diff.TokenDiffGenerator;
+
+import java.util.List;
+
+/**
+ * {@link injectr.ipatch.diff.DiffAlgorithm#PATIENCE}, see {@link PatienceDiff}.
+ */
+public class PatienceDiffGenerator extends TokenDiffGenerator {
+
+    public PatienceDiffGenerator() {
+        super();
+    }
+
+    public PatienceDiffGenerator(List<String> baseLines) {
+        super(baseLines);
+    }
+
+    @Override
+    protected int[] match(int[] base, int[] modified) {
+        return PatienceDiff.match(base, modified);
+    }
+}
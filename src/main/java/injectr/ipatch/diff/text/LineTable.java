@@ -0,0 +1,110 @@
+package injectr.ipatch.diff.text;
+
+import java.util.Arrays;
+
+/**
+ * The lines of raw text, found without decoding it. Line boundaries and line hashes are computed in a single pass over
+ * the bytes. Lines keep their terminator, so a final line without one never equals a terminated line and the text can
+ * be rebuilt byte for byte.
+ */
+public final class LineTable {
+
+    private final byte[] content;
+    private final int[] starts; //Start offset of each line, followed by the content length
+    private final int[] hashes;
+    private final int lines;
+
+    public LineTable(byte[] content) {
+        this.content = content;
+        int[] starts = new int[16];
+        int[] hashes = new int[16];
+        int lines = 0;
+        int hash = 0;
+        for (int i = 0; i < content.length; i++) {
+            byte b = content[i];
+            hash = (31 * hash) + b;
+            if (b == '\n' || i == content.length - 1) {
+                if (lines + 1 >= starts.length) {
+                    starts = Arrays.copyOf(starts, starts.length * 2);
+                    hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                }
+                hashes[lines] = hash;
+                starts[++lines] = i + 1;
+                hash = 0;
+            }
+        }
+        this.starts = starts;
+        this.hashes = hashes;
+        this.lines = lines;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public int size() {
+        return lines;
+    }
+
+    /**
+     * The offset of the first byte of a line. {@code start(size())} is the length of the content.
+     */
+    public int start(int line) {
+        return starts[line];
+    }
+
+    public int hash(int line) {
+        return hashes[line];
+    }
+
+    public boolean lineEquals(int line, LineTable other, int otherLine) {
+        int length = starts[line + 1] - starts[line];
+        if (hashes[line] != other.hashes[otherLine] || length != other.starts[otherLine + 1] - other.starts[otherLine])
+            return false;
+        for (int i = 0, a = starts[line], b = other.starts[otherLine]; i < length; i++)
+            if (content[a + i] != other.content[b + i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Interns the lines of two tables, so that equal lines get equal tokens. Hashes are only used to find candidates,
+     * lines are always compared byte for byte.
+     *
+     * @return The tokens of {@code a} followed by the tokens of {@code b}.
+     */
+    public static int[][] tokenize(LineTable a, LineTable b) {
+        int capacity = Integer.highestOneBit(Math.max(2 * (a.lines + b.lines), 16) - 1) << 1;
+        int mask = capacity - 1;
+        int[] slots = new int[capacity]; //Token + 1, 0 when empty
+        LineTable[] tables = new LineTable[a.lines + b.lines]; //Representative line of each token
+        int[] lines = new int[a.lines + b.lines];
+        int count = 0;
+
+        int[][] tokens = {new int[a.lines], new int[b.lines]};
+        LineTable[] sources = {a, b};
+        for (int t = 0; t < 2; t++) {
+            LineTable table = sources[t];
+            for (int line = 0; line < table.lines; line++) {
+                int hash = table.hashes[line];
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                int token;
+                while (true) {
+                    if (slots[slot] == 0) {
+                        token = count++;
+                        tables[token] = table;
+                        lines[token] = line;
+                        slots[slot] = token + 1;
+                        break;
+                    }
+                    token = slots[slot] - 1;
+                    if (tables[token].lineEquals(lines[token], table, line))
+                        break;
+                    slot = (slot + 1) & mask;
+                }
+                tokens[t][line] = token;
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,74 @@
+package injectr.ipatch.diff.text;
+
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.ChangeSink;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.DiffGenerator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line based diffing of raw text. Lines are found, hashed and compared as bytes (see {@link LineTable}) so the text is
+ * never decoded, and only the content of changed lines is ever copied.
+ */
+public final class TextDiff {
+
+    private static final int BINARY_CHECK_LENGTH = 8000; //Same heuristic as git
+
+    private TextDiff() {}
+
+    /**
+     * Diffs two texts line by line, pushing changes to the sink. Positions are byte offsets and every change covers
+     * whole lines.
+     */
+    public static void diff(byte[] base, byte[] modified, DiffGenerator generator, ChangeSink sink) throws IOException {
+        diff(new LineTable(base), modified, generator, sink);
+    }
+
+    /**
+     * Diffs against a base which was scanned beforehand, so that one base can be diffed against many texts.
+     */
+    public static void diff(LineTable baseLines, byte[] modified, DiffGenerator generator, ChangeSink sink) throws IOException {
+        LineTable modifiedLines = new LineTable(modified);
+        int[][] tokens = LineTable.tokenize(baseLines, modifiedLines);
+        generator.diff(tokens[0], tokens[1], new ChangeSink() {
+            @Override
+            public void change(ChangeType type, int baseStart, int baseEnd, int newStart, int newEnd) throws IOException {
+                sink.change(type, baseLines.start(baseStart), baseLines.start(baseEnd + 1) - 1,
+                        modifiedLines.start(newStart), modifiedLines.start(newEnd + 1) - 1);
+            }
+
+            @Override
+            public void end() throws IOException {
+                sink.end();
+            }
+        });
+    }
+
+    /**
+     * Diffs two texts line by line, materializing the changed lines.
+     */
+    public static List<ByteChange> diff(byte[] base, byte[] modified, DiffGenerator generator) throws IOException {
+        return diff(new LineTable(base), modified, generator);
+    }
+
+    public static List<ByteChange> diff(LineTable base, byte[] modified, DiffGenerator generator) throws IOException {
+        List<ByteChange> changes = new ArrayList<>();
+        diff(base, modified, generator, (type, baseStart, baseEnd, newStart, newEnd) ->
+                changes.add(new ByteChange(type, baseStart, baseEnd, Arrays.copyOfRange(modified, newStart, newEnd + 1))));
+        return changes;
+    }
+
+    /**
+     * Guesses whether content is text, by checking for NUL bytes at its start.
+     */
+    public static boolean isText(byte[] content) {
+        for (int i = 0; i < Math.min(content.length, BINARY_CHECK_LENGTH); i++)
+            if (content[i] == 0)
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,121 @@
+package injectr.ipatch.jar;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs per-entry diffs on a work-stealing pool.
+ *
+ * Tasks are started largest first so that big entries don't end up being diffed alone at the end of a run. A task is
+ * only started once its input size fits in a global byte budget, so the memory held by in-flight inputs stays the same
+ * no matter how many threads are used. Tasks larger than the whole budget run on their own.
+ */
+public class DiffScheduler implements AutoCloseable {
+
+    private final ForkJoinPool pool;
+    private final long budget;
+    private long available; //Guarded by this
+
+    public DiffScheduler(int parallelism, long budget) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive!");
+        if (budget < 1)
+            throw new IllegalArgumentException("Memory budget must be positive!");
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.budget = budget;
+        this.available = budget;
+    }
+
+    /**
+     * Runs every task, blocking until all of them are done. Once a task fails no further tasks are started.
+     *
+     * @return The result of each task, in the same order as the tasks.
+     */
+    public <T> List<T> run(List<? extends Task<T>> tasks) throws IOException {
+        List<Integer> order = new ArrayList<>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++)
+            order.add(i);
+        order.sort(Comparator.comparingLong((Integer i) -> tasks.get(i).size()).reversed());
+
+        List<Future<T>> futures = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+        AtomicReference<Throwable> failure = new AtomicReference<>(); //The pool wraps checked exceptions, keep the original
+        try {
+            for (int index : order) {
+                Task<T> task = tasks.get(index);
+                long cost = Math.min(Math.max(task.size(), 0), budget);
+                acquire(cost);
+                if (failure.get() != null) {
+                    release(cost);
+                    break;
+                }
+                futures.set(index, pool.submit(() -> {
+                    try {
+                        return task.run();
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                        throw t;
+                    } finally {
+                        release(cost);
+                    }
+                }));
+            }
+
+            List<T> results = new ArrayList<>(tasks.size());
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future == null ? null : future.get());
+                } catch (ExecutionException e) {
+                    failure.compareAndSet(null, e.getCause());
+                }
+            }
+            Throwable t = failure.get();
+            if (t instanceof IOException)
+                throw (IOException) t;
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<T> future : futures)
+                if (future != null)
+                    future.cancel(true);
+            throw new InterruptedIOException("Interrupted while diffing!");
+        }
+    }
+
+    private synchronized void acquire(long bytes) throws InterruptedException {
+        while (available < bytes)
+            wait();
+        available -= bytes;
+    }
+
+    private synchronized void release(long bytes) {
+        available += bytes;
+        notifyAll();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    public interface Task<T> {
+
+        /**
+         * The number of input bytes this task holds in memory while running.
+         */
+        long size();
+
+        T run() throws IOException;
+    }
+}
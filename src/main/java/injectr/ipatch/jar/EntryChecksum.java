@@ -0,0 +1,58 @@
+package injectr.ipatch.jar;
+
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * The CRC-32 and size of an entry's content, as recorded in a jar's central directory. Patches record the checksum
+ * each changed entry must have before patching, so a wrong base can be told apart from the central directory alone.
+ */
+public final class EntryChecksum {
+
+    private final long crc;
+    private final long size;
+
+    public EntryChecksum(long crc, long size) {
+        this.crc = crc;
+        this.size = size;
+    }
+
+    public static EntryChecksum of(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return new EntryChecksum(crc.getValue(), content.length);
+    }
+
+    /**
+     * @return The checksum from the entry's central directory record or null if it isn't known.
+     */
+    public static EntryChecksum of(ZipEntry entry) {
+        return entry.getCrc() == -1 || entry.getSize() == -1 ? null : new EntryChecksum(entry.getCrc(), entry.getSize());
+    }
+
+    public long getCrc() {
+        return crc;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof EntryChecksum))
+            return false;
+        EntryChecksum other = (EntryChecksum) obj;
+        return crc == other.crc && size == other.size;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(crc) * 31 + Long.hashCode(size);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%08x (%d bytes)", crc, size);
+    }
+}
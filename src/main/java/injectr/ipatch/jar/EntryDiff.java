@@ -0,0 +1,97 @@
+package injectr.ipatch.jar;
+
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.Change;
+import injectr.ipatch.diff.ChangeType;
+
+import java.util.List;
+
+/**
+ * The changes made to a single jar entry.
+ */
+public class EntryDiff {
+
+    private final String name;
+    private final ChangeType type; //ADD for new entries, REMOVE for deleted entries and REPLACE for modified entries
+    private final List<? extends Change> changes; //Empty for removed entries
+    private final List<? extends Change> reverse; //Null when not recorded
+    private final EntryChecksum base, result; //Null when not recorded
+
+    public EntryDiff(String name, ChangeType type, List<? extends Change> changes) {
+        this(name, type, changes, null);
+    }
+
+    /**
+     * @param reverse The changes undoing this diff, as described by {@link #getReverse()}.
+     */
+    public EntryDiff(String name, ChangeType type, List<? extends Change> changes, List<? extends Change> reverse) {
+        this(name, type, changes, reverse, null, null);
+    }
+
+    /**
+     * @param base   The checksum of the entry before patching, null for added entries.
+     * @param result The checksum of the entry after patching, null for removed entries.
+     */
+    public EntryDiff(String name, ChangeType type, List<? extends Change> changes, List<? extends Change> reverse,
+                     EntryChecksum base, EntryChecksum result) {
+        this.name = name;
+        this.type = type;
+        this.changes = changes;
+        this.reverse = reverse;
+        this.base = base;
+        this.result = result;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ChangeType type() {
+        return type;
+    }
+
+    /**
+     * The changes to apply to the base entry. New entries consist of a single {@link injectr.ipatch.diff.ByteChange}
+     * holding their whole content.
+     */
+    public List<? extends Change> getChanges() {
+        return changes;
+    }
+
+    /**
+     * The changes to apply to the patched entry to get the base entry back, or null if they weren't recorded. Added
+     * entries have none and removed entries consist of a single {@link injectr.ipatch.diff.ByteChange} holding the
+     * whole base content.
+     */
+    public List<? extends Change> getReverse() {
+        return reverse;
+    }
+
+    /**
+     * The checksum the base entry must have for the changes to apply, or null if it isn't known.
+     */
+    public EntryChecksum getBase() {
+        return base;
+    }
+
+    /**
+     * The checksum of the patched entry, or null if it isn't known.
+     */
+    public EntryChecksum getResult() {
+        if (result == null && type == ChangeType.ADD && changes.size() == 1 && changes.get(0) instanceof ByteChange)
+            return EntryChecksum.of(((ByteChange) changes.get(0)).getNewContent());
+        return result;
+    }
+
+    /**
+     * The diff undoing this one, which can be inverted again.
+     *
+     * @throws IllegalStateException If the reverse changes weren't recorded.
+     */
+    public EntryDiff inverse() {
+        if (reverse == null)
+            throw new IllegalStateException("The reverse changes of " + name + " weren't recorded!");
+        ChangeType inverse = type == ChangeType.ADD ? ChangeType.REMOVE : type == ChangeType.REMOVE ? ChangeType.ADD : type;
+        return new EntryDiff(name, inverse, reverse, changes, getResult(), base);
+    }
+}
@@ -0,0 +1,81 @@
+package injectr.ipatch.jar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Selects jar entries by name with include and exclude globs. An entry matches if it matches any include, or there are
+ * no includes, and no exclude.
+ *
+ * In globs {@code **} matches any part of a name, {@code *} any part of a single path segment and {@code ?} a single
+ * character other than {@code /}. A glob ending with {@code /} matches everything below it, so a package can be given
+ * as {@code com/acme/core/}.
+ */
+public final class EntryFilter implements Predicate<String> {
+
+    public static final EntryFilter ALL = new EntryFilter(Collections.emptyList(), Collections.emptyList());
+
+    private final List<Pattern> includes, excludes;
+
+    private EntryFilter(List<Pattern> includes, List<Pattern> excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * @param includes The globs of the entries to select, null or empty to select every entry.
+     * @param excludes The globs of the entries to leave out, may be null.
+     */
+    public static EntryFilter of(List<String> includes, List<String> excludes) {
+        if ((includes == null || includes.isEmpty()) && (excludes == null || excludes.isEmpty()))
+            return ALL;
+        return new EntryFilter(compile(includes), compile(excludes));
+    }
+
+    private static List<Pattern> compile(List<String> globs) {
+        List<Pattern> patterns = new ArrayList<>();
+        if (globs != null)
+            for (String glob : globs)
+                patterns.add(compile(glob));
+        return patterns;
+    }
+
+    private static Pattern compile(String glob) {
+        if (glob.endsWith("/"))
+            glob += "**";
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                if ("\\.[]{}()+-^$|".indexOf(c) != -1)
+                    regex.append('\\');
+                regex.append(c);
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    @Override
+    public boolean test(String name) {
+        if (!includes.isEmpty() && !matches(includes, name))
+            return false;
+        return !matches(excludes, name);
+    }
+
+    private static boolean matches(List<Pattern> patterns, String name) {
+        for (Pattern pattern : patterns)
+            if (pattern.matcher(name).matches())
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,442 @@
+package injectr.ipatch.jar;
+
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.patch.ChangeApplier;
+import injectr.ipatch.patch.PatchFile;
+import injectr.ipatch.patch.PatchReader;
+import injectr.ipatch.util.BytesUtil;
+import org.apache.commons.compress.archivers.zip.ZipUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Applies a patch to a jar in place. New versions of changed and added entries are appended to the end of the jar,
+ * followed by a new central directory pointing at them, so I/O is proportional to the size of the change rather than
+ * the size of the jar. Replaced and removed entries, along with the old central directory, are left behind as
+ * unreferenced space.
+ *
+ * Updates are crash safe. The original length of the jar is recorded in a journal next to it before anything is
+ * appended, and the journal is deleted once the new central directory is on disk, which is the point where the jar
+ * switches over to it. The directory holding the jar is synced after the journal is created and deleted, so the
+ * journal can't be lost while appended bytes survive. A journal left behind by a crash is rolled back by truncating the jar to its original length,
+ * which restores the old central directory untouched.
+ *
+ * Once more than a threshold of the jar would be unreferenced space, the jar is rewritten by a {@link JarPatcher}
+ * instead, which drops it. Zip64 jars and jars with data in front of their entries are always rewritten.
+ */
+public class InPlaceJarPatcher {
+
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    private static final int JOURNAL_MAGIC = 0x49504a4e; //"IPJN"
+    private static final int LOCAL_HEADER = 0x04034b50, CENTRAL_HEADER = 0x02014b50, END_HEADER = 0x06054b50,
+            ZIP64_END_LOCATOR = 0x07064b50;
+    private static final int LOCAL_HEADER_LENGTH = 30, CENTRAL_HEADER_LENGTH = 46, END_LENGTH = 22;
+    private static final int VERSION = 20; //2.0, deflate
+    private static final int DATA_DESCRIPTOR_FLAG = 0x08, UTF8_FLAG = 0x800;
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private final double compactionThreshold;
+    private final JarPatcher compactor;
+
+    public InPlaceJarPatcher() {
+        this(DEFAULT_COMPACTION_THRESHOLD, new JarPatcher());
+    }
+
+    /**
+     * @param compactionThreshold The fraction of the jar which may be unreferenced space after patching before it is
+     *                            rewritten instead.
+     * @param compactor Rewrites the jar when it isn't patched in place.
+     */
+    public InPlaceJarPatcher(double compactionThreshold, JarPatcher compactor) {
+        if (compactionThreshold < 0 || compactionThreshold > 1)
+            throw new IllegalArgumentException("Compaction threshold must be between 0 and 1!");
+        this.compactionThreshold = compactionThreshold;
+        this.compactor = compactor;
+    }
+
+    /**
+     * Rolls back an interrupted update first, if there is one.
+     *
+     * @return Whether the patch was applied in place, false if the jar was rewritten.
+     */
+    public boolean apply(Path jar, PatchReader patch) throws IOException {
+        recover(jar);
+        CentralDirectory directory = CentralDirectory.read(jar);
+        if (directory == null || !fits(directory, patch) || waste(directory, patch) > compactionThreshold) {
+            compactor.apply(jar, patch, jar);
+            return false;
+        }
+        Map<String, EntryChecksum> checksums = new HashMap<>();
+        for (CentralRecord record : directory.order)
+            checksums.put(record.name, new EntryChecksum(record.crc, record.size));
+        JarPatcher.check(patch, checksums);
+
+        Path journal = journal(jar);
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeLong(directory.length);
+            out.flush();
+            channel.force(true);
+        }
+        forceDirectory(journal);
+
+        try {
+            append(jar, directory, patch);
+        } catch (IOException | RuntimeException | Error e) {
+            recover(jar);
+            throw e;
+        }
+        Files.delete(journal); //Commits the update
+        forceDirectory(journal);
+        return true;
+    }
+
+    /**
+     * Rolls back an update which was interrupted before it was committed, truncating the jar back to its original
+     * length. Does nothing if there is no journal.
+     */
+    public static void recover(Path jar) throws IOException {
+        Path journal = journal(jar);
+        if (!Files.exists(journal))
+            return;
+        long length = -1;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(journal))) {
+            if (in.readInt() == JOURNAL_MAGIC)
+                length = in.readLong();
+        } catch (IOException ignored) { //Torn journal, nothing was appended before it was complete
+        }
+        if (length >= 0) {
+            try (FileChannel channel = FileChannel.open(jar, StandardOpenOption.WRITE)) {
+                if (channel.size() > length) {
+                    channel.truncate(length);
+                    channel.force(true);
+                }
+            }
+        }
+        Files.delete(journal);
+        forceDirectory(journal);
+    }
+
+    static Path journal(Path jar) {
+        return jar.resolveSibling(jar.getFileName() + ".journal");
+    }
+
+    /**
+     * Syncs the directory containing a file, making the file's creation or deletion durable. Platforms which can't open
+     * or sync directories, such as Windows, are left to their file system.
+     */
+    private static void forceDirectory(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory == null)
+            return;
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException | UnsupportedOperationException ignored) {
+        }
+    }
+
+    /**
+     * Checks that the patched jar is still addressable without zip64 records. Appended entries are estimated by their
+     * patch records, which is how large they'd be if they didn't compress at all.
+     */
+    private static boolean fits(CentralDirectory directory, PatchReader patch) {
+        long appended = 0;
+        int entries = directory.records.size();
+        for (PatchFile.Entry entry : patch.getEntries()) {
+            if (entry.type() == ChangeType.ADD)
+                entries++;
+            CentralRecord base = directory.records.get(entry.getName());
+            appended += LOCAL_HEADER_LENGTH + CENTRAL_HEADER_LENGTH + 2L * entry.getName().length()
+                    + entry.getLength() + (base == null ? 0 : base.size);
+        }
+        return entries <= MAX_ENTRIES && directory.length + appended + directory.centralLength < MAX_OFFSET;
+    }
+
+    /**
+     * Estimates the fraction of the jar which would be unreferenced space after patching it in place.
+     */
+    private static double waste(CentralDirectory directory, PatchReader patch) {
+        long live = directory.centralLength + directory.endLength;
+        for (CentralRecord record : directory.records.values())
+            live += record.localLength();
+        long wasted = directory.length - live + directory.centralLength + directory.endLength; //Already, plus the old directory
+        long appended = directory.centralLength + directory.endLength;
+        for (PatchFile.Entry entry : patch.getEntries()) {
+            CentralRecord base = directory.records.get(entry.getName());
+            if (base != null)
+                wasted += base.localLength();
+            appended += entry.type() == ChangeType.REMOVE ? 0
+                    : LOCAL_HEADER_LENGTH + entry.getName().length() + (base == null ? entry.getLength() : base.compressedSize);
+        }
+        return (double) wasted / (directory.length + appended);
+    }
+
+    private static void append(Path jar, CentralDirectory directory, PatchReader patch) throws IOException {
+        ByteArrayOutputStream central = new ByteArrayOutputStream();
+        int count = 0;
+        try (ZipFile zip = new ZipFile(jar.toFile());
+             FileChannel channel = FileChannel.open(jar, StandardOpenOption.WRITE)) {
+            long position = directory.length;
+            for (CentralRecord record : directory.order) {
+                PatchFile.Entry patchEntry = patch.getEntry(record.name);
+                if (patchEntry == null) {
+                    central.write(record.bytes);
+                } else if (patchEntry.type() == ChangeType.REPLACE) {
+                    byte[] content;
+                    ZipEntry entry = zip.getEntry(record.name);
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        content = BytesUtil.readAll(in, entry.getSize());
+                    }
+                    content = ChangeApplier.apply(content, patch.read(patchEntry).getChanges());
+                    byte[] updated = record.bytes.clone();
+                    position = writeEntry(channel, position, updated, content);
+                    central.write(updated);
+                } else {
+                    continue; //Removed
+                }
+                count++;
+            }
+            for (PatchFile.Entry patchEntry : patch.getEntries()) {
+                if (patchEntry.type() != ChangeType.ADD)
+                    continue;
+                byte[] record = newRecord(patchEntry.getName());
+                position = writeEntry(channel, position, record, JarPatcher.added(patch.read(patchEntry)));
+                central.write(record);
+                count++;
+            }
+
+            ByteBuffer end = ByteBuffer.allocate(END_LENGTH + directory.comment.length).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_HEADER);
+            end.putShort((short) 0); //Disk numbers
+            end.putShort((short) 0);
+            end.putShort((short) count);
+            end.putShort((short) count);
+            end.putInt(central.size());
+            end.putInt((int) position);
+            end.putShort((short) directory.comment.length);
+            end.put(directory.comment);
+            if (position + central.size() + end.capacity() > MAX_OFFSET)
+                throw new IOException("Patched jar needs zip64 records!");
+            write(channel, position, ByteBuffer.wrap(central.toByteArray()));
+            end.flip();
+            write(channel, position + central.size(), end);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Writes a local entry, deflating its content unless that doesn't make it smaller, and updates its central
+     * directory record to match.
+     *
+     * @param record The central directory record of the entry, updated in place.
+     * @return The position after the entry.
+     */
+    private static long writeEntry(FileChannel channel, long position, byte[] record, byte[] content) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        byte[] data = deflate(content);
+        int method = ZipEntry.DEFLATED;
+        if (data.length >= content.length) {
+            data = content;
+            method = ZipEntry.STORED;
+        }
+        if (position > MAX_OFFSET)
+            throw new IOException("Patched jar needs zip64 records!");
+
+        ByteBuffer central = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+        central.putShort(6, (short) VERSION);
+        central.putShort(8, (short) (central.getShort(8) & ~DATA_DESCRIPTOR_FLAG)); //Sizes are known up front
+        central.putShort(10, (short) method);
+        central.putInt(16, (int) crc.getValue());
+        central.putInt(20, data.length);
+        central.putInt(24, content.length);
+        central.putInt(42, (int) position);
+
+        int nameLength = central.getShort(28) & 0xFFFF;
+        ByteBuffer local = ByteBuffer.allocate(LOCAL_HEADER_LENGTH + nameLength).order(ByteOrder.LITTLE_ENDIAN);
+        local.putInt(LOCAL_HEADER);
+        local.putShort((short) VERSION);
+        local.putShort(central.getShort(8)); //Flags
+        local.putShort((short) method);
+        local.putInt(central.getInt(12)); //Time and date
+        local.putInt((int) crc.getValue());
+        local.putInt(data.length);
+        local.putInt(content.length);
+        local.putShort((short) nameLength);
+        local.putShort((short) 0); //Extra field length
+        local.put(record, CENTRAL_HEADER_LENGTH, nameLength);
+        local.flip();
+        write(channel, position, local);
+        write(channel, position + local.capacity(), ByteBuffer.wrap(data));
+        return position + local.capacity() + data.length;
+    }
+
+    /**
+     * Creates the central directory record of an added entry. Sizes and offsets are filled in by
+     * {@link #writeEntry(FileChannel, long, byte[], byte[])}.
+     */
+    private static byte[] newRecord(String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(CENTRAL_HEADER_LENGTH + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(CENTRAL_HEADER);
+        record.putShort((short) VERSION); //Made by
+        record.putShort((short) VERSION); //Needed to extract
+        record.putShort((short) UTF8_FLAG);
+        record.putShort((short) ZipEntry.DEFLATED);
+        record.put(ZipUtil.toDosTime(System.currentTimeMillis()));
+        record.position(28);
+        record.putShort((short) nameBytes.length); //Extra, comment, disk and attributes stay 0
+        record.position(CENTRAL_HEADER_LENGTH);
+        record.put(nameBytes);
+        return record.array();
+    }
+
+    private static byte[] deflate(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void write(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * The central directory of a jar, as far as it is needed to rewrite it.
+     */
+    private static final class CentralDirectory {
+
+        private final long length; //Of the whole jar
+        private final List<CentralRecord> order = new ArrayList<>();
+        private final Map<String, CentralRecord> records = new HashMap<>();
+        private long centralLength;
+        private int endLength;
+        private byte[] comment;
+
+        private CentralDirectory(long length) {
+            this.length = length;
+        }
+
+        /**
+         * @return The central directory or null if the jar can't be updated in place.
+         */
+        private static CentralDirectory read(Path jar) throws IOException {
+            try (FileChannel channel = FileChannel.open(jar, StandardOpenOption.READ)) {
+                CentralDirectory directory = new CentralDirectory(channel.size());
+                int tailLength = (int) Math.min(directory.length, END_LENGTH + 0xFFFF);
+                ByteBuffer tail = read(channel, directory.length - tailLength, tailLength);
+                int end = -1;
+                for (int i = tailLength - END_LENGTH; i >= 0 && end == -1; i--)
+                    if (tail.getInt(i) == END_HEADER && i + END_LENGTH + (tail.getShort(i + 20) & 0xFFFF) == tailLength)
+                        end = i;
+                if (end == -1)
+                    throw new IOException("Not a zip file!");
+                if (end >= 20 && tail.getInt(end - 20) == ZIP64_END_LOCATOR)
+                    return null;
+
+                int count = tail.getShort(end + 10) & 0xFFFF;
+                directory.centralLength = tail.getInt(end + 12) & MAX_OFFSET;
+                long centralOffset = tail.getInt(end + 16) & MAX_OFFSET;
+                long endOffset = directory.length - tailLength + end;
+                directory.endLength = tailLength - end;
+                directory.comment = new byte[directory.endLength - END_LENGTH];
+                ((ByteBuffer) tail.position(end + END_LENGTH)).get(directory.comment);
+                if (tail.getShort(end + 4) != 0 || tail.getShort(end + 6) != 0 || count == MAX_ENTRIES
+                        || centralOffset == MAX_OFFSET || centralOffset + directory.centralLength != endOffset
+                        || directory.centralLength > Integer.MAX_VALUE)
+                    return null; //Multi disk, zip64 or prefixed
+
+                ByteBuffer central = read(channel, centralOffset, (int) directory.centralLength);
+                while (central.remaining() >= CENTRAL_HEADER_LENGTH) {
+                    int start = central.position();
+                    if (central.getInt(start) != CENTRAL_HEADER)
+                        throw new IOException("Invalid central directory!");
+                    int length = CENTRAL_HEADER_LENGTH + (central.getShort(start + 28) & 0xFFFF)
+                            + (central.getShort(start + 30) & 0xFFFF) + (central.getShort(start + 32) & 0xFFFF);
+                    if (length > central.remaining())
+                        throw new IOException("Invalid central directory!");
+                    byte[] bytes = new byte[length];
+                    central.get(bytes);
+                    CentralRecord record = new CentralRecord(bytes);
+                    if (record.compressedSize == MAX_OFFSET || record.size == MAX_OFFSET || record.offset == MAX_OFFSET)
+                        return null;
+                    directory.order.add(record);
+                    directory.records.put(record.name, record);
+                }
+                if (directory.order.size() != count || directory.records.size() != count)
+                    return null; //Duplicate names can't be addressed by name
+                return directory;
+            }
+        }
+
+        private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("Truncated zip file!");
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static final class CentralRecord {
+
+        private final byte[] bytes;
+        private final String name;
+        private final long crc, compressedSize, size, offset;
+
+        private CentralRecord(byte[] bytes) {
+            ByteBuffer record = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            this.bytes = bytes;
+            this.name = new String(bytes, CENTRAL_HEADER_LENGTH, record.getShort(28) & 0xFFFF, StandardCharsets.UTF_8);
+            this.crc = record.getInt(16) & MAX_OFFSET;
+            this.compressedSize = record.getInt(20) & MAX_OFFSET;
+            this.size = record.getInt(24) & MAX_OFFSET;
+            this.offset = record.getInt(42) & MAX_OFFSET;
+        }
+
+        /**
+         * Estimates the space taken by the entry's local header, data and data descriptor. Local extra fields are
+         * assumed to be the same length as the central ones.
+         */
+        private long localLength() {
+            ByteBuffer record = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            boolean descriptor = (record.getShort(8) & DATA_DESCRIPTOR_FLAG) != 0;
+            return LOCAL_HEADER_LENGTH + (record.getShort(28) & 0xFFFF) + (record.getShort(30) & 0xFFFF) + compressedSize
+                    + (descriptor ? 16 : 0);
+        }
+    }
+}
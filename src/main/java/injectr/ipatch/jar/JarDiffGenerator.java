@@ -0,0 +1,354 @@
+package injectr.ipatch.jar;
+
+import injectr.ipatch.bytecode.ClassFile;
+import injectr.ipatch.cache.DiffCache;
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.ByteCodeChange;
+import injectr.ipatch.diff.Change;
+import injectr.ipatch.diff.ChangeCoalescer;
+import injectr.ipatch.diff.ChangeInverter;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.DiffAlgorithm;
+import injectr.ipatch.diff.DiffGenerator;
+import injectr.ipatch.diff.DynamicDiffGenerator;
+import injectr.ipatch.diff.bytecode.ClassDiffGenerator;
+import injectr.ipatch.diff.bytecode.ClassIndex;
+import injectr.ipatch.diff.hist.HistogramDiffGenerator;
+import injectr.ipatch.diff.jgit.BinaryDeltaGenerator;
+import injectr.ipatch.diff.myers.MyersDiffGenerator;
+import injectr.ipatch.diff.patience.PatienceDiffGenerator;
+import injectr.ipatch.diff.text.LineTable;
+import injectr.ipatch.diff.text.TextDiff;
+import injectr.ipatch.patch.ChangeCodec;
+import injectr.ipatch.util.BytesUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Diffs two jars entry by entry. Entries are paired by name and diffed in parallel by a {@link DiffScheduler}, each
+ * task only reading its entries once it is allowed to run.
+ *
+ * A base jar can be diffed against several modified jars at once. Each base entry is then read, parsed and indexed
+ * once and diffed against the same entry of every modified jar.
+ *
+ * Reversible diffs also record the changes undoing each entry diff, see {@link EntryDiff#getReverse()}. Those of
+ * classes are diffed the other way, anything else is inverted from its changes.
+ */
+public class JarDiffGenerator {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+    private final int parallelism;
+    private final long memoryBudget;
+    private final DiffAlgorithm algorithm;
+    private final DiffCache cache; //Null when not caching
+    private final boolean reversible;
+
+    public JarDiffGenerator() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_MEMORY_BUDGET, DiffAlgorithm.DYNAMIC, null);
+    }
+
+    /**
+     * @param memoryBudget The maximum number of uncompressed entry bytes held in memory by running diffs.
+     * @param algorithm How text entries are diffed, {@link DiffAlgorithm#REPLACE} replaces every modified entry as a
+     *                  whole.
+     * @param cache Where the diffs of modified entries are looked up and stored, or null.
+     */
+    public JarDiffGenerator(int parallelism, long memoryBudget, DiffAlgorithm algorithm, DiffCache cache) {
+        this(parallelism, memoryBudget, algorithm, cache, false);
+    }
+
+    /**
+     * @param reversible Whether the reverse changes of every entry diff are recorded.
+     */
+    public JarDiffGenerator(int parallelism, long memoryBudget, DiffAlgorithm algorithm, DiffCache cache,
+                            boolean reversible) {
+        if (algorithm != DiffAlgorithm.REPLACE)
+            textGenerator(algorithm); //Fail early on unsupported algorithms
+        this.parallelism = parallelism;
+        this.memoryBudget = memoryBudget;
+        this.algorithm = algorithm;
+        this.cache = cache;
+        this.reversible = reversible;
+    }
+
+    /**
+     * Entries are first compared by the CRC-32 and size recorded in both central directories, so entries which were
+     * not modified are never inflated.
+     *
+     * @return The diff of every entry which was added, removed or modified. Modified entries come in the order of the
+     * modified jar, followed by removed entries.
+     */
+    public List<EntryDiff> diff(Path base, Path modified) throws IOException {
+        return diff(base, Collections.singletonList(modified)).get(0);
+    }
+
+    /**
+     * Diffs one base jar against several modified jars.
+     *
+     * @return The entry diffs of each modified jar, see {@link #diff(Path, Path)}.
+     */
+    public List<List<EntryDiff>> diff(Path base, List<Path> modified) throws IOException {
+        List<ZipFile> modifiedZips = new ArrayList<>();
+        try (ZipFile baseZip = new ZipFile(base.toFile());
+             DiffScheduler scheduler = new DiffScheduler(parallelism, memoryBudget)) {
+            for (Path path : modified)
+                modifiedZips.add(new ZipFile(path.toFile()));
+
+            Map<String, EntryTask> tasks = new LinkedHashMap<>();
+            for (int i = 0; i < modifiedZips.size(); i++) {
+                for (Enumeration<? extends ZipEntry> entries = modifiedZips.get(i).entries(); entries.hasMoreElements(); ) {
+                    ZipEntry entry = entries.nextElement();
+                    ZipEntry baseEntry = baseZip.getEntry(entry.getName());
+                    if (!unchanged(baseEntry, entry))
+                        tasks.computeIfAbsent(entry.getName(), name -> new EntryTask(baseZip, baseEntry, modifiedZips, algorithm, cache, reversible))
+                                .modifiedEntries[i] = entry;
+                }
+            }
+
+            Map<String, EntryDiff[]> results = new HashMap<>();
+            List<EntryDiff[]> diffs = scheduler.run(new ArrayList<>(tasks.values()));
+            int index = 0;
+            for (String name : tasks.keySet())
+                results.put(name, diffs.get(index++));
+
+            List<List<EntryDiff>> jarDiffs = new ArrayList<>();
+            for (int i = 0; i < modifiedZips.size(); i++) {
+                ZipFile modifiedZip = modifiedZips.get(i);
+                List<EntryDiff> jarDiff = new ArrayList<>();
+                for (Enumeration<? extends ZipEntry> entries = modifiedZip.entries(); entries.hasMoreElements(); ) {
+                    EntryDiff[] result = results.get(entries.nextElement().getName());
+                    if (result != null && result[i] != null)
+                        jarDiff.add(result[i]);
+                }
+                for (Enumeration<? extends ZipEntry> entries = baseZip.entries(); entries.hasMoreElements(); ) {
+                    ZipEntry entry = entries.nextElement();
+                    if (modifiedZip.getEntry(entry.getName()) == null)
+                        jarDiff.add(new EntryDiff(entry.getName(), ChangeType.REMOVE, Collections.emptyList(), !reversible
+                                ? null : Collections.singletonList(new ByteChange(ChangeType.ADD, 0, -1, read(baseZip, entry))),
+                                EntryChecksum.of(entry), null));
+                }
+                jarDiffs.add(jarDiff);
+            }
+            return jarDiffs;
+        } finally {
+            for (ZipFile zip : modifiedZips)
+                zip.close();
+        }
+    }
+
+    /**
+     * Compares entries by their central directory records only. Compression may differ between identical entries, so
+     * compressed sizes are ignored.
+     */
+    static boolean unchanged(ZipEntry base, ZipEntry modified) {
+        return base != null && base.getCrc() != -1 && base.getSize() != -1
+                && base.getCrc() == modified.getCrc() && base.getSize() == modified.getSize();
+    }
+
+    /**
+     * Diffs the content of a modified entry. Classes get a member level diff, text gets a line diff and anything else
+     * gets a binary delta, or is replaced as a whole when that is cheaper. Only the content is looked at, so results
+     * can be cached by content.
+     */
+    static List<? extends Change> diffEntry(BaseEntry base, byte[] modified, DiffAlgorithm algorithm) throws IOException {
+        if (algorithm != DiffAlgorithm.REPLACE) {
+            ClassIndex baseClass = base.classIndex();
+            ClassFile modifiedClass = baseClass == null ? null : readClass(modified);
+            if (modifiedClass != null)
+                return new ClassDiffGenerator().diff(baseClass, modifiedClass);
+            if (base.isText() && TextDiff.isText(modified))
+                return new ChangeCoalescer().coalesceBytes(base.content,
+                        TextDiff.diff(base.lines(), modified, textGenerator(algorithm)));
+            List<ByteChange> delta = new BinaryDeltaGenerator().diff(base.content, modified);
+            if (delta != null)
+                return new ChangeCoalescer().coalesceBytes(base.content, delta);
+        }
+        return Collections.singletonList(new ByteChange(ChangeType.REPLACE, 0, base.content.length - 1, modified));
+    }
+
+    private static DiffGenerator textGenerator(DiffAlgorithm algorithm) {
+        switch (algorithm) {
+            case HISTOGRAM:
+                return new HistogramDiffGenerator();
+            case MYERS:
+                return new MyersDiffGenerator();
+            case PATIENCE:
+                return new PatienceDiffGenerator();
+            case DYNAMIC:
+                return new DynamicDiffGenerator();
+            default:
+                throw new IllegalArgumentException("Unsupported diff algorithm " + algorithm + "!");
+        }
+    }
+
+    /**
+     * Parses a class, returning null unless it can be written back byte for byte. Otherwise patching the class could
+     * not reproduce the modified entry.
+     */
+    private static ClassFile readClass(byte[] bytes) {
+        if (bytes.length < 4 || ((bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8
+                | (bytes[3] & 0xFF)) != ClassFile.MAGIC)
+            return null;
+        try {
+            ClassFile clazz = ClassFile.readFrom(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+            clazz.writeTo(out);
+            return Arrays.equals(out.toByteArray(), bytes) ? clazz : null;
+        } catch (IOException | RuntimeException e) { //Not a (supported) class, treat it as binary
+            return null;
+        }
+    }
+
+    private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream stream = zip.getInputStream(entry)) {
+            return BytesUtil.readAll(stream, entry.getSize());
+        }
+    }
+
+    /**
+     * The content of a base entry along with everything derived from it, computed on first use.
+     */
+    static final class BaseEntry {
+
+        private final byte[] content;
+        private ClassIndex classIndex;
+        private boolean parsed;
+        private LineTable lines;
+        private byte[] hash;
+        private EntryChecksum checksum;
+
+        BaseEntry(byte[] content) {
+            this.content = content;
+        }
+
+        ClassIndex classIndex() {
+            if (!parsed) {
+                ClassFile clazz = readClass(content);
+                classIndex = clazz == null ? null : new ClassIndex(clazz);
+                parsed = true;
+            }
+            return classIndex;
+        }
+
+        boolean isText() {
+            return TextDiff.isText(content);
+        }
+
+        LineTable lines() {
+            if (lines == null)
+                lines = new LineTable(content);
+            return lines;
+        }
+
+        byte[] hash() {
+            if (hash == null)
+                hash = DiffCache.Key.hash(content);
+            return hash;
+        }
+
+        EntryChecksum checksum() {
+            if (checksum == null)
+                checksum = EntryChecksum.of(content);
+            return checksum;
+        }
+    }
+
+    private static final class EntryTask implements DiffScheduler.Task<EntryDiff[]> {
+
+        private final ZipFile baseZip;
+        private final ZipEntry baseEntry; //Null when the entry was added
+        private final List<ZipFile> modifiedZips;
+        private final ZipEntry[] modifiedEntries; //Null for jars where the entry is unchanged or removed
+        private final DiffAlgorithm algorithm;
+        private final DiffCache cache;
+        private final boolean reversible;
+
+        private EntryTask(ZipFile baseZip, ZipEntry baseEntry, List<ZipFile> modifiedZips, DiffAlgorithm algorithm,
+                          DiffCache cache, boolean reversible) {
+            this.baseZip = baseZip;
+            this.baseEntry = baseEntry;
+            this.modifiedZips = modifiedZips;
+            this.modifiedEntries = new ZipEntry[modifiedZips.size()];
+            this.algorithm = algorithm;
+            this.cache = cache;
+            this.reversible = reversible;
+        }
+
+        /**
+         * The base entry is held for the whole task, modified entries are read one at a time.
+         */
+        @Override
+        public long size() {
+            long modifiedSize = 0;
+            for (ZipEntry entry : modifiedEntries)
+                if (entry != null)
+                    modifiedSize = Math.max(modifiedSize, Math.max(entry.getSize(), 0));
+            return (baseEntry == null ? 0 : Math.max(baseEntry.getSize(), 0)) + modifiedSize;
+        }
+
+        @Override
+        public EntryDiff[] run() throws IOException {
+            EntryDiff[] diffs = new EntryDiff[modifiedEntries.length];
+            BaseEntry base = null;
+            for (int i = 0; i < modifiedEntries.length; i++) {
+                ZipEntry entry = modifiedEntries[i];
+                if (entry == null)
+                    continue;
+
+                byte[] modified = read(modifiedZips.get(i), entry);
+                if (baseEntry == null) {
+                    diffs[i] = new EntryDiff(entry.getName(), ChangeType.ADD,
+                            Collections.singletonList(new ByteChange(ChangeType.ADD, 0, -1, modified)),
+                            reversible ? Collections.emptyList() : null);
+                    continue;
+                }
+
+                if (base == null)
+                    base = new BaseEntry(read(baseZip, baseEntry));
+                if (!Arrays.equals(base.content, modified)) {
+                    List<? extends Change> changes = diff(base, modified);
+                    diffs[i] = new EntryDiff(entry.getName(), ChangeType.REPLACE, changes,
+                            reversible ? reverse(base, modified, changes) : null, base.checksum(),
+                            EntryChecksum.of(modified));
+                }
+            }
+            return diffs;
+        }
+
+        /**
+         * Class diffs refer to the members of the base, so they are diffed the other way. Byte changes are inverted.
+         */
+        @SuppressWarnings("unchecked")
+        private List<? extends Change> reverse(BaseEntry base, byte[] modified, List<? extends Change> changes) throws IOException {
+            if (!changes.isEmpty() && changes.get(0) instanceof ByteCodeChange)
+                return diff(new BaseEntry(modified), base.content);
+            return ChangeInverter.invertBytes(base.content, (List<ByteChange>) changes);
+        }
+
+        private List<? extends Change> diff(BaseEntry base, byte[] modified) throws IOException {
+            if (cache == null)
+                return diffEntry(base, modified, algorithm);
+            DiffCache.Key key = new DiffCache.Key(base.hash(), DiffCache.Key.hash(modified), algorithm);
+            byte[] cached = cache.get(key);
+            if (cached != null)
+                return ChangeCodec.decode(cached);
+            List<? extends Change> changes = diffEntry(base, modified, algorithm);
+            cache.put(key, ChangeCodec.encode(changes));
+            return changes;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package injectr.ipatch.jar;
+
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.Change;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.patch.ChangeApplier;
+import injectr.ipatch.patch.PatchFile;
+import injectr.ipatch.patch.PatchReader;
+import injectr.ipatch.util.BytesUtil;
+import org.apache.commons.compress.archivers.zip.ScatterZipOutputStream;
+import org.apache.commons.compress.archivers.zip.StreamCompressor;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntryRequest;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Applies a patch to a jar. Entries are read, patched and compressed on a worker pool while a single writer emits them
+ * in a fixed order: the order of the base jar, with added entries appended in patch order. Only the changes of the
+ * entry being patched are read from the patch. Unchanged entries are copied with their compressed data as is, so only
+ * changed entries are inflated and deflated.
+ *
+ * Each worker compresses its entry into memory with a {@link ScatterZipOutputStream}, which the writer then copies
+ * into the jar as is. Entries are only started once their size fits in a byte budget, which is released as entries are
+ * written, so memory use is bounded by the budget (or the largest entry) rather than the size of the jar.
+ */
+public class JarPatcher {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    private final int parallelism;
+    private final long memoryBudget;
+
+    public JarPatcher() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * @param memoryBudget The maximum number of entry bytes held in memory by entries which are being patched or are
+     *                     waiting to be written.
+     */
+    public JarPatcher(int parallelism, long memoryBudget) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive!");
+        if (memoryBudget < 1)
+            throw new IllegalArgumentException("Memory budget must be positive!");
+        this.parallelism = parallelism;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Patches {@code base} into {@code output}. The output is written next to its final location first and moved into
+     * place once complete, so the output may be the base jar itself.
+     */
+    public void apply(Path base, PatchReader patch, Path output) throws IOException {
+        Path absolute = output.toAbsolutePath();
+        Files.createDirectories(absolute.getParent());
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            try (ZipFile baseZip = new ZipFile(base.toFile());
+                 ZipArchiveOutputStream out = new ZipArchiveOutputStream(temp.toFile())) {
+                apply(baseZip, patch, out);
+            }
+            try {
+                Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public void apply(ZipFile base, PatchReader patch, ZipArchiveOutputStream out) throws IOException {
+        Map<String, EntryChecksum> checksums = new HashMap<>();
+        for (Enumeration<ZipArchiveEntry> entries = base.getEntries(); entries.hasMoreElements(); ) {
+            ZipArchiveEntry entry = entries.nextElement();
+            checksums.put(entry.getName(), EntryChecksum.of(entry));
+        }
+        check(patch, checksums); //Fail before reading or writing anything
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        Deque<Pending> pending = new ArrayDeque<>(); //Submitted entries, in output order
+        try {
+            for (Enumeration<ZipArchiveEntry> entries = base.getEntries(); entries.hasMoreElements(); ) {
+                ZipArchiveEntry entry = entries.nextElement();
+                PatchFile.Entry patchEntry = patch.getEntry(entry.getName());
+                if (patchEntry == null)
+                    copy(base, pending, out, entry);
+                else if (patchEntry.type() == ChangeType.REPLACE)
+                    submit(pool, base, pending, out, 2 * Math.max(entry.getSize(), 0) + patchEntry.getLength(),
+                            () -> compress(entry, patch(base, entry, patch, patchEntry)));
+            }
+            for (PatchFile.Entry patchEntry : patch.getEntries()) {
+                if (patchEntry.type() == ChangeType.ADD)
+                    submit(pool, base, pending, out, 2L * patchEntry.getLength(),
+                            () -> compress(newEntry(patchEntry.getName()), added(patch.read(patchEntry))));
+            }
+            while (!pending.isEmpty())
+                write(base, pending, out);
+        } finally {
+            for (Pending entry : pending)
+                entry.cancel();
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Checks that the patch adds entries which aren't in the base and changes entries which are, with the checksums
+     * the patch expects. Only the central directory is needed, so a wrong base is rejected right away.
+     *
+     * @param base The checksum of every base entry, null where it isn't known.
+     */
+    static void check(PatchReader patch, Map<String, EntryChecksum> base) throws IOException {
+        for (PatchFile.Entry entry : patch.getEntries()) {
+            if ((entry.type() == ChangeType.ADD) == base.containsKey(entry.getName()))
+                throw new IOException("Patch doesn't match the base, entry " + entry.getName()
+                        + (entry.type() == ChangeType.ADD ? " already exists!" : " is missing!"));
+            EntryChecksum expected = entry.getBase(), actual = base.get(entry.getName());
+            if (expected != null && actual != null && !expected.equals(actual))
+                throw new IOException("Patch doesn't match the base, entry " + entry.getName() + " is " + actual
+                        + " instead of " + expected + "!");
+        }
+    }
+
+    /**
+     * Starts patching an entry once it fits in the budget, writing out finished entries to make room.
+     *
+     * @param size An estimate of the bytes held for the entry, from reading it until it's written.
+     */
+    private void submit(ForkJoinPool pool, ZipFile base, Deque<Pending> pending, ZipArchiveOutputStream out, long size,
+                        Task task) throws IOException {
+        long cost = Math.min(size, memoryBudget); //Entries larger than the whole budget are patched on their own
+        while (!pending.isEmpty() && held(pending) + cost > memoryBudget)
+            write(base, pending, out);
+        pending.add(new Pending(cost, null, pool.submit(() -> {
+            try {
+                return task.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        })));
+    }
+
+    /**
+     * Queues an unchanged entry to be copied as is, without inflating it. Copies hold nothing in memory, they only
+     * wait for the entries before them to be written.
+     */
+    private static void copy(ZipFile base, Deque<Pending> pending, ZipArchiveOutputStream out, ZipArchiveEntry entry)
+            throws IOException {
+        if (!pending.isEmpty()) {
+            pending.add(new Pending(0, entry, null));
+            return;
+        }
+        try (InputStream raw = base.getRawInputStream(entry)) {
+            out.addRawArchiveEntry(entry, raw);
+        }
+    }
+
+    private static long held(Deque<Pending> pending) {
+        long held = 0;
+        for (Pending entry : pending)
+            held += entry.cost;
+        return held;
+    }
+
+    /**
+     * Waits for the oldest pending entry and writes it.
+     */
+    private static void write(ZipFile base, Deque<Pending> pending, ZipArchiveOutputStream out) throws IOException {
+        Pending entry = pending.peek();
+        if (entry.raw != null) {
+            try (InputStream raw = base.getRawInputStream(entry.raw)) {
+                out.addRawArchiveEntry(entry.raw, raw);
+            }
+            pending.remove();
+            return;
+        }
+        try (ScatterZipOutputStream scatter = entry.future.get()) {
+            scatter.writeTo(out);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException)
+                throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while patching!");
+        }
+        pending.remove();
+    }
+
+    private static byte[] patch(ZipFile base, ZipArchiveEntry entry, PatchReader patch, PatchFile.Entry patchEntry)
+            throws IOException {
+        byte[] content;
+        try (InputStream in = base.getInputStream(entry)) {
+            content = BytesUtil.readAll(in, entry.getSize());
+        }
+        return ChangeApplier.apply(content, patch.read(patchEntry).getChanges());
+    }
+
+    /**
+     * The content of an added entry.
+     */
+    public static byte[] added(EntryDiff entry) throws IOException {
+        List<? extends Change> changes = entry.getChanges();
+        if (changes.size() != 1 || !(changes.get(0) instanceof ByteChange))
+            throw new IOException("Invalid added entry " + entry.getName() + "!");
+        return ((ByteChange) changes.get(0)).getNewContent();
+    }
+
+    private static ZipArchiveEntry newEntry(String name) {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setMethod(ZipEntry.DEFLATED);
+        return entry;
+    }
+
+    private static ScatterZipOutputStream compress(ZipArchiveEntry base, byte[] content) throws IOException {
+        return compress(base, new ByteArrayInputStream(content));
+    }
+
+    /**
+     * Compresses an entry into memory, keeping the base entry's method, time, extra fields and comment.
+     */
+    private static ScatterZipOutputStream compress(ZipArchiveEntry base, InputStream content) throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry(base);
+        if (entry.getMethod() != ZipEntry.STORED)
+            entry.setMethod(ZipEntry.DEFLATED);
+        MemoryBackingStore store = new MemoryBackingStore();
+        ScatterZipOutputStream scatter = new ScatterZipOutputStream(store,
+                StreamCompressor.create(Deflater.DEFAULT_COMPRESSION, store));
+        try (InputStream in = content) {
+            scatter.addArchiveEntry(ZipArchiveEntryRequest.createZipArchiveEntryRequest(entry, () -> in));
+        } catch (IOException | RuntimeException e) {
+            scatter.close();
+            throw e;
+        }
+        return scatter;
+    }
+
+    private interface Task {
+
+        ScatterZipOutputStream run() throws IOException;
+    }
+
+    private static final class Pending {
+
+        private final long cost;
+        private final ZipArchiveEntry raw; //Set for entries which are copied as is
+        private final Future<ScatterZipOutputStream> future; //Set for entries which are patched or added
+
+        private Pending(long cost, ZipArchiveEntry raw, Future<ScatterZipOutputStream> future) {
+            this.cost = cost;
+            this.raw = raw;
+            this.future = future;
+        }
+
+        private void cancel() {
+            if (future != null && !future.cancel(true) && !future.isCancelled()) {
+                try {
+                    future.get().close();
+                } catch (Exception ignored) { //Already failed, nothing to release
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds compressed entries in memory.
+     */
+    private static final class MemoryBackingStore extends ByteArrayOutputStream implements ScatterGatherBackingStore {
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        @Override
+        public void writeOut(byte[] data, int offset, int length) {
+            write(data, offset, length);
+        }
+
+        @Override
+        public void closeForWriting() {
+        }
+
+        @Override
+        public void close() {
+            buf = new byte[0];
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.bytecode.ClassFile;
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.ByteCodeChange;
+import injectr.ipatch.diff.Change;
+import injectr.ipatch.diff.StageBoundary;
+import injectr.ipatch.diff.bytecode.ClassPatcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies the changes of a single entry to its base content.
+ */
+public final class ChangeApplier {
+
+    private ChangeApplier() {}
+
+    /**
+     * @param changes Either byte changes, sorted and not overlapping, or class changes. Composed patches may hold
+     *                several such lists separated by {@link StageBoundary StageBoundaries}, which are applied in turn.
+     */
+    public static byte[] apply(byte[] base, List<? extends Change> changes) throws IOException {
+        byte[] content = base;
+        int start = 0;
+        for (int i = 0; i < changes.size(); i++) {
+            if (changes.get(i) instanceof StageBoundary) {
+                content = applyStage(content, changes.subList(start, i));
+                start = i + 1;
+            }
+        }
+        return applyStage(content, changes.subList(start, changes.size()));
+    }
+
+    private static byte[] applyStage(byte[] base, List<? extends Change> changes) throws IOException {
+        if (changes.isEmpty())
+            return base;
+        if (changes.get(0) instanceof ByteCodeChange)
+            return applyClass(base, cast(changes, ByteCodeChange.class));
+        if (changes.get(0) instanceof ByteChange)
+            return applyBytes(base, cast(changes, ByteChange.class));
+        throw new IOException("Unsupported change: " + changes.get(0).getClass().getName());
+    }
+
+    public static byte[] applyBytes(byte[] base, List<ByteChange> changes) throws IOException {
+        long length = base.length;
+        int position = 0;
+        for (ByteChange change : changes) {
+            if (change.getStartIndex() < position || change.getEndIndex() < change.getStartIndex() - 1
+                    || change.getEndIndex() >= base.length)
+                throw new IOException("Change out of bounds!");
+            length += (change.getNewContent() == null ? 0 : change.getNewContent().length)
+                    - (change.getEndIndex() - change.getStartIndex() + 1);
+            position = change.getEndIndex() + 1;
+        }
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Patched content is too large!");
+
+        byte[] patched = new byte[(int) length];
+        int from = 0, to = 0;
+        for (ByteChange change : changes) {
+            System.arraycopy(base, from, patched, to, change.getStartIndex() - from);
+            to += change.getStartIndex() - from;
+            if (change.getNewContent() != null) {
+                System.arraycopy(change.getNewContent(), 0, patched, to, change.getNewContent().length);
+                to += change.getNewContent().length;
+            }
+            from = change.getEndIndex() + 1;
+        }
+        System.arraycopy(base, from, patched, to, base.length - from);
+        return patched;
+    }
+
+    public static byte[] applyClass(byte[] base, List<ByteCodeChange> changes) throws IOException {
+        ClassFile patched = new ClassPatcher().apply(ClassFile.readFrom(base), changes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(base.length);
+        patched.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static <T extends Change> List<T> cast(List<? extends Change> changes, Class<T> kind) throws IOException {
+        List<T> cast = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            if (!kind.isInstance(change))
+                throw new IOException("Mixed change kinds in one entry!");
+            cast.add(kind.cast(change));
+        }
+        return cast;
+    }
+}
@@ -0,0 +1,162 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.ByteCodeChange;
+import injectr.ipatch.diff.Change;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.StageBoundary;
+import injectr.ipatch.diff.StringChange;
+import injectr.ipatch.util.VarInt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializes lists of changes.
+ *
+ * Format: varint change count, then per change a u1 tag (kind in the high nibble, change type in the low nibble) and
+ * the fields of the change. Ranges are written relative to the end of the previous range of the same kind as zigzag
+ * varints, so sorted changes only take a byte or two per position. Contents are written as a varint of the length + 1
+ * (0 for null) followed by the bytes, strings as UTF-8. Stage boundaries have no fields and restart the ranges.
+ */
+public final class ChangeCodec {
+
+    private static final int BYTE = 0, STRING = 1, BYTECODE = 2, STAGE = 3;
+
+    private ChangeCodec() {}
+
+    public static byte[] encode(List<? extends Change> changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        VarInt.write(out, changes.size());
+        int next = 0; //Position after the previous range
+        for (Change change : changes) {
+            if (change instanceof ByteChange) {
+                ByteChange byteChange = (ByteChange) change;
+                out.writeByte(tag(BYTE, change.type()));
+                next = writeRange(out, next, byteChange.getStartIndex(), byteChange.getEndIndex());
+                writeBytes(out, byteChange.getNewContent());
+            } else if (change instanceof StringChange) {
+                StringChange stringChange = (StringChange) change;
+                out.writeByte(tag(STRING, change.type()));
+                next = writeRange(out, next, stringChange.getStartLine(), stringChange.getEndLine());
+                writeString(out, stringChange.getNewContent());
+            } else if (change instanceof ByteCodeChange) {
+                ByteCodeChange byteCodeChange = (ByteCodeChange) change;
+                out.writeByte(tag(BYTECODE, change.type()));
+                out.writeByte(byteCodeChange.getTarget().ordinal());
+                writeString(out, byteCodeChange.getKey());
+                VarInt.writeSigned(out, byteCodeChange.getIndex());
+                writeBytes(out, byteCodeChange.getNewContent());
+            } else if (change instanceof StageBoundary) {
+                out.writeByte(tag(STAGE, change.type()));
+                next = 0;
+            } else {
+                throw new IllegalArgumentException("Unknown change: " + change.getClass().getName());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public static List<Change> decode(byte[] encoded) throws IOException {
+        return decode(ByteBuffer.wrap(encoded));
+    }
+
+    /**
+     * Decodes the changes between the buffer's position and limit. The buffer's position is advanced to its limit.
+     */
+    public static List<Change> decode(ByteBuffer encoded) throws IOException {
+        try {
+            int count = VarInt.readInt(encoded);
+            List<Change> changes = new ArrayList<>(Math.min(count, encoded.remaining()));
+            int next = 0;
+            for (int i = 0; i < count; i++) {
+                int tag = encoded.get() & 0xFF;
+                int kind = tag >>> 4;
+                ChangeType type = read(ChangeType.values(), tag & 0xF);
+                switch (kind) {
+                    case BYTE:
+                    case STRING:
+                        int start = next + VarInt.readSignedInt(encoded);
+                        int end = start + VarInt.readSignedInt(encoded) - 1;
+                        next = end + 1;
+                        changes.add(kind == BYTE ? new ByteChange(type, start, end, readBytes(encoded))
+                                : new StringChange(type, start, end, readString(encoded)));
+                        break;
+                    case BYTECODE:
+                        ByteCodeChange.Target target = read(ByteCodeChange.Target.values(), encoded.get() & 0xFF);
+                        changes.add(new ByteCodeChange(type, target, readString(encoded), VarInt.readSignedInt(encoded),
+                                readBytes(encoded)));
+                        break;
+                    case STAGE:
+                        changes.add(StageBoundary.INSTANCE);
+                        next = 0;
+                        break;
+                    default:
+                        throw new IOException("Unknown change kind " + kind + "!");
+                }
+            }
+            if (encoded.hasRemaining())
+                throw new IOException("Trailing bytes after changes!");
+            return changes;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated changes!", e);
+        }
+    }
+
+    private static int tag(int kind, ChangeType type) {
+        return kind << 4 | type.ordinal();
+    }
+
+    /**
+     * Writes an inclusive range as its offset from {@code next} and its length.
+     *
+     * @return The position after the range.
+     */
+    private static int writeRange(DataOutputStream out, int next, int start, int end) throws IOException {
+        VarInt.writeSigned(out, (long) start - next);
+        VarInt.writeSigned(out, (long) end - start + 1);
+        return end + 1;
+    }
+
+    private static <T> T read(T[] values, int ordinal) throws IOException {
+        if (ordinal >= values.length)
+            throw new IOException("Invalid ordinal " + ordinal + "!");
+        return values[ordinal];
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            VarInt.write(out, 0);
+        } else {
+            VarInt.write(out, bytes.length + 1L);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        int length = VarInt.readInt(in) - 1;
+        if (length > in.remaining())
+            throw new IOException("Invalid content length!");
+        if (length == -1)
+            return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        writeBytes(out, string == null ? null : string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,45 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.ByteCodeChange;
+import injectr.ipatch.diff.Change;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.StageBoundary;
+import injectr.ipatch.diff.StringChange;
+import injectr.ipatch.jar.EntryChecksum;
+import injectr.ipatch.jar.EntryDiff;
+
+import java.util.List;
+
+/**
+ * How an entry's changes were produced, as recorded in the table of contents so patches can be inspected without
+ * reading their records. Ordinals are persisted.
+ */
+public enum EntryMethod {
+    NONE, //No changes, such as removed entries
+    CONTENT, //The whole content is stored
+    BYTES, //Byte ranges, from a binary delta or coalesced line changes
+    LINES, //Line changes
+    MEMBERS, //Class member changes
+    STAGED; //Several lists of changes applied one after another, from composed patches
+
+    public static EntryMethod of(EntryDiff entry) {
+        List<? extends Change> changes = entry.getChanges();
+        if (changes.isEmpty())
+            return NONE;
+        if (entry.type() == ChangeType.ADD)
+            return CONTENT;
+        for (Change change : changes)
+            if (change instanceof StageBoundary)
+                return STAGED;
+        Change first = changes.get(0);
+        if (first instanceof ByteCodeChange)
+            return MEMBERS;
+        if (first instanceof StringChange)
+            return LINES;
+        EntryChecksum base = entry.getBase();
+        ByteChange change = (ByteChange) first;
+        return changes.size() == 1 && change.getStartIndex() == 0 && base != null
+                && change.getEndIndex() == base.getSize() - 1 ? CONTENT : BYTES;
+    }
+}
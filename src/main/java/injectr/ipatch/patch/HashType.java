@@ -0,0 +1,51 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.util.BytesUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * How patch records are hashed.
+ */
+public enum HashType {
+    NONE(0),
+    CRC32(4),
+    SHA256(32);
+
+    private final int length;
+
+    HashType(int length) {
+        this.length = length;
+    }
+
+    /**
+     * The length of a hash in bytes.
+     */
+    public int length() {
+        return length;
+    }
+
+    public byte[] hash(byte[] bytes) {
+        return hash(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Hashes the bytes between the buffer's position and limit, without moving its position.
+     */
+    public byte[] hash(ByteBuffer bytes) {
+        switch (this) {
+            case CRC32:
+                java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+                crc.update(bytes.duplicate());
+                return BytesUtil.intToBytes((int) crc.getValue());
+            case SHA256:
+                MessageDigest digest = DigestUtils.getSha256Digest();
+                digest.update(bytes.duplicate());
+                return digest.digest();
+            default:
+                return new byte[0];
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.compress.ZstdDictionary;
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.Change;
+import injectr.ipatch.diff.ChangeComposer;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.jar.EntryChecksum;
+import injectr.ipatch.jar.EntryDiff;
+import injectr.ipatch.jar.JarPatcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Squashes consecutive patches, A to B then B to C, into a single patch from A to C. Entries are composed from the
+ * patches alone with {@link ChangeComposer}, neither jar is read and B is never built.
+ *
+ * The composition of reversible patches is reversible, its reverse changes are the composition of the reverse changes
+ * in the opposite order. An entry which the first patch removes and the second patch adds again can only be composed
+ * when the patches are reversible, since the composed patch has to replace the content of A as a whole.
+ */
+public final class PatchComposer {
+
+    private PatchComposer() {}
+
+    /**
+     * Composes a chain of patches, each applying to the result of the previous one, and writes the composed patch
+     * with the header of the last one. The composed patch is reversible if all the patches are.
+     */
+    public static void compose(List<Path> patches, OutputStream out) throws IOException {
+        compose(patches, null, out);
+    }
+
+    /**
+     * @param dictionary The shared dictionary the patches were written with, may be null if there is none.
+     */
+    public static void compose(List<Path> patches, ZstdDictionary dictionary, OutputStream out) throws IOException {
+        if (patches.isEmpty())
+            throw new IllegalArgumentException("No patches to compose!");
+        boolean reversible = true;
+        for (Path patch : patches) {
+            try (PatchReader reader = new PatchReader(patch, dictionary)) {
+                reversible &= reader.getHeader().isReversible();
+            }
+        }
+
+        List<EntryDiff> composed = new ArrayList<>();
+        PatchFile.Header header;
+        try (PatchReader first = new PatchReader(patches.get(0), dictionary)) {
+            for (PatchFile.Entry entry : first.getEntries())
+                composed.add(reversible ? first.readWithReverse(entry) : first.read(entry));
+            header = first.getHeader();
+        }
+        for (Path patch : patches.subList(1, patches.size())) {
+            try (PatchReader next = new PatchReader(patch, dictionary)) {
+                composed = compose(composed, next);
+                header = next.getHeader();
+            }
+        }
+        PatchFile.write(new PatchFile.Header(header.getAlgorithm(), header.getHashType(), header.getCompression(),
+                reversible, header.getDictionary(), header.isDictionaryShared()), composed, out);
+    }
+
+    /**
+     * @param first The entries of the first patch, in order. If they all have their reverse changes and the second
+     *              patch is reversible, so are the composed entries.
+     * @return The entries of the composed patch. Entries changed by the first patch keep their order, followed by
+     * the entries only changed by the second patch.
+     * @throws IOException If the second patch doesn't apply to the result of the first.
+     */
+    public static List<EntryDiff> compose(List<EntryDiff> first, PatchReader second) throws IOException {
+        boolean reversible = second.getHeader().isReversible();
+        for (EntryDiff entry : first)
+            reversible &= entry.getReverse() != null;
+
+        List<EntryDiff> composed = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (EntryDiff entry : first) {
+            names.add(entry.getName());
+            PatchFile.Entry next = second.getEntry(entry.getName());
+            EntryDiff squashed = next == null ? entry : compose(entry, read(second, next, reversible), reversible);
+            if (squashed != null)
+                composed.add(squashed);
+        }
+        for (PatchFile.Entry entry : second.getEntries())
+            if (!names.contains(entry.getName()))
+                composed.add(read(second, entry, reversible));
+        return composed;
+    }
+
+    private static EntryDiff read(PatchReader patch, PatchFile.Entry entry, boolean reversible) throws IOException {
+        return reversible ? patch.readWithReverse(entry) : patch.read(entry);
+    }
+
+    /**
+     * @return The composed entry or null if the patches cancel out.
+     */
+    private static EntryDiff compose(EntryDiff first, EntryDiff second, boolean reversible) throws IOException {
+        String name = first.getName();
+        EntryChecksum intermediate = first.getResult();
+        if (intermediate != null && second.getBase() != null && !intermediate.equals(second.getBase()))
+            throw new IOException("Patches don't follow each other, entry " + name + " differs in between!");
+        switch (first.type()) {
+            case ADD:
+                if (second.type() == ChangeType.REMOVE)
+                    return null;
+                if (second.type() == ChangeType.REPLACE)
+                    return new EntryDiff(name, ChangeType.ADD, Collections.singletonList(new ByteChange(ChangeType.ADD,
+                            0, -1, ChangeApplier.apply(JarPatcher.added(first), second.getChanges()))),
+                            reversible ? Collections.emptyList() : null);
+                throw new IOException("Patches don't follow each other, entry " + name + " is added twice!");
+            case REMOVE:
+                if (second.type() == ChangeType.ADD && reversible) {
+                    byte[] base = JarPatcher.added(first.inverse()), modified = JarPatcher.added(second);
+                    return new EntryDiff(name, ChangeType.REPLACE, replace(base, modified), replace(modified, base),
+                            first.getBase(), EntryChecksum.of(modified));
+                }
+                if (second.type() == ChangeType.ADD)
+                    throw new IOException("Entry " + name + " is removed then added again, which can't be composed "
+                            + "unless the patches are reversible!");
+                throw new IOException("Patches don't follow each other, entry " + name + " is already removed!");
+            default:
+                if (second.type() == ChangeType.ADD)
+                    throw new IOException("Patches don't follow each other, entry " + name + " already exists!");
+                if (second.type() == ChangeType.REMOVE) //The base content is the intermediate content, reverted
+                    return new EntryDiff(name, ChangeType.REMOVE, second.getChanges(), !reversible ? null
+                            : Collections.singletonList(new ByteChange(ChangeType.ADD, 0, -1,
+                                    ChangeApplier.apply(JarPatcher.added(second.inverse()), first.getReverse()))),
+                            first.getBase(), null);
+                List<Change> changes = ChangeComposer.compose(first.getChanges(), second.getChanges());
+                if (changes.isEmpty())
+                    return null;
+                return new EntryDiff(name, ChangeType.REPLACE, changes,
+                        reversible ? ChangeComposer.compose(second.getReverse(), first.getReverse()) : null,
+                        first.getBase(), second.getResult());
+        }
+    }
+
+    private static List<ByteChange> replace(byte[] base, byte[] modified) {
+        return Collections.singletonList(new ByteChange(base.length == 0 ? ChangeType.ADD : ChangeType.REPLACE, 0,
+                base.length - 1, modified));
+    }
+}
@@ -0,0 +1,519 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.compress.Codecs;
+import injectr.ipatch.compress.CompressType;
+import injectr.ipatch.compress.Compressor;
+import injectr.ipatch.compress.ZstdDictionary;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.DiffAlgorithm;
+import injectr.ipatch.jar.EntryChecksum;
+import injectr.ipatch.jar.EntryDiff;
+import injectr.ipatch.util.VarInt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads and writes jar patches. Patches are read as a whole with {@link #read(InputStream, ZstdDictionary)}, or entry
+ * by entry with a {@link PatchReader}.
+ *
+ * Format: u4 magic, u2 version, u1 diff algorithm, u1 hash type, u1 compression, u1 flags, u4 table of contents
+ * length, the table of contents and then the change records of every entry, in table order.
+ *
+ * Table of contents: varint entry count, then per entry its name, u1 change type, varint record length, the hash of
+ * its record and the checksums of the entry before and after patching, when recorded. Names are UTF-8, written as a
+ * varint of the number of bytes shared with the previous name, a varint suffix length and the suffix, so the common
+ * package prefixes of jar entries are only stored once. The change type byte also holds the entry's
+ * {@link EntryMethod} ({@link #METHOD_MASK}) and flags which checksums follow ({@link #BASE_CHECKSUM},
+ * {@link #RESULT_CHECKSUM}), each a varint size and a u4 CRC-32. A record starts where the previous one ends, the
+ * first right after the table of contents. Records are encoded by {@link ChangeCodec}.
+ *
+ * Reversible patches ({@link #REVERSIBLE}) also record the changes undoing each entry, see
+ * {@link EntryDiff#getReverse()}. Their table of contents entries are followed by a varint reverse record length and
+ * the hash of the reverse record, which comes right after the entry's record. Reverse records of uncompressed patches
+ * are deflated since they mostly hold removed content.
+ *
+ * Compressed patches compress everything after the table of contents as a single stream with the {@link Codecs} of
+ * their compression. The header and table of contents stay as they are, so a patch can still be inspected and
+ * filtered without decompressing it. Record offsets and lengths refer to the decompressed records.
+ *
+ * Patches with a dictionary ({@link #DICTIONARY}) instead compress every record on its own with a
+ * {@link ZstdDictionary}, so records stay independently decodable. Their table of contents starts with the u4
+ * dictionary id, a varint dictionary length and the dictionary, or no dictionary when it is shared and provided
+ * separately when reading. Record lengths and hashes refer to the compressed records.
+ */
+public final class PatchFile {
+
+    public static final int MAGIC = 0x49504154; //"IPAT"
+    public static final int VERSION = 5;
+    public static final int REVERSIBLE = 1; //Flag, records carry the changes undoing them
+    public static final int DICTIONARY = 2; //Flag, records are compressed with a dictionary
+    public static final int BASE_CHECKSUM = 0x40, RESULT_CHECKSUM = 0x80; //Change type flags
+    public static final int METHOD_MASK = 0x1C, METHOD_SHIFT = 2; //Change type bits holding the entry method
+    static final int HEADER_LENGTH = 4 + 2 + 4 + 4;
+
+    private PatchFile() {}
+
+    public static void write(Header header, List<EntryDiff> entries, OutputStream stream) throws IOException {
+        Compressor compressor = Codecs.compressor(header.compression);
+        if (header.usesDictionary && header.compression != CompressType.NONE)
+            throw new IOException("Patches with a dictionary can't be compressed as a whole!");
+        List<byte[]> records = new ArrayList<>(entries.size());
+        ByteArrayOutputStream toc = new ByteArrayOutputStream();
+        DataOutputStream tocOut = new DataOutputStream(toc);
+        if (header.usesDictionary) {
+            tocOut.writeInt(header.dictionaryId);
+            byte[] dictionary = header.sharedDictionary ? new byte[0] : dictionary(header).getBytes();
+            VarInt.write(tocOut, dictionary.length);
+            tocOut.write(dictionary);
+        }
+        VarInt.write(tocOut, entries.size());
+        byte[] previousName = new byte[0];
+        for (EntryDiff entry : entries) {
+            byte[] record = ChangeCodec.encode(entry.getChanges());
+            if (header.usesDictionary)
+                record = dictionary(header).compress(record);
+            records.add(record);
+            byte[] reverse = null;
+            if (header.reversible) {
+                if (entry.getReverse() == null)
+                    throw new IOException("The reverse changes of " + entry.getName() + " weren't recorded!");
+                reverse = ChangeCodec.encode(entry.getReverse());
+                if (header.usesDictionary)
+                    reverse = dictionary(header).compress(reverse);
+                else if (header.compression == CompressType.NONE)
+                    reverse = deflate(reverse);
+                records.add(reverse);
+            }
+
+            byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            while (shared < Math.min(name.length, previousName.length) && name[shared] == previousName[shared])
+                shared++;
+            VarInt.write(tocOut, shared);
+            VarInt.write(tocOut, name.length - shared);
+            tocOut.write(name, shared, name.length - shared);
+            EntryChecksum base = entry.type() == ChangeType.ADD ? null : entry.getBase();
+            EntryChecksum result = entry.type() == ChangeType.REPLACE ? entry.getResult() : null;
+            tocOut.writeByte(entry.type().ordinal() | EntryMethod.of(entry).ordinal() << METHOD_SHIFT
+                    | (base != null ? BASE_CHECKSUM : 0) | (result != null ? RESULT_CHECKSUM : 0));
+            VarInt.write(tocOut, record.length);
+            tocOut.write(header.hashType.hash(record));
+            if (base != null)
+                writeChecksum(tocOut, base);
+            if (result != null)
+                writeChecksum(tocOut, result);
+            if (reverse != null) {
+                VarInt.write(tocOut, reverse.length);
+                tocOut.write(header.hashType.hash(reverse));
+            }
+            previousName = name;
+        }
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeByte(header.algorithm.ordinal());
+        out.writeByte(header.hashType.ordinal());
+        out.writeByte(header.compression.ordinal());
+        out.writeByte((header.reversible ? REVERSIBLE : 0) | (header.usesDictionary ? DICTIONARY : 0));
+        out.writeInt(toc.size());
+        toc.writeTo(out);
+        try (OutputStream compressed = compressor.compress(new Unclosable(out))) {
+            for (byte[] record : records)
+                compressed.write(record);
+        }
+        out.flush();
+    }
+
+    public static List<EntryDiff> read(InputStream stream) throws IOException {
+        return read(stream, null);
+    }
+
+    /**
+     * Reads a whole patch, along with the reverse changes of reversible patches.
+     *
+     * @param dictionary The shared dictionary the patch was written with, may be null if there is none.
+     */
+    public static List<EntryDiff> read(InputStream stream, ZstdDictionary dictionary) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] headerBytes = new byte[HEADER_LENGTH];
+        in.readFully(headerBytes);
+        byte[] toc = new byte[tocLength(headerBytes)];
+        in.readFully(toc);
+        Header header = readDictionary(readHeader(headerBytes), toc, dictionary);
+        if (header.compression != CompressType.NONE) //Not closed, the stream belongs to the caller
+            in = new DataInputStream(Codecs.decompressor(header.compression).decompress(in));
+        List<EntryDiff> entries = new ArrayList<>();
+        for (Entry entry : readToc(header, toc, HEADER_LENGTH + toc.length)) {
+            byte[] record = new byte[entry.length], reverse = new byte[entry.reverseLength];
+            in.readFully(record);
+            in.readFully(reverse);
+            EntryDiff diff = decode(header, entry, ByteBuffer.wrap(record));
+            entries.add(header.reversible ? withReverse(header, entry, diff, ByteBuffer.wrap(reverse)) : diff);
+        }
+        return entries;
+    }
+
+    static Header readHeader(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a patch file!");
+        int version = in.readUnsignedShort();
+        if (version != VERSION)
+            throw new IOException("Unsupported patch version " + version + "!");
+        DiffAlgorithm algorithm = read(DiffAlgorithm.values(), in.readUnsignedByte());
+        HashType hashType = read(HashType.values(), in.readUnsignedByte());
+        CompressType compression = read(CompressType.values(), in.readUnsignedByte());
+        int flags = in.readUnsignedByte();
+        Header header = new Header(algorithm, hashType, compression, (flags & REVERSIBLE) != 0, null, false, 0,
+                (flags & DICTIONARY) != 0);
+        if (!Codecs.canDecompress(header.compression))
+            throw new IOException("Unsupported patch compression " + header.compression.name() + "!");
+        return header;
+    }
+
+    static int tocLength(byte[] header) throws IOException {
+        int length = (header[10] & 0xFF) << 24 | (header[11] & 0xFF) << 16 | (header[12] & 0xFF) << 8 | (header[13] & 0xFF);
+        if (length < 0)
+            throw new IOException("Invalid table of contents length!");
+        return length;
+    }
+
+    /**
+     * Reads the dictionary at the start of the table of contents, if the patch has one.
+     *
+     * @param shared The dictionary to use if the patch doesn't contain its own, may be null.
+     * @return The header along with the dictionary. Its dictionary is null if the patch uses a shared dictionary which
+     * wasn't given, records can't be decoded then.
+     */
+    static Header readDictionary(Header header, byte[] toc, ZstdDictionary shared) throws IOException {
+        if (!header.usesDictionary)
+            return header;
+        DataInput in = new DataInputStream(new ByteArrayInputStream(toc));
+        int id = in.readInt();
+        byte[] bytes = new byte[VarInt.readInt(in)];
+        if (bytes.length > toc.length)
+            throw new IOException("Invalid dictionary!");
+        in.readFully(bytes);
+        ZstdDictionary dictionary = bytes.length == 0 ? shared : ZstdDictionary.of(bytes);
+        if (dictionary != null && dictionary.getId() != id)
+            throw new IOException(String.format("Wrong dictionary %08x, the patch was written with %08x!",
+                    dictionary.getId(), id));
+        return new Header(header.algorithm, header.hashType, header.compression, header.reversible, dictionary,
+                bytes.length == 0, id, true);
+    }
+
+    /**
+     * @param dataStart The offset of the first record in the file.
+     */
+    static List<Entry> readToc(Header header, byte[] toc, long dataStart) throws IOException {
+        DataInput in = new DataInputStream(new ByteArrayInputStream(toc));
+        if (header.usesDictionary) { //Read by readDictionary
+            in.readInt();
+            in.skipBytes(VarInt.readInt(in));
+        }
+        int count = VarInt.readInt(in);
+        List<Entry> entries = new ArrayList<>(Math.min(count, toc.length));
+        byte[] name = new byte[0];
+        long offset = dataStart;
+        for (int i = 0; i < count; i++) {
+            int shared = VarInt.readInt(in), suffix = VarInt.readInt(in);
+            if (shared > name.length || suffix > toc.length)
+                throw new IOException("Invalid entry name!");
+            name = Arrays.copyOf(name, shared + suffix);
+            in.readFully(name, shared, suffix);
+            int flags = in.readUnsignedByte();
+            ChangeType type = read(ChangeType.values(), flags & ~(METHOD_MASK | BASE_CHECKSUM | RESULT_CHECKSUM));
+            EntryMethod method = read(EntryMethod.values(), (flags & METHOD_MASK) >> METHOD_SHIFT);
+            int length = VarInt.readInt(in);
+            byte[] hash = new byte[header.hashType.length()];
+            in.readFully(hash);
+            EntryChecksum base = (flags & BASE_CHECKSUM) != 0 ? readChecksum(in) : null;
+            EntryChecksum result = (flags & RESULT_CHECKSUM) != 0 ? readChecksum(in) : null;
+            int reverseLength = 0;
+            byte[] reverseHash = null;
+            if (header.reversible) {
+                reverseLength = VarInt.readInt(in);
+                reverseHash = new byte[header.hashType.length()];
+                in.readFully(reverseHash);
+            }
+            entries.add(new Entry(new String(name, StandardCharsets.UTF_8), type, method, offset, length, hash,
+                    reverseLength, reverseHash, base, result));
+            offset += length + reverseLength;
+        }
+        return entries;
+    }
+
+    private static void writeChecksum(DataOutputStream out, EntryChecksum checksum) throws IOException {
+        VarInt.write(out, checksum.getSize());
+        out.writeInt((int) checksum.getCrc());
+    }
+
+    private static EntryChecksum readChecksum(DataInput in) throws IOException {
+        long size = VarInt.read(in);
+        return new EntryChecksum(in.readInt() & 0xFFFFFFFFL, size);
+    }
+
+    /**
+     * Checks a record against its hash and decodes its changes.
+     */
+    static EntryDiff decode(Header header, Entry entry, ByteBuffer record) throws IOException {
+        if (header.hashType != HashType.NONE && !Arrays.equals(entry.hash, header.hashType.hash(record)))
+            throw new IOException("Corrupted patch entry " + entry.name + "!");
+        if (header.usesDictionary)
+            record = ByteBuffer.wrap(dictionary(header).decompress(record));
+        return new EntryDiff(entry.name, entry.type, ChangeCodec.decode(record), null, entry.base, entry.result);
+    }
+
+    /**
+     * Checks a reverse record against its hash and adds its changes to the entry's diff.
+     */
+    static EntryDiff withReverse(Header header, Entry entry, EntryDiff diff, ByteBuffer reverse) throws IOException {
+        if (header.hashType != HashType.NONE && !Arrays.equals(entry.reverseHash, header.hashType.hash(reverse)))
+            throw new IOException("Corrupted patch entry " + entry.name + "!");
+        byte[] bytes = new byte[reverse.remaining()];
+        reverse.get(bytes);
+        if (header.usesDictionary)
+            bytes = dictionary(header).decompress(ByteBuffer.wrap(bytes));
+        else if (header.compression == CompressType.NONE)
+            bytes = inflate(bytes);
+        return new EntryDiff(diff.getName(), diff.type(), diff.getChanges(), ChangeCodec.decode(bytes),
+                diff.getBase(), entry.result);
+    }
+
+    private static ZstdDictionary dictionary(Header header) throws IOException {
+        if (header.dictionary == null)
+            throw new IOException(String.format("The patch needs the shared dictionary %08x!", header.dictionaryId));
+        return header.dictionary;
+    }
+
+    private static byte[] deflate(byte[] bytes) throws IOException {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(bytes.length / 2 + 16);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(deflated, deflater)) {
+            out.write(bytes);
+        } finally {
+            deflater.end();
+        }
+        return deflated.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] bytes) throws IOException {
+        try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(bytes))) {
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(bytes.length * 2);
+            byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+                inflated.write(buffer, 0, read);
+            return inflated.toByteArray();
+        } catch (ZipException e) {
+            throw new IOException("Corrupted reverse changes!", e);
+        }
+    }
+
+    private static <T> T read(T[] values, int ordinal) throws IOException {
+        if (ordinal >= values.length)
+            throw new IOException("Invalid ordinal " + ordinal + "!");
+        return values[ordinal];
+    }
+
+    /**
+     * Keeps compressors from closing the patch stream when they finish.
+     */
+    private static final class Unclosable extends FilterOutputStream {
+
+        private Unclosable(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * How a patch was generated and stored.
+     */
+    public static final class Header {
+
+        private final DiffAlgorithm algorithm;
+        private final HashType hashType;
+        private final CompressType compression;
+        private final boolean reversible;
+        private final ZstdDictionary dictionary; //Null unless known
+        private final boolean sharedDictionary, usesDictionary;
+        private final int dictionaryId;
+
+        public Header(DiffAlgorithm algorithm, HashType hashType, CompressType compression) {
+            this(algorithm, hashType, compression, false);
+        }
+
+        /**
+         * @param reversible Whether the reverse changes of every entry are recorded.
+         */
+        public Header(DiffAlgorithm algorithm, HashType hashType, CompressType compression, boolean reversible) {
+            this(algorithm, hashType, compression, reversible, null, false);
+        }
+
+        /**
+         * @param dictionary The dictionary every record is compressed with, or null to store records as they are.
+         *                   Requires the compression to be {@link CompressType#NONE}.
+         * @param shared Whether the dictionary is left out of the patch, it then has to be given to read the patch.
+         */
+        public Header(DiffAlgorithm algorithm, HashType hashType, CompressType compression, boolean reversible,
+                      ZstdDictionary dictionary, boolean shared) {
+            this(algorithm, hashType, compression, reversible, dictionary, shared,
+                    dictionary == null ? 0 : dictionary.getId(), dictionary != null);
+        }
+
+        private Header(DiffAlgorithm algorithm, HashType hashType, CompressType compression, boolean reversible,
+                       ZstdDictionary dictionary, boolean shared, int dictionaryId, boolean usesDictionary) {
+            this.algorithm = algorithm;
+            this.hashType = hashType;
+            this.compression = compression;
+            this.reversible = reversible;
+            this.dictionary = dictionary;
+            this.sharedDictionary = shared;
+            this.dictionaryId = dictionaryId;
+            this.usesDictionary = usesDictionary;
+        }
+
+        public DiffAlgorithm getAlgorithm() {
+            return algorithm;
+        }
+
+        public HashType getHashType() {
+            return hashType;
+        }
+
+        public CompressType getCompression() {
+            return compression;
+        }
+
+        public boolean isReversible() {
+            return reversible;
+        }
+
+        /**
+         * Whether records are compressed with a dictionary, see {@link #getDictionary()}.
+         */
+        public boolean usesDictionary() {
+            return usesDictionary;
+        }
+
+        /**
+         * The dictionary records are compressed with, or null if there is none or it is shared and wasn't given.
+         */
+        public ZstdDictionary getDictionary() {
+            return dictionary;
+        }
+
+        public boolean isDictionaryShared() {
+            return sharedDictionary;
+        }
+
+        public int getDictionaryId() {
+            return dictionaryId;
+        }
+    }
+
+    /**
+     * A table of contents entry, locating the record of a single jar entry.
+     */
+    public static final class Entry {
+
+        private final String name;
+        private final ChangeType type;
+        private final EntryMethod method;
+        private final long offset;
+        private final int length;
+        private final byte[] hash;
+        private final int reverseLength; //0 unless the patch is reversible
+        private final byte[] reverseHash;
+        private final EntryChecksum base, result;
+
+        Entry(String name, ChangeType type, EntryMethod method, long offset, int length, byte[] hash, int reverseLength,
+              byte[] reverseHash, EntryChecksum base, EntryChecksum result) {
+            this.name = name;
+            this.type = type;
+            this.method = method;
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+            this.reverseLength = reverseLength;
+            this.reverseHash = reverseHash;
+            this.base = base;
+            this.result = result;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ChangeType type() {
+            return type;
+        }
+
+        public EntryMethod getMethod() {
+            return method;
+        }
+
+        /**
+         * The offset of the entry's record in the patch file.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * The length of the entry's record in bytes.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * The length of the entry's reverse record in bytes, which follows its record. 0 unless the patch is
+         * reversible.
+         */
+        public int getReverseLength() {
+            return reverseLength;
+        }
+
+        /**
+         * The checksum the base entry must have, or null if it isn't recorded or the entry is added.
+         */
+        public EntryChecksum getBase() {
+            return base;
+        }
+
+        /**
+         * The checksum of the patched entry, or null if it isn't recorded or the entry isn't replaced.
+         */
+        public EntryChecksum getResult() {
+            return result;
+        }
+    }
+}
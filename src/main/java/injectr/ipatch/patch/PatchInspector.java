@@ -0,0 +1,125 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.jar.EntryChecksum;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Explains what a patch is made of: byte totals per change type, entry method and package, the estimated cost of
+ * applying it and the entries and packages which contribute most. Only the table of contents is read, so inspecting
+ * takes the same time no matter how large the records are.
+ */
+public final class PatchInspector {
+
+    private PatchInspector() {}
+
+    /**
+     * Estimates the bytes processed to apply an entry: its record is decoded, a replaced entry is inflated, patched and
+     * deflated again, and classes are parsed and written on top of that. Entries without recorded checksums are assumed
+     * to be the size of their record.
+     */
+    public static long cost(PatchFile.Entry entry) {
+        switch (entry.type()) {
+            case ADD:
+                return 2L * entry.getLength();
+            case REMOVE:
+                return 0;
+            default:
+                long base = size(entry.getBase(), entry), result = size(entry.getResult(), entry);
+                return entry.getLength() + (base + result) * (entry.getMethod() == EntryMethod.MEMBERS ? 2 : 1);
+        }
+    }
+
+    private static long size(EntryChecksum checksum, PatchFile.Entry entry) {
+        return checksum == null ? entry.getLength() : checksum.getSize();
+    }
+
+    /**
+     * @param top How many entries and packages to list.
+     */
+    public static void inspect(PatchReader patch, int top, PrintStream out) {
+        PatchFile.Header header = patch.getHeader();
+        Totals all = new Totals("");
+        Map<ChangeType, Totals> types = new EnumMap<>(ChangeType.class);
+        Map<EntryMethod, Totals> methods = new EnumMap<>(EntryMethod.class);
+        Map<String, Totals> packages = new HashMap<>();
+        long reverse = 0;
+        for (PatchFile.Entry entry : patch.getEntries()) {
+            all.add(entry);
+            types.computeIfAbsent(entry.type(), type -> new Totals(type.name())).add(entry);
+            methods.computeIfAbsent(entry.getMethod(), method -> new Totals(method.name())).add(entry);
+            int slash = entry.getName().lastIndexOf('/');
+            String name = slash == -1 ? "(root)" : entry.getName().substring(0, slash + 1);
+            packages.computeIfAbsent(name, Totals::new).add(entry);
+            reverse += entry.getReverseLength();
+        }
+
+        out.printf("Algorithm %s, hash %s, compression %s%s%s%n", header.getAlgorithm(), header.getHashType(),
+                header.getCompression().name(), header.usesDictionary() ? String.format(", %s dictionary %08x",
+                        header.isDictionaryShared() ? "shared" : "embedded", header.getDictionaryId()) : "",
+                header.isReversible() ? ", reversible" : "");
+        out.printf("%d entries, %s of records%s, estimated apply cost %s%n", all.count, size(all.bytes),
+                header.isReversible() ? " and " + size(reverse) + " of reverse records" : "", size(all.cost));
+
+        table(out, "By change type", new ArrayList<>(types.values()), types.size());
+        table(out, "By method", new ArrayList<>(methods.values()), methods.size());
+        table(out, "Largest packages", new ArrayList<>(packages.values()), top);
+
+        List<PatchFile.Entry> entries = new ArrayList<>(patch.getEntries());
+        entries.sort(Comparator.comparingLong(PatchFile.Entry::getLength).reversed());
+        entries(out, "Largest entries", entries, top);
+        entries.sort(Comparator.comparingLong((ToLongFunction<PatchFile.Entry>) PatchInspector::cost).reversed());
+        entries(out, "Costliest entries", entries, top);
+    }
+
+    private static void table(PrintStream out, String title, List<Totals> rows, int top) {
+        rows.sort(Comparator.comparingLong((Totals totals) -> totals.bytes).reversed());
+        out.printf("%n%s:%n", title);
+        out.printf("  %8s %10s %10s%n", "entries", "bytes", "cost");
+        for (Totals row : rows.subList(0, Math.min(top, rows.size())))
+            out.printf("  %8d %10s %10s  %s%n", row.count, size(row.bytes), size(row.cost), row.name);
+    }
+
+    private static void entries(PrintStream out, String title, List<PatchFile.Entry> entries, int top) {
+        out.printf("%n%s:%n", title);
+        out.printf("  %-7s %-7s %10s %10s  %s%n", "type", "method", "bytes", "cost", "name");
+        for (PatchFile.Entry entry : entries.subList(0, Math.min(top, entries.size())))
+            out.printf("  %-7s %-7s %10s %10s  %s%n", entry.type(), entry.getMethod(), size(entry.getLength()),
+                    size(cost(entry)), entry.getName());
+    }
+
+    private static String size(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024)
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    private static final class Totals {
+
+        private final String name;
+        private int count;
+        private long bytes, cost;
+
+        private Totals(String name) {
+            this.name = name;
+        }
+
+        private void add(PatchFile.Entry entry) {
+            count++;
+            bytes += entry.getLength();
+            cost += cost(entry);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.jar.EntryDiff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inverts reversible patches, so that a patched jar can be rolled back without the base jar. Every entry's changes are
+ * swapped with its recorded reverse changes, so inverting takes time linear in the size of the patch and the inverse
+ * is reversible as well.
+ *
+ * Entries the patch removed are added back at the end of the jar, rather than at their original position.
+ */
+public final class PatchInverter {
+
+    private PatchInverter() {}
+
+    public static void invert(PatchReader patch, OutputStream out) throws IOException {
+        PatchFile.write(patch.getHeader(), invert(patch), out);
+    }
+
+    /**
+     * @throws IOException If the patch isn't reversible.
+     */
+    public static List<EntryDiff> invert(PatchReader patch) throws IOException {
+        List<EntryDiff> inverse = new ArrayList<>(patch.getEntries().size());
+        for (PatchFile.Entry entry : patch.getEntries())
+            inverse.add(patch.readWithReverse(entry).inverse());
+        return inverse;
+    }
+}
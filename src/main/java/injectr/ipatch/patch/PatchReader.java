@@ -0,0 +1,263 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.compress.Codecs;
+import injectr.ipatch.compress.CompressType;
+import injectr.ipatch.compress.ZstdDictionary;
+import injectr.ipatch.jar.EntryDiff;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Random access to the entries of a patch file. The file is memory-mapped and only the header and table of contents
+ * are parsed when opening, an entry's changes are decoded straight from the mapping when asked for. Entries can be
+ * read from several threads at once, each read works on its own view of the mapping.
+ *
+ * Files too large for a single mapping have each entry's record mapped on its own instead.
+ *
+ * The records of compressed patches are decompressed into a temporary file the first time a record is read, streaming
+ * so memory use doesn't depend on the size of the patch, and are mapped from there. The table of contents is never
+ * compressed, so looking at the entries alone doesn't decompress anything.
+ *
+ * Records compressed with a dictionary are decompressed one at a time as they are read. Patches using a shared
+ * dictionary can be opened without it, but their records can't be read then.
+ */
+public class PatchReader implements Closeable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer; //Null when the file is too large to map at once
+    private final Records records;
+    private final PatchFile.Header header;
+    private final List<PatchFile.Entry> entries;
+    private final Map<String, PatchFile.Entry> byName = new HashMap<>();
+
+    public PatchReader(Path file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * @param dictionary The shared dictionary the patch was written with, may be null if there is none.
+     */
+    public PatchReader(Path file, ZstdDictionary dictionary) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < PatchFile.HEADER_LENGTH)
+                throw new IOException("Truncated patch file!");
+            this.buffer = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+            byte[] headerBytes = bytes(0, PatchFile.HEADER_LENGTH);
+            int tocLength = PatchFile.tocLength(headerBytes);
+            if (PatchFile.HEADER_LENGTH + (long) tocLength > size)
+                throw new IOException("Truncated patch file!");
+            byte[] toc = bytes(PatchFile.HEADER_LENGTH, tocLength);
+            this.header = PatchFile.readDictionary(PatchFile.readHeader(headerBytes), toc, dictionary);
+            this.entries = Collections.unmodifiableList(PatchFile.readToc(header, toc, PatchFile.HEADER_LENGTH + tocLength));
+            for (PatchFile.Entry entry : entries)
+                byName.put(entry.getName(), entry);
+            long dataStart = PatchFile.HEADER_LENGTH + tocLength, dataEnd = dataStart;
+            if (!entries.isEmpty()) {
+                PatchFile.Entry last = entries.get(entries.size() - 1);
+                dataEnd = last.getOffset() + last.getLength() + last.getReverseLength();
+            }
+            if (header.getCompression() == CompressType.NONE && dataEnd > size)
+                throw new IOException("Truncated patch file!");
+            this.records = new Records(file, dataStart, dataEnd, header.getCompression());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private PatchReader(PatchReader reader, List<PatchFile.Entry> entries) {
+        this.channel = reader.channel;
+        this.buffer = reader.buffer;
+        this.records = reader.records;
+        this.header = reader.header;
+        this.entries = Collections.unmodifiableList(entries);
+        for (PatchFile.Entry entry : entries)
+            byName.put(entry.getName(), entry);
+    }
+
+    /**
+     * A view of the entries whose names match the filter, as if the patch only changed those. Only the table of
+     * contents is looked at, the records of other entries are never read. The view shares this reader's file, closing
+     * either closes both.
+     */
+    public PatchReader filter(Predicate<String> filter) {
+        List<PatchFile.Entry> filtered = new ArrayList<>();
+        for (PatchFile.Entry entry : entries)
+            if (filter.test(entry.getName()))
+                filtered.add(entry);
+        return new PatchReader(this, filtered);
+    }
+
+    public PatchFile.Header getHeader() {
+        return header;
+    }
+
+    /**
+     * The table of contents, in the order the entries were written.
+     */
+    public List<PatchFile.Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return The entry with the given name or null if the patch doesn't change it.
+     */
+    public PatchFile.Entry getEntry(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Decodes the changes of a single entry.
+     */
+    public EntryDiff read(PatchFile.Entry entry) throws IOException {
+        return PatchFile.decode(header, entry, record(entry));
+    }
+
+    /**
+     * Decodes the changes of a single entry along with its reverse changes, see {@link EntryDiff#getReverse()}.
+     *
+     * @throws IOException If the patch isn't reversible.
+     */
+    public EntryDiff readWithReverse(PatchFile.Entry entry) throws IOException {
+        if (!header.isReversible())
+            throw new IOException("The patch isn't reversible!");
+        return PatchFile.withReverse(header, entry, read(entry),
+                region(entry.getOffset() + entry.getLength(), entry.getReverseLength()));
+    }
+
+    /**
+     * A read only view of an entry's encoded record, without copying it.
+     */
+    public ByteBuffer record(PatchFile.Entry entry) throws IOException {
+        return region(entry.getOffset(), entry.getLength());
+    }
+
+    private ByteBuffer region(long position, int length) throws IOException {
+        if (records != null && records.compression != CompressType.NONE && position >= records.dataStart)
+            return records.region(position, length);
+        return region(channel, buffer, position, length);
+    }
+
+    private static ByteBuffer region(FileChannel channel, MappedByteBuffer buffer, long position, int length)
+            throws IOException {
+        if (buffer == null)
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) position);
+        view.limit((int) position + length);
+        return view.slice();
+    }
+
+    private byte[] bytes(long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        region(position, length).get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Closes the file. The mapping itself is released once it is no longer referenced, records returned by
+     * {@link #record(PatchFile.Entry)} stay readable until then.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            records.close();
+        }
+    }
+
+    /**
+     * The decompressed records of a compressed patch, shared by the reader and its filtered views.
+     */
+    private static final class Records implements Closeable {
+
+        private final Path file;
+        private final long dataStart, dataEnd;
+        private final CompressType compression;
+        private Path temp; //Guarded by this, like the fields below
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private boolean closed;
+
+        private Records(Path file, long dataStart, long dataEnd, CompressType compression) {
+            this.file = file;
+            this.dataStart = dataStart;
+            this.dataEnd = dataEnd;
+            this.compression = compression;
+        }
+
+        /**
+         * @param position The offset in the patch file, as if it weren't compressed.
+         */
+        private synchronized ByteBuffer region(long position, int length) throws IOException {
+            if (closed)
+                throw new IOException("Patch file is closed!");
+            if (channel == null)
+                decompress();
+            return PatchReader.region(channel, buffer, position - dataStart, length);
+        }
+
+        private void decompress() throws IOException {
+            temp = Files.createTempFile("ipatch", ".records");
+            try (InputStream raw = Files.newInputStream(file)) {
+                for (long skipped = 0; skipped < dataStart; ) {
+                    long skip = raw.skip(dataStart - skipped);
+                    if (skip <= 0)
+                        throw new IOException("Truncated patch file!");
+                    skipped += skip;
+                }
+                try (InputStream in = Codecs.decompressor(compression).decompress(raw);
+                     OutputStream out = Files.newOutputStream(temp)) {
+                    byte[] bytes = new byte[64 * 1024];
+                    for (int read = in.read(bytes); read != -1; read = in.read(bytes))
+                        out.write(bytes, 0, read);
+                }
+                long size = Files.size(temp);
+                if (size < dataEnd - dataStart)
+                    throw new IOException("Truncated patch file!");
+                channel = FileChannel.open(temp, StandardOpenOption.READ);
+                buffer = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+            } catch (IOException | RuntimeException e) {
+                release();
+                throw e;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            release();
+        }
+
+        private void release() throws IOException {
+            try {
+                if (channel != null)
+                    channel.close();
+            } finally {
+                channel = null;
+                buffer = null;
+                if (temp != null)
+                    Files.deleteIfExists(temp);
+                temp = null;
+            }
+        }
+    }
+}
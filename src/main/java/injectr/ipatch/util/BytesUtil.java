@@ -4,6 +4,7 @@ import injectr.ipatch.bytecode.ClassFile;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.compress.utils.ChecksumCalculatingInputStream;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -65,6 +66,28 @@ public class BytesUtil {
         return data.length;
     }
 
+    /**
+     * Collapses a buffer in the form returned from {@link #allocate(long)} into a single array.
+     */
+    public static byte[] flatten(byte[][] buf) {
+        if (buf.length == 1)
+            return buf[0];
+
+        long len = 0;
+        for (byte[] chunk : buf)
+            len += chunk.length;
+        if (len > MAX_ARRAY_SIZE)
+            throw new RuntimeException("Buffer too large!");
+
+        byte[] flat = new byte[(int) len];
+        int offset = 0;
+        for (byte[] chunk : buf) {
+            System.arraycopy(chunk, 0, flat, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return flat;
+    }
+
     public static byte[] shortToBytes(int i) {
         return new byte[] {(byte) (i >> 8), (byte) (i & 0xFF)};
     }
@@ -73,6 +96,20 @@ public class BytesUtil {
         return new byte[] {(byte) (i >> 24), (byte) ((i >> 16) & 0xFF), (byte) ((i >> 8) & 0xFF), (byte) (i & 0xFF)};
     }
 
+    /**
+     * Reads a stream to its end.
+     *
+     * @param sizeHint The expected size of the stream's content, or -1 if unknown.
+     */
+    public static byte[] readAll(InputStream stream, long sizeHint) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sizeHint > 0 && sizeHint < MAX_ARRAY_SIZE ? (int) sizeHint : 8192);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
     public static ClassFile readAndVerify(InputStream stream) throws IOException {
         MD5Checksum checksum = new MD5Checksum();
         try (ChecksumCalculatingInputStream checksumStream = new ChecksumCalculatingInputStream(checksum, stream)) {
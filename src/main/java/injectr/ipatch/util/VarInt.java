@@ -0,0 +1,125 @@
+package injectr.ipatch.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length integers: 7 bits per byte, least significant group first, the high bit set on every byte but the
+ * last. Signed values are zigzag encoded first so that small negative values stay small.
+ */
+public final class VarInt {
+
+    private VarInt() {}
+
+    public static void write(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static void writeSigned(DataOutput out, long value) throws IOException {
+        write(out, zigzag(value));
+    }
+
+    public static long read(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint!");
+    }
+
+    public static long readSigned(DataInput in) throws IOException {
+        return unzigzag(read(in));
+    }
+
+    /**
+     * Reads an unsigned varint which must fit in a non negative int.
+     */
+    public static int readInt(DataInput in) throws IOException {
+        long value = read(in);
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw new IOException("Varint out of range!");
+        return (int) value;
+    }
+
+    /**
+     * Reads a signed varint which must fit in an int.
+     */
+    public static int readSignedInt(DataInput in) throws IOException {
+        long value = readSigned(in);
+        if (value != (int) value)
+            throw new IOException("Varint out of range!");
+        return (int) value;
+    }
+
+    /**
+     * Reads an unsigned varint at the buffer's position, which is advanced past it.
+     */
+    public static long read(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        try {
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = buffer.get() & 0xFF;
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated varint!", e);
+        }
+        throw new IOException("Malformed varint!");
+    }
+
+    public static long readSigned(ByteBuffer buffer) throws IOException {
+        return unzigzag(read(buffer));
+    }
+
+    /**
+     * Reads an unsigned varint which must fit in a non negative int.
+     */
+    public static int readInt(ByteBuffer buffer) throws IOException {
+        long value = read(buffer);
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw new IOException("Varint out of range!");
+        return (int) value;
+    }
+
+    /**
+     * Reads a signed varint which must fit in an int.
+     */
+    public static int readSignedInt(ByteBuffer buffer) throws IOException {
+        long value = readSigned(buffer);
+        if (value != (int) value)
+            throw new IOException("Varint out of range!");
+        return (int) value;
+    }
+
+    /**
+     * The number of bytes a value is written as.
+     */
+    public static int length(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,89 @@
+package injectr.ipatch.cache;
+
+import injectr.ipatch.diff.DiffAlgorithm;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class DiffCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static DiffCache.Key key(int i) {
+        return DiffCache.Key.of(new byte[]{(byte) i}, new byte[]{(byte) (i + 1)}, DiffAlgorithm.MYERS);
+    }
+
+    static byte[] data(int i, int length) {
+        byte[] data = new byte[length];
+        for (int j = 0; j < length; j++)
+            data[j] = (byte) (i * 31 + j);
+        return data;
+    }
+
+    @Test
+    public void entriesSurviveReopening() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("diffs.cache");
+        try (DiffCache cache = new DiffCache(file, 1 << 20)) {
+            for (int i = 0; i < 10; i++)
+                cache.put(key(i), data(i, 100 * i));
+        }
+        try (DiffCache cache = new DiffCache(file, 1 << 20)) {
+            for (int i = 0; i < 10; i++)
+                assertArrayEquals(data(i, 100 * i), cache.get(key(i)));
+            assertNull(cache.get(DiffCache.Key.of(new byte[]{0}, new byte[]{1}, DiffAlgorithm.HISTOGRAM)));
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("diffs.cache");
+        try (DiffCache cache = new DiffCache(file, 2000)) {
+            cache.put(key(0), data(0, 500));
+            cache.put(key(1), data(1, 500));
+            cache.put(key(2), data(2, 500));
+            assertNotNull(cache.get(key(0))); //Now more recently used than 1
+        }
+        try (DiffCache cache = new DiffCache(file, 2000)) { //Use order is persisted
+            cache.put(key(3), data(3, 500));
+            assertNull(cache.get(key(1)));
+            assertArrayEquals(data(0, 500), cache.get(key(0)));
+            assertArrayEquals(data(2, 500), cache.get(key(2)));
+            assertArrayEquals(data(3, 500), cache.get(key(3)));
+            assertTrue(cache.size() <= 2000);
+        }
+    }
+
+    @Test
+    public void compactionKeepsLiveEntries() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("diffs.cache");
+        try (DiffCache cache = new DiffCache(file, 5000)) {
+            for (int i = 0; i < 200; i++) {
+                cache.put(key(i), data(i, 400 + i));
+                assertArrayEquals(data(i, 400 + i), cache.get(key(i)));
+            }
+        }
+        assertTrue(Files.size(file) < 4 * 5000);
+        try (DiffCache cache = new DiffCache(file, 5000)) {
+            assertArrayEquals(data(199, 599), cache.get(key(199)));
+            assertNull(cache.get(key(0)));
+        }
+    }
+
+    @Test
+    public void foreignFilesAreCleared() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("diffs.cache");
+        Files.write(file, data(7, 1000));
+        try (DiffCache cache = new DiffCache(file, 1 << 20)) {
+            assertEquals(0, cache.size());
+            cache.put(key(0), data(0, 10));
+            assertArrayEquals(data(0, 10), cache.get(key(0)));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package injectr.ipatch.compress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CodecsTest {
+
+    @Test
+    public void codecsRoundTrip() throws IOException {
+        byte[] data = new byte[300000];
+        Random random = new Random(49);
+        for (int i = 0; i < data.length; i++) //Compressible, but not trivially
+            data[i] = (byte) (random.nextInt(16) + (i / 1000));
+
+        for (CompressType type : CompressType.values()) {
+            if (!Codecs.canCompress(type))
+                continue;
+            assertTrue(type.name(), Codecs.canDecompress(type));
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = Codecs.compressor(type).compress(compressed)) {
+                out.write(data, 0, 1000);
+                out.write(data[1000]);
+                out.write(data, 1001, data.length - 1001);
+            }
+            if (type != CompressType.NONE)
+                assertTrue(type.name(), compressed.size() < data.length);
+
+            ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+            try (InputStream in = Codecs.decompressor(type).decompress(new ByteArrayInputStream(compressed.toByteArray()))) {
+                byte[] buffer = new byte[4096];
+                for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+                    decompressed.write(buffer, 0, read);
+            }
+            assertArrayEquals(type.name(), data, decompressed.toByteArray());
+        }
+    }
+
+    @Test
+    public void everyTypeCanBeReadOrIsDocumentedAsUnsupported() {
+        for (CompressType type : CompressType.values())
+            assertEquals(type.name(), type != CompressType.TAR && type != CompressType.PACK200, Codecs.canDecompress(type));
+        assertFalse(Codecs.canCompress(CompressType.BROTLI));
+        assertFalse(Codecs.canCompress(CompressType.Z));
+    }
+
+    @Test(expected = IOException.class)
+    public void unsupportedTypesAreRejected() throws IOException {
+        Codecs.compressor(CompressType.TAR);
+    }
+}
@@ -0,0 +1,66 @@
+package injectr.ipatch.compress;
+
+import com.github.luben.zstd.Zstd;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ZstdDictionaryTest {
+
+    /**
+     * Small records sharing most of their content, like the records of classes from the same project.
+     */
+    public static List<byte[]> samples(int count, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = "com/acme/core/Service" + random.nextInt(1000);
+            samples.add(("(L" + name + ";Ljava/lang/String;)V java/lang/Object <init> " + name + "$Builder"
+                    + " java/util/List java/util/Map$Entry getValue toString hashCode " + random.nextInt()
+                    + " org/slf4j/Logger debug info warn " + name.toLowerCase()).getBytes(StandardCharsets.UTF_8));
+        }
+        return samples;
+    }
+
+    public static ZstdDictionary dictionary() throws IOException {
+        return ZstdDictionary.train(samples(2000, 50), 4096);
+    }
+
+    @Test
+    public void smallRecordsCompressBetterAndRoundTrip() throws IOException {
+        ZstdDictionary dictionary = dictionary();
+        assertNotEquals(0, dictionary.getId());
+        assertEquals(dictionary.getId(), ZstdDictionary.of(dictionary.getBytes()).getId());
+
+        long plain = 0, trained = 0;
+        for (byte[] record : samples(100, 51)) {
+            byte[] compressed = dictionary.compress(record);
+            plain += Zstd.compress(record, ZstdDictionary.LEVEL).length;
+            trained += compressed.length;
+            assertArrayEquals(record, ZstdDictionary.of(dictionary.getBytes()).decompress(ByteBuffer.wrap(compressed)));
+        }
+        assertTrue(plain + " vs " + trained, trained * 2 < plain);
+        assertArrayEquals(new byte[0], dictionary.decompress(ByteBuffer.wrap(dictionary.compress(new byte[0]))));
+    }
+
+    @Test(expected = IOException.class)
+    public void trainingWithoutSamplesIsRejected() throws IOException {
+        ZstdDictionary.train(Collections.singletonList(new byte[0]), 4096);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedFramesAreRejected() throws IOException {
+        ZstdDictionary dictionary = dictionary();
+        byte[] compressed = dictionary.compress(samples(1, 52).get(0));
+        compressed[compressed.length / 2] ^= 0x55;
+        dictionary.decompress(ByteBuffer.wrap(compressed, 0, compressed.length - 1));
+    }
+}
@@ -0,0 +1,123 @@
+package injectr.ipatch.diff;
+
+import injectr.ipatch.diff.myers.MyersDiffGenerator;
+import injectr.ipatch.diff.text.TextDiff;
+import injectr.ipatch.patch.ChangeCodec;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChangeCoalescerTest {
+
+    static byte[] applyBytes(byte[] base, List<ByteChange> changes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int position = 0;
+        for (ByteChange change : changes) {
+            out.write(base, position, change.getStartIndex() - position);
+            out.write(change.getNewContent(), 0, change.getNewContent().length);
+            position = change.getEndIndex() + 1;
+        }
+        out.write(base, position, base.length - position);
+        return out.toByteArray();
+    }
+
+    static List<String> applyStrings(List<String> base, List<StringChange> changes) {
+        List<String> lines = new ArrayList<>();
+        int position = 0;
+        for (StringChange change : changes) {
+            lines.addAll(base.subList(position, change.getStartLine()));
+            if (change.type() != ChangeType.REMOVE)
+                lines.addAll(Arrays.asList(change.getNewContent().split("\n", -1)));
+            position = change.getEndLine() + 1;
+        }
+        lines.addAll(base.subList(position, base.size()));
+        return lines;
+    }
+
+    static long cost(ChangeCoalescer.CostModel model, List<ByteChange> changes) {
+        long cost = 0;
+        for (ByteChange change : changes)
+            cost += model.cost(change.type(), change.getNewContent().length);
+        return cost;
+    }
+
+    @Test
+    public void nearbyChangesAreMerged() {
+        byte[] base = "0123456789abcdefghij".getBytes();
+        List<ByteChange> changes = Arrays.asList(
+                new ByteChange(ChangeType.REPLACE, 1, 1, new byte[]{'X'}),
+                new ByteChange(ChangeType.ADD, 4, 3, new byte[]{'Y'}),
+                new ByteChange(ChangeType.REMOVE, 5, 6, new byte[0]),
+                new ByteChange(ChangeType.REPLACE, 18, 18, new byte[]{'Z'}));
+        List<ByteChange> coalesced = new ChangeCoalescer(ChangeCoalescer.CostModel.linear(4, 1)).coalesceBytes(base, changes);
+
+        assertEquals(2, coalesced.size()); //The last change is too far away
+        assertEquals(ChangeType.REPLACE, coalesced.get(0).type());
+        assertEquals(1, coalesced.get(0).getStartIndex());
+        assertEquals(6, coalesced.get(0).getEndIndex());
+        assertArrayEquals("X23Y4".getBytes(), coalesced.get(0).getNewContent());
+        assertSame(changes.get(3), coalesced.get(1));
+        assertArrayEquals(applyBytes(base, changes), applyBytes(base, coalesced));
+    }
+
+    @Test
+    public void coalescingNeverCostsMore() throws IOException {
+        Random random = new Random(42);
+        ChangeCoalescer.CostModel model = ChangeCoalescer.DEFAULT_COST_MODEL;
+        for (int run = 0; run < 500; run++) {
+            byte[] base = new byte[random.nextInt(300)];
+            byte[] modified = new byte[random.nextInt(300)];
+            for (int i = 0; i < base.length; i++)
+                base[i] = (byte) (random.nextInt(2) == 0 ? '\n' : 'a' + random.nextInt(3));
+            for (int i = 0; i < modified.length; i++)
+                modified[i] = (byte) (random.nextInt(2) == 0 ? '\n' : 'a' + random.nextInt(3));
+            List<ByteChange> changes = TextDiff.diff(base, modified, new MyersDiffGenerator());
+            List<ByteChange> coalesced = new ChangeCoalescer(model).coalesceBytes(base, changes);
+
+            assertArrayEquals(modified, applyBytes(base, coalesced));
+            assertTrue(cost(model, coalesced) <= cost(model, changes));
+        }
+    }
+
+    @Test
+    public void defaultCostModelIsTheEncodedSize() throws IOException {
+        for (int length : new int[]{0, 1, 126, 127, 20000}) {
+            ByteChange change = new ByteChange(length == 0 ? ChangeType.REMOVE : ChangeType.REPLACE, 10, 12, new byte[length]);
+            int encoded = ChangeCodec.encode(Arrays.asList(change, change)).length
+                    - ChangeCodec.encode(Collections.singletonList(change)).length; //Without the count, 3 bytes after
+            assertEquals(encoded, ChangeCoalescer.DEFAULT_COST_MODEL.cost(change.type(), length));
+        }
+
+        byte[] base = "0123456789abcdefghij".getBytes();
+        List<ByteChange> changes = Arrays.asList(
+                new ByteChange(ChangeType.REPLACE, 1, 1, new byte[]{'X'}),
+                new ByteChange(ChangeType.REPLACE, 5, 5, new byte[]{'Y'}),
+                new ByteChange(ChangeType.REPLACE, 12, 12, new byte[]{'Z'}));
+        List<ByteChange> coalesced = new ChangeCoalescer().coalesceBytes(base, changes);
+        assertEquals(2, coalesced.size()); //Restating 3 bytes is cheaper than a change, restating 6 isn't
+        assertArrayEquals("X234Y".getBytes(), coalesced.get(0).getNewContent());
+        assertSame(changes.get(2), coalesced.get(1));
+    }
+
+    @Test
+    public void lineChanges() {
+        List<String> base = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h");
+        String modified = "a\nx\nc\n\nd\nf\ng\nh\ny";
+        List<StringChange> changes = new MyersDiffGenerator(base).stringDiff(new BufferedReader(new StringReader(modified)));
+        List<StringChange> coalesced = new ChangeCoalescer(ChangeCoalescer.CostModel.linear(6, 1)).coalesceStrings(base, changes);
+
+        assertTrue(coalesced.size() < changes.size());
+        assertEquals(Arrays.asList(modified.split("\n", -1)), applyStrings(base, coalesced));
+        assertEquals(Arrays.asList(modified.split("\n", -1)), applyStrings(base, changes));
+    }
+}
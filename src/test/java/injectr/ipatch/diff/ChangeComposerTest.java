@@ -0,0 +1,149 @@
+package injectr.ipatch.diff;
+
+import injectr.ipatch.bytecode.ClassFile;
+import injectr.ipatch.diff.bytecode.ClassDiffGenerator;
+import injectr.ipatch.patch.ChangeApplier;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChangeComposerTest {
+
+    static List<ByteChange> randomBytes(Random random, int length) {
+        List<ByteChange> changes = new ArrayList<>();
+        int position = random.nextInt(4);
+        while (position <= length) {
+            int removed = position == length ? 0 : random.nextInt(Math.min(6, length - position) + 1);
+            byte[] content = new byte[random.nextInt(5)];
+            random.nextBytes(content);
+            if (removed > 0 || content.length > 0) {
+                ChangeType type = removed == 0 ? ChangeType.ADD : content.length == 0 ? ChangeType.REMOVE : ChangeType.REPLACE;
+                changes.add(new ByteChange(type, position, position + removed - 1, content));
+            }
+            position += removed + 1 + random.nextInt(8);
+        }
+        return changes;
+    }
+
+    static List<StringChange> randomLines(Random random, int length) {
+        List<StringChange> changes = new ArrayList<>();
+        int position = random.nextInt(3);
+        while (position <= length) {
+            int removed = position == length ? 0 : random.nextInt(Math.min(3, length - position) + 1);
+            List<String> lines = new ArrayList<>();
+            for (int i = random.nextInt(3); i > 0; i--)
+                lines.add(random.nextInt(4) == 0 ? "" : "line " + random.nextInt(100));
+            if (removed > 0 || !lines.isEmpty()) {
+                ChangeType type = removed == 0 ? ChangeType.ADD : lines.isEmpty() ? ChangeType.REMOVE : ChangeType.REPLACE;
+                changes.add(new StringChange(type, position, position + removed - 1, String.join("\n", lines)));
+            }
+            position += removed + 1 + random.nextInt(5);
+        }
+        return changes;
+    }
+
+    static byte[] generate(int flags, String... methods) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "test/Composed", null, "java/lang/Object", null);
+        for (String method : methods) {
+            MethodVisitor visitor = writer.visitMethod(flags | Opcodes.ACC_STATIC, method, "()I", null, null);
+            visitor.visitCode();
+            visitor.visitLdcInsn(method.hashCode());
+            visitor.visitInsn(Opcodes.IRETURN);
+            visitor.visitMaxs(0, 0);
+            visitor.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    static List<ByteCodeChange> diff(byte[] base, byte[] modified) throws IOException {
+        return new ClassDiffGenerator().diff(ClassFile.readFrom(base), ClassFile.readFrom(modified));
+    }
+
+    @Test
+    public void composedBytesMatchConsecutiveChanges() throws IOException {
+        Random random = new Random(44);
+        for (int i = 0; i < 2000; i++) {
+            byte[] a = new byte[random.nextInt(40)];
+            random.nextBytes(a);
+            List<ByteChange> first = randomBytes(random, a.length);
+            byte[] b = ChangeApplier.applyBytes(a, first);
+            List<ByteChange> second = randomBytes(random, b.length);
+            byte[] c = ChangeApplier.applyBytes(b, second);
+
+            List<ByteChange> composed = ChangeComposer.composeBytes(first, second);
+            assertArrayEquals(c, ChangeApplier.applyBytes(a, composed));
+            for (int j = 1; j < composed.size(); j++) //Untouched runs of A separate the composed changes
+                assertTrue(composed.get(j).getStartIndex() > composed.get(j - 1).getEndIndex() + 1);
+        }
+    }
+
+    @Test
+    public void composedLinesMatchConsecutiveChanges() {
+        Random random = new Random(45);
+        for (int i = 0; i < 2000; i++) {
+            List<String> a = new ArrayList<>();
+            for (int j = random.nextInt(15); j > 0; j--)
+                a.add("base " + j);
+            List<StringChange> first = randomLines(random, a.size());
+            List<String> b = ChangeCoalescerTest.applyStrings(a, first);
+            List<StringChange> second = randomLines(random, b.size());
+            List<String> c = ChangeCoalescerTest.applyStrings(b, second);
+
+            assertEquals(c, ChangeCoalescerTest.applyStrings(a, ChangeComposer.composeStrings(first, second)));
+        }
+    }
+
+    @Test
+    public void changesWhichUndoEachOtherCancelOut() {
+        List<ByteChange> first = Arrays.asList(new ByteChange(ChangeType.ADD, 3, 2, new byte[]{1, 2}),
+                new ByteChange(ChangeType.REMOVE, 6, 7, new byte[0]));
+        List<ByteChange> second = Arrays.asList(new ByteChange(ChangeType.REMOVE, 3, 4, new byte[0]));
+        List<ByteChange> composed = ChangeComposer.composeBytes(first, second);
+        assertEquals(1, composed.size());
+        assertEquals(ChangeType.REMOVE, composed.get(0).type());
+        assertEquals(6, composed.get(0).getStartIndex());
+        assertEquals(7, composed.get(0).getEndIndex());
+    }
+
+    @Test
+    public void classChangesAreOverlaid() throws IOException {
+        byte[] a = generate(Opcodes.ACC_PUBLIC, "kept", "removed");
+        byte[] b = generate(Opcodes.ACC_PUBLIC, "kept", "added");
+        byte[] c = generate(Opcodes.ACC_PRIVATE, "kept", "added"); //Same constant pool as b
+        List<ByteCodeChange> second = diff(b, c);
+        for (ByteCodeChange change : second)
+            assertNotEquals(ByteCodeChange.Target.CONSTANT_POOL, change.getTarget());
+
+        List<Change> composed = ChangeComposer.compose(diff(a, b), second);
+        assertFalse(composed.contains(StageBoundary.INSTANCE));
+        assertArrayEquals(c, ChangeApplier.apply(a, composed));
+    }
+
+    @Test
+    public void classChangesWhichCantBeOverlaidAreStaged() throws IOException {
+        byte[] a = generate(Opcodes.ACC_PUBLIC, "kept", "removed");
+        byte[] b = generate(Opcodes.ACC_PUBLIC, "kept", "added");
+        byte[] c = generate(Opcodes.ACC_PUBLIC, "kept", "added", "another");
+        List<ByteCodeChange> first = diff(a, b), second = diff(b, c);
+        assertNull(ChangeComposer.composeClass(first, second));
+
+        List<Change> composed = ChangeComposer.compose(first, second);
+        assertEquals(first.size() + 1 + second.size(), composed.size());
+        assertArrayEquals(c, ChangeApplier.apply(a, composed));
+
+        List<ByteChange> bytes = Arrays.asList(new ByteChange(ChangeType.REPLACE, 0, 3, new byte[]{1}));
+        composed = ChangeComposer.compose(composed, bytes); //Mixed kinds are staged as well
+        assertEquals(StageBoundary.INSTANCE, composed.get(composed.size() - 2));
+    }
+}
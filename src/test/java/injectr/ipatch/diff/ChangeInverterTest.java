@@ -0,0 +1,53 @@
+package injectr.ipatch.diff;
+
+import injectr.ipatch.patch.ChangeApplier;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChangeInverterTest {
+
+    @Test
+    public void invertedBytesRestoreTheBase() throws IOException {
+        Random random = new Random(45);
+        for (int i = 0; i < 2000; i++) {
+            byte[] base = new byte[random.nextInt(40)];
+            random.nextBytes(base);
+            List<ByteChange> changes = ChangeComposerTest.randomBytes(random, base.length);
+            byte[] modified = ChangeApplier.applyBytes(base, changes);
+            assertArrayEquals(base, ChangeApplier.applyBytes(modified, ChangeInverter.invertBytes(base, changes)));
+        }
+    }
+
+    @Test
+    public void invertedLinesRestoreTheBase() {
+        Random random = new Random(46);
+        for (int i = 0; i < 2000; i++) {
+            List<String> base = new ArrayList<>();
+            for (int j = random.nextInt(15); j > 0; j--)
+                base.add("base " + j);
+            List<StringChange> changes = ChangeComposerTest.randomLines(random, base.size());
+            List<String> modified = ChangeCoalescerTest.applyStrings(base, changes);
+            assertEquals(base, ChangeCoalescerTest.applyStrings(modified, ChangeInverter.invertStrings(base, changes)));
+        }
+    }
+
+    @Test
+    public void typesAreSwapped() {
+        List<ByteChange> changes = new ArrayList<>();
+        changes.add(new ByteChange(ChangeType.ADD, 1, 0, new byte[]{7, 7}));
+        changes.add(new ByteChange(ChangeType.REMOVE, 3, 4, new byte[0]));
+        List<ByteChange> inverted = ChangeInverter.invertBytes(new byte[]{0, 1, 2, 3, 4, 5}, changes);
+        assertEquals(ChangeType.REMOVE, inverted.get(0).type());
+        assertEquals(1, inverted.get(0).getStartIndex());
+        assertEquals(2, inverted.get(0).getEndIndex());
+        assertEquals(ChangeType.ADD, inverted.get(1).type());
+        assertEquals(5, inverted.get(1).getStartIndex()); //Shifted by the added bytes
+        assertArrayEquals(new byte[]{3, 4}, inverted.get(1).getNewContent());
+    }
+}
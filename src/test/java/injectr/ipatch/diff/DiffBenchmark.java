@@ -0,0 +1,126 @@
+package injectr.ipatch.diff;
+
+import injectr.ipatch.diff.hist.HistogramDiffGenerator;
+import injectr.ipatch.diff.jgit.BinaryDeltaGenerator;
+import injectr.ipatch.diff.jgit.JGitDiffGenerator;
+import injectr.ipatch.diff.myers.MyersDiffGenerator;
+import injectr.ipatch.diff.patience.PatienceDiffGenerator;
+import injectr.ipatch.diff.text.LineTable;
+import org.eclipse.jgit.diff.MyersDiff;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the in-house diff implementations with JGit's. Not a test, run it by hand:
+ * {@code DiffBenchmark [base modified]}, diffing two files or generated text when none are given.
+ */
+public class DiffBenchmark {
+
+    private static final int WARMUP = 5, RUNS = 20;
+
+    public static void main(String[] args) throws IOException {
+        byte[] base, modified;
+        if (args.length == 2) {
+            base = Files.readAllBytes(Paths.get(args[0]));
+            modified = Files.readAllBytes(Paths.get(args[1]));
+        } else {
+            Random random = new Random(42);
+            base = text(random, 20000);
+            modified = edit(random, base);
+        }
+
+        LineTable baseLines = new LineTable(base), modifiedLines = new LineTable(modified);
+        int[][] tokens = LineTable.tokenize(baseLines, modifiedLines);
+        System.out.printf("%d -> %d bytes, %d -> %d lines%n", base.length, modified.length, tokens[0].length, tokens[1].length);
+
+        time("LineTable", () -> LineTable.tokenize(new LineTable(base), new LineTable(modified))[0].length);
+        time("RawText", () -> {
+            RawText a = new RawText(base), b = new RawText(modified);
+            int hash = 0;
+            for (int i = 0; i < a.size(); i++)
+                hash += RawTextComparator.DEFAULT.hash(a, i);
+            for (int i = 0; i < b.size(); i++)
+                hash += RawTextComparator.DEFAULT.hash(b, i);
+            return hash;
+        });
+
+        Map<String, TokenDiffGenerator> generators = new LinkedHashMap<>();
+        generators.put("Myers", new MyersDiffGenerator());
+        generators.put("JGit Myers", new JGitDiffGenerator(MyersDiff.INSTANCE));
+        generators.put("Patience", new PatienceDiffGenerator());
+        generators.put("Dynamic", new DynamicDiffGenerator());
+        generators.put("JGit Histogram", new HistogramDiffGenerator());
+        for (Map.Entry<String, TokenDiffGenerator> generator : generators.entrySet()) {
+            int[] edits = {0, 0}; //Changes, changed lines
+            generator.getValue().diff(tokens[0], tokens[1], (type, baseStart, baseEnd, newStart, newEnd) -> {
+                edits[0]++;
+                edits[1] += Math.max(baseEnd - baseStart + 1, 0) + Math.max(newEnd - newStart + 1, 0);
+            });
+            time(generator.getKey() + " (" + edits[0] + " changes, " + edits[1] + " lines)", () -> {
+                int[] count = {0};
+                generator.getValue().diff(tokens[0], tokens[1], (type, baseStart, baseEnd, newStart, newEnd) -> count[0]++);
+                return count[0];
+            });
+        }
+
+        List<ByteChange> delta = new BinaryDeltaGenerator().diff(base, modified);
+        long content = 0;
+        if (delta != null)
+            for (ByteChange change : delta)
+                content += change.getNewContent().length;
+        System.out.printf("Binary delta: %s%n", delta == null ? "none" : delta.size() + " changes, " + content + " bytes");
+        time("Binary delta", () -> {
+            List<ByteChange> changes = new BinaryDeltaGenerator().diff(base, modified);
+            return changes == null ? 0 : changes.size();
+        });
+    }
+
+    private static void time(String name, Run run) throws IOException {
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++)
+            sink += run.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+            sink += run.run();
+        System.out.printf("%-50s %8.3f ms (%d)%n", name, (System.nanoTime() - start) / 1e6 / RUNS, sink);
+    }
+
+    private static byte[] text(Random random, int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            if (random.nextInt(10) == 0)
+                text.append(random.nextBoolean() ? "}" : "");
+            else
+                text.append("    line").append(random.nextInt(lines / 2));
+            text.append('\n');
+        }
+        return text.toString().getBytes();
+    }
+
+    private static byte[] edit(Random random, byte[] base) {
+        String[] lines = new String(base).split("\n", -1);
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            int roll = random.nextInt(100);
+            if (roll < 3)
+                continue;
+            if (roll < 6)
+                text.append("    added").append(random.nextInt()).append('\n');
+            text.append(roll < 8 ? "    changed" + random.nextInt() : line).append('\n');
+        }
+        return text.toString().getBytes();
+    }
+
+    private interface Run {
+
+        long run() throws IOException;
+    }
+}
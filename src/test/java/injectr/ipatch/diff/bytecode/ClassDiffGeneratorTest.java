@@ -0,0 +1,325 @@
+package injectr.ipatch.diff.bytecode;
+
+import injectr.ipatch.bytecode.ClassFile;
+import injectr.ipatch.diff.ByteCodeChange;
+import injectr.ipatch.diff.ChangeType;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ClassDiffGeneratorTest {
+
+    static byte[] generate(String[] methods, int modifiedConstant) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "test/Generated", null, "java/lang/Object", null);
+        writer.visitField(Opcodes.ACC_PRIVATE, "field", "I", null, null).visitEnd();
+        for (String method : methods) {
+            MethodVisitor visitor = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, method, "()I", null, null);
+            visitor.visitCode();
+            visitor.visitLdcInsn(method.equals("changed") ? modifiedConstant : 7);
+            visitor.visitInsn(Opcodes.IRETURN);
+            visitor.visitMaxs(0, 0);
+            visitor.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    static byte[] generateLoop(boolean injectCall) {
+        return generateLoop(injectCall, false, false);
+    }
+
+    /**
+     * A loop containing a switch, so frames and padding are involved.
+     *
+     * @param lookupSwitch Whether the switch is a lookupswitch rather than a tableswitch.
+     * @param wide Whether the loop also uses a local above 255 and a large increment, which need wide instructions.
+     */
+    static byte[] generateLoop(boolean injectCall, boolean lookupSwitch, boolean wide) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "test/Loop", null, "java/lang/Object", null);
+        MethodVisitor visitor = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "sum", "(I)I", null, null);
+        visitor.visitCode();
+        Label loop = new Label(), end = new Label(), one = new Label(), two = new Label(), other = new Label(), next = new Label();
+        visitor.visitInsn(Opcodes.ICONST_0);
+        visitor.visitVarInsn(Opcodes.ISTORE, 1);
+        if (wide) {
+            visitor.visitInsn(Opcodes.ICONST_0);
+            visitor.visitVarInsn(Opcodes.ISTORE, 300);
+        }
+        visitor.visitLabel(loop);
+        visitor.visitVarInsn(Opcodes.ILOAD, 0);
+        visitor.visitJumpInsn(Opcodes.IFLE, end);
+        if (injectCall)
+            visitor.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Thread", "yield", "()V", false);
+        visitor.visitVarInsn(Opcodes.ILOAD, 0);
+        if (lookupSwitch)
+            visitor.visitLookupSwitchInsn(other, new int[]{1, 1000}, new Label[]{one, two});
+        else
+            visitor.visitTableSwitchInsn(1, 2, other, one, two);
+        visitor.visitLabel(one);
+        visitor.visitIincInsn(1, 1);
+        if (wide) {
+            visitor.visitIincInsn(1, 1000);
+            visitor.visitIincInsn(300, 1);
+            visitor.visitVarInsn(Opcodes.ILOAD, 300);
+            visitor.visitVarInsn(Opcodes.ISTORE, 1);
+        }
+        visitor.visitJumpInsn(Opcodes.GOTO, next);
+        visitor.visitLabel(two);
+        visitor.visitIincInsn(1, 2);
+        visitor.visitJumpInsn(Opcodes.GOTO, next);
+        visitor.visitLabel(other);
+        visitor.visitIincInsn(1, 3);
+        visitor.visitLabel(next);
+        for (int i = 0; i < 100; i++) {
+            visitor.visitVarInsn(Opcodes.ILOAD, 1);
+            visitor.visitIntInsn(Opcodes.BIPUSH, i);
+            visitor.visitInsn(Opcodes.IXOR);
+            visitor.visitVarInsn(Opcodes.ISTORE, 1);
+        }
+        visitor.visitIincInsn(0, -1);
+        visitor.visitJumpInsn(Opcodes.GOTO, loop);
+        visitor.visitLabel(end);
+        visitor.visitVarInsn(Opcodes.ILOAD, 1);
+        visitor.visitInsn(Opcodes.IRETURN);
+        visitor.visitMaxs(0, 0);
+        visitor.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * A method with a try/catch per block, each on its own line, and a local variable table. The call is injected in
+     * the middle of a try block, so later handlers, lines and the end of the locals move.
+     */
+    static byte[] generateTryCatch(boolean injectCall) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "test/Guarded", null, "java/lang/Object", null);
+        MethodVisitor visitor = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "guarded", "(I)I", null, null);
+        visitor.visitCode();
+        Label start = new Label(), end = new Label();
+        visitor.visitLabel(start);
+        visitor.visitLineNumber(10, start);
+        visitor.visitInsn(Opcodes.ICONST_1);
+        visitor.visitVarInsn(Opcodes.ISTORE, 1);
+        for (int i = 0; i < 20; i++) {
+            Label tryStart = new Label(), tryEnd = new Label(), handler = new Label(), next = new Label();
+            visitor.visitTryCatchBlock(tryStart, tryEnd, handler, "java/lang/ArithmeticException");
+            visitor.visitLabel(tryStart);
+            visitor.visitLineNumber(20 + i, tryStart);
+            visitor.visitVarInsn(Opcodes.ILOAD, 1);
+            visitor.visitVarInsn(Opcodes.ILOAD, 0);
+            if (injectCall && i == 10)
+                visitor.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Thread", "yield", "()V", false);
+            visitor.visitInsn(Opcodes.IDIV);
+            visitor.visitVarInsn(Opcodes.ISTORE, 1);
+            visitor.visitLabel(tryEnd);
+            visitor.visitJumpInsn(Opcodes.GOTO, next);
+            visitor.visitLabel(handler);
+            visitor.visitInsn(Opcodes.POP);
+            visitor.visitIincInsn(1, i);
+            visitor.visitLabel(next);
+        }
+        visitor.visitVarInsn(Opcodes.ILOAD, 1);
+        visitor.visitInsn(Opcodes.IRETURN);
+        visitor.visitLabel(end);
+        visitor.visitLocalVariable("divisor", "I", null, start, end, 0);
+        visitor.visitLocalVariable("value", "I", null, start, end, 1);
+        visitor.visitMaxs(0, 0);
+        visitor.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * Asserts the method was only described by a code delta, and returns its size.
+     */
+    static int codeDeltaLength(List<ByteCodeChange> changes, String key) {
+        int length = -1;
+        for (ByteCodeChange change : changes) {
+            assertNotEquals(ByteCodeChange.Target.METHOD, change.getTarget());
+            if (change.getTarget() == ByteCodeChange.Target.CODE) {
+                assertEquals(key, change.getKey());
+                length = change.getNewContent().length;
+            }
+        }
+        assertNotEquals("No code delta", -1, length);
+        return length;
+    }
+
+    static byte[] toBytes(ClassFile clazz) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        clazz.writeTo(stream);
+        return stream.toByteArray();
+    }
+
+    static byte[] roundTrip(byte[] base, List<ByteCodeChange> changes) throws IOException {
+        return toBytes(new ClassPatcher().apply(ClassFile.readFrom(base), changes));
+    }
+
+    static String[] methods(int count) { //The last method is the one which gets changed
+        String[] methods = new String[count];
+        for (int i = 0; i < count - 1; i++)
+            methods[i] = "m" + i;
+        methods[count - 1] = "changed";
+        return methods;
+    }
+
+    @Test
+    public void identicalClassesProduceNoChanges() throws IOException {
+        byte[] clazz = generate(methods(10), 1000);
+        assertTrue(new ClassDiffGenerator().diff(ClassFile.readFrom(clazz), ClassFile.readFrom(clazz)).isEmpty());
+    }
+
+    @Test
+    public void singleMethodChange() throws IOException {
+        byte[] base = generate(methods(500), 1000);
+        byte[] modified = generate(methods(500), 2000);
+        List<ByteCodeChange> changes = new ClassDiffGenerator().diff(ClassFile.readFrom(base), ClassFile.readFrom(modified));
+
+        int size = 0;
+        for (ByteCodeChange change : changes) {
+            assertNotEquals(ByteCodeChange.Target.FIELD, change.getTarget());
+            if (change.getTarget() == ByteCodeChange.Target.METHOD)
+                assertEquals("changed:()I", change.getKey());
+            size += change.getNewContent().length;
+        }
+        assertTrue(size < base.length / 10);
+        assertArrayEquals(modified, roundTrip(base, changes));
+    }
+
+    @Test
+    public void renumberedConstantPool() throws IOException {
+        String[] methods = methods(500);
+        methods[499] = methods[0];
+        methods[0] = "changed";
+        byte[] base = generate(methods, 1000);
+        byte[] modified = generate(methods, 7); //Reuses the shared constant, shifting every later pool entry
+        List<ByteCodeChange> changes = new ClassDiffGenerator().diff(ClassFile.readFrom(base), ClassFile.readFrom(modified));
+        assertEquals(ClassFile.readFrom(base).getConstantPool().length - 1, ClassFile.readFrom(modified).getConstantPool().length);
+
+        int size = 0;
+        for (ByteCodeChange change : changes) {
+            if (change.getTarget() == ByteCodeChange.Target.METHOD)
+                assertEquals("changed:()I", change.getKey());
+            size += change.getNewContent().length;
+        }
+        assertTrue(size < base.length / 10);
+        assertArrayEquals(modified, roundTrip(base, changes));
+    }
+
+    @Test
+    public void insertedInstruction() throws IOException {
+        byte[] base = generateLoop(false);
+        byte[] modified = generateLoop(true);
+        List<ByteCodeChange> changes = new ClassDiffGenerator().diff(ClassFile.readFrom(base), ClassFile.readFrom(modified));
+
+        boolean code = false;
+        for (ByteCodeChange change : changes) {
+            assertNotEquals(ByteCodeChange.Target.METHOD, change.getTarget());
+            if (change.getTarget() == ByteCodeChange.Target.CODE) {
+                assertEquals("sum:(I)I", change.getKey());
+                assertTrue(change.getNewContent().length < 32);
+                code = true;
+            }
+        }
+        assertTrue(code);
+        assertArrayEquals(modified, roundTrip(base, changes));
+    }
+
+    @Test
+    public void exceptionTableAndDebugTablesAreTranslated() throws IOException {
+        byte[] base = generateTryCatch(false);
+        byte[] modified = generateTryCatch(true);
+        List<ByteCodeChange> changes = new ClassDiffGenerator().diff(ClassFile.readFrom(base), ClassFile.readFrom(modified));
+
+        //Restating the 20 entry exception table alone would take 160 bytes, the line and local tables more
+        assertTrue(codeDeltaLength(changes, "guarded:(I)I") < 48);
+        assertArrayEquals(modified, roundTrip(base, changes));
+    }
+
+    @Test
+    public void lookupSwitchIsRepadded() throws IOException {
+        byte[] base = generateLoop(false, true, false);
+        byte[] modified = generateLoop(true, true, false); //The call is 3 bytes, so the switch padding changes
+        List<ByteCodeChange> changes = new ClassDiffGenerator().diff(ClassFile.readFrom(base), ClassFile.readFrom(modified));
+
+        assertTrue(codeDeltaLength(changes, "sum:(I)I") < 32);
+        assertArrayEquals(modified, roundTrip(base, changes));
+    }
+
+    @Test
+    public void wideInstructionsAreCopied() throws IOException {
+        byte[] base = generateLoop(false, false, true);
+        byte[] modified = generateLoop(true, false, true);
+        List<ByteCodeChange> changes = new ClassDiffGenerator().diff(ClassFile.readFrom(base), ClassFile.readFrom(modified));
+
+        assertTrue(codeDeltaLength(changes, "sum:(I)I") < 32);
+        assertArrayEquals(modified, roundTrip(base, changes));
+    }
+
+    @Test
+    public void removedBranchTargetsAreRejected() throws IOException {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "test/Branch", null, "java/lang/Object", null);
+        MethodVisitor visitor = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "sign", "(I)I", null, null);
+        visitor.visitCode();
+        Label negative = new Label();
+        visitor.visitVarInsn(Opcodes.ILOAD, 0);
+        visitor.visitJumpInsn(Opcodes.IFLE, negative);
+        visitor.visitInsn(Opcodes.ICONST_1);
+        visitor.visitInsn(Opcodes.IRETURN);
+        visitor.visitLabel(negative);
+        visitor.visitInsn(Opcodes.ICONST_0);
+        visitor.visitInsn(Opcodes.IRETURN);
+        visitor.visitMaxs(0, 0);
+        visitor.visitEnd();
+        writer.visitEnd();
+        ClassFile clazz = ClassFile.readFrom(writer.toByteArray());
+        byte[][] methods = ClassDiffGenerator.methodBytes(clazz);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream delta = new DataOutputStream(bytes);
+        delta.writeShort(1); //max_stack
+        delta.writeShort(1); //max_locals
+        delta.writeShort(2);
+        delta.writeByte(0); //Copy up to the ireturn
+        delta.writeShort(4);
+        delta.writeByte(1); //Skip the branch target
+        delta.writeShort(2);
+        delta.writeByte(0); //Translated exception table
+        delta.writeShort(0); //No attributes
+        try {
+            CodeDelta.apply(clazz.getConstantPool(), methods[methods.length - 1], bytes.toByteArray());
+            fail();
+        } catch (IOException e) {
+            assertEquals("Branch target of instruction 1 was removed!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void addRemoveAndReorderMethods() throws IOException {
+        byte[] base = generate(new String[]{"m0", "a", "b", "c", "d"}, 1);
+        byte[] modified = generate(new String[]{"d", "a", "e", "c", "m0"}, 1);
+        List<ByteCodeChange> changes = new ClassDiffGenerator().diff(ClassFile.readFrom(base), ClassFile.readFrom(modified));
+
+        boolean removedB = false, addedE = false;
+        for (ByteCodeChange change : changes) {
+            removedB |= change.type() == ChangeType.REMOVE && "b:()I".equals(change.getKey());
+            addedE |= change.type() == ChangeType.ADD && "e:()I".equals(change.getKey());
+        }
+        assertTrue(removedB);
+        assertTrue(addedE);
+        assertArrayEquals(modified, roundTrip(base, changes));
+    }
+}
@@ -0,0 +1,116 @@
+package injectr.ipatch.diff.jgit;
+
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.hist.HistogramDiffGenerator;
+import injectr.ipatch.diff.text.TextDiff;
+import org.eclipse.jgit.internal.storage.pack.BinaryDelta;
+import org.eclipse.jgit.internal.storage.pack.DeltaIndex;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BinaryDeltaGeneratorTest {
+
+    static byte[] apply(byte[] base, List<ByteChange> changes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int position = 0;
+        for (ByteChange change : changes) {
+            assertTrue(change.getStartIndex() >= position);
+            out.write(base, position, change.getStartIndex() - position);
+            out.write(change.getNewContent(), 0, change.getNewContent().length);
+            position = change.getEndIndex() + 1;
+        }
+        out.write(base, position, base.length - position);
+        return out.toByteArray();
+    }
+
+    static byte[] mutate(Random random, byte[] base) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int position = 0;
+        while (position < base.length) {
+            int length = Math.min(1 + random.nextInt(200), base.length - position);
+            switch (random.nextInt(5)) {
+                case 0: //Drop
+                    break;
+                case 1: //Insert fresh bytes
+                    byte[] fresh = new byte[random.nextInt(50)];
+                    random.nextBytes(fresh);
+                    out.write(fresh, 0, fresh.length);
+                    out.write(base, position, length);
+                    break;
+                case 2: //Copy an earlier block again
+                    int from = random.nextInt(position + 1);
+                    out.write(base, from, Math.min(length, base.length - from));
+                    break;
+                default:
+                    out.write(base, position, length);
+            }
+            position += length;
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void changesRebuildModifiedContent() throws IOException {
+        Random random = new Random(42);
+        for (int run = 0; run < 200; run++) {
+            byte[] base = new byte[1 + random.nextInt(5000)];
+            random.nextBytes(base);
+            byte[] modified = mutate(random, base);
+            if (modified.length == 0)
+                continue;
+
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            new DeltaIndex(base).encode(delta, modified);
+            assertArrayEquals(modified, BinaryDelta.apply(base, delta.toByteArray()));
+            assertArrayEquals(modified, apply(base, BinaryDeltaGenerator.toChanges(base, delta.toByteArray())));
+
+            List<ByteChange> changes = new BinaryDeltaGenerator().diff(base, modified);
+            if (changes != null)
+                assertArrayEquals(modified, apply(base, changes));
+        }
+    }
+
+    @Test
+    public void unrelatedContentIsNotDiffed() {
+        Random random = new Random(7);
+        byte[] base = new byte[4096], modified = new byte[4096];
+        random.nextBytes(base);
+        random.nextBytes(modified);
+        assertNull(new BinaryDeltaGenerator().diff(base, modified));
+    }
+
+    @Test
+    public void smallEditIsSmallChange() {
+        Random random = new Random(3);
+        byte[] base = new byte[64 * 1024];
+        random.nextBytes(base);
+        byte[] modified = base.clone();
+        modified[30000] ^= 1;
+
+        List<ByteChange> changes = new BinaryDeltaGenerator().diff(base, modified);
+        assertNotNull(changes);
+        int content = 0;
+        for (ByteChange change : changes)
+            content += change.getNewContent().length;
+        assertTrue(content < 256);
+        assertArrayEquals(modified, apply(base, changes));
+    }
+
+    @Test
+    public void histogramDiffRebuildsText() throws IOException {
+        byte[] base = "a\nb\nc\na\nb\nc\nd\n".getBytes(StandardCharsets.UTF_8);
+        byte[] modified = "x\nb\nc\na\ny\nc\nd\nz\n".getBytes(StandardCharsets.UTF_8);
+        List<ByteChange> changes = TextDiff.diff(base, modified, new HistogramDiffGenerator());
+        assertEquals(3, changes.size());
+        assertEquals(ChangeType.ADD, changes.get(2).type());
+        assertArrayEquals(modified, apply(base, changes));
+    }
+}
@@ -0,0 +1,103 @@
+package injectr.ipatch.diff.myers;
+
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.DynamicDiffGenerator;
+import injectr.ipatch.diff.StringChange;
+import injectr.ipatch.diff.TokenDiffGenerator;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MyersDiffGeneratorTest {
+
+    /**
+     * @return The number of changes.
+     */
+    private static int assertRebuilds(TokenDiffGenerator generator, int[] base, int[] modified) throws IOException {
+        List<Integer> rebuilt = new ArrayList<>();
+        int[] position = {0}; //Next base token to copy
+        int[] changes = {0};
+
+        generator.diff(base, modified, (type, baseStart, baseEnd, newStart, newEnd) -> {
+            assertTrue(baseStart >= position[0]);
+            assertEquals(type == ChangeType.ADD, baseEnd < baseStart);
+            assertEquals(type == ChangeType.REMOVE, newEnd < newStart);
+            for (int i = position[0]; i < baseStart; i++)
+                rebuilt.add(base[i]);
+            for (int i = newStart; i <= newEnd; i++) //Content is referenced by position, not copied
+                rebuilt.add(modified[i]);
+            position[0] = baseEnd + 1;
+            changes[0]++;
+        });
+        for (int i = position[0]; i < base.length; i++)
+            rebuilt.add(base[i]);
+
+        assertEquals(modified.length, rebuilt.size());
+        for (int i = 0; i < modified.length; i++)
+            assertEquals(modified[i], (int) rebuilt.get(i));
+        return changes[0];
+    }
+
+    @Test
+    public void streamedChangesRebuildTheModifiedTokens() throws IOException {
+        Random random = new Random(42);
+        for (int run = 0; run < 1000; run++)
+            assertRebuilds(new MyersDiffGenerator(new ArrayList<>()), random(random, random.nextInt(50)),
+                    random(random, random.nextInt(50)));
+    }
+
+    @Test(timeout = 10000)
+    public void rewrittenInputsAreDiffedQuickly() throws IOException {
+        int[] base = new int[100000], modified = new int[100000];
+        for (int i = 0; i < base.length; i++) { //Every line rewritten, as with generated or minified files
+            base[i] = i;
+            modified[i] = base.length + i;
+        }
+        assertEquals(1, assertRebuilds(new MyersDiffGenerator(), base, modified)); //A single replacement
+        assertEquals(1, assertRebuilds(new DynamicDiffGenerator(), base, modified));
+
+        Random random = new Random(36); //Far more edits than the cost cap, with plenty of matches left to find
+        base = random(random, 50000);
+        modified = random(random, 50000);
+        assertRebuilds(new MyersDiffGenerator(), base, modified);
+        int[] matches = MyersDiff.match(base, modified);
+        int matched = 0;
+        for (int match : matches)
+            if (match != -1)
+                matched++;
+        assertTrue(String.valueOf(matched), matched > base.length / 2);
+    }
+
+    @Test
+    public void stringDiff() {
+        List<StringChange> changes = new MyersDiffGenerator(Arrays.asList("a", "b", "c", "d", "e"))
+                .stringDiff(new BufferedReader(new StringReader("a\nx\ny\nc\ne\nf\n")));
+
+        assertEquals(3, changes.size());
+        assertChange(changes.get(0), ChangeType.REPLACE, 1, 1, "x\ny");
+        assertChange(changes.get(1), ChangeType.REMOVE, 3, 3, "");
+        assertChange(changes.get(2), ChangeType.ADD, 5, 4, "f");
+    }
+
+    private static void assertChange(StringChange change, ChangeType type, int startLine, int endLine, String content) {
+        assertEquals(type, change.type());
+        assertEquals(startLine, change.getStartLine());
+        assertEquals(endLine, change.getEndLine());
+        assertEquals(content, change.getNewContent());
+    }
+
+    private static int[] random(Random random, int length) {
+        int[] tokens = new int[length];
+        for (int i = 0; i < length; i++)
+            tokens[i] = random.nextInt(4);
+        return tokens;
+    }
+}
@@ -0,0 +1,103 @@
+package injectr.ipatch.diff.patience;
+
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.DynamicDiffGenerator;
+import injectr.ipatch.diff.StringChange;
+import injectr.ipatch.diff.TokenDiffGenerator;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PatienceDiffGeneratorTest {
+
+    static int[] random(Random random, int length, int alphabet) {
+        int[] tokens = new int[length];
+        for (int i = 0; i < length; i++)
+            tokens[i] = random.nextInt(alphabet);
+        return tokens;
+    }
+
+    @Test
+    public void matchesAreValid() {
+        Random random = new Random(42);
+        for (int run = 0; run < 2000; run++) {
+            int alphabet = 1 + random.nextInt(run % 2 == 0 ? 5 : 200);
+            int[] a = random(random, random.nextInt(80), alphabet);
+            int[] b = random(random, random.nextInt(80), alphabet);
+            int[] matches = PatienceDiff.match(a, b);
+            assertEquals(a.length, matches.length);
+            int last = -1;
+            for (int i = 0; i < a.length; i++) {
+                if (matches[i] == -1)
+                    continue;
+                assertTrue(matches[i] > last);
+                assertEquals(a[i], b[matches[i]]);
+                last = matches[i];
+            }
+
+            int[] sparseA = a.clone(), sparseB = b.clone(); //Tokens which can't be used as array indices
+            for (int i = 0; i < a.length; i++)
+                sparseA[i] = a[i] * 1_000_003 - 7;
+            for (int i = 0; i < b.length; i++)
+                sparseB[i] = b[i] * 1_000_003 - 7;
+            assertArrayEquals(matches, PatienceDiff.match(sparseA, sparseB));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void rewrittenGapsBetweenAnchorsAreDiffedQuickly() {
+        int[] a = new int[100002], b = new int[100002];
+        for (int i = 1; i <= 100000; i++) { //Unique in their own file only, so the gap has no anchors
+            a[i] = 2 + i;
+            b[i] = 2 + 100000 + i;
+        }
+        a[a.length - 1] = b[b.length - 1] = 1; //Anchors around the gap
+        int[] matches = PatienceDiff.match(a, b);
+        assertEquals(0, matches[0]);
+        assertEquals(b.length - 1, matches[a.length - 1]);
+        for (int i = 1; i <= 100000; i++)
+            assertEquals(-1, matches[i]);
+    }
+
+    @Test
+    public void uniqueLinesAnchorMovedBlocks() {
+        List<String> base = Arrays.asList("void a() {", "  one();", "}", "", "void b() {", "  two();", "}");
+        String modified = "void b() {\n  two();\n}\n\nvoid a() {\n  one();\n}";
+        List<StringChange> changes = new PatienceDiffGenerator(base).stringDiff(new BufferedReader(new StringReader(modified)));
+
+        //The moved function is a single block, rather than braces and blank lines being matched across functions
+        assertEquals(2, changes.size());
+        assertEquals(ChangeType.REMOVE, changes.get(0).type());
+        assertEquals(0, changes.get(0).getStartLine());
+        assertEquals(3, changes.get(0).getEndLine());
+        assertEquals(ChangeType.ADD, changes.get(1).type());
+        assertEquals("}\n\nvoid a() {\n  one();", changes.get(1).getNewContent()); //The last brace is kept
+    }
+
+    @Test
+    public void dynamicGeneratorRebuildsModifiedLines() {
+        List<String> base = Arrays.asList("a", "b", "c", "a", "b", "c", "d");
+        String modified = "x\nb\nc\na\ny\nc\nd\nz";
+        for (TokenDiffGenerator generator : new TokenDiffGenerator[]{new DynamicDiffGenerator(base), new PatienceDiffGenerator(base)}) {
+            List<StringChange> changes = generator.stringDiff(new BufferedReader(new StringReader(modified)));
+            StringBuilder rebuilt = new StringBuilder();
+            int position = 0;
+            for (StringChange change : changes) {
+                for (int i = position; i < change.getStartLine(); i++)
+                    rebuilt.append(base.get(i)).append('\n');
+                if (change.type() != ChangeType.REMOVE)
+                    rebuilt.append(change.getNewContent()).append('\n');
+                position = change.getEndLine() + 1;
+            }
+            for (int i = position; i < base.size(); i++)
+                rebuilt.append(base.get(i)).append('\n');
+            assertEquals(modified + "\n", rebuilt.toString());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package injectr.ipatch.diff.text;
+
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.myers.MyersDiffGenerator;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TextDiffTest {
+
+    static byte[] apply(byte[] base, List<ByteChange> changes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int position = 0;
+        for (ByteChange change : changes) {
+            out.write(base, position, change.getStartIndex() - position);
+            out.write(change.getNewContent(), 0, change.getNewContent().length);
+            position = change.getEndIndex() + 1;
+        }
+        out.write(base, position, base.length - position);
+        return out.toByteArray();
+    }
+
+    static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void linesKeepTheirTerminators() {
+        LineTable table = new LineTable(bytes("a\r\nb\n\nc"));
+        assertEquals(4, table.size());
+        assertEquals(0, table.start(0));
+        assertEquals(3, table.start(1));
+        assertEquals(5, table.start(2));
+        assertEquals(6, table.start(3));
+        assertEquals(7, table.start(4));
+
+        int[][] tokens = LineTable.tokenize(table, new LineTable(bytes("c\nc")));
+        assertNotEquals(tokens[0][3], tokens[1][0]); //Terminated and unterminated lines differ
+        assertEquals(tokens[0][3], tokens[1][1]);
+    }
+
+    @Test
+    public void onlyChangedLinesAreCopied() throws IOException {
+        byte[] base = bytes("first\r\nsecond\r\nthird\r\nfourth");
+        byte[] modified = bytes("first\r\nchanged\r\nthird\r\nfourth\r\nfifth");
+        List<ByteChange> changes = TextDiff.diff(base, modified, new MyersDiffGenerator());
+
+        assertEquals(2, changes.size());
+        assertEquals(ChangeType.REPLACE, changes.get(0).type());
+        assertArrayEquals(bytes("changed\r\n"), changes.get(0).getNewContent());
+        assertEquals(ChangeType.REPLACE, changes.get(1).type()); //The last line gained a terminator
+        assertArrayEquals(bytes("fourth\r\nfifth"), changes.get(1).getNewContent());
+        assertArrayEquals(modified, apply(base, changes));
+    }
+
+    @Test
+    public void randomTextsRoundTrip() throws IOException {
+        Random random = new Random(42);
+        String[] lines = {"a\n", "b\n", "c\r\n", "\n", "d", "\u00e9\n"};
+        for (int run = 0; run < 500; run++) {
+            StringBuilder base = new StringBuilder(), modified = new StringBuilder();
+            for (int i = random.nextInt(40); i > 0; i--)
+                base.append(lines[random.nextInt(lines.length)]);
+            for (int i = random.nextInt(40); i > 0; i--)
+                modified.append(lines[random.nextInt(lines.length)]);
+            byte[] baseBytes = bytes(base.toString()), modifiedBytes = bytes(modified.toString());
+            assertArrayEquals(modifiedBytes, apply(baseBytes, TextDiff.diff(baseBytes, modifiedBytes, new MyersDiffGenerator())));
+        }
+    }
+
+    @Test
+    public void binaryIsNotText() {
+        assertTrue(TextDiff.isText(bytes("plain\ntext")));
+        assertFalse(TextDiff.isText(new byte[]{(byte) 0xCA, (byte) 0xFE, 0, 0}));
+    }
+}
@@ -0,0 +1,98 @@
+package injectr.ipatch.jar;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class DiffSchedulerTest {
+
+    static DiffScheduler.Task<Integer> task(long size, Callback callback) {
+        return new DiffScheduler.Task<Integer>() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public Integer run() throws IOException {
+                return callback.run(size);
+            }
+        };
+    }
+
+    @Test
+    public void resultsKeepTaskOrder() throws IOException {
+        List<DiffScheduler.Task<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            tasks.add(task(i % 7, size -> (int) size));
+        try (DiffScheduler scheduler = new DiffScheduler(4, 10)) {
+            List<Integer> results = scheduler.run(tasks);
+            for (int i = 0; i < 100; i++)
+                assertEquals(i % 7, (int) results.get(i));
+        }
+    }
+
+    @Test
+    public void largestTasksStartFirst() throws IOException {
+        List<Long> started = Collections.synchronizedList(new ArrayList<>());
+        List<DiffScheduler.Task<Integer>> tasks = new ArrayList<>();
+        for (long size : new long[]{3, 50, 1, 20, 200})
+            tasks.add(task(size, s -> {
+                started.add(s);
+                return 0;
+            }));
+        try (DiffScheduler scheduler = new DiffScheduler(1, 1000)) {
+            scheduler.run(tasks);
+        }
+        assertEquals(Arrays.asList(200L, 50L, 20L, 3L, 1L), started);
+    }
+
+    @Test
+    public void budgetIsNeverExceeded() throws IOException {
+        AtomicLong inFlight = new AtomicLong();
+        AtomicLong peak = new AtomicLong();
+        List<DiffScheduler.Task<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            tasks.add(task(10 + (i % 50), size -> {
+                peak.accumulateAndGet(inFlight.addAndGet(size), Math::max);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.addAndGet(-size);
+                return 0;
+            }));
+        tasks.add(task(500, size -> 0)); //Larger than the budget, runs alone
+        try (DiffScheduler scheduler = new DiffScheduler(16, 100)) {
+            scheduler.run(tasks);
+        }
+        assertTrue(peak.get() <= 100);
+    }
+
+    @Test(expected = IOException.class)
+    public void failuresArePropagated() throws IOException {
+        List<DiffScheduler.Task<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            tasks.add(task(i, size -> {
+                if (size == 10)
+                    throw new IOException("Failed!");
+                return 0;
+            }));
+        try (DiffScheduler scheduler = new DiffScheduler(4, 100)) {
+            scheduler.run(tasks);
+        }
+    }
+
+    interface Callback {
+
+        int run(long size) throws IOException;
+    }
+}
@@ -0,0 +1,41 @@
+package injectr.ipatch.jar;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class EntryFilterTest {
+
+    @Test
+    public void globsMatchNames() {
+        EntryFilter filter = EntryFilter.of(Arrays.asList("com/acme/core/**", "META-INF/*.MF"), null);
+        assertTrue(filter.test("com/acme/core/A.class"));
+        assertTrue(filter.test("com/acme/core/sub/B$1.class"));
+        assertTrue(filter.test("META-INF/MANIFEST.MF"));
+        assertFalse(filter.test("META-INF/versions/9/MANIFEST.MF"));
+        assertFalse(filter.test("com/acme/corex/A.class"));
+        assertFalse(filter.test("com/acme/A.class"));
+    }
+
+    @Test
+    public void packagesMatchEverythingBelow() {
+        EntryFilter filter = EntryFilter.of(Collections.singletonList("com/acme/"), Collections.singletonList("**/Test?.class"));
+        assertTrue(filter.test("com/acme/A.class"));
+        assertTrue(filter.test("com/acme/b/C.class"));
+        assertFalse(filter.test("com/acme/b/Test1.class"));
+        assertTrue(filter.test("com/acme/b/Test10.class"));
+        assertFalse(filter.test("org/acme/A.class"));
+    }
+
+    @Test
+    public void excludesAloneKeepTheRest() {
+        EntryFilter filter = EntryFilter.of(null, Collections.singletonList("*.txt"));
+        assertFalse(filter.test("a.txt"));
+        assertTrue(filter.test("dir/a.txt"));
+        assertTrue(filter.test("A.class"));
+        assertSame(EntryFilter.ALL, EntryFilter.of(null, Collections.emptyList()));
+    }
+}
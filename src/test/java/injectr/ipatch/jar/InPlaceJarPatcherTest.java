@@ -0,0 +1,124 @@
+package injectr.ipatch.jar;
+
+import injectr.ipatch.compress.CompressType;
+import injectr.ipatch.diff.DiffAlgorithm;
+import injectr.ipatch.patch.HashType;
+import injectr.ipatch.patch.PatchFile;
+import injectr.ipatch.patch.PatchReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class InPlaceJarPatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path jar(String name, Map<String, byte[]> entries) throws IOException {
+        Path jar = folder.getRoot().toPath().resolve(name);
+        try (java.util.zip.ZipOutputStream out = new java.util.zip.ZipOutputStream(Files.newOutputStream(jar))) {
+            out.setComment("comment");
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.putNextEntry(new java.util.zip.ZipEntry(entry.getKey()));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    Path patch(Path base, Path modified) throws IOException {
+        Path patch = folder.getRoot().toPath().resolve("jar.patch");
+        try (OutputStream out = Files.newOutputStream(patch)) {
+            PatchFile.write(new PatchFile.Header(DiffAlgorithm.DYNAMIC, HashType.CRC32, CompressType.NONE),
+                    new JarDiffGenerator().diff(base, modified), out);
+        }
+        return patch;
+    }
+
+    static Map<String, byte[]> entries(int count, Random random) {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] content = new byte[2000 + random.nextInt(2000)];
+            random.nextBytes(content);
+            entries.put("pkg/Entry" + i + ".bin", content);
+        }
+        return entries;
+    }
+
+    @Test
+    public void changedEntriesAreAppended() throws IOException {
+        Random random = new Random(42);
+        Map<String, byte[]> baseEntries = entries(100, random);
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>(baseEntries);
+        modifiedEntries.put("pkg/Entry3.bin", Arrays.copyOf(baseEntries.get("pkg/Entry3.bin"), 100));
+        modifiedEntries.remove("pkg/Entry50.bin");
+        modifiedEntries.put("pkg/New\u00e9.txt", "new".getBytes());
+        Path base = jar("base.jar", baseEntries);
+        Path patch = patch(base, jar("modified.jar", modifiedEntries));
+
+        byte[] original = Files.readAllBytes(base);
+        try (PatchReader reader = new PatchReader(patch)) {
+            assertTrue(new InPlaceJarPatcher().apply(base, reader));
+        }
+        byte[] patched = Files.readAllBytes(base);
+        assertTrue(patched.length > original.length);
+        assertTrue(patched.length - original.length < original.length / 10); //Only the change and the directory
+        assertArrayEquals(original, Arrays.copyOf(patched, original.length)); //Nothing was overwritten
+        assertFalse(Files.exists(InPlaceJarPatcher.journal(base)));
+
+        Map<String, byte[]> read = JarPatcherTest.read(base);
+        assertEquals(modifiedEntries.keySet(), read.keySet());
+        for (Map.Entry<String, byte[]> entry : modifiedEntries.entrySet())
+            assertArrayEquals(entry.getValue(), read.get(entry.getKey()));
+        try (org.apache.commons.compress.archivers.zip.ZipFile zip = new org.apache.commons.compress.archivers.zip.ZipFile(base.toFile())) {
+            assertNotNull(zip.getEntry("pkg/New\u00e9.txt"));
+        }
+    }
+
+    @Test
+    public void wastefulUpdatesRewriteTheJar() throws IOException {
+        Random random = new Random(7);
+        Map<String, byte[]> baseEntries = entries(10, random);
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>(baseEntries);
+        modifiedEntries.putAll(entries(8, random)); //Replaces most of the jar
+        Path base = jar("base.jar", baseEntries);
+        Path patch = patch(base, jar("modified.jar", modifiedEntries));
+
+        try (PatchReader reader = new PatchReader(patch)) {
+            assertFalse(new InPlaceJarPatcher(0.3, new JarPatcher()).apply(base, reader));
+        }
+        Map<String, byte[]> read = JarPatcherTest.read(base);
+        for (Map.Entry<String, byte[]> entry : modifiedEntries.entrySet())
+            assertArrayEquals(entry.getValue(), read.get(entry.getKey()));
+        assertTrue(Files.size(base) < Files.size(folder.getRoot().toPath().resolve("modified.jar")) * 11 / 10);
+    }
+
+    @Test
+    public void interruptedUpdatesAreRolledBack() throws IOException {
+        Path base = jar("base.jar", entries(5, new Random(1)));
+        byte[] original = Files.readAllBytes(base);
+        try (DataOutputStream journal = new DataOutputStream(Files.newOutputStream(InPlaceJarPatcher.journal(base)))) {
+            journal.writeInt(0x49504a4e);
+            journal.writeLong(original.length);
+        }
+        Files.write(base, new byte[1000], StandardOpenOption.APPEND); //Half written entries
+
+        InPlaceJarPatcher.recover(base);
+        assertArrayEquals(original, Files.readAllBytes(base));
+        assertFalse(Files.exists(InPlaceJarPatcher.journal(base)));
+    }
+}
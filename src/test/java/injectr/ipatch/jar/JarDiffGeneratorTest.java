@@ -0,0 +1,130 @@
+package injectr.ipatch.jar;
+
+import injectr.ipatch.cache.DiffCache;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.DiffAlgorithm;
+import injectr.ipatch.patch.ChangeCodec;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class JarDiffGeneratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path jar(String name, boolean stored, String... entries) throws IOException {
+        Path jar = folder.getRoot().toPath().resolve(name);
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (int i = 0; i < entries.length; i += 2) {
+                byte[] content = entries[i + 1].getBytes(StandardCharsets.UTF_8);
+                ZipEntry entry = new ZipEntry(entries[i]);
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(content.length);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(content);
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    @Test
+    public void onlyChangedEntriesAreDiffed() throws IOException {
+        Path base = jar("base.jar", false, "a.txt", "a\nb\n", "b.txt", "same\n", "c.txt", "removed\n");
+        Path modified = jar("modified.jar", true, "a.txt", "a\nc\n", "b.txt", "same\n", "d.txt", "added\n");
+        List<EntryDiff> diffs = new JarDiffGenerator().diff(base, modified);
+
+        assertEquals(3, diffs.size()); //b.txt is only recompressed
+        assertEquals("a.txt", diffs.get(0).getName());
+        assertEquals(ChangeType.REPLACE, diffs.get(0).type());
+        assertEquals("d.txt", diffs.get(1).getName());
+        assertEquals(ChangeType.ADD, diffs.get(1).type());
+        assertEquals("c.txt", diffs.get(2).getName());
+        assertEquals(ChangeType.REMOVE, diffs.get(2).type());
+    }
+
+    @Test
+    public void rerunsOnlyDiffChangedEntryPairs() throws IOException {
+        Path base = jar("base.jar", false, "a.txt", "a\nb\n", "b.txt", "same\n", "c.txt", "c\n");
+        Path modified = jar("modified.jar", false, "a.txt", "a\nc\n", "b.txt", "same\n", "c.txt", "d\n");
+        Path cacheFile = folder.getRoot().toPath().resolve("diffs.cache");
+        List<EntryDiff> first;
+        try (DiffCache cache = new DiffCache(cacheFile, 1 << 20)) {
+            first = new JarDiffGenerator(2, JarDiffGenerator.DEFAULT_MEMORY_BUDGET, DiffAlgorithm.MYERS, cache).diff(base, modified);
+            assertEquals(0, cache.hits());
+            assertEquals(2, cache.misses());
+        }
+
+        try (DiffCache cache = new DiffCache(cacheFile, 1 << 20)) { //Same pairs, as on a CI rerun
+            List<EntryDiff> rerun = new JarDiffGenerator(2, JarDiffGenerator.DEFAULT_MEMORY_BUDGET, DiffAlgorithm.MYERS, cache).diff(base, modified);
+            assertEquals(2, cache.hits());
+            assertEquals(0, cache.misses());
+            assertEquals(first.size(), rerun.size());
+            for (int i = 0; i < first.size(); i++)
+                assertArrayEquals(ChangeCodec.encode(first.get(i).getChanges()), ChangeCodec.encode(rerun.get(i).getChanges()));
+        }
+
+        modified = jar("modified.jar", false, "a.txt", "a\nc\n", "b.txt", "same\n", "c.txt", "e\n");
+        try (DiffCache cache = new DiffCache(cacheFile, 1 << 20)) { //Only c.txt changed since
+            new JarDiffGenerator(2, JarDiffGenerator.DEFAULT_MEMORY_BUDGET, DiffAlgorithm.MYERS, cache).diff(base, modified);
+            assertEquals(1, cache.hits());
+            assertEquals(1, cache.misses());
+        }
+    }
+
+    @Test
+    public void severalTargetsFromOneBase() throws IOException {
+        Path base = jar("base.jar", false, "a.txt", "a\nb\n", "b.txt", "same\n");
+        Path first = jar("first.jar", false, "a.txt", "a\nc\n", "b.txt", "same\n");
+        Path second = jar("second.jar", false, "b.txt", "other\n", "c.txt", "added\n");
+        List<List<EntryDiff>> diffs = new JarDiffGenerator().diff(base, Arrays.asList(first, second));
+
+        assertEquals(2, diffs.size());
+        for (int i = 0; i < 2; i++) {
+            List<EntryDiff> single = new JarDiffGenerator().diff(base, i == 0 ? first : second);
+            assertEquals(single.size(), diffs.get(i).size());
+            for (int j = 0; j < single.size(); j++) {
+                assertEquals(single.get(j).getName(), diffs.get(i).get(j).getName());
+                assertEquals(single.get(j).type(), diffs.get(i).get(j).type());
+                assertArrayEquals(ChangeCodec.encode(single.get(j).getChanges()),
+                        ChangeCodec.encode(diffs.get(i).get(j).getChanges()));
+            }
+        }
+        assertEquals(1, diffs.get(0).size());
+        assertEquals(3, diffs.get(1).size()); //b.txt replaced, c.txt added, a.txt removed
+    }
+
+    @Test
+    public void centralDirectoryComparison() {
+        ZipEntry base = new ZipEntry("a");
+        base.setCrc(42);
+        base.setSize(10);
+        ZipEntry modified = new ZipEntry("a");
+        modified.setCrc(42);
+        modified.setSize(10);
+        modified.setCompressedSize(5);
+        assertTrue(JarDiffGenerator.unchanged(base, modified));
+        modified.setSize(11);
+        assertFalse(JarDiffGenerator.unchanged(base, modified));
+        assertFalse(JarDiffGenerator.unchanged(null, modified));
+        assertFalse(JarDiffGenerator.unchanged(new ZipEntry("a"), new ZipEntry("a"))); //Unknown CRC
+    }
+}
@@ -0,0 +1,288 @@
+package injectr.ipatch.jar;
+
+import injectr.ipatch.compress.CompressType;
+import injectr.ipatch.diff.DiffAlgorithm;
+import injectr.ipatch.patch.HashType;
+import injectr.ipatch.patch.PatchFile;
+import injectr.ipatch.patch.PatchInverter;
+import injectr.ipatch.patch.PatchReader;
+import injectr.ipatch.util.BytesUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class JarPatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path jar(String name, Map<String, byte[]> entries, boolean stored) throws IOException {
+        Path jar = folder.getRoot().toPath().resolve(name);
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (Map.Entry<String, byte[]> content : entries.entrySet()) {
+                ZipEntry entry = new ZipEntry(content.getKey());
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content.getValue());
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(content.getValue().length);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(content.getValue());
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    static Map<String, byte[]> read(Path jar) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                try (InputStream in = zip.getInputStream(entry)) {
+                    entries.put(entry.getName(), BytesUtil.readAll(in, entry.getSize()));
+                }
+            }
+        }
+        return entries;
+    }
+
+    static byte[] resource(Class<?> clazz) throws IOException {
+        try (InputStream in = clazz.getResourceAsStream(clazz.getSimpleName() + ".class")) {
+            return BytesUtil.readAll(in, -1);
+        }
+    }
+
+    Path patch(Path base, Path modified) throws IOException {
+        List<EntryDiff> diffs = new JarDiffGenerator().diff(base, modified);
+        Path patch = folder.getRoot().toPath().resolve("jar.patch");
+        try (OutputStream out = Files.newOutputStream(patch)) {
+            PatchFile.write(new PatchFile.Header(DiffAlgorithm.DYNAMIC, HashType.CRC32, CompressType.NONE), diffs, out);
+        }
+        return patch;
+    }
+
+    @Test
+    public void patchedJarMatchesModifiedJar() throws IOException {
+        Random random = new Random(42);
+        byte[] binary = new byte[10000];
+        random.nextBytes(binary);
+        byte[] changedBinary = binary.clone();
+        changedBinary[5000] ^= 1;
+
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        baseEntries.put("a.txt", "one\ntwo\nthree\n".getBytes());
+        baseEntries.put("b.bin", binary);
+        baseEntries.put("C.class", resource(JarPatcherTest.class));
+        baseEntries.put("removed.txt", "gone".getBytes());
+        baseEntries.put("same.txt", "same".getBytes());
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>(baseEntries);
+        modifiedEntries.remove("removed.txt");
+        modifiedEntries.put("a.txt", "one\n2\nthree\nfour\n".getBytes());
+        modifiedEntries.put("b.bin", changedBinary);
+        modifiedEntries.put("C.class", resource(JarPatcher.class));
+        modifiedEntries.put("added.txt", "new".getBytes());
+
+        for (boolean stored : new boolean[]{false, true}) {
+            Path base = jar("base.jar", baseEntries, stored);
+            Path modified = jar("modified.jar", modifiedEntries, false);
+            Path output = folder.getRoot().toPath().resolve("out/patched.jar");
+            try (PatchReader reader = new PatchReader(patch(base, modified))) {
+                new JarPatcher().apply(base, reader, output);
+            }
+
+            Map<String, byte[]> patched = read(output);
+            assertEquals(Arrays.asList("a.txt", "b.bin", "C.class", "same.txt", "added.txt"), new ArrayList<>(patched.keySet()));
+            for (Map.Entry<String, byte[]> entry : modifiedEntries.entrySet())
+                assertArrayEquals(entry.getKey(), entry.getValue(), patched.get(entry.getKey()));
+            try (ZipFile zip = new ZipFile(output.toFile())) {
+                assertEquals(stored ? ZipEntry.STORED : ZipEntry.DEFLATED, zip.getEntry("a.txt").getMethod());
+            }
+        }
+    }
+
+    @Test
+    public void outputDoesNotDependOnParallelism() throws IOException {
+        Random random = new Random(7);
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>(), modifiedEntries = new LinkedHashMap<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] content = new byte[random.nextInt(5000)];
+            random.nextBytes(content);
+            baseEntries.put("entry" + i, content);
+            if (i % 3 == 0)
+                content = Arrays.copyOf(content, content.length + 10);
+            if (i % 7 != 0)
+                modifiedEntries.put("entry" + i, content);
+        }
+        Path base = jar("base.jar", baseEntries, false);
+        Path patch = patch(base, jar("modified.jar", modifiedEntries, false));
+
+        Path sequential = folder.getRoot().toPath().resolve("sequential.jar"), parallel = folder.getRoot().toPath().resolve("parallel.jar");
+        try (PatchReader reader = new PatchReader(patch)) {
+            new JarPatcher(1, 1).apply(base, reader, sequential); //Every entry waits for the previous one to be written
+            new JarPatcher(8, 1 << 20).apply(base, reader, parallel);
+        }
+        assertArrayEquals(Files.readAllBytes(sequential), Files.readAllBytes(parallel));
+        Map<String, byte[]> patched = read(parallel);
+        assertEquals(new ArrayList<>(modifiedEntries.keySet()), new ArrayList<>(patched.keySet()));
+        for (Map.Entry<String, byte[]> entry : modifiedEntries.entrySet())
+            assertArrayEquals(entry.getValue(), patched.get(entry.getKey()));
+    }
+
+    @Test
+    public void unchangedEntriesAreCopiedRaw() throws IOException {
+        byte[] content = new byte[10000]; //Compresses very well
+        Path base = folder.getRoot().toPath().resolve("base.jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(base))) {
+            out.setLevel(Deflater.NO_COMPRESSION); //Still deflated, but recompressing it would change its data
+            for (String name : new String[]{"a.bin", "b.bin"}) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(content);
+                out.closeEntry();
+            }
+        }
+        Map<String, byte[]> modifiedEntries = read(base);
+        modifiedEntries.put("b.bin", new byte[10]);
+        Path output = folder.getRoot().toPath().resolve("patched.jar");
+        try (PatchReader reader = new PatchReader(patch(base, jar("modified.jar", modifiedEntries, false)))) {
+            new JarPatcher().apply(base, reader, output);
+        }
+
+        try (ZipFile baseZip = new ZipFile(base.toFile()); ZipFile patched = new ZipFile(output.toFile())) {
+            assertEquals(baseZip.getEntry("a.bin").getCompressedSize(), patched.getEntry("a.bin").getCompressedSize());
+            assertEquals(baseZip.getEntry("a.bin").getCrc(), patched.getEntry("a.bin").getCrc());
+        }
+        assertArrayEquals(content, read(output).get("a.bin"));
+        assertArrayEquals(new byte[10], read(output).get("b.bin"));
+    }
+
+    @Test
+    public void baseCanBePatchedInPlace() throws IOException {
+        Path base = jar("base.jar", Collections.singletonMap("a.txt", "a\nb\n".getBytes()), false);
+        Path modified = jar("modified.jar", Collections.singletonMap("a.txt", "a\nc\n".getBytes()), false);
+        try (PatchReader reader = new PatchReader(patch(base, modified))) {
+            new JarPatcher().apply(base, reader, base);
+        }
+        assertArrayEquals("a\nc\n".getBytes(), read(base).get("a.txt"));
+        assertEquals(3, folder.getRoot().list().length); //Only the jars and the patch, no temporary files are left behind
+    }
+
+    @Test(expected = IOException.class)
+    public void mismatchedBaseIsRejected() throws IOException {
+        Path base = jar("base.jar", Collections.singletonMap("a.txt", "a\n".getBytes()), false);
+        Path modified = jar("modified.jar", Collections.singletonMap("a.txt", "b\n".getBytes()), false);
+        Path patch = patch(base, modified);
+        Path other = jar("other.jar", Collections.singletonMap("b.txt", "a\n".getBytes()), false);
+        try (PatchReader reader = new PatchReader(patch)) {
+            new JarPatcher().apply(other, reader, folder.getRoot().toPath().resolve("out.jar"));
+        }
+    }
+
+    @Test
+    public void filteredPatchOnlyChangesMatchingEntries() throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        baseEntries.put("com/acme/core/A.txt", "a\n".getBytes());
+        baseEntries.put("com/acme/other/B.txt", "b\n".getBytes());
+        baseEntries.put("com/acme/core/Removed.txt", "gone\n".getBytes());
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>();
+        modifiedEntries.put("com/acme/core/A.txt", "a2\n".getBytes());
+        modifiedEntries.put("com/acme/other/B.txt", "b2\n".getBytes());
+        modifiedEntries.put("com/acme/other/Added.txt", "new\n".getBytes());
+        Path base = jar("base.jar", baseEntries, false);
+        Path patch = patch(base, jar("modified.jar", modifiedEntries, false));
+
+        Path output = folder.getRoot().toPath().resolve("out.jar");
+        try (PatchReader reader = new PatchReader(patch).filter(EntryFilter.of(Collections.singletonList("com/acme/core/"), null))) {
+            assertEquals(2, reader.getEntries().size());
+            assertNull(reader.getEntry("com/acme/other/B.txt"));
+            new JarPatcher().apply(base, reader, output);
+        }
+        Map<String, byte[]> patched = read(output);
+        assertEquals(Arrays.asList("com/acme/core/A.txt", "com/acme/other/B.txt"), new ArrayList<>(patched.keySet()));
+        assertArrayEquals("a2\n".getBytes(), patched.get("com/acme/core/A.txt"));
+        assertArrayEquals("b\n".getBytes(), patched.get("com/acme/other/B.txt"));
+    }
+
+    @Test
+    public void changedBaseIsRejectedBeforeWriting() throws IOException {
+        Path base = jar("base.jar", Collections.singletonMap("a.txt", "a\n".getBytes()), false);
+        Path modified = jar("modified.jar", Collections.singletonMap("a.txt", "b\n".getBytes()), false);
+        Path patch = patch(base, modified);
+        Path other = jar("other.jar", Collections.singletonMap("a.txt", "c\n".getBytes()), false);
+        Path output = folder.getRoot().toPath().resolve("out.jar");
+        try (PatchReader reader = new PatchReader(patch)) {
+            new JarPatcher().apply(other, reader, output);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("a.txt"));
+        }
+        assertFalse(Files.exists(output));
+    }
+
+    @Test
+    public void invertedPatchRestoresBaseJar() throws IOException {
+        Map<String, byte[]> baseEntries = new LinkedHashMap<>();
+        baseEntries.put("a.txt", "one\ntwo\nthree\n".getBytes());
+        baseEntries.put("C.class", resource(JarPatcherTest.class));
+        baseEntries.put("removed.txt", "gone".getBytes());
+        Map<String, byte[]> modifiedEntries = new LinkedHashMap<>(baseEntries);
+        modifiedEntries.remove("removed.txt");
+        modifiedEntries.put("a.txt", "one\n2\nthree\nfour\n".getBytes());
+        modifiedEntries.put("C.class", resource(JarPatcher.class));
+        modifiedEntries.put("added.txt", "new".getBytes());
+        Path base = jar("base.jar", baseEntries, false);
+        Path modified = jar("modified.jar", modifiedEntries, false);
+
+        Path patch = folder.getRoot().toPath().resolve("jar.patch");
+        List<EntryDiff> diffs = new JarDiffGenerator(2, JarDiffGenerator.DEFAULT_MEMORY_BUDGET, DiffAlgorithm.DYNAMIC,
+                null, true).diff(base, modified);
+        try (OutputStream out = Files.newOutputStream(patch)) {
+            PatchFile.write(new PatchFile.Header(DiffAlgorithm.DYNAMIC, HashType.CRC32, CompressType.NONE, true), diffs, out);
+        }
+        Path inverse = folder.getRoot().toPath().resolve("inverse.patch");
+        try (PatchReader reader = new PatchReader(patch); OutputStream out = Files.newOutputStream(inverse)) {
+            new JarPatcher().apply(base, reader, base);
+            PatchInverter.invert(reader, out);
+        }
+        try (PatchReader reader = new PatchReader(inverse)) {
+            new JarPatcher().apply(base, reader, base);
+        }
+
+        Map<String, byte[]> restored = read(base);
+        assertEquals(Arrays.asList("a.txt", "C.class", "removed.txt"), new ArrayList<>(restored.keySet()));
+        for (Map.Entry<String, byte[]> entry : baseEntries.entrySet())
+            assertArrayEquals(entry.getKey(), entry.getValue(), restored.get(entry.getKey()));
+    }
+
+    @Test(expected = IOException.class)
+    public void plainPatchesCantBeInverted() throws IOException {
+        Path base = jar("base.jar", Collections.singletonMap("a.txt", "a\n".getBytes()), false);
+        Path modified = jar("modified.jar", Collections.singletonMap("a.txt", "b\n".getBytes()), false);
+        try (PatchReader reader = new PatchReader(patch(base, modified))) {
+            PatchInverter.invert(reader);
+        }
+    }
+}
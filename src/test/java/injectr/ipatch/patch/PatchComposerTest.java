@@ -0,0 +1,123 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.compress.CompressType;
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.ByteCodeChange;
+import injectr.ipatch.diff.Change;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.DiffAlgorithm;
+import injectr.ipatch.diff.StageBoundary;
+import injectr.ipatch.jar.EntryDiff;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class PatchComposerTest {
+
+    private static final PatchFile.Header HEADER = new PatchFile.Header(DiffAlgorithm.DYNAMIC, HashType.CRC32, CompressType.NONE);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(EntryDiff... entries) throws IOException {
+        Path file = folder.newFile().toPath();
+        try (OutputStream out = Files.newOutputStream(file)) {
+            PatchFile.write(HEADER, Arrays.asList(entries), out);
+        }
+        return file;
+    }
+
+    private static EntryDiff added(String name, String content) {
+        return new EntryDiff(name, ChangeType.ADD, Collections.singletonList(new ByteChange(ChangeType.ADD, 0, -1, content.getBytes())));
+    }
+
+    private static EntryDiff replaced(String name, int start, int end, String content) {
+        return new EntryDiff(name, ChangeType.REPLACE, Collections.singletonList(
+                new ByteChange(end < start ? ChangeType.ADD : ChangeType.REPLACE, start, end, content.getBytes())));
+    }
+
+    private static EntryDiff removed(String name) {
+        return new EntryDiff(name, ChangeType.REMOVE, Collections.emptyList());
+    }
+
+    private List<EntryDiff> compose(Path... patches) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PatchComposer.compose(Arrays.asList(patches), out);
+        return PatchFile.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void entriesAreComposed() throws IOException {
+        Path first = write(added("new.txt", "hello"), added("temporary.txt", "gone"), replaced("a.txt", 0, 1, "AB"),
+                replaced("b.txt", 2, 1, "!"), replaced("c.txt", 0, 0, "x"));
+        Path second = write(replaced("new.txt", 5, 4, " world"), removed("temporary.txt"), replaced("a.txt", 1, 2, "b"),
+                removed("b.txt"), replaced("d.txt", 0, 0, "y"), added("other.txt", "other"));
+
+        List<EntryDiff> composed = compose(first, second);
+        assertEquals(Arrays.asList("new.txt", "a.txt", "b.txt", "c.txt", "d.txt", "other.txt"),
+                composed.stream().map(EntryDiff::getName).collect(Collectors.toList()));
+
+        assertEquals(ChangeType.ADD, composed.get(0).type());
+        assertArrayEquals("hello world".getBytes(), ((ByteChange) composed.get(0).getChanges().get(0)).getNewContent());
+
+        byte[] a = "abcdef".getBytes(); //ab becomes AB, then Bc becomes b
+        assertArrayEquals("Abdef".getBytes(), ChangeApplier.apply(a, composed.get(1).getChanges()));
+        assertEquals(ChangeType.REMOVE, composed.get(2).type());
+        assertEquals(ChangeType.REPLACE, composed.get(3).type());
+        assertEquals(ChangeType.ADD, composed.get(5).type());
+    }
+
+    @Test
+    public void chainsAreComposed() throws IOException {
+        Path first = write(replaced("a.txt", 0, 0, "1"));
+        Path second = write(replaced("a.txt", 1, 1, "2"));
+        Path third = write(replaced("a.txt", 2, 1, "3"));
+        List<EntryDiff> composed = compose(first, second, third);
+        assertArrayEquals("123c".getBytes(), ChangeApplier.apply("abc".getBytes(), composed.get(0).getChanges()));
+        assertEquals(1, composed.get(0).getChanges().size());
+    }
+
+    @Test
+    public void changesWhichCancelOutAreDropped() throws IOException {
+        Path first = write(replaced("a.txt", 1, 0, "x"));
+        Path second = write(new EntryDiff("a.txt", ChangeType.REPLACE,
+                Collections.singletonList(new ByteChange(ChangeType.REMOVE, 1, 1, new byte[0]))));
+        assertTrue(compose(first, second).isEmpty());
+    }
+
+    @Test
+    public void stagesRoundTrip() throws IOException {
+        byte[] version = {0, 1, 0, 52};
+        List<Change> changes = Arrays.asList(
+                new ByteCodeChange(ChangeType.REPLACE, ByteCodeChange.Target.VERSION, null, 0, version),
+                StageBoundary.INSTANCE,
+                new ByteChange(ChangeType.REPLACE, 4, 5, new byte[]{9}));
+        List<Change> decoded = ChangeCodec.decode(ChangeCodec.encode(changes));
+        assertEquals(3, decoded.size());
+        assertSame(StageBoundary.INSTANCE, decoded.get(1));
+        assertEquals(4, ((ByteChange) decoded.get(2)).getStartIndex());
+    }
+
+    @Test(expected = IOException.class)
+    public void removedThenAddedEntriesAreRejected() throws IOException {
+        compose(write(removed("a.txt")), write(added("a.txt", "back")));
+    }
+
+    @Test(expected = IOException.class)
+    public void unrelatedPatchesAreRejected() throws IOException {
+        compose(write(added("a.txt", "new")), write(added("a.txt", "again")));
+    }
+}
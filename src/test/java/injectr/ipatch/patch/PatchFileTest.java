@@ -0,0 +1,238 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.compress.CompressType;
+import injectr.ipatch.compress.ZstdDictionary;
+import injectr.ipatch.compress.ZstdDictionaryTest;
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.ByteCodeChange;
+import injectr.ipatch.diff.Change;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.DiffAlgorithm;
+import injectr.ipatch.diff.StringChange;
+import injectr.ipatch.jar.EntryChecksum;
+import injectr.ipatch.jar.EntryDiff;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PatchFileTest {
+
+    private static final PatchFile.Header HEADER = new PatchFile.Header(DiffAlgorithm.PATIENCE, HashType.CRC32, CompressType.NONE);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static List<EntryDiff> entries() {
+        return Arrays.asList(
+                new EntryDiff("META-INF/MANIFEST.MF", ChangeType.REPLACE, Arrays.asList(
+                        new ByteChange(ChangeType.REPLACE, 10, 12, new byte[]{1, 2}),
+                        new ByteChange(ChangeType.ADD, 40, 39, new byte[]{3}),
+                        new ByteChange(ChangeType.REMOVE, 100, 199, new byte[0]))),
+                new EntryDiff("a/b/C.class", ChangeType.REPLACE, Arrays.asList(
+                        new ByteCodeChange(ChangeType.REMOVE, ByteCodeChange.Target.METHOD, "run:()V", -1, null),
+                        new ByteCodeChange(ChangeType.ADD, ByteCodeChange.Target.FIELD, "x:I", 3, new byte[]{9}))),
+                new EntryDiff("a/b/D.txt", ChangeType.REPLACE, Collections.singletonList(
+                        new StringChange(ChangeType.REPLACE, 2, 3, "caf\u00e9\nbar"))),
+                new EntryDiff("a/b/E.class", ChangeType.REMOVE, Collections.emptyList()),
+                new EntryDiff("b/New.class", ChangeType.ADD, Collections.singletonList(
+                        new ByteChange(ChangeType.ADD, 0, -1, new byte[]{(byte) 0xCA, (byte) 0xFE}))));
+    }
+
+    static void assertSame(EntryDiff expected, EntryDiff actual) throws IOException {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.type(), actual.type());
+        assertEquals(expected.getChanges().size(), actual.getChanges().size());
+        assertArrayEquals(ChangeCodec.encode(expected.getChanges()), ChangeCodec.encode(actual.getChanges()));
+        for (int i = 0; i < expected.getChanges().size(); i++)
+            assertEquals(expected.getChanges().get(i).getClass(), actual.getChanges().get(i).getClass());
+    }
+
+    static Path write(Path file, List<EntryDiff> entries) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            PatchFile.write(HEADER, entries, out);
+        }
+        return file;
+    }
+
+    @Test
+    public void entriesRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PatchFile.write(HEADER, entries(), out);
+        List<EntryDiff> read = PatchFile.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(entries().size(), read.size());
+        for (int i = 0; i < read.size(); i++)
+            assertSame(entries().get(i), read.get(i));
+
+        List<Change> changes = ChangeCodec.decode(ChangeCodec.encode(entries().get(0).getChanges()));
+        ByteChange add = (ByteChange) changes.get(1);
+        assertEquals(40, add.getStartIndex());
+        assertEquals(39, add.getEndIndex());
+        assertNull(((ByteCodeChange) read.get(1).getChanges().get(0)).getNewContent());
+    }
+
+    @Test
+    public void entriesAreReadIndividually() throws IOException {
+        try (PatchReader reader = new PatchReader(write(folder.newFile().toPath(), entries()))) {
+            assertEquals(DiffAlgorithm.PATIENCE, reader.getHeader().getAlgorithm());
+            assertEquals(HashType.CRC32, reader.getHeader().getHashType());
+            assertEquals(entries().size(), reader.getEntries().size());
+            assertNull(reader.getEntry("a/b/F.class"));
+            assertSame(entries().get(2), reader.read(reader.getEntry("a/b/D.txt")));
+            assertSame(entries().get(0), reader.read(reader.getEntries().get(0)));
+        }
+    }
+
+    @Test
+    public void largePatchesAreCompact() throws IOException {
+        List<EntryDiff> entries = new ArrayList<>();
+        for (int i = 0; i < 50000; i++)
+            entries.add(new EntryDiff("org/example/package" + (i / 100) + "/Class" + i + ".class", ChangeType.REPLACE,
+                    Collections.singletonList(new ByteChange(ChangeType.REPLACE, i % 1000, i % 1000 + 3, new byte[]{(byte) i}))));
+        Path file = write(folder.newFile().toPath(), entries);
+        assertTrue(Files.size(file) < 50000 * 24);
+
+        try (PatchReader reader = new PatchReader(file)) {
+            assertSame(entries.get(31337), reader.read(reader.getEntry("org/example/package313/Class31337.class")));
+        }
+    }
+
+    @Test
+    public void entriesAreReadConcurrently() throws Exception {
+        List<EntryDiff> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            entries.add(new EntryDiff("entry" + i, ChangeType.REPLACE, Collections.singletonList(
+                    new ByteChange(ChangeType.REPLACE, i, i + 1, new byte[i % 50]))));
+        try (PatchReader reader = new PatchReader(write(folder.newFile().toPath(), entries))) {
+            List<Integer> indices = new ArrayList<>();
+            for (int i = 0; i < entries.size(); i++)
+                indices.add(i);
+            indices.parallelStream().forEach(i -> {
+                try {
+                    assertSame(entries.get(i), reader.read(reader.getEntry("entry" + i)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            assertEquals(entries.get(7).getChanges().size(), ChangeCodec.decode(reader.record(reader.getEntries().get(7))).size());
+        }
+    }
+
+    @Test
+    public void checksumsRoundTrip() throws IOException {
+        EntryChecksum base = new EntryChecksum(0xCAFEBABEL, 1234), result = new EntryChecksum(1, 0);
+        List<EntryDiff> entries = Arrays.asList(
+                new EntryDiff("a.txt", ChangeType.REPLACE, Collections.singletonList(
+                        new ByteChange(ChangeType.REPLACE, 0, 0, new byte[]{1})), null, base, result),
+                new EntryDiff("b.txt", ChangeType.REMOVE, Collections.emptyList(), null, base, null),
+                new EntryDiff("c.txt", ChangeType.REPLACE, Collections.emptyList()));
+        try (PatchReader reader = new PatchReader(write(folder.newFile().toPath(), entries))) {
+            assertEquals(base, reader.getEntry("a.txt").getBase());
+            assertEquals(result, reader.getEntry("a.txt").getResult());
+            assertEquals(base, reader.getEntry("b.txt").getBase());
+            assertNull(reader.getEntry("c.txt").getBase());
+            assertEquals(result, reader.read(reader.getEntry("a.txt")).getResult());
+        }
+    }
+
+    @Test
+    public void compressedPatchesRoundTrip() throws IOException {
+        for (CompressType compression : new CompressType[]{CompressType.GZIP, CompressType.XZ, CompressType.ZSTANDARD}) {
+            PatchFile.Header header = new PatchFile.Header(DiffAlgorithm.PATIENCE, HashType.CRC32, compression);
+            Path file = folder.newFile().toPath();
+            try (OutputStream out = Files.newOutputStream(file)) {
+                PatchFile.write(header, entries(), out);
+            }
+
+            try (PatchReader reader = new PatchReader(file)) {
+                assertEquals(compression, reader.getHeader().getCompression());
+                assertEquals(entries().size(), reader.getEntries().size()); //Read without decompressing
+                assertSame(entries().get(2), reader.read(reader.getEntry("a/b/D.txt")));
+                assertSame(entries().get(0), reader.filter(name -> true).read(reader.getEntries().get(0)));
+            }
+            List<EntryDiff> read = PatchFile.read(Files.newInputStream(file));
+            for (int i = 0; i < entries().size(); i++)
+                assertSame(entries().get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void dictionaryPatchesRoundTrip() throws IOException {
+        ZstdDictionary dictionary = ZstdDictionaryTest.dictionary();
+        for (boolean shared : new boolean[]{false, true}) {
+            PatchFile.Header header = new PatchFile.Header(DiffAlgorithm.PATIENCE, HashType.CRC32, CompressType.NONE,
+                    false, dictionary, shared);
+            Path file = folder.newFile().toPath();
+            try (OutputStream out = Files.newOutputStream(file)) {
+                PatchFile.write(header, entries(), out);
+            }
+
+            try (PatchReader reader = new PatchReader(file, shared ? ZstdDictionary.of(dictionary.getBytes()) : null)) {
+                assertTrue(reader.getHeader().usesDictionary());
+                assertEquals(shared, reader.getHeader().isDictionaryShared());
+                assertEquals(dictionary.getId(), reader.getHeader().getDictionaryId());
+                assertSame(entries().get(2), reader.read(reader.getEntry("a/b/D.txt"))); //Decoded on its own
+            }
+            List<EntryDiff> read = PatchFile.read(Files.newInputStream(file), shared ? dictionary : null);
+            for (int i = 0; i < entries().size(); i++)
+                assertSame(entries().get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void sharedDictionaryIsRequiredToReadRecords() throws IOException {
+        PatchFile.Header header = new PatchFile.Header(DiffAlgorithm.PATIENCE, HashType.CRC32, CompressType.NONE,
+                false, ZstdDictionaryTest.dictionary(), true);
+        Path file = folder.newFile().toPath();
+        try (OutputStream out = Files.newOutputStream(file)) {
+            PatchFile.write(header, entries(), out);
+        }
+
+        try (PatchReader reader = new PatchReader(file)) {
+            assertEquals(entries().size(), reader.getEntries().size()); //The table of contents is still readable
+            reader.read(reader.getEntries().get(0));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("shared dictionary"));
+        }
+        try {
+            new PatchReader(file, ZstdDictionary.train(ZstdDictionaryTest.samples(2000, 53), 2048)).close();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Wrong dictionary"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFilesAreRejected() throws IOException {
+        Path file = write(folder.newFile().toPath(), entries());
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+        new PatchReader(file).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedRecordsAreRejected() throws IOException {
+        Path file = write(folder.newFile().toPath(), entries());
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 1; //Last byte of the last record
+        Files.write(file, bytes);
+        try (PatchReader reader = new PatchReader(file)) {
+            reader.read(reader.getEntries().get(0)); //Other entries are still fine
+            reader.read(reader.getEntries().get(reader.getEntries().size() - 1));
+        }
+    }
+}
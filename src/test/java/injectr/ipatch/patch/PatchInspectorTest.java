@@ -0,0 +1,86 @@
+package injectr.ipatch.patch;
+
+import injectr.ipatch.compress.CompressType;
+import injectr.ipatch.diff.ByteChange;
+import injectr.ipatch.diff.ByteCodeChange;
+import injectr.ipatch.diff.ChangeType;
+import injectr.ipatch.diff.DiffAlgorithm;
+import injectr.ipatch.diff.StageBoundary;
+import injectr.ipatch.jar.EntryChecksum;
+import injectr.ipatch.jar.EntryDiff;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PatchInspectorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PatchReader write(EntryDiff... entries) throws IOException {
+        Path file = folder.newFile().toPath();
+        try (OutputStream out = Files.newOutputStream(file)) {
+            PatchFile.write(new PatchFile.Header(DiffAlgorithm.DYNAMIC, HashType.CRC32, CompressType.NONE),
+                    Arrays.asList(entries), out);
+        }
+        return new PatchReader(file);
+    }
+
+    private static EntryDiff replaced(String name, int baseSize, ByteChange change) {
+        return new EntryDiff(name, ChangeType.REPLACE, Collections.singletonList(change), null,
+                new EntryChecksum(0, baseSize), new EntryChecksum(0, baseSize));
+    }
+
+    @Test
+    public void methodsAreRecorded() throws IOException {
+        try (PatchReader patch = write(
+                new EntryDiff("a/Added.txt", ChangeType.ADD, Collections.singletonList(new ByteChange(ChangeType.ADD, 0, -1, new byte[10]))),
+                new EntryDiff("a/Removed.txt", ChangeType.REMOVE, Collections.emptyList()),
+                replaced("a/Whole.bin", 4, new ByteChange(ChangeType.REPLACE, 0, 3, new byte[4])),
+                replaced("a/Delta.bin", 100, new ByteChange(ChangeType.REPLACE, 10, 13, new byte[4])),
+                new EntryDiff("b/C.class", ChangeType.REPLACE, Arrays.asList(
+                        new ByteCodeChange(ChangeType.REMOVE, ByteCodeChange.Target.METHOD, "run:()V", -1, null))),
+                new EntryDiff("b/D.class", ChangeType.REPLACE, Arrays.asList(
+                        new ByteCodeChange(ChangeType.REMOVE, ByteCodeChange.Target.METHOD, "run:()V", -1, null),
+                        StageBoundary.INSTANCE,
+                        new ByteChange(ChangeType.REPLACE, 0, 0, new byte[1]))))) {
+            assertEquals(EntryMethod.CONTENT, patch.getEntry("a/Added.txt").getMethod());
+            assertEquals(EntryMethod.NONE, patch.getEntry("a/Removed.txt").getMethod());
+            assertEquals(EntryMethod.CONTENT, patch.getEntry("a/Whole.bin").getMethod());
+            assertEquals(EntryMethod.BYTES, patch.getEntry("a/Delta.bin").getMethod());
+            assertEquals(EntryMethod.MEMBERS, patch.getEntry("b/C.class").getMethod());
+            assertEquals(EntryMethod.STAGED, patch.getEntry("b/D.class").getMethod());
+            assertEquals(patch.getEntry("a/Delta.bin").getLength() + 200, PatchInspector.cost(patch.getEntry("a/Delta.bin")));
+            assertEquals(0, PatchInspector.cost(patch.getEntry("a/Removed.txt")));
+        }
+    }
+
+    @Test
+    public void largestEntriesAreListedFirst() throws IOException {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        try (PatchReader patch = write(
+                new EntryDiff("a/Small.txt", ChangeType.ADD, Collections.singletonList(new ByteChange(ChangeType.ADD, 0, -1, new byte[10]))),
+                new EntryDiff("b/Large.txt", ChangeType.ADD, Collections.singletonList(new ByteChange(ChangeType.ADD, 0, -1, new byte[1000]))),
+                new EntryDiff("b/Medium.txt", ChangeType.ADD, Collections.singletonList(new ByteChange(ChangeType.ADD, 0, -1, new byte[100]))))) {
+            PatchInspector.inspect(patch, 2, new PrintStream(report, true));
+        }
+        String text = report.toString();
+        assertTrue(text, text.startsWith("Algorithm DYNAMIC, hash CRC32, compression NONE" + System.lineSeparator() + "3 entries"));
+        String largest = text.substring(text.indexOf("Largest entries:"), text.indexOf("Costliest entries:"));
+        assertTrue(largest.indexOf("b/Large.txt") < largest.indexOf("b/Medium.txt"));
+        assertFalse(largest.contains("a/Small.txt"));
+        String packages = text.substring(text.indexOf("Largest packages:"), text.indexOf("Largest entries:"));
+        assertTrue(packages.indexOf("b/") < packages.indexOf("a/"));
+    }
+}